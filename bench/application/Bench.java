@@ -0,0 +1,243 @@
+package application ;
+
+import java.io.OutputStream ;
+import java.io.PrintStream ;
+import java.lang.management.ManagementFactory ;
+import java.util.Arrays ;
+import java.util.Locale ;
+import com.sun.management.ThreadMXBean ;
+
+/**
+ * Runs the benchmarks for the server hot paths and prints one line per result. Each benchmark
+ * warms up for {@code bench.warmupSeconds}, then is measured for {@code bench.iterations} runs of
+ * {@code bench.seconds} each.
+ * <p>
+ * Run with the compiled {@code src} and {@code bench} folders on the class path, from a scratch
+ * directory, since the server benchmark writes its history there:
+ *
+ * <pre>
+ * java -cp bin application.Bench [codec] [record] [history] [server]
+ * </pre>
+ *
+ * With no arguments every benchmark runs. Server and history output is discarded while
+ * benchmarks run unless {@code bench.verbose} is set.
+ * <p>
+ * This is a plain Java harness rather than JMH, since the project is built from its Eclipse
+ * class path and has no Maven or Gradle build to add JMH to.
+ *
+ * @version 1.2 2026-10-18 Says why the harness is not JMH.
+ *
+ * @since 1.3
+ */
+public final class Bench
+    {
+
+    /**
+     * Where results go, since {@link System#out} may be silenced.
+     */
+    static final PrintStream REPORT = System.out ;
+
+    private static final long WARMUP_NANOS = Long.getLong( "bench.warmupSeconds", 2 ) *
+                                             1_000_000_000L ;
+    private static final long MEASURE_NANOS = Long.getLong( "bench.seconds", 3 ) *
+                                              1_000_000_000L ;
+    private static final int ITERATIONS = Integer.getInteger( "bench.iterations", 3 ) ;
+    private static final int ALLOCATION_CALLS = 200 ;
+
+    /**
+     * Results are folded in here so the JIT cannot drop the work that produced them.
+     */
+    static volatile long sink ;
+
+
+    private Bench()
+        {}
+
+
+    /**
+     * Something measured, which may throw.
+     */
+    @FunctionalInterface
+    interface Operation
+        {
+
+        void run() throws Exception ;
+
+        }
+
+
+    /**
+     * Call {@code operation} in a loop and report how many units of work it completes per second.
+     *
+     * @param unitsPerCall
+     *     How many messages, records or frames one call handles.
+     */
+    static void throughput( final String name,
+                            final int unitsPerCall,
+                            final String unit,
+                            final Operation operation ) throws Exception
+        {
+
+        loop( operation, WARMUP_NANOS ) ;
+
+        final double[] rates = new double[ ITERATIONS ] ;
+
+        for ( int i = 0 ; i < ITERATIONS ; i++ )
+            {
+            final long start = System.nanoTime() ;
+            final long calls = loop( operation, MEASURE_NANOS ) ;
+            rates[ i ] = ( calls * unitsPerCall * 1e9 ) / ( System.nanoTime() - start ) ;
+            }
+
+        final double mean = Arrays.stream( rates ).average().orElse( 0 ) ;
+        final double spread = Arrays.stream( rates ).map( rate -> Math.abs( rate - mean ) )
+                                    .max()
+                                    .orElse( 0 ) ;
+
+        REPORT.printf( Locale.ROOT,
+                       "%-44s %14.0f %s/s  +- %.0f%n",
+                       name,
+                       mean,
+                       unit,
+                       spread ) ;
+
+        }
+
+
+    /**
+     * Report the heap the calling thread allocates per unit of work. Run after
+     * {@link #throughput} on the same operation, so it is measured warm.
+     */
+    static void allocation( final String name,
+                            final int unitsPerCall,
+                            final String unit,
+                            final Operation operation ) throws Exception
+        {
+
+        if ( !( ManagementFactory.getThreadMXBean() instanceof final ThreadMXBean threads ) ||
+             !threads.isThreadAllocatedMemorySupported() )
+            {
+            REPORT.printf( Locale.ROOT, "%-44s allocation not measurable%n", name ) ;
+            return ;
+            }
+
+        threads.setThreadAllocatedMemoryEnabled( true ) ;
+
+        final long before = threads.getCurrentThreadAllocatedBytes() ;
+
+        for ( int i = 0 ; i < ALLOCATION_CALLS ; i++ )
+            {
+            operation.run() ;
+            }
+
+        final long allocated = threads.getCurrentThreadAllocatedBytes() - before ;
+
+        REPORT.printf( Locale.ROOT,
+                       "%-44s %14.1f bytes allocated/%s%n",
+                       name,
+                       allocated / ( (double) ALLOCATION_CALLS * unitsPerCall ),
+                       unit ) ;
+
+        }
+
+
+    /**
+     * Report percentiles of a set of latencies.
+     *
+     * @param nanos
+     *     One latency per sample, in nanoseconds. Sorted in place.
+     */
+    static void latency( final String name,
+                         final long[] nanos,
+                         final int count )
+        {
+
+        if ( count == 0 )
+            {
+            REPORT.printf( Locale.ROOT, "%-44s no samples%n", name ) ;
+            return ;
+            }
+
+        Arrays.sort( nanos, 0, count ) ;
+        REPORT.printf( Locale.ROOT,
+                       "%-44s p50 %10.1f us  p99 %10.1f us  max %10.1f us  (%d samples)%n",
+                       name,
+                       percentile( nanos, count, 0.50 ) / 1e3,
+                       percentile( nanos, count, 0.99 ) / 1e3,
+                       nanos[ count - 1 ] / 1e3,
+                       count ) ;
+
+        }
+
+
+    /**
+     * @param sorted
+     *     The first {@code count} entries, in ascending order.
+     */
+    static long percentile( final long[] sorted,
+                            final int count,
+                            final double fraction )
+        {
+
+        return sorted[ Math.min( count - 1, (int) Math.ceil( fraction * count ) - 1 ) ] ;
+
+        }
+
+
+    private static long loop( final Operation operation,
+                              final long nanos ) throws Exception
+        {
+
+        final long end = System.nanoTime() + nanos ;
+        long calls = 0 ;
+
+        do
+            {
+            operation.run() ;
+            calls++ ;
+            }
+        while ( System.nanoTime() < end ) ;
+
+        return calls ;
+
+        }
+
+
+    /**
+     * @param args
+     *     The benchmarks to run: any of {@code codec}, {@code record}, {@code history} and
+     *     {@code server}.
+     */
+    public static void main( final String[] args ) throws Exception
+        {
+
+        final String[] selected = args.length == 0
+            ? new String[] { "codec", "record", "history", "server" }
+            : args ;
+
+        if ( !Boolean.getBoolean( "bench.verbose" ) )
+            {
+            System.setOut( new PrintStream( OutputStream.nullOutputStream() ) ) ;
+            System.setErr( new PrintStream( OutputStream.nullOutputStream() ) ) ;
+            }
+
+        for ( final String benchmark : selected )
+            {
+
+            switch ( benchmark )
+                {
+                case "codec" -> CodecBenchmark.run() ;
+                case "record" -> RecordBenchmark.run() ;
+                case "history" -> HistoryBenchmark.run() ;
+                case "server" -> ServerBenchmark.run() ;
+                default -> REPORT.println( "Unknown benchmark " + benchmark ) ;
+                }
+
+            }
+
+        // The server under test never returns from its accept loop
+        System.exit( 0 ) ;
+
+        }
+
+    }
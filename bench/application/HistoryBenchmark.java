@@ -0,0 +1,205 @@
+package application ;
+
+import java.io.BufferedWriter ;
+import java.io.File ;
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.io.OutputStreamWriter ;
+import java.nio.charset.StandardCharsets ;
+import java.nio.file.Files ;
+import java.nio.file.Path ;
+import java.util.Comparator ;
+import java.util.Locale ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.stream.Stream ;
+
+/**
+ * History append throughput, and the latency of reading one conversation as the log around it
+ * grows from a thousand lines to {@code bench.history.maxLines}, with and without the index.
+ * Each log is written straight to a temporary directory and then opened, so the time to open it
+ * and the time until its background recovery finishes are reported too.
+ *
+ * @version 1.1 2026-10-18 Reports background recovery time.
+ *
+ * @since 1.3
+ */
+final class HistoryBenchmark
+    {
+
+    private static final long[] SIZES = { 1_000, 10_000, 100_000, 1_000_000, 10_000_000 } ;
+    private static final int CONVERSATION_RECORDS = 100 ;
+    private static final int OTHER_USERS = 1000 ;
+    private static final int APPENDS_PER_CALL = 1024 ;
+    private static final long READ_NANOS = 2_000_000_000L ;
+    private static final int MAX_READS = 1000 ;
+
+
+    private HistoryBenchmark()
+        {}
+
+
+    static void run() throws Exception
+        {
+
+        append() ;
+
+        final long maxLines = Long.getLong( "bench.history.maxLines", 1_000_000 ) ;
+
+        for ( final long lines : SIZES )
+            {
+
+            if ( lines > maxLines )
+                {
+                break ;
+                }
+
+            read( lines, true ) ;
+            read( lines, false ) ;
+            }
+
+        }
+
+
+    private static void append() throws Exception
+        {
+
+        final File directory = Files.createTempDirectory( "history-bench" ).toFile() ;
+
+        try
+            {
+            final HistoryDurability durability = HistoryDurability.fromSystemProperty() ;
+            final MessageHistory history = new MessageHistory( new File( directory, "history.txt" ),
+                                                               durability ) ;
+
+            Bench.throughput( "history append (" + durability + ")",
+                              APPENDS_PER_CALL,
+                              "records",
+                              () ->
+                {
+                CompletableFuture<Void> last = null ;
+
+                for ( int i = 0 ; i < APPENDS_PER_CALL ; i++ )
+                    {
+                    last = history.append( "alice", "bob", record( "alice", "bob", i ) ) ;
+                    }
+
+                last.join() ;
+                } ) ;
+            }
+        finally
+            {
+            delete( directory ) ;
+            }
+
+        }
+
+
+    private static void read( final long lines,
+                              final boolean indexed ) throws Exception
+        {
+
+        final File directory = Files.createTempDirectory( "history-bench" ).toFile() ;
+        final String label = String.format( Locale.ROOT,
+                                            "history read %,d lines (%s)",
+                                            lines,
+                                            indexed ? "indexed" : "scan" ) ;
+
+        try
+            {
+            final File file = new File( directory, "history.txt" ) ;
+            generate( file, lines ) ;
+
+            System.setProperty( "chat.history.index", Boolean.toString( indexed ) ) ;
+
+            final long openStart = System.nanoTime() ;
+            final MessageHistory history = new MessageHistory( file, HistoryDurability.NONE ) ;
+            final long openNanos = System.nanoTime() - openStart ;
+
+            history.awaitRecovery() ;
+            final long recoverNanos = System.nanoTime() - openStart ;
+
+            final long[] latencies = new long[ MAX_READS ] ;
+            final long end = System.nanoTime() + READ_NANOS ;
+            int reads = 0 ;
+
+            // The first read is left out, as it pages the log in
+            Bench.sink += history.read( "alice", "bob" ).size() ;
+
+            while ( ( reads < MAX_READS ) && ( System.nanoTime() < end ) )
+                {
+                final long start = System.nanoTime() ;
+                Bench.sink += history.read( "alice", "bob" ).size() ;
+                latencies[ reads++ ] = System.nanoTime() - start ;
+                }
+
+            Bench.REPORT.printf( Locale.ROOT,
+                                 "%-44s open %8.1f ms, recovered %8.1f ms%n",
+                                 label,
+                                 openNanos / 1e6,
+                                 recoverNanos / 1e6 ) ;
+            Bench.latency( label, latencies, reads ) ;
+            }
+        finally
+            {
+            System.clearProperty( "chat.history.index" ) ;
+            delete( directory ) ;
+            }
+
+        }
+
+
+    /**
+     * Write {@code lines} records among {@link #OTHER_USERS} users, with
+     * {@link #CONVERSATION_RECORDS} between alice and bob spread evenly through them.
+     */
+    private static void generate( final File file,
+                                  final long lines ) throws IOException
+        {
+
+        final long spacing = Math.max( 1, lines / CONVERSATION_RECORDS ) ;
+
+        try ( BufferedWriter out = new BufferedWriter(
+            new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ),
+            1 << 16 ) )
+            {
+
+            for ( long i = 0 ; i < lines ; i++ )
+                {
+                final String line = ( i % spacing ) == 0
+                    ? record( "alice", "bob", i )
+                    : record( "user" + ( i % OTHER_USERS ),
+                              "user" + ( ( i * 7 ) % OTHER_USERS ),
+                              i ) ;
+
+                out.write( line ) ;
+                out.write( '\n' ) ;
+                }
+
+            }
+
+        }
+
+
+    private static String record( final String senderID,
+                                  final String recipientID,
+                                  final long i )
+        {
+
+        return "[Oct 18, 2026, 12:00:00 PM] " + senderID + " -> " + recipientID +
+               ": benchmark message number " + i ;
+
+        }
+
+
+    private static void delete( final File directory ) throws IOException
+        {
+
+        try ( Stream<Path> paths = Files.walk( directory.toPath() ) )
+            {
+            paths.sorted( Comparator.reverseOrder() ).map( Path::toFile )
+                 .forEach( File::delete ) ;
+            }
+
+        }
+
+    }
@@ -0,0 +1,393 @@
+package application ;
+
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.io.OutputStream ;
+import java.io.OutputStreamWriter ;
+import java.io.PrintStream ;
+import java.io.PrintWriter ;
+import java.nio.charset.StandardCharsets ;
+import java.util.ArrayList ;
+import java.util.Arrays ;
+import java.util.List ;
+import java.util.Locale ;
+import java.util.concurrent.ThreadLocalRandom ;
+import java.util.concurrent.atomic.LongAdder ;
+import java.util.concurrent.locks.LockSupport ;
+
+/**
+ * Drives a chat server with many simulated {@link TCPClient} sessions and records how long
+ * messages take to be confirmed and delivered, and history requests to be answered.
+ * <p>
+ * Configured with system properties:
+ *
+ * <pre>
+ * load.host, load.port     server to drive (localhost:9000)
+ * load.embedded            start a TCPServer in this process first (false)
+ * load.sessions            client sessions to open (1000)
+ * load.rate                messages per second across all sessions (5000)
+ * load.payloadBytes        message size, at least large enough for a timestamp (64)
+ * load.distribution        how recipients are picked: uniform or zipf (uniform)
+ * load.zipfExponent        skew of the zipf distribution (1.0)
+ * load.reqFraction         share of operations that are history requests instead (0.01)
+ * load.threads             sending threads (4)
+ * load.warmupSeconds       run before recording (5)
+ * load.seconds             recorded run (30)
+ * load.report              JSON report file (load-report.json)
+ * </pre>
+ *
+ * Latencies are measured from the intended send time of each operation, so a stalled sender
+ * shows up in the results rather than silently lowering the rate.
+ *
+ * @version 1.1 2026-10-18 Starts the embedded server with TCPServer.start().
+ *
+ * @since 1.3
+ */
+public final class LoadGenerator
+    {
+
+    private static final PrintStream REPORT = System.out ;
+
+    private final String host ;
+    private final int port ;
+    private final int sessions ;
+    private final int rate ;
+    private final int payloadBytes ;
+    private final String distribution ;
+    private final double[] zipfCumulative ;
+    private final double reqFraction ;
+    private final int threads ;
+    private final long warmupNanos ;
+    private final long measureNanos ;
+    private final List<TCPClient> clients ;
+    private final LatencyHistogram confirmLatency ;
+    private final LatencyHistogram deliveryLatency ;
+    private final LatencyHistogram historyLatency ;
+    private final LongAdder sent ;
+    private final LongAdder failed ;
+    private final LongAdder requests ;
+    private volatile long recordFrom ;
+    private volatile boolean running ;
+
+
+    private LoadGenerator()
+        {
+
+        this.host = System.getProperty( "load.host", "localhost" ) ;
+        this.port = Integer.getInteger( "load.port", 9000 ) ;
+        this.sessions = Math.max( 2, Integer.getInteger( "load.sessions", 1000 ) ) ;
+        this.rate = Integer.getInteger( "load.rate", 5000 ) ;
+        this.payloadBytes = Integer.getInteger( "load.payloadBytes", 64 ) ;
+        this.distribution = System.getProperty( "load.distribution", "uniform" ) ;
+        this.zipfCumulative = "zipf".equals( this.distribution )
+            ? zipf( this.sessions,
+                    Double.parseDouble( System.getProperty( "load.zipfExponent", "1.0" ) ) )
+            : null ;
+        this.reqFraction = Double.parseDouble( System.getProperty( "load.reqFraction", "0.01" ) ) ;
+        this.threads = Integer.getInteger( "load.threads", 4 ) ;
+        this.warmupNanos = Long.getLong( "load.warmupSeconds", 5 ) * 1_000_000_000L ;
+        this.measureNanos = Long.getLong( "load.seconds", 30 ) * 1_000_000_000L ;
+        this.clients = new ArrayList<>( this.sessions ) ;
+        this.confirmLatency = new LatencyHistogram() ;
+        this.deliveryLatency = new LatencyHistogram() ;
+        this.historyLatency = new LatencyHistogram() ;
+        this.sent = new LongAdder() ;
+        this.failed = new LongAdder() ;
+        this.requests = new LongAdder() ;
+
+        }
+
+
+    private void run() throws Exception
+        {
+
+        if ( Boolean.getBoolean( "load.embedded" ) )
+            {
+            final Thread server = new Thread( () -> new TCPServer( this.port ).start(),
+                                              "load-server" ) ;
+            server.setDaemon( true ) ;
+            server.start() ;
+            Thread.sleep( 1000 ) ;
+            }
+
+        REPORT.println( "Opening " + this.sessions + " sessions to " + this.host + ":" +
+                        this.port + "..." ) ;
+
+        for ( int i = 0 ; i < this.sessions ; i++ )
+            {
+            final TCPClient client = new TCPClient( userID( i ), this.host, this.port ) ;
+
+            // A session is registered by the first frame it sends
+            client.joinGroup( "#load" ) ;
+            this.clients.add( client ) ;
+            }
+
+        this.running = true ;
+        this.recordFrom = System.nanoTime() + this.warmupNanos ;
+
+        final List<Thread> workers = new ArrayList<>() ;
+
+        for ( int t = 0 ; t < this.threads ; t++ )
+            {
+            final int first = t ;
+            workers.add( Thread.ofPlatform().name( "load-sender-" + t )
+                               .start( () -> sendLoop( first ) ) ) ;
+            workers.add( Thread.ofPlatform().name( "load-receiver-" + t )
+                               .start( () -> receiveLoop( first ) ) ) ;
+            }
+
+        REPORT.println( "Warming up for " + ( this.warmupNanos / 1_000_000_000L ) + " s..." ) ;
+        Thread.sleep( ( this.warmupNanos + this.measureNanos ) / 1_000_000 ) ;
+        this.running = false ;
+
+        for ( final Thread worker : workers )
+            {
+            worker.join() ;
+            }
+
+        // Give confirmations still in flight a moment to land
+        Thread.sleep( 500 ) ;
+        report() ;
+
+        for ( final TCPClient client : this.clients )
+            {
+            client.stop() ;
+            }
+
+        }
+
+
+    /**
+     * Send this thread's share of the rate from the sessions {@code first},
+     * {@code first + threads}, and so on, on a fixed schedule.
+     */
+    private void sendLoop( final int first )
+        {
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current() ;
+        final long interval = ( 1_000_000_000L * this.threads ) / Math.max( 1, this.rate ) ;
+        final String padding = "x".repeat( Math.max( 0, this.payloadBytes - 20 ) ) ;
+        long intended = System.nanoTime() ;
+        int session = first ;
+
+        while ( this.running )
+            {
+            LockSupport.parkNanos( intended - System.nanoTime() ) ;
+
+            final TCPClient client = this.clients.get( session ) ;
+            final String recipientID = userID( recipient( random, session ) ) ;
+            final long start = intended ;
+            final boolean recorded = start >= this.recordFrom ;
+
+            if ( random.nextDouble() < this.reqFraction )
+                {
+                this.requests.increment() ;
+                client.requestHistory( recipientID ).whenComplete( ( records, failure ) ->
+                    {
+
+                    if ( recorded && ( failure == null ) )
+                        {
+                        this.historyLatency.record( System.nanoTime() - start ) ;
+                        }
+
+                    } ) ;
+                }
+            else
+                {
+                this.sent.increment() ;
+                client.sendMessageAsync( recipientID, start + " " + padding )
+                      .whenComplete( ( result, failure ) ->
+                    {
+
+                    if ( failure != null )
+                        {
+                        this.failed.increment() ;
+                        }
+                    else if ( recorded )
+                        {
+                        this.confirmLatency.record( System.nanoTime() - start ) ;
+                        }
+
+                    } ) ;
+                }
+
+            intended += interval ;
+            session += this.threads ;
+
+            if ( session >= this.sessions )
+                {
+                session = first ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Poll the queues of the sessions {@code first}, {@code first + threads}, and so on, and time
+     * every message that arrives.
+     */
+    private void receiveLoop( final int first )
+        {
+
+        while ( this.running )
+            {
+            boolean idle = true ;
+
+            for ( int i = first ; i < this.sessions ; i += this.threads )
+                {
+                String message ;
+
+                while ( ( message = this.clients.get( i ).msgQueuePoll() ) != null )
+                    {
+                    idle = false ;
+
+                    final long start = Long.parseLong( message, 0, message.indexOf( ' ' ), 10 ) ;
+
+                    if ( start >= this.recordFrom )
+                        {
+                        this.deliveryLatency.record( System.nanoTime() - start ) ;
+                        }
+
+                    }
+
+                }
+
+            if ( idle )
+                {
+                LockSupport.parkNanos( 50_000 ) ;
+                }
+
+            }
+
+        }
+
+
+    private int recipient( final ThreadLocalRandom random,
+                           final int sender )
+        {
+
+        int recipient ;
+
+        do
+            {
+
+            if ( this.zipfCumulative == null )
+                {
+                recipient = random.nextInt( this.sessions ) ;
+                }
+            else
+                {
+                final int found = Arrays.binarySearch( this.zipfCumulative, random.nextDouble() ) ;
+                recipient = Math.min( this.sessions - 1, found < 0 ? -found - 1 : found ) ;
+                }
+
+            }
+        while ( recipient == sender ) ;
+
+        return recipient ;
+
+        }
+
+
+    /**
+     * @return The cumulative probabilities of picking session 0, 1, and so on.
+     */
+    private static double[] zipf( final int count,
+                                  final double exponent )
+        {
+
+        final double[] cumulative = new double[ count ] ;
+        double total = 0 ;
+
+        for ( int i = 0 ; i < count ; i++ )
+            {
+            total += 1 / Math.pow( i + 1, exponent ) ;
+            cumulative[ i ] = total ;
+            }
+
+        for ( int i = 0 ; i < count ; i++ )
+            {
+            cumulative[ i ] /= total ;
+            }
+
+        return cumulative ;
+
+        }
+
+
+    private static String userID( final int session )
+        {
+
+        return "load-" + session ;
+
+        }
+
+
+    private void report() throws IOException
+        {
+
+        final double seconds = this.measureNanos / 1e9 ;
+        final String file = System.getProperty( "load.report", "load-report.json" ) ;
+        final String json = String.format( Locale.ROOT,
+                                           "{%n" +
+                                              "  \"sessions\": %d,%n" +
+                                              "  \"targetRate\": %d,%n" +
+                                              "  \"payloadBytes\": %d,%n" +
+                                              "  \"distribution\": \"%s\",%n" +
+                                              "  \"reqFraction\": %s,%n" +
+                                              "  \"seconds\": %.1f,%n" +
+                                              "  \"sent\": %d,%n" +
+                                              "  \"failed\": %d,%n" +
+                                              "  \"historyRequests\": %d,%n" +
+                                              "  \"confirmedRate\": %.1f,%n" +
+                                              "  \"sendToConfirm\": %s,%n" +
+                                              "  \"sendToDelivery\": %s,%n" +
+                                              "  \"historyRequest\": %s%n" +
+                                              "}%n",
+                                           this.sessions,
+                                           this.rate,
+                                           this.payloadBytes,
+                                           this.distribution,
+                                           Double.toString( this.reqFraction ),
+                                           seconds,
+                                           this.sent.sum(),
+                                           this.failed.sum(),
+                                           this.requests.sum(),
+                                           this.confirmLatency.count() / seconds,
+                                           this.confirmLatency.toJson(),
+                                           this.deliveryLatency.toJson(),
+                                           this.historyLatency.toJson() ) ;
+
+        try ( PrintWriter out = new PrintWriter(
+            new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ) ) )
+            {
+            out.print( json ) ;
+            }
+
+        REPORT.print( json ) ;
+        REPORT.println( "Report written to " + file ) ;
+
+        }
+
+
+    /**
+     * @param args
+     *     Unused; see the class comment for the properties.
+     */
+    public static void main( final String[] args ) throws Exception
+        {
+
+        if ( !Boolean.getBoolean( "load.verbose" ) )
+            {
+            System.setOut( new PrintStream( OutputStream.nullOutputStream() ) ) ;
+            System.setErr( new PrintStream( OutputStream.nullOutputStream() ) ) ;
+            }
+
+        new LoadGenerator().run() ;
+        System.exit( 0 ) ;
+
+        }
+
+    }
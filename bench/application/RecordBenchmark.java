@@ -0,0 +1,69 @@
+package application ;
+
+import java.nio.ByteBuffer ;
+import java.nio.charset.StandardCharsets ;
+import java.text.DateFormat ;
+import java.util.Date ;
+
+/**
+ * Stamping a message and encoding its history record, the per-message work {@code sendMessage}
+ * and the history writer share, the way it used to be done and through {@link RecordFormat} and
+ * {@link RecordBuffer}. Reports throughput and heap allocated per record.
+ *
+ * @version 1.0 2026-10-18 Record formatting throughput and allocation.
+ *
+ * @since 1.3
+ */
+final class RecordBenchmark
+    {
+
+    private static final int RECORDS_PER_CALL = 1000 ;
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog, again." ;
+
+
+    private RecordBenchmark()
+        {}
+
+
+    static void run() throws Exception
+        {
+
+        final Bench.Operation legacy = () ->
+            {
+
+            for ( int i = 0 ; i < RECORDS_PER_CALL ; i++ )
+                {
+                final String timestamp = DateFormat.getDateTimeInstance()
+                                                   .format( new Date( System.currentTimeMillis() ) ) ;
+                final String record = "[" + timestamp + "] " + "alice" + " -> " + "bob" + ": " +
+                                      MESSAGE ;
+                final ByteBuffer bytes = StandardCharsets.UTF_8.encode( record + '\n' ) ;
+                Bench.sink += bytes.remaining() ;
+                }
+
+            } ;
+
+        final RecordBuffer buffer = new RecordBuffer( 1 << 17 ) ;
+        final Bench.Operation cached = () ->
+            {
+            buffer.clear() ;
+
+            for ( int i = 0 ; i < RECORDS_PER_CALL ; i++ )
+                {
+                buffer.append( RecordFormat.record( System.currentTimeMillis(),
+                                                    "alice",
+                                                    "bob",
+                                                    MESSAGE ) ) ;
+                }
+
+            Bench.sink += buffer.size() ;
+            } ;
+
+        Bench.throughput( "record stamp+encode (DateFormat)", RECORDS_PER_CALL, "records", legacy ) ;
+        Bench.allocation( "record stamp+encode (DateFormat)", RECORDS_PER_CALL, "record", legacy ) ;
+        Bench.throughput( "record stamp+encode (cached)", RECORDS_PER_CALL, "records", cached ) ;
+        Bench.allocation( "record stamp+encode (cached)", RECORDS_PER_CALL, "record", cached ) ;
+
+        }
+
+    }
@@ -0,0 +1,209 @@
+package application ;
+
+import java.io.IOException ;
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.TimeUnit ;
+import java.util.concurrent.locks.LockSupport ;
+
+/**
+ * End-to-end benchmarks through a {@link TCPServer} started in this process on
+ * {@code bench.port}, in the mode named by {@code chat.server.mode}, with in-process
+ * {@link TCPClient}s speaking {@code chat.protocol} over loopback.
+ * <p>
+ * Throughput is messages confirmed per second for one sender. Latency is from just before
+ * {@link TCPClient#sendMessageAsync} to the message reaching the recipient's queue, across
+ * {@code bench.clients} clients sending to each other in pairs at {@code bench.rate} messages a
+ * second each.
+ *
+ * @version 1.1 2026-10-18 Starts the server with TCPServer.start().
+ *
+ * @since 1.3
+ */
+final class ServerBenchmark
+    {
+
+    private static final int PORT = Integer.getInteger( "bench.port", 9100 ) ;
+    private static final int MESSAGES_PER_CALL = 1000 ;
+    private static final long CONNECT_TIMEOUT_NANOS = 10_000_000_000L ;
+
+
+    private ServerBenchmark()
+        {}
+
+
+    static void run() throws Exception
+        {
+
+        final Thread server = new Thread( () -> new TCPServer( PORT ).start(), "bench-server" ) ;
+        server.setDaemon( true ) ;
+        server.start() ;
+
+        throughput() ;
+        latency() ;
+
+        }
+
+
+    private static void throughput() throws Exception
+        {
+
+        final TCPClient sender = connect( "bench-sender" ) ;
+        final TCPClient recipient = connect( "bench-recipient" ) ;
+
+        Bench.throughput( "sendMessage confirmed", MESSAGES_PER_CALL, "msgs", () ->
+            {
+            final CompletableFuture<?>[] confirmations =
+                new CompletableFuture<?>[ MESSAGES_PER_CALL ] ;
+
+            for ( int i = 0 ; i < MESSAGES_PER_CALL ; i++ )
+                {
+                confirmations[ i ] = sender.sendMessageAsync( "bench-recipient", "payload " + i ) ;
+                }
+
+            CompletableFuture.allOf( confirmations ).get( 30, TimeUnit.SECONDS ) ;
+
+            // Keep the recipient's queue from growing without bound
+            while ( recipient.msgQueuePoll() != null )
+                {
+                Bench.sink++ ;
+                }
+
+            } ) ;
+
+        sender.stop() ;
+        recipient.stop() ;
+
+        }
+
+
+    private static void latency() throws Exception
+        {
+
+        final int clients = Integer.getInteger( "bench.clients", 32 ) & ~1 ;
+        final int rate = Integer.getInteger( "bench.rate", 200 ) ;
+        final int messages = Integer.getInteger( "bench.messages", 1000 ) ;
+        final long interval = 1_000_000_000L / rate ;
+        final List<TCPClient> sessions = new ArrayList<>() ;
+
+        for ( int i = 0 ; i < clients ; i++ )
+            {
+            sessions.add( connect( "bench-" + i ) ) ;
+            }
+
+        final long[][] samples = new long[ clients ][] ;
+        final List<Thread> threads = new ArrayList<>() ;
+
+        for ( int i = 0 ; i < clients ; i += 2 )
+            {
+            final TCPClient sender = sessions.get( i ) ;
+            final TCPClient recipient = sessions.get( i + 1 ) ;
+            final String recipientID = "bench-" + ( i + 1 ) ;
+            final long[] received = new long[ messages ] ;
+            samples[ i ] = received ;
+
+            threads.add( Thread.ofPlatform().start( () ->
+                {
+                long next = System.nanoTime() ;
+
+                for ( int m = 0 ; m < messages ; m++ )
+                    {
+                    LockSupport.parkNanos( next - System.nanoTime() ) ;
+                    sender.sendMessageAsync( recipientID, Long.toString( System.nanoTime() ) ) ;
+                    next += interval ;
+                    }
+
+                } ) ) ;
+
+            threads.add( Thread.ofPlatform().start( () ->
+                {
+                final long deadline = System.nanoTime() +
+                                      ( ( messages * interval ) + 30_000_000_000L ) ;
+                int count = 0 ;
+
+                while ( ( count < messages ) && ( System.nanoTime() < deadline ) )
+                    {
+                    final String message = recipient.msgQueuePoll() ;
+
+                    if ( message == null )
+                        {
+                        LockSupport.parkNanos( 10_000 ) ;
+                        continue ;
+                        }
+
+                    received[ count++ ] = System.nanoTime() - Long.parseLong( message ) ;
+                    }
+
+                } ) ) ;
+            }
+
+        for ( final Thread thread : threads )
+            {
+            thread.join() ;
+            }
+
+        final long[] all = new long[ ( clients / 2 ) * messages ] ;
+        int count = 0 ;
+
+        for ( int i = 0 ; i < clients ; i += 2 )
+            {
+
+            for ( final long sample : samples[ i ] )
+                {
+
+                if ( sample > 0 )
+                    {
+                    all[ count++ ] = sample ;
+                    }
+
+                }
+
+            }
+
+        Bench.latency( "delivery latency, " + clients + " clients @ " + rate + "/s",
+                       all,
+                       count ) ;
+
+        for ( final TCPClient client : sessions )
+            {
+            client.stop() ;
+            }
+
+        }
+
+
+    /**
+     * Connect once the server is listening. Clients are only registered once they send something,
+     * so each joins a group nobody sends to.
+     */
+    private static TCPClient connect( final String clientID ) throws Exception
+        {
+
+        final long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS ;
+
+        while ( true )
+            {
+
+            try
+                {
+                final TCPClient client = new TCPClient( clientID, "localhost", PORT ) ;
+                client.joinGroup( "#bench-idle" ) ;
+                return client ;
+                }
+            catch ( final IOException e )
+                {
+
+                if ( System.nanoTime() > deadline )
+                    {
+                    throw e ;
+                    }
+
+                Thread.sleep( 50 ) ;
+                }
+
+            }
+
+        }
+
+    }
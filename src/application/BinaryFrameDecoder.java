@@ -0,0 +1,257 @@
+package application ;
+
+import java.io.IOException ;
+import java.nio.ByteBuffer ;
+import java.util.ArrayList ;
+import java.util.List ;
+
+/**
+ * Reads {@link BinaryFrames} from one connection, starting with the hello. Each frame is parsed
+ * in place once its length prefix says it has fully arrived, so there is no scanning for
+ * delimiters. User IDs are kept by number, so a repeated ID decodes to the same string instance.
+ *
+ * @version 1.5 2026-10-18 Refuses IDs and messages with line breaks.
+ *
+ * @since 1.3
+ */
+final class BinaryFrameDecoder implements FrameDecoder
+    {
+
+    private static final int INITIAL_BUFFER_SIZE = 8192 ;
+
+    private final List<String> references ;
+    private ByteBuffer pending ;
+    private boolean greeted ;
+
+
+    BinaryFrameDecoder()
+        {
+
+        this.references = new ArrayList<>() ;
+        this.pending = ByteBuffer.allocate( INITIAL_BUFFER_SIZE ) ;
+
+        }
+
+
+    @Override
+    public void decode( final ByteBuffer in,
+                        final Listener listener ) throws IOException
+        {
+
+        append( in ) ;
+        this.pending.flip() ;
+
+        try
+            {
+
+            if ( !this.greeted )
+                {
+
+                if ( this.pending.remaining() < 2 )
+                    {
+                    return ;
+                    }
+
+                if ( this.pending.get() != BinaryFrames.HELLO )
+                    {
+                    throw new IOException( "Missing binary protocol hello" ) ;
+                    }
+
+                this.greeted = true ;
+                listener.hello( this.pending.get() & 0xFF ) ;
+                }
+
+            while ( this.pending.remaining() >= Integer.BYTES )
+                {
+                final int length = this.pending.getInt( this.pending.position() ) ;
+
+                if ( ( length < 1 ) || ( length > BinaryFrames.MAX_FRAME_BYTES ) )
+                    {
+                    throw new IOException( "Bad frame length " + length ) ;
+                    }
+
+                if ( this.pending.remaining() < ( Integer.BYTES + length ) )
+                    {
+                    break ;
+                    }
+
+                final int start = this.pending.position() + Integer.BYTES ;
+                final ByteBuffer frame = this.pending.slice( start + 1, length - 1 ) ;
+
+                this.pending.position( start + length ) ;
+                dispatch( this.pending.get( start ), frame, listener ) ;
+                }
+
+            }
+        finally
+            {
+            this.pending.compact() ;
+            }
+
+        }
+
+
+    private void dispatch( final byte type,
+                           final ByteBuffer frame,
+                           final Listener listener ) throws IOException
+        {
+
+        switch ( type )
+            {
+            case BinaryFrames.MESSAGE ->
+                {
+                final String senderID = reference( frame ) ;
+                final String recipientID = reference( frame ) ;
+                final long sequence = BinaryFrames.readVarlong( frame ) ;
+                listener.message( senderID,
+                                  recipientID,
+                                  sequence,
+                                  BinaryFrames.readLine( frame ) ) ;
+                }
+            case BinaryFrames.CONFIRM ->
+                {
+                final String recipientID = reference( frame ) ;
+                listener.confirmation( recipientID, BinaryFrames.readVarlong( frame ) ) ;
+                }
+            case BinaryFrames.HISTORY_REQUEST ->
+                {
+                final String requesterID = reference( frame ) ;
+                final String peerID = reference( frame ) ;
+                listener.historyRequest( requesterID, peerID, BinaryFrames.readVarlong( frame ) ) ;
+                }
+            case BinaryFrames.PAGE_REQUEST ->
+                {
+                final String requesterID = reference( frame ) ;
+                final String peerID = reference( frame ) ;
+                final int limit = BinaryFrames.readVarint( frame ) ;
+                listener.pageRequest( requesterID, peerID, limit, BinaryFrames.readLong( frame ) ) ;
+                }
+            case BinaryFrames.SEARCH_REQUEST ->
+                {
+                final String requesterID = reference( frame ) ;
+                final long request = BinaryFrames.readVarlong( frame ) ;
+                final String query = BinaryFrames.readString( frame ) ;
+                final String userID = BinaryFrames.readLine( frame ) ;
+                final long fromMillis = BinaryFrames.readLong( frame ) ;
+                final long toMillis = BinaryFrames.readLong( frame ) ;
+                listener.searchRequest( requesterID,
+                                        request,
+                                        query,
+                                        userID,
+                                        fromMillis,
+                                        toMillis,
+                                        BinaryFrames.readVarint( frame ) ) ;
+                }
+            case BinaryFrames.HISTORY ->
+                {
+                final long request = BinaryFrames.readVarlong( frame ) ;
+                final String peerID = reference( frame ) ;
+                listener.historyRecords( peerID, request, records( frame ) ) ;
+                }
+            case BinaryFrames.HISTORY_END ->
+                {
+                final long request = BinaryFrames.readVarlong( frame ) ;
+                listener.historyEnd( reference( frame ), request ) ;
+                }
+            case BinaryFrames.PAGE ->
+                {
+                final String peerID = reference( frame ) ;
+                listener.pageRecords( peerID, records( frame ) ) ;
+                }
+            case BinaryFrames.PAGE_END ->
+                {
+                final String peerID = reference( frame ) ;
+                listener.pageEnd( peerID, BinaryFrames.readLong( frame ) ) ;
+                }
+            case BinaryFrames.JOIN ->
+                {
+                final String memberID = reference( frame ) ;
+                listener.join( memberID, reference( frame ) ) ;
+                }
+            case BinaryFrames.LEAVE ->
+                {
+                final String memberID = reference( frame ) ;
+                listener.leave( memberID, reference( frame ) ) ;
+                }
+            case BinaryFrames.GROUP_MESSAGE ->
+                {
+                final String senderID = BinaryFrames.readLine( frame ) ;
+                final String groupID = BinaryFrames.readLine( frame ) ;
+                listener.groupMessage( senderID, groupID, BinaryFrames.readLine( frame ) ) ;
+                }
+            default -> throw new IOException( "Unknown frame type " + type ) ;
+            }
+
+        }
+
+
+    private String reference( final ByteBuffer frame ) throws IOException
+        {
+
+        final int number = BinaryFrames.readVarint( frame ) ;
+
+        if ( number == 0 )
+            {
+            final String userID = BinaryFrames.readLine( frame ) ;
+
+            if ( this.references.size() < BinaryFrames.MAX_USER_REFERENCES )
+                {
+                this.references.add( userID ) ;
+                }
+
+            return userID ;
+            }
+
+        if ( ( number < 0 ) || ( number > this.references.size() ) )
+            {
+            throw new IOException( "Unknown user reference " + number ) ;
+            }
+
+        return this.references.get( number - 1 ) ;
+
+        }
+
+
+    private static List<String> records( final ByteBuffer frame ) throws IOException
+        {
+
+        final int count = BinaryFrames.readVarint( frame ) ;
+
+        if ( ( count < 0 ) || ( count > frame.remaining() ) )
+            {
+            throw new IOException( "Bad record count " + count ) ;
+            }
+
+        final List<String> records = new ArrayList<>( count ) ;
+
+        for ( int i = 0 ; i < count ; i++ )
+            {
+            records.add( BinaryFrames.readString( frame ) ) ;
+            }
+
+        return records ;
+
+        }
+
+
+    /**
+     * Add {@code in} to the bytes not yet decoded, growing the buffer if a frame needs it.
+     */
+    private void append( final ByteBuffer in )
+        {
+
+        if ( this.pending.remaining() < in.remaining() )
+            {
+            final ByteBuffer grown = ByteBuffer.allocate( Math.max( this.pending.capacity() * 2,
+                                                                    this.pending.position() +
+                                                                       in.remaining() ) ) ;
+            this.pending.flip() ;
+            grown.put( this.pending ) ;
+            this.pending = grown ;
+            }
+
+        this.pending.put( in ) ;
+
+        }
+
+    }
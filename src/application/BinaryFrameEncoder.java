@@ -0,0 +1,362 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.util.ArrayList ;
+import java.util.HashMap ;
+import java.util.List ;
+import java.util.Map ;
+
+/**
+ * Writes {@link BinaryFrames} for one connection, numbering each user ID the first time it is
+ * sent.
+ *
+ * @version 1.5 2026-10-18 References of frames never sent are rolled back.
+ *
+ * @since 1.3
+ */
+final class BinaryFrameEncoder implements FrameEncoder
+    {
+
+    private final Map<String, Integer> references ;
+    private final List<String> numbered ;
+    private final FrameBuffer body ;
+    private final FrameBuffer records ;
+
+
+    BinaryFrameEncoder()
+        {
+
+        this.references = new HashMap<>() ;
+        this.numbered = new ArrayList<>() ;
+        this.body = new FrameBuffer() ;
+        this.records = new FrameBuffer() ;
+
+        }
+
+
+    @Override
+    public void hello( final ByteArrayOutputStream out )
+        {
+
+        out.write( BinaryFrames.HELLO ) ;
+        out.write( BinaryFrames.VERSION ) ;
+
+        }
+
+
+    @Override
+    public void message( final ByteArrayOutputStream out,
+                         final String senderID,
+                         final String recipientID,
+                         final long sequence,
+                         final String message )
+        {
+
+        this.body.reset() ;
+        reference( senderID ) ;
+        reference( recipientID ) ;
+        BinaryFrames.writeVarint( this.body, sequence ) ;
+        BinaryFrames.writeString( this.body, message ) ;
+        frame( out, BinaryFrames.MESSAGE ) ;
+
+        }
+
+
+    /**
+     * Just the recipient and sequence number, unless the message was untracked.
+     */
+    @Override
+    public void confirmation( final ByteArrayOutputStream out,
+                              final String senderID,
+                              final String recipientID,
+                              final long sequence,
+                              final String message )
+        {
+
+        if ( sequence <= 0 )
+            {
+            message( out, senderID, recipientID, sequence, message ) ;
+            return ;
+            }
+
+        this.body.reset() ;
+        reference( recipientID ) ;
+        BinaryFrames.writeVarint( this.body, sequence ) ;
+        frame( out, BinaryFrames.CONFIRM ) ;
+
+        }
+
+
+    @Override
+    public void historyRequest( final ByteArrayOutputStream out,
+                                final String requesterID,
+                                final String peerID,
+                                final long request )
+        {
+
+        this.body.reset() ;
+        reference( requesterID ) ;
+        reference( peerID ) ;
+        BinaryFrames.writeVarint( this.body, request ) ;
+        frame( out, BinaryFrames.HISTORY_REQUEST ) ;
+
+        }
+
+
+    @Override
+    public void pageRequest( final ByteArrayOutputStream out,
+                             final String requesterID,
+                             final String peerID,
+                             final int limit,
+                             final long before )
+        {
+
+        this.body.reset() ;
+        reference( requesterID ) ;
+        reference( peerID ) ;
+        BinaryFrames.writeVarint( this.body, limit ) ;
+        BinaryFrames.writeLong( this.body, before ) ;
+        frame( out, BinaryFrames.PAGE_REQUEST ) ;
+
+        }
+
+
+    @Override
+    public void searchRequest( final ByteArrayOutputStream out,
+                               final String requesterID,
+                               final long request,
+                               final String query,
+                               final String userID,
+                               final long fromMillis,
+                               final long toMillis,
+                               final int limit )
+        {
+
+        this.body.reset() ;
+        reference( requesterID ) ;
+        BinaryFrames.writeVarint( this.body, request ) ;
+        BinaryFrames.writeString( this.body, query ) ;
+        BinaryFrames.writeString( this.body, userID ) ;
+        BinaryFrames.writeLong( this.body, fromMillis ) ;
+        BinaryFrames.writeLong( this.body, toMillis ) ;
+        BinaryFrames.writeVarint( this.body, limit ) ;
+        frame( out, BinaryFrames.SEARCH_REQUEST ) ;
+
+        }
+
+
+    @Override
+    public void history( final ByteArrayOutputStream out,
+                         final String requesterID,
+                         final String peerID,
+                         final long request,
+                         final List<String> history )
+        {
+
+        final Runnable header = () ->
+            {
+            BinaryFrames.writeVarint( this.body, request ) ;
+            reference( peerID ) ;
+            } ;
+
+        recordFrames( out, BinaryFrames.HISTORY, header, history ) ;
+
+        this.body.reset() ;
+        header.run() ;
+        frame( out, BinaryFrames.HISTORY_END ) ;
+
+        }
+
+
+    @Override
+    public void pageRecords( final ByteArrayOutputStream out,
+                             final String peerID,
+                             final List<String> page )
+        {
+
+        recordFrames( out, BinaryFrames.PAGE, () -> reference( peerID ), page ) ;
+
+        }
+
+
+    @Override
+    public void pageEnd( final ByteArrayOutputStream out,
+                         final String peerID,
+                         final long cursor )
+        {
+
+        this.body.reset() ;
+        reference( peerID ) ;
+        BinaryFrames.writeLong( this.body, cursor ) ;
+        frame( out, BinaryFrames.PAGE_END ) ;
+
+        }
+
+
+    @Override
+    public void join( final ByteArrayOutputStream out,
+                      final String memberID,
+                      final String groupID )
+        {
+
+        this.body.reset() ;
+        reference( memberID ) ;
+        reference( groupID ) ;
+        frame( out, BinaryFrames.JOIN ) ;
+
+        }
+
+
+    @Override
+    public void leave( final ByteArrayOutputStream out,
+                       final String memberID,
+                       final String groupID )
+        {
+
+        this.body.reset() ;
+        reference( memberID ) ;
+        reference( groupID ) ;
+        frame( out, BinaryFrames.LEAVE ) ;
+
+        }
+
+
+    /**
+     * IDs are written as strings and numbered for nobody, so the frame is the same on every
+     * connection.
+     */
+    @Override
+    public void groupMessage( final ByteArrayOutputStream out,
+                              final String senderID,
+                              final String groupID,
+                              final String message )
+        {
+
+        this.body.reset() ;
+        BinaryFrames.writeString( this.body, senderID ) ;
+        BinaryFrames.writeString( this.body, groupID ) ;
+        BinaryFrames.writeString( this.body, message ) ;
+        frame( out, BinaryFrames.GROUP_MESSAGE ) ;
+
+        }
+
+
+    /**
+     * @return The number of user IDs numbered so far.
+     */
+    @Override
+    public int mark()
+        {
+
+        return this.numbered.size() ;
+
+        }
+
+
+    /**
+     * Forget the numbers given since {@code mark}, which the client never saw, so those IDs are
+     * sent as strings again.
+     */
+    @Override
+    public void rollback( final int mark )
+        {
+
+        while ( this.numbered.size() > mark )
+            {
+            this.references.remove( this.numbered.remove( this.numbered.size() - 1 ) ) ;
+            }
+
+        }
+
+
+    /**
+     * Split {@code list} into frames of about {@link BinaryFrames#RECORD_CHUNK_BYTES} each.
+     *
+     * @param header
+     *     Writes the fields that start every frame, before the record count.
+     */
+    private void recordFrames( final ByteArrayOutputStream out,
+                               final byte type,
+                               final Runnable header,
+                               final List<String> list )
+        {
+
+        int count = 0 ;
+        this.records.reset() ;
+
+        for ( final String record : list )
+            {
+            BinaryFrames.writeString( this.records, record ) ;
+            count++ ;
+
+            if ( this.records.size() >= BinaryFrames.RECORD_CHUNK_BYTES )
+                {
+                recordFrame( out, type, header, count ) ;
+                count = 0 ;
+                }
+
+            }
+
+        if ( count > 0 )
+            {
+            recordFrame( out, type, header, count ) ;
+            }
+
+        }
+
+
+    private void recordFrame( final ByteArrayOutputStream out,
+                              final byte type,
+                              final Runnable header,
+                              final int count )
+        {
+
+        this.body.reset() ;
+        header.run() ;
+        BinaryFrames.writeVarint( this.body, count ) ;
+        this.records.copyTo( this.body ) ;
+        this.records.reset() ;
+        frame( out, type ) ;
+
+        }
+
+
+    private void reference( final String userID )
+        {
+
+        final Integer number = this.references.get( userID ) ;
+
+        if ( number != null )
+            {
+            BinaryFrames.writeVarint( this.body, number ) ;
+            return ;
+            }
+
+        BinaryFrames.writeVarint( this.body, 0 ) ;
+        BinaryFrames.writeString( this.body, userID ) ;
+
+        if ( this.references.size() < BinaryFrames.MAX_USER_REFERENCES )
+            {
+            this.references.put( userID, this.references.size() + 1 ) ;
+            this.numbered.add( userID ) ;
+            }
+
+        }
+
+
+    private void frame( final ByteArrayOutputStream out,
+                        final byte type )
+        {
+
+        final int length = 1 + this.body.size() ;
+
+        out.write( length >>> 24 ) ;
+        out.write( length >>> 16 ) ;
+        out.write( length >>> 8 ) ;
+        out.write( length ) ;
+        out.write( type ) ;
+        this.body.copyTo( out ) ;
+
+        }
+
+    }
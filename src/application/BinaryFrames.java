@@ -0,0 +1,219 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.IOException ;
+import java.nio.BufferUnderflowException ;
+import java.nio.ByteBuffer ;
+import java.nio.charset.StandardCharsets ;
+
+/**
+ * Layout of the binary protocol.
+ * <p>
+ * A binary client opens with {@link #HELLO} and a version byte, and the server answers the same
+ * way. After that every frame is a 4 byte big-endian length, counting the type byte and body, a
+ * type byte, and the body. Counts, lengths, sequence and request numbers are unsigned varints,
+ * strings are a varint byte length followed by UTF-8, and cursors are 8 byte big-endian longs.
+ * <p>
+ * User IDs are sent as references: {@code 0} followed by the ID as a string the first time an ID
+ * is sent in each direction, which also gives it the next number from 1, and just that number
+ * afterwards. Once {@link #MAX_USER_REFERENCES} IDs are numbered, new ones are always sent as
+ * strings. A group message spells its IDs out as plain strings instead, so the same bytes can be
+ * written to every member's connection.
+ * <p>
+ * IDs and messages end up as lines in the history and in text frames, so a client that sends one
+ * containing {@code \r} or {@code \n} is disconnected.
+ *
+ * <pre>
+ * MESSAGE          sender, recipient, sequence, message   (sequence 0 if untracked)
+ * CONFIRM          recipient, sequence
+ * HISTORY_REQUEST  requester, peer, request
+ * PAGE_REQUEST     requester, peer, limit, before
+ * SEARCH_REQUEST   requester, request, query, user, from, to, limit
+ *                  (user a plain string, empty for anyone; from and to as longs, 0 for no bound)
+ * HISTORY          request, peer, count, records...   (oldest first, also answers a search)
+ * HISTORY_END      request, peer
+ * PAGE             peer, count, records...   (newest first)
+ * PAGE_END         peer, cursor
+ * JOIN             member, group
+ * LEAVE            member, group
+ * GROUP_MESSAGE    sender, group, message   (plain strings, not references)
+ * </pre>
+ *
+ * @version 1.5 2026-10-18 IDs and messages may not contain line breaks.
+ *
+ * @since 1.3
+ */
+final class BinaryFrames
+    {
+
+    static final byte HELLO = 0 ;
+    static final int VERSION = 1 ;
+
+    static final byte MESSAGE = 1 ;
+    static final byte HISTORY_REQUEST = 2 ;
+    static final byte PAGE_REQUEST = 3 ;
+    static final byte HISTORY = 4 ;
+    static final byte HISTORY_END = 5 ;
+    static final byte PAGE = 6 ;
+    static final byte PAGE_END = 7 ;
+    static final byte CONFIRM = 8 ;
+    static final byte JOIN = 9 ;
+    static final byte LEAVE = 10 ;
+    static final byte GROUP_MESSAGE = 11 ;
+    static final byte SEARCH_REQUEST = 12 ;
+
+    static final int MAX_FRAME_BYTES = 1 << 22 ;
+    static final int MAX_USER_REFERENCES = 4096 ;
+
+    /**
+     * Records are split across frames of about this size.
+     */
+    static final int RECORD_CHUNK_BYTES = 1 << 16 ;
+
+
+    private BinaryFrames()
+        {}
+
+
+    static void writeVarint( final ByteArrayOutputStream out,
+                             final long value )
+        {
+
+        long remaining = value ;
+
+        while ( ( remaining & ~0x7FL ) != 0 )
+            {
+            out.write( (int) ( remaining & 0x7F ) | 0x80 ) ;
+            remaining >>>= 7 ;
+            }
+
+        out.write( (int) remaining ) ;
+
+        }
+
+
+    static int readVarint( final ByteBuffer in ) throws IOException
+        {
+
+        final long value = readVarlong( in ) ;
+
+        if ( ( value < 0 ) || ( value > Integer.MAX_VALUE ) )
+            {
+            throw new IOException( "Malformed varint" ) ;
+            }
+
+        return (int) value ;
+
+        }
+
+
+    static long readVarlong( final ByteBuffer in ) throws IOException
+        {
+
+        long value = 0 ;
+
+        try
+            {
+
+            for ( int shift = 0 ; shift < 64 ; shift += 7 )
+                {
+                final byte b = in.get() ;
+                value |= (long) ( b & 0x7F ) << shift ;
+
+                if ( b >= 0 )
+                    {
+                    return value ;
+                    }
+
+                }
+
+            }
+        catch ( final BufferUnderflowException e )
+            {
+            throw new IOException( "Truncated frame" ) ;
+            }
+
+        throw new IOException( "Malformed varint" ) ;
+
+        }
+
+
+    static void writeLong( final ByteArrayOutputStream out,
+                           final long value )
+        {
+
+        for ( int shift = 56 ; shift >= 0 ; shift -= 8 )
+            {
+            out.write( (int) ( value >>> shift ) ) ;
+            }
+
+        }
+
+
+    static long readLong( final ByteBuffer in ) throws IOException
+        {
+
+        if ( in.remaining() < Long.BYTES )
+            {
+            throw new IOException( "Truncated frame" ) ;
+            }
+
+        return in.getLong() ;
+
+        }
+
+
+    static void writeString( final ByteArrayOutputStream out,
+                             final String value )
+        {
+
+        final byte[] bytes = value.getBytes( StandardCharsets.UTF_8 ) ;
+
+        writeVarint( out, bytes.length ) ;
+        out.writeBytes( bytes ) ;
+
+        }
+
+
+    static String readString( final ByteBuffer in ) throws IOException
+        {
+
+        final int length = readVarint( in ) ;
+
+        if ( ( length < 0 ) || ( length > in.remaining() ) )
+            {
+            throw new IOException( "Truncated frame" ) ;
+            }
+
+        final String value = new String( in.array(),
+                                         in.arrayOffset() + in.position(),
+                                         length,
+                                         StandardCharsets.UTF_8 ) ;
+        in.position( in.position() + length ) ;
+
+        return value ;
+
+        }
+
+
+    /**
+     * Read a string that must fit on one line, as IDs and messages do.
+     *
+     * @throws IOException
+     *     If the string contains {@code \r} or {@code \n}.
+     */
+    static String readLine( final ByteBuffer in ) throws IOException
+        {
+
+        final String value = readString( in ) ;
+
+        if ( ( value.indexOf( '\n' ) >= 0 ) || ( value.indexOf( '\r' ) >= 0 ) )
+            {
+            throw new IOException( "Line break in an ID or message" ) ;
+            }
+
+        return value ;
+
+        }
+
+    }
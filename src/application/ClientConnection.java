@@ -0,0 +1,128 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.IOException ;
+
+/**
+ * The server side of one connected client, independent of how its socket is driven or which
+ * {@link WireProtocol} it speaks.
+ *
+ * @version 1.3 2026-10-18 Queued bytes, and closing from other threads.
+ *
+ * @since 1.3
+ */
+interface ClientConnection
+    {
+
+    /**
+     * Encode a frame with this connection's encoder and queue it for delivery. Frames are encoded
+     * one at a time, in the order they will be written.
+     *
+     * @param frame
+     *     Writes one or more frames through the encoder it is given.
+     *
+     * @throws IOException
+     *     If the connection can no longer be written to.
+     *
+     * @since 1.3
+     */
+    void send( Frame frame ) throws IOException ;
+
+
+    /**
+     * Send a message pushed to this client by someone else, unless the connection is too far
+     * behind and holds its messages offline until it catches up.
+     *
+     * @return False if the message was not sent, and should be held offline.
+     *
+     * @throws IOException
+     *     If the connection can no longer be written to.
+     *
+     * @since 1.3
+     */
+    default boolean offer( final Frame frame ) throws IOException
+        {
+
+        send( frame ) ;
+        return true ;
+
+        }
+
+
+    /**
+     * @return True while messages offered to this connection are being held offline.
+     *
+     * @since 1.3
+     */
+    default boolean isSpilling()
+        {
+
+        return false ;
+
+        }
+
+
+    /**
+     * Send a message that was held offline for this connection, even while it is spilling.
+     *
+     * @return False if the connection is too far behind again, and the message should stay held.
+     *
+     * @throws IOException
+     *     If the connection can no longer be written to.
+     *
+     * @since 1.3
+     */
+    default boolean sendHeld( final Frame frame ) throws IOException
+        {
+
+        return offer( frame ) ;
+
+        }
+
+
+    /**
+     * Take offered messages again, once everything held while spilling has been sent.
+     *
+     * @since 1.3
+     */
+    default void resume()
+        {}
+
+
+    /**
+     * @return Bytes encoded for this connection but not yet written to it.
+     *
+     * @since 1.3
+     */
+    default int queuedBytes()
+        {
+
+        return 0 ;
+
+        }
+
+
+    /**
+     * Close the connection from any thread. It is cleaned up, and forgotten by the server, as if
+     * the client had closed it.
+     *
+     * @since 1.3
+     */
+    void disconnect() ;
+
+
+    /**
+     * One or more frames waiting to be encoded for a particular connection.
+     *
+     * @since 1.3
+     */
+    @FunctionalInterface
+    interface Frame
+        {
+
+        void encode( FrameEncoder encoder,
+                     ByteArrayOutputStream out ) ;
+
+        }
+
+    }
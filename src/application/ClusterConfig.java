@@ -0,0 +1,140 @@
+package application ;
+
+import java.io.File ;
+import java.net.InetSocketAddress ;
+import java.util.Collections ;
+import java.util.LinkedHashMap ;
+import java.util.Map ;
+
+/**
+ * Where one {@link TCPServer} node sits in a cluster: its own ID, the link address of every node
+ * including itself, and the directory its history and offline queue live in. Membership is
+ * static; every node is started with the same node list.
+ * <p>
+ * From system properties, {@code chat.cluster.nodes} lists the nodes as
+ * {@code id@host:port,...}, where the port is the one nodes link to each other on rather than the
+ * client port, {@code chat.cluster.nodeID} names this node and {@code chat.cluster.dataDir}
+ * overrides its data directory, which defaults to a directory named after the node.
+ * <p>
+ * The link ports carry unauthenticated traffic, so they must only be reachable inside a trusted
+ * network, never from clients.
+ *
+ * @version 1.1 2026-10-18 Link ports must stay inside a trusted network.
+ *
+ * @since 1.3
+ */
+public final class ClusterConfig
+    {
+
+    private final String nodeID ;
+    private final Map<String, InetSocketAddress> nodes ;
+    private final File dataDirectory ;
+
+
+    /**
+     * @param nodeIDInput
+     *     This node's ID, which must be one of the nodes.
+     * @param nodesInput
+     *     Every node's link address by node ID.
+     * @param dataDirectoryInput
+     *     Where this node keeps its history and offline queue.
+     *
+     * @since 1.3
+     */
+    public ClusterConfig( final String nodeIDInput,
+                          final Map<String, InetSocketAddress> nodesInput,
+                          final File dataDirectoryInput )
+        {
+
+        if ( !nodesInput.containsKey( nodeIDInput ) )
+            {
+            throw new IllegalArgumentException( "Node " + nodeIDInput + " is not in " +
+                                                nodesInput.keySet() ) ;
+            }
+
+        this.nodeID = nodeIDInput ;
+        this.nodes = Collections.unmodifiableMap( new LinkedHashMap<>( nodesInput ) ) ;
+        this.dataDirectory = dataDirectoryInput.getAbsoluteFile() ;
+
+        }
+
+
+    /**
+     * Reads the {@code chat.cluster.*} system properties.
+     *
+     * @return The configuration, or null if {@code chat.cluster.nodes} is not set and the server
+     *     runs alone.
+     *
+     * @since 1.3
+     */
+    public static ClusterConfig fromSystemProperties()
+        {
+
+        final String list = System.getProperty( "chat.cluster.nodes" ) ;
+
+        if ( list == null )
+            {
+            return null ;
+            }
+
+        final Map<String, InetSocketAddress> nodes = new LinkedHashMap<>() ;
+
+        for ( final String entry : list.split( "," ) )
+            {
+            final int at = entry.indexOf( '@' ) ;
+            final int colon = entry.lastIndexOf( ':' ) ;
+
+            if ( ( at <= 0 ) || ( colon < at ) )
+                {
+                throw new IllegalArgumentException( "Cluster nodes are id@host:port: " + entry ) ;
+                }
+
+            nodes.put( entry.substring( 0, at ).trim(),
+                       new InetSocketAddress( entry.substring( at + 1, colon ).trim(),
+                                              Integer.parseInt( entry.substring( colon + 1 )
+                                                                     .trim() ) ) ) ;
+            }
+
+        final String nodeID = System.getProperty( "chat.cluster.nodeID" ) ;
+
+        if ( nodeID == null )
+            {
+            throw new IllegalArgumentException( "chat.cluster.nodeID must name one of " +
+                                                nodes.keySet() ) ;
+            }
+
+        return new ClusterConfig( nodeID,
+                                  nodes,
+                                  new File( System.getProperty( "chat.cluster.dataDir",
+                                                                nodeID ) ) ) ;
+
+        }
+
+
+    public String getNodeID()
+        {
+
+        return this.nodeID ;
+
+        }
+
+
+    /**
+     * @return Every node's link address, this node's included, in the order they were listed.
+     */
+    public Map<String, InetSocketAddress> getNodes()
+        {
+
+        return this.nodes ;
+
+        }
+
+
+    public File getDataDirectory()
+        {
+
+        return this.dataDirectory ;
+
+        }
+
+    }
@@ -0,0 +1,95 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.DataInputStream ;
+import java.io.IOException ;
+import java.nio.ByteBuffer ;
+
+/**
+ * Layout of the link between cluster nodes.
+ * <p>
+ * Each node keeps one outbound link to every other node and sends only on it; what a node hears
+ * from a peer arrives on that peer's outbound link. Frames are framed as in the binary client
+ * protocol, a 4 byte big-endian length counting the type byte and body, a type byte and the body,
+ * with the same varints and strings, but IDs are always plain strings. A link opens with
+ * {@link #HELLO} and then every user connected to the sending node and every group membership it
+ * knows, as {@link #ONLINE} and {@link #JOIN} frames.
+ *
+ * <pre>
+ * HELLO     node
+ * ONLINE    user   (connected to the sending node)
+ * OFFLINE   user
+ * JOIN      member, group
+ * LEAVE     member, group
+ * MESSAGE   target, sender, recipient, message   (for target, who may be a member of recipient)
+ * GROUP     sender, group, message, count, members...   (for those members of the group)
+ * RECORD    sender, recipient, record   (a history record to append)
+ * </pre>
+ *
+ * @version 1.1 2026-10-18 History records are replicated.
+ *
+ * @since 1.3
+ */
+final class ClusterFrames
+    {
+
+    static final byte HELLO = 0 ;
+    static final byte ONLINE = 1 ;
+    static final byte OFFLINE = 2 ;
+    static final byte JOIN = 3 ;
+    static final byte LEAVE = 4 ;
+    static final byte MESSAGE = 5 ;
+    static final byte GROUP = 6 ;
+    static final byte RECORD = 7 ;
+
+
+    private ClusterFrames()
+        {}
+
+
+    /**
+     * Append a frame whose body has been written to {@code body}.
+     */
+    static void frame( final ByteArrayOutputStream out,
+                       final byte type,
+                       final FrameBuffer body )
+        {
+
+        final int length = 1 + body.size() ;
+
+        out.write( length >>> 24 ) ;
+        out.write( length >>> 16 ) ;
+        out.write( length >>> 8 ) ;
+        out.write( length ) ;
+        out.write( type ) ;
+        body.copyTo( out ) ;
+
+        }
+
+
+    /**
+     * Block for the next frame.
+     *
+     * @return The type byte followed by the body.
+     *
+     * @throws java.io.EOFException
+     *     If the link closed between frames.
+     */
+    static ByteBuffer read( final DataInputStream in ) throws IOException
+        {
+
+        final int length = in.readInt() ;
+
+        if ( ( length < 1 ) || ( length > BinaryFrames.MAX_FRAME_BYTES ) )
+            {
+            throw new IOException( "Bad cluster frame length " + length ) ;
+            }
+
+        final byte[] frame = new byte[ length ] ;
+        in.readFully( frame ) ;
+
+        return ByteBuffer.wrap( frame ) ;
+
+        }
+
+    }
@@ -0,0 +1,620 @@
+package application ;
+
+import java.io.BufferedInputStream ;
+import java.io.DataInputStream ;
+import java.io.EOFException ;
+import java.io.File ;
+import java.io.IOException ;
+import java.net.InetSocketAddress ;
+import java.net.ServerSocket ;
+import java.net.Socket ;
+import java.nio.ByteBuffer ;
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.Map ;
+import java.util.Set ;
+import java.util.concurrent.ConcurrentHashMap ;
+import java.util.function.Consumer ;
+
+/**
+ * A server's place in a cluster of {@link TCPServer} nodes. Every node tells every other node
+ * which users are connected to it and which groups they joined, so each node holds a presence
+ * directory of the whole cluster, and a message for a user connected elsewhere is forwarded over
+ * the {@link ClusterLink} to that user's node. The receiving node delivers it or holds it offline,
+ * but never forwards it again.
+ * <p>
+ * A peer's presence is forgotten when its link closes, and messages held for a user are
+ * forwarded once the user turns up on another node.
+ * <p>
+ * Every node keeps the history of the whole cluster. The node a message is sent to records it
+ * and sends the record to every other node, which appends it as is, so a user can read a
+ * conversation back from whichever node it connects to. Forwarded messages are never recorded
+ * again. Records a node's link cannot take, because it is down or full, are kept for it, on disk
+ * past a limit, and sent once the link is up and has caught up.
+ * <p>
+ * Links are neither authenticated nor encrypted: a peer only has to name a configured node in
+ * its hello to be trusted with presence and with messages to deliver as any user. The link
+ * ports must only be reachable by the other nodes, inside a trusted network.
+ *
+ * @version 1.3 2026-10-18 History records are replicated to every node.
+ *
+ * @since 1.3
+ */
+final class ClusterNode
+    {
+
+    private static final int READ_BUFFER_SIZE = 1 << 16 ;
+
+    private final TCPServer server ;
+    private final ClusterConfig config ;
+    private final ServerMetrics metrics ;
+    private final Map<String, ClusterLink> links ;
+    private final ConcurrentHashMap<String, String> presence ;
+    private final ConcurrentHashMap<String, Socket> inbound ;
+    private final OfflineQueue backlog ;
+    private final Set<String> behind ;
+
+
+    /**
+     * @param serverInput
+     *     The server messages from peers are handed to.
+     * @param configInput
+     *     This node and its peers.
+     * @param metricsInput
+     *     The server's metrics, told what crosses the links.
+     *
+     * @since 1.3
+     */
+    ClusterNode( final TCPServer serverInput,
+                 final ClusterConfig configInput,
+                 final ServerMetrics metricsInput )
+        {
+
+        this.server = serverInput ;
+        this.config = configInput ;
+        this.metrics = metricsInput ;
+        this.links = new ConcurrentHashMap<>() ;
+        this.presence = new ConcurrentHashMap<>() ;
+        this.inbound = new ConcurrentHashMap<>() ;
+        this.backlog = new OfflineQueue( new File( configInput.getDataDirectory(),
+                                                   "replication" ) ) ;
+        this.behind = ConcurrentHashMap.newKeySet() ;
+
+        }
+
+
+    /**
+     * Listen for peers' links and start linking to them.
+     *
+     * @throws IOException
+     *     If this node's link port could not be bound.
+     */
+    void start() throws IOException
+        {
+
+        final InetSocketAddress address = this.config.getNodes().get( getNodeID() ) ;
+        final ServerSocket listener = new ServerSocket( address.getPort() ) ;
+        final Thread acceptor = new Thread( () -> accept( listener ),
+                                            "cluster-accept-" + getNodeID() ) ;
+
+        acceptor.setDaemon( true ) ;
+        acceptor.start() ;
+
+        for ( final Map.Entry<String, InetSocketAddress> peer : this.config.getNodes().entrySet() )
+            {
+
+            if ( !peer.getKey().equals( getNodeID() ) )
+                {
+                final ClusterLink link = new ClusterLink( this,
+                                                          peer.getKey(),
+                                                          peer.getValue(),
+                                                          this.metrics ) ;
+                this.links.put( peer.getKey(), link ) ;
+                link.start() ;
+                }
+
+            }
+
+        ServerLog.info( "Cluster node " + getNodeID() + " linking on port " + address.getPort() +
+                        " to " + this.links.keySet() ) ;
+
+        }
+
+
+    String getNodeID()
+        {
+
+        return this.config.getNodeID() ;
+
+        }
+
+
+    /**
+     * @return The node {@code userID} is connected to, or null if it is not connected to any
+     *     other node.
+     */
+    String ownerOf( final String userID )
+        {
+
+        return this.presence.get( userID ) ;
+
+        }
+
+
+    /**
+     * Send a message for {@code targetID} to its node.
+     *
+     * @param recipientID
+     *     The target, or the group the message was sent to.
+     *
+     * @return False if the message could not be queued for {@code nodeID}.
+     */
+    boolean forward( final String nodeID,
+                     final String targetID,
+                     final String senderID,
+                     final String recipientID,
+                     final String message )
+        {
+
+        return send( nodeID,
+                     new ClusterLink.Outgoing( ClusterFrames.MESSAGE,
+                                               null,
+                                               targetID,
+                                               senderID,
+                                               recipientID,
+                                               message ) ) ;
+
+        }
+
+
+    /**
+     * Send one copy of a group message to {@code nodeID} for the members connected to it.
+     *
+     * @return False if the message could not be queued for {@code nodeID}.
+     */
+    boolean forwardGroup( final String nodeID,
+                          final String senderID,
+                          final String groupID,
+                          final String message,
+                          final List<String> members )
+        {
+
+        return send( nodeID,
+                     new ClusterLink.Outgoing( ClusterFrames.GROUP,
+                                               members,
+                                               senderID,
+                                               groupID,
+                                               message ) ) ;
+
+        }
+
+
+    /**
+     * Send a history record to every other node, keeping it for those whose link is down or full.
+     */
+    void replicate( final String senderID,
+                    final String recipientID,
+                    final String record )
+        {
+
+        final ClusterLink.Outgoing frame = new ClusterLink.Outgoing( ClusterFrames.RECORD,
+                                                                     null,
+                                                                     senderID,
+                                                                     recipientID,
+                                                                     record ) ;
+
+        for ( final Map.Entry<String, ClusterLink> link : this.links.entrySet() )
+            {
+
+            // Locked so a link coming up cannot send what was kept before this is kept
+            synchronized ( link.getValue() )
+                {
+
+                if ( !link.getValue().send( frame ) )
+                    {
+                    keep( link.getKey(), senderID, recipientID, record ) ;
+                    }
+
+                }
+
+            }
+
+        }
+
+
+    void online( final String userID )
+        {
+
+        broadcast( new ClusterLink.Outgoing( ClusterFrames.ONLINE, null, userID ) ) ;
+
+        }
+
+
+    void offline( final String userID )
+        {
+
+        broadcast( new ClusterLink.Outgoing( ClusterFrames.OFFLINE, null, userID ) ) ;
+
+        }
+
+
+    void joined( final String memberID,
+                 final String groupID )
+        {
+
+        broadcast( new ClusterLink.Outgoing( ClusterFrames.JOIN, null, memberID, groupID ) ) ;
+
+        }
+
+
+    void left( final String memberID,
+               final String groupID )
+        {
+
+        broadcast( new ClusterLink.Outgoing( ClusterFrames.LEAVE, null, memberID, groupID ) ) ;
+
+        }
+
+
+    /**
+     * Describe this node to a newly connected peer: every user connected here and every group
+     * membership this node knows of.
+     */
+    void snapshot( final Consumer<ClusterLink.Outgoing> frames )
+        {
+
+        for ( final SessionRegistry.Session session : this.server.getSessions().snapshot() )
+            {
+            frames.accept( new ClusterLink.Outgoing( ClusterFrames.ONLINE,
+                                                     null,
+                                                     session.getUserID() ) ) ;
+            }
+
+        final GroupRegistry groups = this.server.getGroups() ;
+
+        for ( final String groupID : groups.groups() )
+            {
+
+            for ( final String memberID : groups.members( groupID ) )
+                {
+                frames.accept( new ClusterLink.Outgoing( ClusterFrames.JOIN,
+                                                         null,
+                                                         memberID,
+                                                         groupID ) ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * The link to {@code peerID} is up: send it the records it missed, and forward whatever is
+     * held here for users connected to it.
+     */
+    void linked( final String peerID )
+        {
+
+        sendKept( peerID ) ;
+
+        for ( final Map.Entry<String, String> entry : this.presence.entrySet() )
+            {
+
+            if ( entry.getValue().equals( peerID ) )
+                {
+                this.server.handlePeerOnline( entry.getKey(), peerID ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Take back a frame the link to {@code peerID} could not send, holding any messages in it
+     * offline here and keeping any record for the peer.
+     */
+    void undelivered( final String peerID,
+                      final ClusterLink.Outgoing frame )
+        {
+
+        if ( frame.getType() == ClusterFrames.RECORD )
+            {
+
+            synchronized ( this.links.get( peerID ) )
+                {
+                keep( peerID, frame.field( 0 ), frame.field( 1 ), frame.field( 2 ) ) ;
+                }
+
+            }
+        else if ( frame.getType() == ClusterFrames.MESSAGE )
+            {
+            this.server.holdOffline( frame.field( 0 ),
+                                     frame.field( 1 ),
+                                     frame.field( 2 ),
+                                     frame.field( 3 ) ) ;
+            }
+        else if ( frame.getType() == ClusterFrames.GROUP )
+            {
+
+            for ( final String memberID : frame.getMembers() )
+                {
+                this.server.holdOffline( memberID,
+                                         frame.field( 0 ),
+                                         frame.field( 1 ),
+                                         frame.field( 2 ) ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * The link to {@code peerID} has sent everything queued on it: send it any records kept
+     * meanwhile.
+     */
+    void caughtUp( final String peerID )
+        {
+
+        if ( this.behind.remove( peerID ) )
+            {
+            sendKept( peerID ) ;
+            }
+
+        }
+
+
+    /**
+     * Keep a record {@code peerID} could not be sent until its link has room for it.
+     */
+    private void keep( final String peerID,
+                       final String senderID,
+                       final String recipientID,
+                       final String record )
+        {
+
+        try
+            {
+            this.backlog.add( peerID, senderID, recipientID, record ) ;
+            this.behind.add( peerID ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Could not keep a history record for node " + peerID + ": " +
+                             e.getMessage() ) ;
+            }
+
+        }
+
+
+    /**
+     * Send {@code peerID} the records kept for it, oldest first, keeping again any its link
+     * refuses.
+     */
+    private void sendKept( final String peerID )
+        {
+
+        final ClusterLink link = this.links.get( peerID ) ;
+
+        synchronized ( link )
+            {
+            final List<OfflineQueue.Delivery> kept ;
+
+            try
+                {
+                kept = this.backlog.drain( peerID ) ;
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Could not read the history records kept for node " + peerID +
+                                 ": " + e.getMessage() ) ;
+                return ;
+                }
+
+            for ( final OfflineQueue.Delivery record : kept )
+                {
+
+                if ( !link.send( new ClusterLink.Outgoing( ClusterFrames.RECORD,
+                                                           null,
+                                                           record.getSenderID(),
+                                                           record.getRecipientID(),
+                                                           record.getMessage() ) ) )
+                    {
+                    keep( peerID,
+                          record.getSenderID(),
+                          record.getRecipientID(),
+                          record.getMessage() ) ;
+                    }
+
+                }
+
+            }
+
+        }
+
+
+    private boolean send( final String nodeID,
+                          final ClusterLink.Outgoing frame )
+        {
+
+        final ClusterLink link = this.links.get( nodeID ) ;
+
+        return ( link != null ) && link.send( frame ) ;
+
+        }
+
+
+    /**
+     * Queue a presence or membership change on every link that is up. A link that is down sends
+     * the whole picture when it reconnects instead.
+     */
+    private void broadcast( final ClusterLink.Outgoing frame )
+        {
+
+        for ( final ClusterLink link : this.links.values() )
+            {
+            link.send( frame ) ;
+            }
+
+        }
+
+
+    /**
+     * Accept peers' links, from anyone who can reach the link port.
+     */
+    private void accept( final ServerSocket listener )
+        {
+
+        while ( true )
+            {
+
+            try
+                {
+                final Socket socket = listener.accept() ;
+                final Thread reader = new Thread( () -> read( socket ), "cluster-inbound" ) ;
+
+                reader.setDaemon( true ) ;
+                reader.start() ;
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Cluster node " + getNodeID() + " stopped accepting links: " +
+                                 e.getMessage() ) ;
+                return ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Read one peer's link until it closes, then forget the peer's users. The hello is taken on
+     * trust, which is why the link port must stay inside a trusted network.
+     */
+    private void read( final Socket socket )
+        {
+
+        String peerID = null ;
+
+        try ( DataInputStream in = new DataInputStream(
+            new BufferedInputStream( socket.getInputStream(), READ_BUFFER_SIZE ) ) )
+            {
+            final ByteBuffer hello = ClusterFrames.read( in ) ;
+
+            if ( hello.get() != ClusterFrames.HELLO )
+                {
+                throw new IOException( "Cluster link did not open with a hello" ) ;
+                }
+
+            peerID = BinaryFrames.readString( hello ) ;
+
+            if ( peerID.equals( getNodeID() ) || !this.config.getNodes().containsKey( peerID ) )
+                {
+                throw new IOException( "Unknown cluster node " + peerID ) ;
+                }
+
+            Thread.currentThread().setName( "cluster-inbound-" + peerID ) ;
+
+            // A peer that reconnects replaces its old link, whose close then forgets nothing
+            final Socket previous = this.inbound.put( peerID, socket ) ;
+
+            if ( previous != null )
+                {
+                previous.close() ;
+                }
+
+            ServerLog.info( "Cluster node " + peerID + " linked to " + getNodeID() ) ;
+
+            while ( true )
+                {
+                dispatch( peerID, ClusterFrames.read( in ) ) ;
+                }
+
+            }
+        catch ( final EOFException e )
+            {
+            ServerLog.info( "Cluster node " + peerID + " closed its link" ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Cluster link from " + peerID + " failed: " + e.getMessage() ) ;
+            }
+
+        if ( ( peerID != null ) && this.inbound.remove( peerID, socket ) )
+            {
+            final String lost = peerID ;
+            this.presence.values().removeIf( lost::equals ) ;
+            }
+
+        }
+
+
+    private void dispatch( final String peerID,
+                           final ByteBuffer frame ) throws IOException
+        {
+
+        final byte type = frame.get() ;
+
+        switch ( type )
+            {
+            case ClusterFrames.ONLINE ->
+                {
+                final String userID = BinaryFrames.readString( frame ) ;
+                this.presence.put( userID, peerID ) ;
+                this.server.handlePeerOnline( userID, peerID ) ;
+                }
+            case ClusterFrames.OFFLINE ->
+                this.presence.remove( BinaryFrames.readString( frame ), peerID ) ;
+            case ClusterFrames.JOIN ->
+                {
+                final String memberID = BinaryFrames.readString( frame ) ;
+                this.server.handlePeerJoin( memberID, BinaryFrames.readString( frame ) ) ;
+                }
+            case ClusterFrames.LEAVE ->
+                {
+                final String memberID = BinaryFrames.readString( frame ) ;
+                this.server.handlePeerLeave( memberID, BinaryFrames.readString( frame ) ) ;
+                }
+            case ClusterFrames.MESSAGE ->
+                {
+                final String targetID = BinaryFrames.readString( frame ) ;
+                final String senderID = BinaryFrames.readString( frame ) ;
+                final String recipientID = BinaryFrames.readString( frame ) ;
+                this.metrics.clusterMessageReceived() ;
+                this.server.handlePeerMessage( targetID,
+                                               senderID,
+                                               recipientID,
+                                               BinaryFrames.readString( frame ) ) ;
+                }
+            case ClusterFrames.GROUP ->
+                {
+                final String senderID = BinaryFrames.readString( frame ) ;
+                final String groupID = BinaryFrames.readString( frame ) ;
+                final String message = BinaryFrames.readString( frame ) ;
+                final int count = BinaryFrames.readVarint( frame ) ;
+                final List<String> members = new ArrayList<>( Math.min( count, 1024 ) ) ;
+
+                for ( int i = 0 ; i < count ; i++ )
+                    {
+                    members.add( BinaryFrames.readString( frame ) ) ;
+                    }
+
+                this.metrics.clusterMessageReceived() ;
+                this.server.handlePeerGroupMessage( senderID, groupID, message, members ) ;
+                }
+            case ClusterFrames.RECORD ->
+                {
+                final String senderID = BinaryFrames.readString( frame ) ;
+                final String recipientID = BinaryFrames.readString( frame ) ;
+                this.server.handlePeerRecord( senderID,
+                                              recipientID,
+                                              BinaryFrames.readString( frame ) ) ;
+                }
+            default -> throw new IOException( "Unknown cluster frame type " + type ) ;
+            }
+
+        }
+
+    }
@@ -0,0 +1,112 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.IOException ;
+import java.io.OutputStream ;
+import java.nio.ByteBuffer ;
+
+/**
+ * A growable byte buffer that frames are encoded into and written out of without copying.
+ *
+ * @version 1.1 2026-10-18 Frames can be removed, and writes do not pin virtual threads.
+ *
+ * @since 1.3
+ */
+final class FrameBuffer extends ByteArrayOutputStream
+    {
+
+    FrameBuffer()
+        {
+
+        super( 8192 ) ;
+
+        }
+
+
+    /**
+     * @return The capacity currently held, which {@link #reset()} does not release.
+     */
+    int capacity()
+        {
+
+        return this.buf.length ;
+
+        }
+
+
+    /**
+     * Append this buffer's contents to {@code out}.
+     */
+    void copyTo( final ByteArrayOutputStream out )
+        {
+
+        out.write( this.buf, 0, this.count ) ;
+
+        }
+
+
+    /**
+     * @return A buffer sharing the bytes from {@code from} to the end, for writing to a channel.
+     */
+    ByteBuffer view( final int from )
+        {
+
+        return ByteBuffer.wrap( this.buf, from, this.count - from ) ;
+
+        }
+
+
+    /**
+     * Remove the first {@code length} bytes, keeping the rest.
+     */
+    void discard( final int length )
+        {
+
+        System.arraycopy( this.buf, length, this.buf, 0, this.count - length ) ;
+        this.count -= length ;
+
+        }
+
+
+    /**
+     * Write this buffer's contents to {@code out}. Unlike the inherited method this does not hold
+     * the buffer's monitor while {@code out} blocks, so a virtual thread writing to a client that
+     * is slow to read parks instead of pinning its carrier.
+     */
+    @Override
+    public void writeTo( final OutputStream out ) throws IOException
+        {
+
+        out.write( this.buf, 0, this.count ) ;
+
+        }
+
+
+    /**
+     * Remove {@code length} bytes starting at {@code from}, keeping those either side.
+     */
+    void remove( final int from,
+                 final int length )
+        {
+
+        System.arraycopy( this.buf,
+                          from + length,
+                          this.buf,
+                          from,
+                          this.count - from - length ) ;
+        this.count -= length ;
+
+        }
+
+
+    /**
+     * Drop everything after the first {@code size} bytes.
+     */
+    void truncate( final int size )
+        {
+
+        this.count = size ;
+
+        }
+
+    }
@@ -0,0 +1,195 @@
+package application ;
+
+import java.io.IOException ;
+import java.nio.ByteBuffer ;
+import java.util.List ;
+
+/**
+ * Turns the bytes read from one connection back into frames. Bytes may arrive split anywhere, so
+ * a decoder keeps whatever it cannot use yet until the next call.
+ *
+ * @version 1.4 2026-10-18 Search requests.
+ *
+ * @since 1.3
+ */
+interface FrameDecoder
+    {
+
+    /**
+     * Consume every remaining byte of {@code in}, reporting each complete frame to
+     * {@code listener}.
+     *
+     * @throws IOException
+     *     If the bytes are not a valid frame, or the listener fails.
+     *
+     * @since 1.3
+     */
+    void decode( ByteBuffer in,
+                 Listener listener ) throws IOException ;
+
+
+    /**
+     * Receives decoded frames. A frame type a side never expects to receive is a protocol error.
+     *
+     * @since 1.3
+     */
+    interface Listener
+        {
+
+        /**
+         * The other side opened or acknowledged a binary session.
+         */
+        default void hello( final int version ) throws IOException
+            {}
+
+
+        /**
+         * @param sequence
+         *     The sender's number for the message, or 0 if it does not track confirmations.
+         */
+        default void message( final String senderID,
+                              final String recipientID,
+                              final long sequence,
+                              final String message ) throws IOException
+            {
+
+            throw unexpected( "message" ) ;
+
+            }
+
+
+        /**
+         * The message this side numbered {@code sequence} was accepted.
+         */
+        default void confirmation( final String recipientID,
+                                   final long sequence ) throws IOException
+            {
+
+            throw unexpected( "confirmation" ) ;
+
+            }
+
+
+        /**
+         * @param request
+         *     The requester's number for the request, or 0.
+         */
+        default void historyRequest( final String requesterID,
+                                     final String peerID,
+                                     final long request ) throws IOException
+            {
+
+            throw unexpected( "history request" ) ;
+
+            }
+
+
+        default void pageRequest( final String requesterID,
+                                  final String peerID,
+                                  final int limit,
+                                  final long before ) throws IOException
+            {
+
+            throw unexpected( "page request" ) ;
+
+            }
+
+
+        /**
+         * @see FrameEncoder#searchRequest
+         */
+        default void searchRequest( final String requesterID,
+                                    final long request,
+                                    final String query,
+                                    final String userID,
+                                    final long fromMillis,
+                                    final long toMillis,
+                                    final int limit ) throws IOException
+            {
+
+            throw unexpected( "search request" ) ;
+
+            }
+
+
+        /**
+         * Part of the answer to a history request, oldest first.
+         */
+        default void historyRecords( final String peerID,
+                                     final long request,
+                                     final List<String> records ) throws IOException
+            {
+
+            throw unexpected( "history" ) ;
+
+            }
+
+
+        default void historyEnd( final String peerID,
+                                 final long request ) throws IOException
+            {
+
+            throw unexpected( "history end" ) ;
+
+            }
+
+
+        /**
+         * Part of a page, newest first.
+         */
+        default void pageRecords( final String peerID,
+                                  final List<String> records ) throws IOException
+            {
+
+            throw unexpected( "page" ) ;
+
+            }
+
+
+        default void pageEnd( final String peerID,
+                              final long cursor ) throws IOException
+            {
+
+            throw unexpected( "page end" ) ;
+
+            }
+
+
+        default void join( final String memberID,
+                           final String groupID ) throws IOException
+            {
+
+            throw unexpected( "join" ) ;
+
+            }
+
+
+        default void leave( final String memberID,
+                            final String groupID ) throws IOException
+            {
+
+            throw unexpected( "leave" ) ;
+
+            }
+
+
+        default void groupMessage( final String senderID,
+                                   final String groupID,
+                                   final String message ) throws IOException
+            {
+
+            throw unexpected( "group message" ) ;
+
+            }
+
+
+        private static IOException unexpected( final String frame )
+            {
+
+            return new IOException( "Unexpected " + frame + " frame" ) ;
+
+            }
+
+        }
+
+    }
@@ -0,0 +1,191 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.util.List ;
+
+/**
+ * Writes protocol frames for one connection. Encoders may remember what they have already sent,
+ * so calls must be made in the order the bytes reach the socket.
+ *
+ * @version 1.5 2026-10-18 Encoder state can be rolled back for frames never sent.
+ *
+ * @since 1.3
+ */
+interface FrameEncoder
+    {
+
+    /**
+     * Open or acknowledge a binary session. Nothing is written for text.
+     *
+     * @since 1.3
+     */
+    void hello( ByteArrayOutputStream out ) ;
+
+
+    /**
+     * A message.
+     *
+     * @param sequence
+     *     The sender's number for the message, or 0 if it does not track confirmations.
+     *
+     * @since 1.3
+     */
+    void message( ByteArrayOutputStream out,
+                  String senderID,
+                  String recipientID,
+                  long sequence,
+                  String message ) ;
+
+
+    /**
+     * Tell the sender its message was accepted. Protocols that carry the sequence number need
+     * not repeat the message.
+     *
+     * @since 1.3
+     */
+    void confirmation( ByteArrayOutputStream out,
+                       String senderID,
+                       String recipientID,
+                       long sequence,
+                       String message ) ;
+
+
+    /**
+     * Ask for the whole history with {@code peerID}.
+     *
+     * @param request
+     *     The requester's number for the request, echoed in the answer, or 0.
+     *
+     * @since 1.3
+     */
+    void historyRequest( ByteArrayOutputStream out,
+                         String requesterID,
+                         String peerID,
+                         long request ) ;
+
+
+    /**
+     * Ask for up to {@code limit} records with {@code peerID} older than the cursor
+     * {@code before}, or the newest ones if it is negative.
+     *
+     * @since 1.3
+     */
+    void pageRequest( ByteArrayOutputStream out,
+                      String requesterID,
+                      String peerID,
+                      int limit,
+                      long before ) ;
+
+
+    /**
+     * Ask for up to {@code limit} of the newest records containing every word of {@code query}.
+     * The answer is a {@link #history} with an empty peer.
+     *
+     * @param request
+     *     The requester's number for the request, echoed in the answer.
+     * @param userID
+     *     Only records sent by or to this user, or empty for anyone's.
+     * @param fromMillis
+     *     Only records from this time on, or 0 for no bound.
+     * @param toMillis
+     *     Only records up to this time, or 0 for no bound.
+     *
+     * @since 1.3
+     */
+    void searchRequest( ByteArrayOutputStream out,
+                        String requesterID,
+                        long request,
+                        String query,
+                        String userID,
+                        long fromMillis,
+                        long toMillis,
+                        int limit ) ;
+
+
+    /**
+     * The complete answer to a history request.
+     *
+     * @since 1.3
+     */
+    void history( ByteArrayOutputStream out,
+                  String requesterID,
+                  String peerID,
+                  long request,
+                  List<String> records ) ;
+
+
+    /**
+     * Some of the records of a page, newest first.
+     *
+     * @since 1.3
+     */
+    void pageRecords( ByteArrayOutputStream out,
+                      String peerID,
+                      List<String> records ) ;
+
+
+    /**
+     * The end of a page, with the cursor for the page before it or 0 if there is none.
+     *
+     * @since 1.3
+     */
+    void pageEnd( ByteArrayOutputStream out,
+                  String peerID,
+                  long cursor ) ;
+
+
+    /**
+     * Add {@code memberID} to a group, creating it if needed.
+     *
+     * @since 1.3
+     */
+    void join( ByteArrayOutputStream out,
+               String memberID,
+               String groupID ) ;
+
+
+    /**
+     * Remove {@code memberID} from a group.
+     *
+     * @since 1.3
+     */
+    void leave( ByteArrayOutputStream out,
+                String memberID,
+                String groupID ) ;
+
+
+    /**
+     * A message to a group. The bytes must not depend on anything this encoder has sent before,
+     * since one encoding is shared by every member that speaks the same protocol.
+     *
+     * @since 1.3
+     */
+    void groupMessage( ByteArrayOutputStream out,
+                       String senderID,
+                       String groupID,
+                       String message ) ;
+
+
+    /**
+     * @return A mark for what the encoder remembers now, to {@link #rollback} to if the frames
+     *     encoded after it are never sent.
+     *
+     * @since 1.3
+     */
+    default int mark()
+        {
+
+        return 0 ;
+
+        }
+
+
+    /**
+     * Forget what the encoder remembered of frames encoded since {@code mark}.
+     *
+     * @since 1.3
+     */
+    default void rollback( final int mark )
+        {}
+
+    }
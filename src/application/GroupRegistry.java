@@ -0,0 +1,111 @@
+package application ;
+
+import java.util.Set ;
+import java.util.concurrent.ConcurrentHashMap ;
+
+/**
+ * Which users belong to which groups. A group exists while it has members, and a message sent to
+ * a group ID goes to every member. Membership belongs to the user rather than a connection, so it
+ * survives reconnects, but it is not kept across server restarts. In a cluster every node holds
+ * every membership, whichever node the member joined on.
+ *
+ * @version 1.1 2026-10-18 Lists the groups.
+ *
+ * @since 1.3
+ */
+final class GroupRegistry
+    {
+
+    /**
+     * Every group ID starts with this, which keeps groups apart from user IDs.
+     */
+    static final String PREFIX = "#" ;
+
+    private final ConcurrentHashMap<String, Set<String>> groups ;
+
+
+    GroupRegistry()
+        {
+
+        this.groups = new ConcurrentHashMap<>() ;
+
+        }
+
+
+    /**
+     * @return True if messages to {@code recipientID} go to a group.
+     */
+    static boolean isGroup( final String recipientID )
+        {
+
+        return recipientID.startsWith( PREFIX ) && ( recipientID.length() > PREFIX.length() ) ;
+
+        }
+
+
+    /**
+     * @return False if {@code memberID} was already a member.
+     */
+    boolean join( final String groupID,
+                  final String memberID )
+        {
+
+        final boolean[] added = new boolean[ 1 ] ;
+
+        this.groups.compute( groupID, ( id, members ) ->
+            {
+            final Set<String> joined = members == null ? ConcurrentHashMap.newKeySet() : members ;
+            added[ 0 ] = joined.add( memberID ) ;
+            return joined ;
+            } ) ;
+
+        return added[ 0 ] ;
+
+        }
+
+
+    /**
+     * Remove {@code memberID}, and the group itself once nobody is left.
+     *
+     * @return False if {@code memberID} was not a member.
+     */
+    boolean leave( final String groupID,
+                   final String memberID )
+        {
+
+        final boolean[] removed = new boolean[ 1 ] ;
+
+        this.groups.computeIfPresent( groupID, ( id, members ) ->
+            {
+            removed[ 0 ] = members.remove( memberID ) ;
+            return members.isEmpty() ? null : members ;
+            } ) ;
+
+        return removed[ 0 ] ;
+
+        }
+
+
+    /**
+     * @return A live view of the group's members, empty if it has none. Joins and leaves while it
+     *     is being iterated may or may not be seen.
+     */
+    Set<String> members( final String groupID )
+        {
+
+        return this.groups.getOrDefault( groupID, Set.of() ) ;
+
+        }
+
+
+    /**
+     * @return A live view of the groups that have members.
+     */
+    Set<String> groups()
+        {
+
+        return this.groups.keySet() ;
+
+        }
+
+    }
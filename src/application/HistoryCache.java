@@ -0,0 +1,550 @@
+package application ;
+
+import java.util.ArrayDeque ;
+import java.util.ArrayList ;
+import java.util.Iterator ;
+import java.util.LinkedHashMap ;
+import java.util.List ;
+import java.util.Map ;
+import java.util.concurrent.atomic.LongAdder ;
+import java.util.function.LongSupplier ;
+
+/**
+ * Recently requested conversations, kept in memory so a REQ or a request for the newest page of
+ * them never touches the history log. A conversation is loaded on its first such request and then
+ * kept current by every record the history writer commits to it, in log order, so it never needs
+ * invalidating. Each holds its newest {@code chat.history.cacheRecords} records with their log
+ * positions: all of a conversation up to that long, which answers a REQ, and enough of a longer
+ * one to answer its newest pages with the cursor for the page before. The least recently used are
+ * evicted once the cache holds more than about {@code chat.history.cacheBytes} of records. Either
+ * set to 0 turns the cache off.
+ * <p>
+ * Conversations are spread over independently locked segments by key, each with its own share
+ * of the memory and its own LRU order, so writers to different conversations rarely contend. A
+ * conversation read from the log is only cached if nothing newer was indexed for it since, so
+ * commits to other conversations never spoil the read.
+ *
+ * @version 1.2 2026-10-18 A read is checked for staleness against its own conversation only.
+ *
+ * @since 1.3
+ */
+final class HistoryCache
+    {
+
+    private static final int SEGMENTS = 16 ;
+
+    // Rough heap cost of a String and its holder beyond the characters, and of an entry beyond
+    // its records
+    private static final int RECORD_OVERHEAD = 80 ;
+    private static final int ENTRY_OVERHEAD = 160 ;
+
+    private final int maxRecords ;
+    private final long segmentBytes ;
+    private final Segment[] segments ;
+    private final LongAdder hits ;
+    private final LongAdder misses ;
+    private final LongAdder evictions ;
+    private volatile long oldest ;
+
+
+    HistoryCache()
+        {
+
+        this.maxRecords = Integer.getInteger( "chat.history.cacheRecords", 1000 ) ;
+        this.segmentBytes = Long.getLong( "chat.history.cacheBytes", 64L << 20 ) / SEGMENTS ;
+        this.segments = new Segment[ SEGMENTS ] ;
+        this.hits = new LongAdder() ;
+        this.misses = new LongAdder() ;
+        this.evictions = new LongAdder() ;
+
+        for ( int i = 0 ; i < SEGMENTS ; i++ )
+            {
+            this.segments[ i ] = new Segment() ;
+            }
+
+        }
+
+
+    boolean isEnabled()
+        {
+
+        return ( this.maxRecords > 0 ) && ( this.segmentBytes > 0 ) ;
+
+        }
+
+
+    /**
+     * @return The most records kept for one conversation.
+     */
+    int getMaxRecords()
+        {
+
+        return this.maxRecords ;
+
+        }
+
+
+    /**
+     * @return Every record between the two users, oldest first, or null if the conversation is
+     *     not cached or is longer than the cache keeps.
+     */
+    List<String> get( final String user1,
+                      final String user2 )
+        {
+
+        if ( !isEnabled() )
+            {
+            return null ;
+            }
+
+        final String key = MessageHistory.pairKey( user1, user2 ) ;
+        final Segment segment = segmentFor( key ) ;
+
+        synchronized ( segment )
+            {
+            final Entry entry = segment.entries.get( key ) ;
+
+            if ( ( entry == null ) || !entry.complete )
+                {
+                this.misses.increment() ;
+                return null ;
+                }
+
+            this.hits.increment() ;
+
+            final List<String> records = new ArrayList<>( entry.records.size() ) ;
+
+            for ( final Cached cached : entry.records )
+                {
+                records.add( cached.record ) ;
+                }
+
+            return records ;
+            }
+
+        }
+
+
+    /**
+     * @return The newest {@code limit} records between the two users, oldest first, with the
+     *     cursor for the page before them, or null if the cache cannot answer.
+     */
+    Page page( final String user1,
+               final String user2,
+               final int limit )
+        {
+
+        if ( !isEnabled() )
+            {
+            return null ;
+            }
+
+        final String key = MessageHistory.pairKey( user1, user2 ) ;
+        final Segment segment = segmentFor( key ) ;
+
+        synchronized ( segment )
+            {
+            final Entry entry = segment.entries.get( key ) ;
+
+            if ( ( entry == null ) || ( ( limit > entry.records.size() ) && !entry.complete ) )
+                {
+                this.misses.increment() ;
+                return null ;
+                }
+
+            this.hits.increment() ;
+
+            final String[] records = new String[ Math.max( 0,
+                                                           Math.min( limit,
+                                                                     entry.records.size() ) ) ] ;
+            final Iterator<Cached> newestFirst = entry.records.descendingIterator() ;
+            Cached oldest = null ;
+
+            for ( int i = records.length - 1 ; i >= 0 ; i-- )
+                {
+                oldest = newestFirst.next() ;
+                records[ i ] = oldest.record ;
+                }
+
+            final boolean older = newestFirst.hasNext() || !entry.complete ;
+
+            return new Page( List.of( records ),
+                             ( older && ( oldest != null ) ) ? oldest.position : 0 ) ;
+            }
+
+        }
+
+
+    /**
+     * @return True if the conversation between the two users is cached, however much of it.
+     */
+    boolean contains( final String user1,
+                      final String user2 )
+        {
+
+        final String key = MessageHistory.pairKey( user1, user2 ) ;
+        final Segment segment = segmentFor( key ) ;
+
+        synchronized ( segment )
+            {
+            return segment.entries.containsKey( key ) ;
+            }
+
+        }
+
+
+    /**
+     * Cache the newest records of a conversation just read from the log, unless a newer record
+     * of it has been indexed since, in which case the read is already out of date. Records that
+     * retention has deleted meanwhile are left out.
+     *
+     * @param records
+     *     The records read, oldest first.
+     * @param positions
+     *     Their positions in the log.
+     * @param complete
+     *     True if nothing older is left in the log.
+     * @param newest
+     *     The position of the conversation's newest indexed record, or -1 if there is none. It
+     *     is asked while no record of the conversation can be added, and a record is always
+     *     indexed before it is added.
+     */
+    void fill( final String user1,
+               final String user2,
+               final List<String> records,
+               final long[] positions,
+               final boolean complete,
+               final LongSupplier newest )
+        {
+
+        if ( !isEnabled() )
+            {
+            return ;
+            }
+
+        final String key = MessageHistory.pairKey( user1, user2 ) ;
+        final Segment segment = segmentFor( key ) ;
+
+        synchronized ( segment )
+            {
+
+            final long read = positions.length == 0 ? -1 : positions[ positions.length - 1 ] ;
+
+            if ( ( newest.getAsLong() > read ) || segment.entries.containsKey( key ) )
+                {
+                return ;
+                }
+
+            final int firstKept = Math.max( 0, records.size() - this.maxRecords ) ;
+            int from = firstKept ;
+
+            while ( ( from < records.size() ) && ( positions[ from ] < this.oldest ) )
+                {
+                from++ ;
+                }
+
+            final Entry entry = new Entry( key, complete && ( firstKept == 0 ) ) ;
+
+            for ( int i = from ; i < records.size() ; i++ )
+                {
+                entry.add( records.get( i ), positions[ i ] ) ;
+                }
+
+            segment.entries.put( key, entry ) ;
+            segment.bytes += entry.bytes ;
+            evict( segment ) ;
+            }
+
+        }
+
+
+    /**
+     * Add a record as the history writer commits it. Past the record limit the conversation's
+     * oldest record makes way.
+     */
+    void add( final String senderID,
+              final String recipientID,
+              final String record,
+              final long position )
+        {
+
+        if ( !isEnabled() )
+            {
+            return ;
+            }
+
+        final String key = MessageHistory.pairKey( senderID, recipientID ) ;
+        final Segment segment = segmentFor( key ) ;
+
+        synchronized ( segment )
+            {
+            final Entry entry = segment.entries.get( key ) ;
+
+            // A read that filled the entry after the record was indexed already has it
+            if ( ( entry == null ) || ( position <= entry.newestPosition() ) )
+                {
+                return ;
+                }
+
+            final long before = entry.bytes ;
+            entry.add( record, position ) ;
+
+            if ( entry.records.size() > this.maxRecords )
+                {
+                entry.removeOldest() ;
+                entry.complete = false ;
+                }
+
+            segment.bytes += entry.bytes - before ;
+            evict( segment ) ;
+            }
+
+        }
+
+
+    /**
+     * Forget every cached record older than {@code oldest}, after retention has deleted it.
+     */
+    void dropBefore( final long oldest )
+        {
+
+        // Set first, so a read filled after its segment is trimmed leaves deleted records out
+        this.oldest = oldest ;
+
+        for ( final Segment segment : this.segments )
+            {
+
+            synchronized ( segment )
+                {
+
+                for ( final Entry entry : segment.entries.values() )
+                    {
+                    final long before = entry.bytes ;
+
+                    while ( !entry.records.isEmpty() &&
+                            ( entry.records.getFirst().position < oldest ) )
+                        {
+                        entry.removeOldest() ;
+                        }
+
+                    segment.bytes += entry.bytes - before ;
+                    }
+
+                }
+
+            }
+
+        }
+
+
+    long getHits()
+        {
+
+        return this.hits.sum() ;
+
+        }
+
+
+    long getMisses()
+        {
+
+        return this.misses.sum() ;
+
+        }
+
+
+    long getEvictions()
+        {
+
+        return this.evictions.sum() ;
+
+        }
+
+
+    /**
+     * @return The estimated heap held by cached records.
+     */
+    long getBytes()
+        {
+
+        long total = 0 ;
+
+        for ( final Segment segment : this.segments )
+            {
+
+            synchronized ( segment )
+                {
+                total += segment.bytes ;
+                }
+
+            }
+
+        return total ;
+
+        }
+
+
+    private Segment segmentFor( final String key )
+        {
+
+        final int hash = key.hashCode() ;
+
+        return this.segments[ ( hash ^ ( hash >>> 16 ) ) & ( SEGMENTS - 1 ) ] ;
+
+        }
+
+
+    /**
+     * Drop least recently used conversations until the segment is back within its share.
+     */
+    private void evict( final Segment segment )
+        {
+
+        final Iterator<Entry> eldest = segment.entries.values().iterator() ;
+
+        while ( ( segment.bytes > this.segmentBytes ) && eldest.hasNext() )
+            {
+            segment.bytes -= eldest.next().bytes ;
+            eldest.remove() ;
+            this.evictions.increment() ;
+            }
+
+        }
+
+
+    /**
+     * One lock's share of the cache.
+     */
+    private static final class Segment
+        {
+
+        private final Map<String, Entry> entries ;
+        private long bytes ;
+
+
+        Segment()
+            {
+
+            this.entries = new LinkedHashMap<>( 16, 0.75f, true ) ;
+
+            }
+
+        }
+
+
+    /**
+     * One cached conversation.
+     */
+    private static final class Entry
+        {
+
+        private final ArrayDeque<Cached> records ;
+        private boolean complete ;
+        private long bytes ;
+
+
+        Entry( final String key,
+               final boolean completeInput )
+            {
+
+            this.records = new ArrayDeque<>() ;
+            this.complete = completeInput ;
+            this.bytes = ENTRY_OVERHEAD + ( 2L * key.length() ) ;
+
+            }
+
+
+        void add( final String record,
+                  final long position )
+            {
+
+            this.records.add( new Cached( record, position ) ) ;
+            this.bytes += RECORD_OVERHEAD + ( 2L * record.length() ) ;
+
+            }
+
+
+        void removeOldest()
+            {
+
+            this.bytes -= RECORD_OVERHEAD + ( 2L * this.records.removeFirst().record.length() ) ;
+
+            }
+
+
+        long newestPosition()
+            {
+
+            return this.records.isEmpty() ? -1 : this.records.getLast().position ;
+
+            }
+
+        }
+
+
+    /**
+     * A cached record and where it is in the log.
+     */
+    private static final class Cached
+        {
+
+        private final String record ;
+        private final long position ;
+
+
+        Cached( final String recordInput,
+                final long positionInput )
+            {
+
+            this.record = recordInput ;
+            this.position = positionInput ;
+
+            }
+
+        }
+
+
+    /**
+     * The newest page of a conversation, answered from the cache.
+     */
+    static final class Page
+        {
+
+        private final List<String> records ;
+        private final long cursor ;
+
+
+        Page( final List<String> recordsInput,
+              final long cursorInput )
+            {
+
+            this.records = recordsInput ;
+            this.cursor = cursorInput ;
+
+            }
+
+
+        /**
+         * @return The records, oldest first.
+         */
+        List<String> getRecords()
+            {
+
+            return this.records ;
+
+            }
+
+
+        /**
+         * @return The cursor for the page before, or 0 if there is none.
+         */
+        long getCursor()
+            {
+
+            return this.cursor ;
+
+            }
+
+        }
+
+    }
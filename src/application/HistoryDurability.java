@@ -0,0 +1,55 @@
+package application ;
+
+/**
+ * How hard the history writer works to get a batch of records onto disk before it counts as
+ * committed.
+ *
+ * @version 1.0 2026-10-18 Added for the batching history writer.
+ *
+ * @since 1.3
+ */
+public enum HistoryDurability
+    {
+
+    /**
+     * Records are held until the batch fills or {@code chat.history.lingerMillis} passes. A crash
+     * can lose whatever is still held.
+     */
+    NONE,
+
+    /**
+     * Every batch is handed to the operating system as soon as the queue drains, so a crash of
+     * the server process loses nothing that was committed.
+     */
+    FLUSH,
+
+    /**
+     * Every batch is written and then forced to the storage device, and senders are only
+     * confirmed once their batch is forced.
+     */
+    FORCE ;
+
+
+    /**
+     * Reads the mode from the {@code chat.history.durability} system property, defaulting to
+     * {@link #FLUSH}.
+     *
+     * @return The configured mode.
+     *
+     * @since 1.3
+     */
+    public static HistoryDurability fromSystemProperty()
+        {
+
+        final String value = System.getProperty( "chat.history.durability" ) ;
+
+        if ( value == null )
+            {
+            return FLUSH ;
+            }
+
+        return valueOf( value.trim().toUpperCase() ) ;
+
+        }
+
+    }
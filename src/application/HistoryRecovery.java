@@ -0,0 +1,629 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.IOException ;
+import java.io.InputStream ;
+import java.io.UncheckedIOException ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.nio.charset.StandardCharsets ;
+import java.nio.file.StandardOpenOption ;
+import java.util.HashMap ;
+import java.util.List ;
+import java.util.Map ;
+import java.util.concurrent.CountDownLatch ;
+import java.util.concurrent.ForkJoinPool ;
+import java.util.concurrent.RecursiveTask ;
+
+/**
+ * Rebuilds the conversation index, missing user filters and missing search terms of a
+ * {@link MessageHistory} after a restart, on a background thread so the server can take
+ * connections meanwhile.
+ * <p>
+ * Segments are recovered newest first, and each uncompressed one is split into ranges of
+ * {@code chat.history.recoveryRangeBytes}, again newest first. A range is cut into line-aligned
+ * chunks of {@code chat.history.recoveryChunkBytes} that are parsed in parallel on a fork/join
+ * pool of {@code chat.history.recoveryThreads} threads, their per-conversation positions are
+ * concatenated as the tasks join, and the whole range is then put in front of what is already
+ * indexed. Reads made during recovery therefore see the newest history first. A compressed
+ * segment cannot be read from the middle, so it is parsed as a single chunk.
+ *
+ * @version 1.1 2026-10-18 Rebuilds search terms.
+ *
+ * @since 1.3
+ */
+final class HistoryRecovery
+    {
+
+    private static final int READ_BLOCK_SIZE = 1 << 16 ;
+
+    private final MessageHistory history ;
+    private final SearchIndex search ;
+    private final List<HistorySegment> segments ;
+    private final boolean[] rebuildUsers ;
+    private final boolean[] rebuildTerms ;
+    private final long activeSize ;
+    private final long chunkBytes ;
+    private final long rangeBytes ;
+    private final int threads ;
+    private final CountDownLatch done ;
+
+
+    /**
+     * @param segmentsInput
+     *     Every segment when the history was opened, oldest first; the last is active.
+     * @param rebuildUsersInput
+     *     For each segment, whether its user filter has to be rebuilt.
+     * @param rebuildTermsInput
+     *     For each segment, whether its search terms have to be rebuilt.
+     * @param activeSizeInput
+     *     The length of the active segment before any new appends.
+     */
+    HistoryRecovery( final MessageHistory historyInput,
+                     final SearchIndex searchInput,
+                     final List<HistorySegment> segmentsInput,
+                     final boolean[] rebuildUsersInput,
+                     final boolean[] rebuildTermsInput,
+                     final long activeSizeInput )
+        {
+
+        this.history = historyInput ;
+        this.search = searchInput ;
+        this.segments = segmentsInput ;
+        this.rebuildUsers = rebuildUsersInput ;
+        this.rebuildTerms = rebuildTermsInput ;
+        this.activeSize = activeSizeInput ;
+        this.chunkBytes = Math.max( 1 << 16,
+                                    Long.getLong( "chat.history.recoveryChunkBytes", 4L << 20 ) ) ;
+        this.rangeBytes = Math.max( this.chunkBytes,
+                                    Long.getLong( "chat.history.recoveryRangeBytes",
+                                                  256L << 20 ) ) ;
+        this.threads = Integer.getInteger( "chat.history.recoveryThreads",
+                                           Runtime.getRuntime().availableProcessors() ) ;
+        this.done = new CountDownLatch( 1 ) ;
+
+        }
+
+
+    void start()
+        {
+
+        final Thread thread = new Thread( this::run, "history-recovery" ) ;
+        thread.setDaemon( true ) ;
+        thread.start() ;
+
+        }
+
+
+    boolean isDone()
+        {
+
+        return this.done.getCount() == 0 ;
+
+        }
+
+
+    void await() throws InterruptedException
+        {
+
+        this.done.await() ;
+
+        }
+
+
+    private void run()
+        {
+
+        final long start = System.nanoTime() ;
+        final ForkJoinPool pool = new ForkJoinPool( Math.max( 1, this.threads ) ) ;
+        long records = 0 ;
+
+        try
+            {
+
+            for ( int i = this.segments.size() - 1 ; i >= 0 ; i-- )
+                {
+
+                if ( this.history.isIndexed() || this.rebuildUsers[ i ] || this.rebuildTerms[ i ] )
+                    {
+                    records += recover( pool,
+                                        this.segments.get( i ),
+                                        this.rebuildUsers[ i ],
+                                        this.rebuildTerms[ i ],
+                                        i == this.segments.size() - 1 ) ;
+                    }
+
+                }
+
+            ServerLog.info( "Recovered " + records + " history records in " +
+                            ( ( System.nanoTime() - start ) / 1_000_000 ) + " ms" ) ;
+            }
+        finally
+            {
+            pool.shutdown() ;
+            this.done.countDown() ;
+            }
+
+        }
+
+
+    /**
+     * Index one segment, newest range first, and complete its user filter and search terms if
+     * they were rebuilt.
+     *
+     * @return The records found.
+     */
+    private long recover( final ForkJoinPool pool,
+                          final HistorySegment segment,
+                          final boolean users,
+                          final boolean terms,
+                          final boolean active )
+        {
+
+        final long end = active ? this.activeSize : segment.getSize() ;
+        final UserBloomFilter found = users ? HistorySegment.newUserFilter() : null ;
+        boolean complete = false ;
+        long records = 0 ;
+
+        try
+            {
+
+            if ( segment.getState() == HistorySegment.State.COMPRESSED )
+                {
+                final Chunk chunk = new Chunk( segment.getID(),
+                                               0,
+                                               end,
+                                               this.history.isIndexed(),
+                                               users,
+                                               terms ? this.search : null ) ;
+
+                try ( InputStream in = segment.openStream() )
+                    {
+                    chunk.scan( in ) ;
+                    }
+
+                records += publish( segment, active, chunk, found ) ;
+                }
+            else
+                {
+
+                // Our own channel keeps reading even if the segment is compressed meanwhile
+                try ( FileChannel channel = FileChannel.open( segment.getFile().toPath(),
+                                                              StandardOpenOption.READ ) )
+                    {
+
+                    for ( long rangeEnd = end ; rangeEnd > 0 ; rangeEnd -= this.rangeBytes )
+                        {
+                        final long rangeStart = Math.max( 0, rangeEnd - this.rangeBytes ) ;
+                        final Chunk chunk = pool.invoke( new ChunkTask( channel,
+                                                                        segment.getID(),
+                                                                        rangeStart,
+                                                                        rangeEnd,
+                                                                        users,
+                                                                        terms ) ) ;
+
+                        records += publish( segment, active, chunk, found ) ;
+                        }
+
+                    }
+
+                }
+
+            complete = true ;
+            }
+        catch ( final IOException | UncheckedIOException e )
+            {
+
+            // Retention may delete a segment while it is being recovered
+            if ( segmentExists( segment ) )
+                {
+                ServerLog.error( "Failed to recover history segment " + segment.getID() +
+                                 ": " + e.getMessage() ) ;
+                }
+
+            }
+
+        if ( terms )
+            {
+            this.search.recoveryDone( segment, active, complete && segmentExists( segment ) ) ;
+            }
+
+        // A filter left incomplete keeps saying the segment might contain anyone
+        if ( ( found != null ) && complete )
+            {
+            segment.recoveredUsers( found ) ;
+
+            try
+                {
+
+                if ( segment.getState() != HistorySegment.State.ACTIVE )
+                    {
+                    segment.saveUsers() ;
+                    }
+
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Failed to save user filter for history segment " +
+                                 segment.getID() + ": " + e.getMessage() ) ;
+                }
+
+            }
+
+        return records ;
+
+        }
+
+
+    private long publish( final HistorySegment segment,
+                          final boolean active,
+                          final Chunk chunk,
+                          final UserBloomFilter found ) throws IOException
+        {
+
+        if ( found != null )
+            {
+            found.addAll( chunk.users ) ;
+            }
+
+        if ( this.history.isIndexed() && segmentExists( segment ) )
+            {
+            this.history.indexRecovered( chunk.pairs ) ;
+            }
+
+        if ( ( chunk.terms != null ) && segmentExists( segment ) )
+            {
+            this.search.recovered( segment, active, chunk.terms ) ;
+            }
+
+        return chunk.records ;
+
+        }
+
+
+    private boolean segmentExists( final HistorySegment segment )
+        {
+
+        return ( this.segments.get( this.segments.size() - 1 ) == segment ) ||
+               segment.getFile().exists() ||
+               segment.compressedFile().exists() ;
+
+        }
+
+
+    /**
+     * Parses {@code [start, end)} of a segment, splitting it in two until the halves are no
+     * larger than a chunk.
+     */
+    private final class ChunkTask extends RecursiveTask<Chunk>
+        {
+
+        private static final long serialVersionUID = 1L ;
+
+        private final transient FileChannel channel ;
+        private final int segmentID ;
+        private final long start ;
+        private final long end ;
+        private final boolean users ;
+        private final boolean terms ;
+
+
+        ChunkTask( final FileChannel channelInput,
+                   final int segmentIDInput,
+                   final long startInput,
+                   final long endInput,
+                   final boolean usersInput,
+                   final boolean termsInput )
+            {
+
+            this.channel = channelInput ;
+            this.segmentID = segmentIDInput ;
+            this.start = startInput ;
+            this.end = endInput ;
+            this.users = usersInput ;
+            this.terms = termsInput ;
+
+            }
+
+
+        @Override
+        protected Chunk compute()
+            {
+
+            if ( ( this.end - this.start ) <= HistoryRecovery.this.chunkBytes )
+                {
+                final Chunk chunk = new Chunk( this.segmentID,
+                                               this.start,
+                                               this.end,
+                                               HistoryRecovery.this.history.isIndexed(),
+                                               this.users,
+                                               this.terms
+                                                   ? HistoryRecovery.this.search
+                                                   : null ) ;
+
+                try
+                    {
+                    chunk.scan( this.channel ) ;
+                    }
+                catch ( final IOException e )
+                    {
+                    throw new UncheckedIOException( e ) ;
+                    }
+
+                return chunk ;
+                }
+
+            final long middle = this.start + ( ( this.end - this.start ) / 2 ) ;
+            final ChunkTask older = new ChunkTask( this.channel,
+                                                   this.segmentID,
+                                                   this.start,
+                                                   middle,
+                                                   this.users,
+                                                   this.terms ) ;
+            final ChunkTask newer = new ChunkTask( this.channel,
+                                                   this.segmentID,
+                                                   middle,
+                                                   this.end,
+                                                   this.users,
+                                                   this.terms ) ;
+
+            older.fork() ;
+
+            final Chunk later = newer.compute() ;
+            final Chunk earlier = older.join() ;
+            earlier.append( later ) ;
+
+            return earlier ;
+
+            }
+
+        }
+
+
+    /**
+     * The records of one chunk: every line that starts in {@code [start, end)}, however far past
+     * {@code end} it runs.
+     */
+    private static final class Chunk
+        {
+
+        private final int segmentID ;
+        private final long start ;
+        private final long end ;
+        private final Map<String, MessageHistory.OffsetList> pairs ;
+        private final boolean indexed ;
+        private final UserBloomFilter users ;
+        private final SearchIndex search ;
+        private final Map<String, MessageHistory.OffsetList> terms ;
+        private final ByteArrayOutputStream carry ;
+        private long lineStart ;
+        private boolean skipping ;
+        private long records ;
+
+
+        Chunk( final int segmentIDInput,
+               final long startInput,
+               final long endInput,
+               final boolean indexedInput,
+               final boolean usersInput,
+               final SearchIndex searchInput )
+            {
+
+            this.segmentID = segmentIDInput ;
+            this.start = startInput ;
+            this.end = endInput ;
+            this.pairs = new HashMap<>() ;
+            this.indexed = indexedInput ;
+            this.users = usersInput ? HistorySegment.newUserFilter() : null ;
+            this.search = searchInput ;
+            this.terms = searchInput == null ? null : new HashMap<>() ;
+            this.carry = new ByteArrayOutputStream() ;
+
+            }
+
+
+        void scan( final FileChannel channel ) throws IOException
+            {
+
+            // A line belongs to the chunk it starts in, so begin with the byte before our start
+            // to find out whether a line starts there
+            long position = this.start > 0 ? this.start - 1 : 0 ;
+            this.skipping = this.start > 0 ;
+            this.lineStart = this.start ;
+
+            final ByteBuffer buffer = ByteBuffer.allocate( READ_BLOCK_SIZE ) ;
+
+            while ( this.lineStart < this.end )
+                {
+                buffer.clear() ;
+
+                final int read = channel.read( buffer, position ) ;
+
+                if ( ( read <= 0 ) || !feed( buffer.array(), read, position ) )
+                    {
+                    return ;
+                    }
+
+                position += read ;
+                }
+
+            }
+
+
+        void scan( final InputStream in ) throws IOException
+            {
+
+            final byte[] block = new byte[ READ_BLOCK_SIZE ] ;
+            long position = 0 ;
+            int read ;
+
+            while ( ( this.lineStart < this.end ) && ( ( read = in.read( block ) ) > 0 ) )
+                {
+
+                if ( !feed( block, read, position ) )
+                    {
+                    return ;
+                    }
+
+                position += read ;
+                }
+
+            }
+
+
+        /**
+         * Parse every line completed by {@code bytes}, which start at segment offset
+         * {@code blockStart}.
+         *
+         * @return False once the next line starts at or past the end of the chunk.
+         */
+        private boolean feed( final byte[] bytes,
+                              final int length,
+                              final long blockStart )
+            {
+
+            int from = 0 ;
+
+            for ( int i = 0 ; i < length ; i++ )
+                {
+
+                if ( bytes[ i ] != '\n' )
+                    {
+                    continue ;
+                    }
+
+                if ( this.skipping )
+                    {
+                    this.skipping = false ;
+                    }
+                else
+                    {
+                    record( line( bytes, from, i ) ) ;
+                    }
+
+                from = i + 1 ;
+                this.lineStart = blockStart + from ;
+
+                if ( this.lineStart >= this.end )
+                    {
+                    return false ;
+                    }
+
+                }
+
+            if ( !this.skipping )
+                {
+                this.carry.write( bytes, from, length - from ) ;
+                }
+
+            return true ;
+
+            }
+
+
+        private String line( final byte[] bytes,
+                             final int from,
+                             final int to )
+            {
+
+            if ( this.carry.size() == 0 )
+                {
+                return new String( bytes, from, to - from, StandardCharsets.UTF_8 ) ;
+                }
+
+            this.carry.write( bytes, from, to - from ) ;
+
+            final String line = this.carry.toString( StandardCharsets.UTF_8 ) ;
+            this.carry.reset() ;
+
+            return line ;
+
+            }
+
+
+        private void record( final String line )
+            {
+
+            final String[] participants = MessageHistory.parseParticipants( line ) ;
+
+            if ( participants == null )
+                {
+                return ;
+                }
+
+            this.records++ ;
+
+            final long position = HistorySegment.position( this.segmentID, this.lineStart ) ;
+
+            if ( this.indexed )
+                {
+                this.pairs.computeIfAbsent( MessageHistory.pairKey( participants[ 0 ],
+                                                                    participants[ 1 ] ),
+                                            key -> new MessageHistory.OffsetList() )
+                          .add( position ) ;
+                }
+
+            if ( this.terms != null )
+                {
+
+                for ( final String term : this.search.recordTerms( line ) )
+                    {
+                    this.terms.computeIfAbsent( term, key -> new MessageHistory.OffsetList() )
+                              .add( position ) ;
+                    }
+
+                }
+
+            if ( this.users != null )
+                {
+                this.users.add( participants[ 0 ] ) ;
+                this.users.add( participants[ 1 ] ) ;
+                }
+
+            }
+
+
+        /**
+         * Add the records of the chunk that follows this one.
+         */
+        void append( final Chunk later )
+            {
+
+            merge( this.pairs, later.pairs ) ;
+
+            if ( this.terms != null )
+                {
+                merge( this.terms, later.terms ) ;
+                }
+
+            if ( this.users != null )
+                {
+                this.users.addAll( later.users ) ;
+                }
+
+            this.records += later.records ;
+
+            }
+
+
+        private static void merge( final Map<String, MessageHistory.OffsetList> into,
+                                   final Map<String, MessageHistory.OffsetList> later )
+            {
+
+            for ( final Map.Entry<String, MessageHistory.OffsetList> key : later.entrySet() )
+                {
+                final MessageHistory.OffsetList offsets = into.putIfAbsent( key.getKey(),
+                                                                            key.getValue() ) ;
+
+                if ( offsets != null )
+                    {
+                    offsets.addAll( key.getValue() ) ;
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
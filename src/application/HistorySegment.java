@@ -0,0 +1,533 @@
+package application ;
+
+import java.io.BufferedInputStream ;
+import java.io.BufferedOutputStream ;
+import java.io.DataInputStream ;
+import java.io.DataOutputStream ;
+import java.io.File ;
+import java.io.FileInputStream ;
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.io.InputStream ;
+import java.io.OutputStream ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.nio.file.Files ;
+import java.nio.file.StandardCopyOption ;
+import java.nio.file.StandardOpenOption ;
+import java.util.zip.GZIPInputStream ;
+import java.util.zip.GZIPOutputStream ;
+
+/**
+ * One file of the segmented history log. Only the newest segment is active and appended to;
+ * older ones are sealed, may be gzip compressed, and are eventually deleted by retention.
+ * <p>
+ * Records are addressed by a position that packs the segment ID above a 40 bit byte offset into
+ * the segment's uncompressed contents, so positions sort in log order across segments and stay
+ * valid after a segment is compressed.
+ *
+ * @version 1.3 2026-10-18 Has a search term file.
+ *
+ * @since 1.3
+ */
+final class HistorySegment
+    {
+
+    /**
+     * Lifecycle of a segment, in order.
+     */
+    enum State
+        {
+        ACTIVE,
+        SEALED,
+        COMPRESSED
+        }
+
+    private static final int OFFSET_BITS = 40 ;
+    private static final long OFFSET_MASK = ( 1L << OFFSET_BITS ) - 1 ;
+    private static final int USER_FILTER_BITS = 1 << 16 ;
+
+    private final int id ;
+    private final File file ;
+    private volatile UserBloomFilter users ;
+    private volatile boolean usersRecovering ;
+    private volatile State state ;
+    private volatile long size ;
+    private volatile long firstMillis ;
+    private volatile long lastMillis ;
+    private FileChannel channel ;
+
+
+    /**
+     * @param idInput
+     *     The segment's ID, increasing with age.
+     * @param fileInput
+     *     The uncompressed log file.
+     * @param stateInput
+     *     The lifecycle state.
+     * @param sizeInput
+     *     The committed uncompressed length.
+     * @param firstMillisInput
+     *     When the first record was appended, 0 if unknown, or -1 if the segment is empty.
+     * @param lastMillisInput
+     *     When the last record was appended, or -1 if the segment is empty.
+     *
+     * @since 1.3
+     */
+    HistorySegment( final int idInput,
+                    final File fileInput,
+                    final State stateInput,
+                    final long sizeInput,
+                    final long firstMillisInput,
+                    final long lastMillisInput )
+        {
+
+        this.id = idInput ;
+        this.file = fileInput ;
+        this.state = stateInput ;
+        this.size = sizeInput ;
+        this.firstMillis = firstMillisInput ;
+        this.lastMillis = lastMillisInput ;
+
+        }
+
+
+    static long position( final int segmentID,
+                          final long offset )
+        {
+
+        return ( (long) segmentID << OFFSET_BITS ) | offset ;
+
+        }
+
+
+    static int segmentOf( final long position )
+        {
+
+        return (int) ( position >>> OFFSET_BITS ) ;
+
+        }
+
+
+    static long offsetOf( final long position )
+        {
+
+        return position & OFFSET_MASK ;
+
+        }
+
+
+    int getID()
+        {
+
+        return this.id ;
+
+        }
+
+
+    File getFile()
+        {
+
+        return this.file ;
+
+        }
+
+
+    State getState()
+        {
+
+        return this.state ;
+
+        }
+
+
+    long getSize()
+        {
+
+        return this.size ;
+
+        }
+
+
+    long getFirstMillis()
+        {
+
+        return this.firstMillis ;
+
+        }
+
+
+    long getLastMillis()
+        {
+
+        return this.lastMillis ;
+
+        }
+
+
+    File compressedFile()
+        {
+
+        return new File( this.file.getPath() + ".gz" ) ;
+
+        }
+
+
+    File usersFile()
+        {
+
+        return new File( this.file.getPath() + ".bloom" ) ;
+
+        }
+
+
+    /**
+     * The {@link TermFile} written once the segment is sealed.
+     */
+    File termsFile()
+        {
+
+        return new File( this.file.getPath() + ".terms" ) ;
+
+        }
+
+
+    /**
+     * Start an empty user filter, to be filled by a recovery scan or by appends.
+     */
+    void resetUsers()
+        {
+
+        this.users = new UserBloomFilter( USER_FILTER_BITS ) ;
+
+        }
+
+
+    /**
+     * Start an empty user filter that appends can add to while a background scan rebuilds the
+     * rest. Until {@link #recoveredUsers} is called the segment might contain anyone.
+     */
+    void recoverUsers()
+        {
+
+        this.users = new UserBloomFilter( USER_FILTER_BITS ) ;
+        this.usersRecovering = true ;
+
+        }
+
+
+    /**
+     * Merge in the users found by the recovery scan, completing the filter.
+     */
+    void recoveredUsers( final UserBloomFilter scanned )
+        {
+
+        this.users.addAll( scanned ) ;
+        this.usersRecovering = false ;
+
+        }
+
+
+    /**
+     * @return An empty filter the size of a segment's, for a recovery scan to fill.
+     */
+    static UserBloomFilter newUserFilter()
+        {
+
+        return new UserBloomFilter( USER_FILTER_BITS ) ;
+
+        }
+
+
+    /**
+     * @return False only if one of the users certainly never appears in this segment.
+     */
+    boolean mightContain( final String user1,
+                          final String user2 )
+        {
+
+        final UserBloomFilter filter = this.users ;
+
+        return ( filter == null ) || this.usersRecovering ||
+               ( filter.mightContain( user1 ) && filter.mightContain( user2 ) ) ;
+
+        }
+
+
+    /**
+     * Record that a record from {@code senderID} to {@code recipientID} was written. Writer only.
+     */
+    void appended( final String senderID,
+                   final String recipientID,
+                   final long millis )
+        {
+
+        this.users.add( senderID ) ;
+        this.users.add( recipientID ) ;
+
+        if ( this.firstMillis < 0 )
+            {
+            this.firstMillis = millis ;
+            }
+
+        this.lastMillis = millis ;
+
+        }
+
+
+    /**
+     * Publish a new committed length once the bytes before it are written.
+     */
+    void committed( final long sizeInput )
+        {
+
+        this.size = sizeInput ;
+
+        }
+
+
+    /**
+     * The uncompressed log, for positional reads and, while active, appends.
+     *
+     * @throws IOException
+     *     If the segment has been compressed or the file cannot be opened.
+     */
+    synchronized FileChannel channel() throws IOException
+        {
+
+        if ( this.state == State.COMPRESSED )
+            {
+            throw new IOException( "History segment " + this.id + " is compressed" ) ;
+            }
+
+        if ( ( this.channel == null ) || !this.channel.isOpen() )
+            {
+            this.channel = this.state == State.ACTIVE
+                ? FileChannel.open( this.file.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE )
+                : FileChannel.open( this.file.toPath(), StandardOpenOption.READ ) ;
+            }
+
+        return this.channel ;
+
+        }
+
+
+    /**
+     * Stream the segment from its first byte, decompressing it if needed.
+     */
+    InputStream openStream() throws IOException
+        {
+
+        if ( this.state == State.COMPRESSED )
+            {
+            return new BufferedInputStream( new GZIPInputStream( new FileInputStream( compressedFile() ),
+                                                                 1 << 16 ) ) ;
+            }
+
+        return new BufferedInputStream( new FileInputStream( this.file ), 1 << 16 ) ;
+
+        }
+
+
+    /**
+     * Make sure the active segment ends with a newline after a crash mid-record, so the next
+     * append starts a record of its own.
+     */
+    void terminateLastLine() throws IOException
+        {
+
+        final FileChannel log = channel() ;
+        final long length = log.size() ;
+
+        if ( length == 0 )
+            {
+            this.size = 0 ;
+            return ;
+            }
+
+        final ByteBuffer last = ByteBuffer.allocate( 1 ) ;
+        log.read( last, length - 1 ) ;
+
+        this.size = last.get( 0 ) == '\n'
+            ? length
+            : length + log.write( ByteBuffer.wrap( new byte[] { '\n' } ), length ) ;
+
+        }
+
+
+    /**
+     * Force the segment to disk, persist its user filter and stop appending to it.
+     */
+    void seal() throws IOException
+        {
+
+        channel().force( true ) ;
+        saveUsers() ;
+        this.state = State.SEALED ;
+
+        }
+
+
+    /**
+     * Replace the sealed log file with a gzip copy. Reads already holding the old channel may
+     * fail once it is closed.
+     */
+    void compress() throws IOException
+        {
+
+        final File compressed = compressedFile() ;
+        final File partial = new File( compressed.getPath() + ".tmp" ) ;
+
+        try ( InputStream in = new FileInputStream( this.file ) ;
+              OutputStream out = new GZIPOutputStream( new FileOutputStream( partial ), 1 << 16 ) )
+            {
+            in.transferTo( out ) ;
+            }
+
+        Files.move( partial.toPath(),
+                    compressed.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE ) ;
+
+        this.state = State.COMPRESSED ;
+        close() ;
+
+        if ( !this.file.delete() )
+            {
+            this.file.deleteOnExit() ;
+            }
+
+        }
+
+
+    /**
+     * Remove every file belonging to this segment.
+     */
+    void delete()
+        {
+
+        close() ;
+
+        for ( final File part : new File[] { this.file,
+                                             compressedFile(),
+                                             usersFile(),
+                                             termsFile() } )
+            {
+
+            if ( part.exists() && !part.delete() )
+                {
+                part.deleteOnExit() ;
+                }
+
+            }
+
+        }
+
+
+    synchronized void close()
+        {
+
+        if ( this.channel == null )
+            {
+            return ;
+            }
+
+        try
+            {
+            this.channel.close() ;
+            }
+        catch ( final IOException ignored )
+            {}
+
+        this.channel = null ;
+
+        }
+
+
+    /**
+     * Persist the user filter, unless it is still being recovered, in which case recovery saves
+     * it once complete.
+     */
+    void saveUsers() throws IOException
+        {
+
+        if ( this.usersRecovering )
+            {
+            return ;
+            }
+
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( usersFile() ) ) ) )
+            {
+            this.users.writeTo( out ) ;
+            }
+
+        }
+
+
+    /**
+     * Load the persisted user filter, if there is one.
+     *
+     * @return False if the filter is missing or unreadable and has to be rebuilt by a scan.
+     */
+    boolean loadUsers()
+        {
+
+        final File saved = usersFile() ;
+
+        if ( !saved.exists() )
+            {
+            return false ;
+            }
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( saved ) ) ) )
+            {
+            this.users = UserBloomFilter.readFrom( in ) ;
+            return true ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Rebuilding user filter for history segment " + this.id +
+                             ": " + e.getMessage() ) ;
+            return false ;
+            }
+
+        }
+
+
+    /**
+     * @return This segment as one manifest line.
+     */
+    String toManifestLine()
+        {
+
+        return this.id + " " + this.state + " " + this.size + " " + this.firstMillis +
+               " " + this.lastMillis + " " + this.file.getName() ;
+
+        }
+
+
+    /**
+     * @param line
+     *     A line written by {@link #toManifestLine()}.
+     * @param directory
+     *     The directory holding the segment files.
+     */
+    static HistorySegment fromManifestLine( final String line,
+                                            final File directory )
+        {
+
+        final String[] fields = line.split( " ", 6 ) ;
+
+        return new HistorySegment( Integer.parseInt( fields[ 0 ] ),
+                                   new File( directory, fields[ 5 ] ),
+                                   State.valueOf( fields[ 1 ] ),
+                                   Long.parseLong( fields[ 2 ] ),
+                                   Long.parseLong( fields[ 3 ] ),
+                                   Long.parseLong( fields[ 4 ] ) ) ;
+
+        }
+
+    }
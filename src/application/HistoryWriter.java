@@ -0,0 +1,312 @@
+package application ;
+
+import java.io.IOException ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.BlockingQueue ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.LinkedBlockingQueue ;
+import java.util.concurrent.TimeUnit ;
+
+/**
+ * The single thread that appends to the history log. Senders only enqueue records; this thread
+ * encodes whatever is pending into one reused {@link RecordBuffer} and writes it with one write
+ * (and one force, if asked for) per batch, then indexes the records and completes their futures
+ * in log order. Segment rotation happens
+ * here too, between batches, so a batch never straddles two segments. A batch that fails, however
+ * it fails, fails only its own records' futures, so the thread keeps draining the queue.
+ *
+ * @version 1.7 2026-10-18 Survives a runtime failure in a batch, failing only that batch.
+ *
+ * @since 1.3
+ */
+final class HistoryWriter extends Thread
+    {
+
+    private final Index index ;
+    private final SegmentedLog log ;
+    private final HistoryDurability durability ;
+    private final int batchBytes ;
+    private final long lingerNanos ;
+    private final BlockingQueue<PendingRecord> queue ;
+    private final List<PendingRecord> batch ;
+    private final RecordBuffer encoded ;
+
+
+    /**
+     * @param indexInput
+     *     Told each record as it commits, in log order.
+     * @param logInput
+     *     The segments to append to.
+     * @param durabilityInput
+     *     When a batch counts as committed.
+     *
+     * @since 1.3
+     */
+    HistoryWriter( final Index indexInput,
+                   final SegmentedLog logInput,
+                   final HistoryDurability durabilityInput )
+        {
+
+        super( "history-writer" ) ;
+        setDaemon( true ) ;
+
+        this.index = indexInput ;
+        this.log = logInput ;
+        this.durability = durabilityInput ;
+        this.batchBytes = Integer.getInteger( "chat.history.batchBytes", 1 << 16 ) ;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos( Long.getLong( "chat.history.lingerMillis",
+                                                                        1000 ) ) ;
+        this.queue = new LinkedBlockingQueue<>( Integer.getInteger( "chat.history.queueCapacity",
+                                                                    1 << 16 ) ) ;
+        this.batch = new ArrayList<>() ;
+        this.encoded = new RecordBuffer( this.batchBytes * 2 ) ;
+
+        }
+
+
+    HistoryDurability getDurability()
+        {
+
+        return this.durability ;
+
+        }
+
+
+    /**
+     * Queue a record for the next batch, blocking while the queue is full.
+     *
+     * @param terms
+     *     The record's search terms, or null if it is not searchable.
+     *
+     * @return Completes once the record's batch is committed.
+     *
+     * @since 1.3
+     */
+    CompletableFuture<Void> submit( final String senderID,
+                                    final String recipientID,
+                                    final String record,
+                                    final String[] terms )
+        {
+
+        final PendingRecord pending = new PendingRecord( senderID,
+                                                         recipientID,
+                                                         terms,
+                                                         record ) ;
+
+        try
+            {
+            this.queue.put( pending ) ;
+            }
+        catch ( final InterruptedException e )
+            {
+            Thread.currentThread().interrupt() ;
+            pending.committed.completeExceptionally( e ) ;
+            }
+
+        return pending.committed ;
+
+        }
+
+
+    @Override
+    public void run()
+        {
+
+        long deadline = 0 ;
+        int pendingBytes = 0 ;
+
+        try
+            {
+
+            while ( true )
+                {
+                final PendingRecord next ;
+
+                if ( this.batch.isEmpty() )
+                    {
+                    next = this.queue.take() ;
+                    deadline = System.nanoTime() + this.lingerNanos ;
+                    }
+                else if ( this.durability == HistoryDurability.NONE )
+                    {
+                    next = this.queue.poll( deadline - System.nanoTime(),
+                                            TimeUnit.NANOSECONDS ) ;
+                    }
+                else
+                    {
+                    next = this.queue.poll() ;
+                    }
+
+                if ( next != null )
+                    {
+                    this.batch.add( next ) ;
+                    // Characters, which is close enough to bytes to size a batch
+                    pendingBytes += next.record.length() + 1 ;
+
+                    if ( pendingBytes < this.batchBytes )
+                        {
+                        continue ;
+                        }
+
+                    }
+
+                commit() ;
+                pendingBytes = 0 ;
+                }
+
+            }
+        catch ( final InterruptedException e )
+            {
+            commit() ;
+            }
+
+        }
+
+
+    private void commit()
+        {
+
+        if ( this.batch.isEmpty() )
+            {
+            return ;
+            }
+
+        final long now = System.currentTimeMillis() ;
+        HistorySegment segment = null ;
+        long start = 0 ;
+        long offset = 0 ;
+        boolean indexing = false ;
+
+        try
+            {
+            this.log.rollIfNeeded( now ) ;
+            segment = this.log.active() ;
+            start = segment.getSize() ;
+
+            final FileChannel channel = segment.channel() ;
+            final long[] offsets = new long[ this.batch.size() ] ;
+
+            this.encoded.clear() ;
+
+            for ( int i = 0 ; i < offsets.length ; i++ )
+                {
+                offsets[ i ] = start + this.encoded.append( this.batch.get( i ).record ) ;
+                }
+
+            offset = start + this.encoded.size() ;
+            final ByteBuffer bytes = this.encoded.flip() ;
+
+            channel.position( start ) ;
+
+            while ( bytes.hasRemaining() )
+                {
+                channel.write( bytes ) ;
+                }
+
+            if ( this.durability == HistoryDurability.FORCE )
+                {
+                channel.force( false ) ;
+                }
+
+            indexing = true ;
+
+            for ( int i = 0 ; i < offsets.length ; i++ )
+                {
+                final PendingRecord record = this.batch.get( i ) ;
+                segment.appended( record.senderID, record.recipientID, now ) ;
+                this.index.indexRecord( record.senderID,
+                                        record.recipientID,
+                                        record.record,
+                                        record.terms,
+                                        HistorySegment.position( segment.getID(),
+                                                                 offsets[ i ] ) ) ;
+                }
+
+            segment.committed( offset ) ;
+
+            for ( final PendingRecord record : this.batch )
+                {
+                record.committed.complete( null ) ;
+                }
+
+            }
+        catch ( final IOException | RuntimeException e )
+            {
+            ServerLog.error( "Failed to write message to history: " + e ) ;
+
+            for ( final PendingRecord record : this.batch )
+                {
+                record.committed.completeExceptionally( e ) ;
+                }
+
+            if ( indexing )
+                {
+                // Some of the batch is already indexed, so its lines stay where the index says
+                segment.committed( offset ) ;
+                }
+            else if ( segment != null )
+                {
+
+                // Drop any partly written batch so the next one starts on a clean line
+                try
+                    {
+                    segment.channel().truncate( start ) ;
+                    }
+                catch ( final IOException ignored )
+                    {}
+
+                }
+
+            }
+
+        this.batch.clear() ;
+
+        }
+
+
+    /**
+     * Receives each record once it is on disk.
+     */
+    @FunctionalInterface
+    interface Index
+        {
+
+        void indexRecord( String senderID,
+                          String recipientID,
+                          String record,
+                          String[] terms,
+                          long position ) ;
+
+        }
+
+
+    private static final class PendingRecord
+        {
+
+        private final String senderID ;
+        private final String recipientID ;
+        private final String[] terms ;
+        private final String record ;
+        private final CompletableFuture<Void> committed ;
+
+
+        PendingRecord( final String senderInput,
+                       final String recipientInput,
+                       final String[] termsInput,
+                       final String recordInput )
+            {
+
+            this.senderID = senderInput ;
+            this.recipientID = recipientInput ;
+            this.terms = termsInput ;
+            this.record = recordInput ;
+            this.committed = new CompletableFuture<>() ;
+
+            }
+
+        }
+
+    }
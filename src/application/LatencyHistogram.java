@@ -0,0 +1,207 @@
+package application ;
+
+import java.util.Locale ;
+import java.util.concurrent.atomic.AtomicLong ;
+import java.util.concurrent.atomic.AtomicLongArray ;
+import java.util.concurrent.atomic.LongAdder ;
+
+/**
+ * A fixed-size log-linear histogram of nanosecond latencies, in the style of HdrHistogram: every
+ * power of two is split into {@value #SUB_BUCKETS} buckets, so any recorded value is reported to
+ * within 1.6% whatever its size. Recording is lock free and safe from any thread.
+ *
+ * @version 1.1 2026-10-18 Shared by the server metrics and the load generator.
+ *
+ * @since 1.3
+ */
+final class LatencyHistogram
+    {
+
+    private static final int SUB_BUCKET_BITS = 6 ;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS ;
+
+    /**
+     * Values below this each get a bucket of their own.
+     */
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2 ;
+    private static final int BUCKETS = LINEAR_LIMIT + ( ( 63 - SUB_BUCKET_BITS ) * SUB_BUCKETS ) ;
+
+    private final AtomicLongArray counts ;
+    private final LongAdder total ;
+    private final LongAdder sum ;
+    private final AtomicLong max ;
+
+
+    LatencyHistogram()
+        {
+
+        this.counts = new AtomicLongArray( BUCKETS ) ;
+        this.total = new LongAdder() ;
+        this.sum = new LongAdder() ;
+        this.max = new AtomicLong() ;
+
+        }
+
+
+    void record( final long nanos )
+        {
+
+        final long value = Math.max( 0, nanos ) ;
+
+        this.counts.incrementAndGet( index( value ) ) ;
+        this.total.increment() ;
+        this.sum.add( value ) ;
+        this.max.accumulateAndGet( value, Math::max ) ;
+
+        }
+
+
+    long count()
+        {
+
+        return this.total.sum() ;
+
+        }
+
+
+    /**
+     * @return The mean of the recorded values, or 0 if there are none.
+     */
+    double mean()
+        {
+
+        final long recorded = count() ;
+
+        return recorded == 0 ? 0 : (double) this.sum.sum() / recorded ;
+
+        }
+
+
+    long max()
+        {
+
+        return this.max.get() ;
+
+        }
+
+
+    /**
+     * Work out several percentiles from one snapshot of the counts. Values recorded meanwhile may
+     * be left out, but the results always agree with each other.
+     *
+     * @param fractions
+     *     The quantiles wanted, from 0 to 1.
+     *
+     * @return The largest value in the bucket holding each quantile, or 0 if nothing was recorded.
+     */
+    long[] percentiles( final double... fractions )
+        {
+
+        final long[] snapshot = new long[ BUCKETS ] ;
+        long recorded = 0 ;
+
+        for ( int i = 0 ; i < BUCKETS ; i++ )
+            {
+            snapshot[ i ] = this.counts.get( i ) ;
+            recorded += snapshot[ i ] ;
+            }
+
+        final long largest = this.max.get() ;
+        final long[] values = new long[ fractions.length ] ;
+
+        for ( int i = 0 ; i < fractions.length ; i++ )
+            {
+            values[ i ] = percentile( snapshot, recorded, largest, fractions[ i ] ) ;
+            }
+
+        return values ;
+
+        }
+
+
+    /**
+     * @return The histogram's summary as a JSON object, in microseconds.
+     */
+    String toJson()
+        {
+
+        final long[] values = percentiles( 0.50, 0.90, 0.99, 0.999 ) ;
+
+        return String.format( Locale.ROOT,
+                              "{ \"count\": %d, \"meanMicros\": %.1f, \"p50Micros\": %.1f, " +
+                                 "\"p90Micros\": %.1f, \"p99Micros\": %.1f, " +
+                                 "\"p999Micros\": %.1f, \"maxMicros\": %.1f }",
+                              count(),
+                              mean() / 1e3,
+                              values[ 0 ] / 1e3,
+                              values[ 1 ] / 1e3,
+                              values[ 2 ] / 1e3,
+                              values[ 3 ] / 1e3,
+                              max() / 1e3 ) ;
+
+        }
+
+
+    private static long percentile( final long[] snapshot,
+                                    final long recorded,
+                                    final long largest,
+                                    final double fraction )
+        {
+
+        if ( recorded == 0 )
+            {
+            return 0 ;
+            }
+
+        final long rank = Math.max( 1, (long) Math.ceil( fraction * recorded ) ) ;
+        long seen = 0 ;
+
+        for ( int i = 0 ; i < BUCKETS ; i++ )
+            {
+            seen += snapshot[ i ] ;
+
+            if ( seen >= rank )
+                {
+                return Math.min( largest, highestIn( i ) ) ;
+                }
+
+            }
+
+        return largest ;
+
+        }
+
+
+    private static int index( final long value )
+        {
+
+        if ( value < LINEAR_LIMIT )
+            {
+            return (int) value ;
+            }
+
+        // Keep the top SUB_BUCKET_BITS + 1 bits, a number from SUB_BUCKETS to 2 * SUB_BUCKETS - 1
+        final int shift = ( 63 - Long.numberOfLeadingZeros( value ) ) - SUB_BUCKET_BITS ;
+
+        return LINEAR_LIMIT + ( ( shift - 1 ) * SUB_BUCKETS ) +
+               (int) ( ( value >>> shift ) - SUB_BUCKETS ) ;
+
+        }
+
+
+    private static long highestIn( final int index )
+        {
+
+        if ( index < LINEAR_LIMIT )
+            {
+            return index ;
+            }
+
+        final int shift = ( ( index - LINEAR_LIMIT ) / SUB_BUCKETS ) + 1 ;
+        final long top = ( ( index - LINEAR_LIMIT ) % SUB_BUCKETS ) + SUB_BUCKETS ;
+
+        return ( ( top + 1 ) << shift ) - 1 ;
+
+        }
+
+    }
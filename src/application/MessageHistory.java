@@ -0,0 +1,944 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.File ;
+import java.io.IOException ;
+import java.io.InputStream ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.nio.charset.StandardCharsets ;
+import java.util.ArrayList ;
+import java.util.Arrays ;
+import java.util.List ;
+import java.util.Map ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.ConcurrentHashMap ;
+
+/**
+ * Append-only message history log with an in-memory conversation index. Records keep the
+ * {@code [timestamp] sender -> recipient: message} text format, one per line, so the log files
+ * themselves stay a readable export. The log is split into {@link HistorySegment}s by a
+ * {@link SegmentedLog}, and the index maps each pair of users to the positions of their records
+ * across all segments. It is rebuilt from the segments by a {@link HistoryRecovery} in the
+ * background once the history is opened, newest records first, so reads made meanwhile see every
+ * new record and whatever older ones have been recovered so far. Appends go through a
+ * {@link HistoryWriter}, and a record becomes visible to readers once its batch commits.
+ * <p>
+ * Setting {@code chat.history.index=false} skips the index, and with it the startup scan of
+ * sealed segments and its memory, and answers reads with a {@link ReverseHistoryReader} scan
+ * back from the tail instead, skipping segments whose user filter rules the pair out.
+ * <p>
+ * Page cursors are record positions in either mode, so they survive rotation and retention.
+ * <p>
+ * Records can also be found by the words in them through a {@link SearchIndex}, kept up to date
+ * by the writer and rebuilt by recovery like the conversation index.
+ * <p>
+ * A {@link HistoryCache} handed to the history is told each record, with its position, as the
+ * writer commits it, in log order.
+ *
+ * @version 1.11 2026-10-18 Searches only the requester's own conversations.
+ *
+ * @since 1.3
+ */
+final class MessageHistory
+    {
+
+    private static final int READ_CHUNK_SIZE = 512 ;
+
+    // Records are stamped before they reach the writer, which stamps the segment
+    private static final long SEGMENT_TIME_SLACK_MILLIS = 60_000 ;
+
+    private final SegmentedLog log ;
+    private final boolean indexed ;
+    private final ConcurrentHashMap<String, OffsetList> index ;
+    private final SearchIndex search ;
+    private final ReverseHistoryReader reverseReader ;
+    private final HistoryWriter writer ;
+    private final HistoryRecovery recovery ;
+    private final HistoryCache cache ;
+
+
+    /**
+     * Open (creating if needed) the log and start recovering every segment already in it.
+     *
+     * @param file
+     *     The original history log, which is the first segment.
+     * @param durability
+     *     When appended records count as committed.
+     *
+     * @throws IOException
+     *     If the log cannot be opened or read.
+     *
+     * @since 1.3
+     */
+    MessageHistory( final File file,
+                    final HistoryDurability durability ) throws IOException
+        {
+
+        this( file, durability, null ) ;
+
+        }
+
+
+    /**
+     * Open (creating if needed) the log and start recovering every segment already in it.
+     *
+     * @param file
+     *     The original history log, which is the first segment.
+     * @param durability
+     *     When appended records count as committed.
+     * @param cacheInput
+     *     Told every record committed, or null.
+     *
+     * @throws IOException
+     *     If the log cannot be opened or read.
+     *
+     * @since 1.3
+     */
+    MessageHistory( final File file,
+                    final HistoryDurability durability,
+                    final HistoryCache cacheInput ) throws IOException
+        {
+
+        this.cache = cacheInput ;
+        this.indexed = Boolean.parseBoolean( System.getProperty( "chat.history.index",
+                                                                 "true" ) ) ;
+        this.index = new ConcurrentHashMap<>() ;
+        this.log = new SegmentedLog( file, this::dropIndexBefore ) ;
+        this.reverseReader = new ReverseHistoryReader( Integer.getInteger( "chat.history.mapWindowBytes",
+                                                                           32 << 20 ) ) ;
+
+        final HistorySegment active = this.log.active() ;
+        active.terminateLastLine() ;
+
+        this.search = new SearchIndex( this.log, active.getID() ) ;
+
+        final List<HistorySegment> segments = this.log.segments() ;
+        final boolean[] rebuildUsers = new boolean[ segments.size() ] ;
+        final boolean[] rebuildTerms = new boolean[ segments.size() ] ;
+
+        for ( int i = 0 ; i < segments.size() ; i++ )
+            {
+            final HistorySegment segment = segments.get( i ) ;
+            rebuildUsers[ i ] = ( segment == active ) || !segment.loadUsers() ;
+            rebuildTerms[ i ] = segment == active
+                ? this.search.isEnabled()
+                : this.search.needsTerms( segment ) ;
+
+            if ( rebuildUsers[ i ] )
+                {
+                segment.recoverUsers() ;
+                }
+
+            }
+
+        // Taken before the writer starts, so recovery stops exactly where new appends begin
+        this.recovery = new HistoryRecovery( this,
+                                             this.search,
+                                             segments,
+                                             rebuildUsers,
+                                             rebuildTerms,
+                                             active.getSize() ) ;
+
+        this.writer = new HistoryWriter( this::indexRecord, this.log, durability ) ;
+        this.writer.start() ;
+        this.recovery.start() ;
+
+        }
+
+
+    /**
+     * Queue one record for the writer, which indexes it once it is committed.
+     *
+     * @param senderID
+     *     The sender named in the record.
+     * @param recipientID
+     *     The recipient named in the record.
+     * @param record
+     *     The formatted record, without a trailing newline.
+     *
+     * @return Completes when the record's batch is committed, or exceptionally if the write
+     *     failed.
+     *
+     * @since 1.3
+     */
+    CompletableFuture<Void> append( final String senderID,
+                                    final String recipientID,
+                                    final String record )
+        {
+
+        // Tokenized here so the sending thread, not the writer, pays for it
+        return this.writer.submit( senderID,
+                                   recipientID,
+                                   record,
+                                   this.search.recordTerms( record ) ) ;
+
+        }
+
+
+    /**
+     * @return True once every record written before the history was opened can be read.
+     *
+     * @since 1.3
+     */
+    boolean isRecovered()
+        {
+
+        return this.recovery.isDone() ;
+
+        }
+
+
+    /**
+     * @return The position of the newest record indexed between the two users, or -1 if there
+     *     is none.
+     *
+     * @since 1.3
+     */
+    long newestPosition( final String user1,
+                         final String user2 )
+        {
+
+        final OffsetList offsets = this.index.get( pairKey( user1, user2 ) ) ;
+
+        return offsets == null ? -1 : offsets.newest() ;
+
+        }
+
+
+    /**
+     * Wait for the background recovery to finish.
+     *
+     * @since 1.3
+     */
+    void awaitRecovery() throws InterruptedException
+        {
+
+        this.recovery.await() ;
+
+        }
+
+
+    /**
+     * @return True if senders should wait for their record to commit before being confirmed.
+     *
+     * @since 1.3
+     */
+    boolean confirmsAfterCommit()
+        {
+
+        return this.writer.getDurability() == HistoryDurability.FORCE ;
+
+        }
+
+
+    /**
+     * Read every record exchanged between two users, oldest first, touching only their records.
+     *
+     * @since 1.3
+     */
+    List<String> read( final String user1,
+                       final String user2 ) throws IOException
+        {
+
+        final List<String> records = new ArrayList<>() ;
+        readPage( user1, user2, -1, Integer.MAX_VALUE, records::add ) ;
+
+        return records ;
+
+        }
+
+
+    /**
+     * Stream one page of a conversation to {@code sink}, oldest first: the up to {@code limit}
+     * records just before position {@code before}.
+     *
+     * @param before
+     *     A cursor from an earlier page, or a negative number for the newest records.
+     * @param limit
+     *     The most records to visit.
+     * @param sink
+     *     Receives each record as soon as it is read.
+     *
+     * @return The cursor for the previous page; 0 means there is nothing older.
+     *
+     * @since 1.3
+     */
+    long readPage( final String user1,
+                   final String user2,
+                   final long before,
+                   final int limit,
+                   final RecordSink sink ) throws IOException
+        {
+
+        if ( limit <= 0 )
+            {
+            return 0 ;
+            }
+
+        if ( !this.indexed )
+            {
+            return scanPage( user1, user2, before, limit, sink ) ;
+            }
+
+        final OffsetList offsets = this.index.get( pairKey( user1, user2 ) ) ;
+
+        if ( offsets == null )
+            {
+            return 0 ;
+            }
+
+        // One extra position tells us whether anything older is left
+        final long[] page = offsets.pageBefore( before,
+                                                limit == Integer.MAX_VALUE
+                                                    ? limit
+                                                    : limit + 1 ) ;
+        final int first = page.length > limit ? 1 : 0 ;
+
+        readPositions( page, first, ( record, position ) -> sink.accept( record ) ) ;
+
+        return first == 1 ? page[ 1 ] : 0 ;
+
+        }
+
+
+    /**
+     * Stream the newest up to {@code limit} records of a conversation to {@code sink} with their
+     * positions, oldest first. Only an indexed history knows the positions.
+     *
+     * @return True if there is nothing older.
+     *
+     * @since 1.3
+     */
+    boolean readNewest( final String user1,
+                        final String user2,
+                        final int limit,
+                        final PositionedSink sink ) throws IOException
+        {
+
+        final OffsetList offsets = this.index.get( pairKey( user1, user2 ) ) ;
+
+        if ( !this.indexed || ( offsets == null ) )
+            {
+            return this.indexed ;
+            }
+
+        final long[] page = offsets.pageBefore( -1,
+                                                limit == Integer.MAX_VALUE
+                                                    ? limit
+                                                    : limit + 1 ) ;
+        final int first = page.length > limit ? 1 : 0 ;
+
+        readPositions( page, first, sink ) ;
+
+        return first == 0 ;
+
+        }
+
+
+    /**
+     * Find the newest records containing every word of {@code query}, oldest first. Records
+     * in segments still being recovered are not found until recovery reaches them.
+     *
+     * @param requesterID
+     *     Only records sent by or to this user.
+     * @param userID
+     *     Only records between the requester and this user, or null for any of the requester's.
+     * @param fromMillis
+     *     Only records stamped at or after this time, or 0 for no bound.
+     * @param toMillis
+     *     Only records stamped at or before this time, or 0 for no bound.
+     * @param limit
+     *     The most records to return.
+     *
+     * @since 1.3
+     */
+    List<String> search( final String query,
+                         final String requesterID,
+                         final String userID,
+                         final long fromMillis,
+                         final long toMillis,
+                         final int limit ) throws IOException
+        {
+
+        final List<String> terms = SearchIndex.queryTerms( query ) ;
+        final boolean filtered = ( userID != null ) && !userID.isEmpty() ;
+        final String otherID = filtered ? userID : requesterID ;
+        final List<String> newestFirst = new ArrayList<>() ;
+
+        // With neither words nor a user to narrow it, a search would list everything
+        if ( !this.search.isEnabled() || ( terms.isEmpty() && !filtered ) || ( limit <= 0 ) )
+            {
+            return newestFirst ;
+            }
+
+        terms.add( SearchIndex.USER_PREFIX + requesterID ) ;
+        terms.add( SearchIndex.USER_PREFIX + otherID ) ;
+
+        final boolean timed = ( fromMillis > 0 ) || ( toMillis > 0 ) ;
+        final long to = toMillis > 0 ? toMillis : Long.MAX_VALUE ;
+        final List<HistorySegment> segments = this.log.segments() ;
+
+        for ( int i = segments.size() - 1 ; ( i >= 0 ) && ( newestFirst.size() < limit ) ; i-- )
+            {
+            final HistorySegment segment = segments.get( i ) ;
+
+            if ( !mightMatch( segment, requesterID, otherID, fromMillis, to ) )
+                {
+                continue ;
+                }
+
+            final long[] matches = this.search.matches( segment, terms ) ;
+            int end = matches.length ;
+
+            // Read back from the newest match, a batch at a time, until enough pass the filters
+            while ( ( end > 0 ) && ( newestFirst.size() < limit ) )
+                {
+                final int start = Math.max( 0, end - ( limit - newestFirst.size() ) ) ;
+                final List<String> batch = new ArrayList<>( end - start ) ;
+
+                readPositions( Arrays.copyOfRange( matches, start, end ),
+                               0,
+                               ( record, position ) -> batch.add( record ) ) ;
+
+                for ( int k = batch.size() - 1 ; k >= 0 ; k-- )
+                    {
+                    final String record = batch.get( k ) ;
+
+                    if ( timed )
+                        {
+                        final long millis = RecordFormat.millis( record ) ;
+
+                        // Stamps are to the second, so a record counts for its whole second
+                        if ( ( millis < 0 ) || ( ( millis + 999 ) < fromMillis ) ||
+                             ( millis > to ) )
+                            {
+                            continue ;
+                            }
+
+                        }
+
+                    newestFirst.add( record ) ;
+                    }
+
+                end = start ;
+                }
+
+            }
+
+        final List<String> records = new ArrayList<>( newestFirst.size() ) ;
+
+        for ( int i = newestFirst.size() - 1 ; i >= 0 ; i-- )
+            {
+            records.add( newestFirst.get( i ) ) ;
+            }
+
+        return records ;
+
+        }
+
+
+    /**
+     * @return False only if no record in {@code segment} can be from {@code userID} or stamped
+     *     in {@code [fromMillis, toMillis]}.
+     */
+    private static boolean mightMatch( final HistorySegment segment,
+                                       final String user1,
+                                       final String user2,
+                                       final long fromMillis,
+                                       final long toMillis )
+        {
+
+        if ( !segment.mightContain( user1, user2 ) )
+            {
+            return false ;
+            }
+
+        // Both are 0 or -1 when unknown or empty, which rules nothing out
+        final long first = segment.getFirstMillis() ;
+        final long last = segment.getLastMillis() ;
+
+        return !( ( first > 0 ) && ( ( first - SEGMENT_TIME_SLACK_MILLIS ) > toMillis ) ) &&
+               !( ( last > 0 ) && ( ( last + SEGMENT_TIME_SLACK_MILLIS ) < fromMillis ) ) ;
+
+        }
+
+
+    /**
+     * The index key for a conversation, the same whichever user is named first.
+     */
+    static String pairKey( final String user1,
+                           final String user2 )
+        {
+
+        // Both decoders refuse IDs containing a line break, so the separator cannot be forged
+        return user1.compareTo( user2 ) <= 0
+            ? user1 + '\n' + user2
+            : user2 + '\n' + user1 ;
+
+        }
+
+
+    /**
+     * Split a {@code [timestamp] sender -> recipient: message} record into its sender and
+     * recipient.
+     *
+     * @return {sender, recipient}, or null if the line is not a record.
+     *
+     * @since 1.3
+     */
+    static String[] parseParticipants( final String line )
+        {
+
+        final int senderStart = line.indexOf( "] " ) ;
+        final int arrow = line.indexOf( " -> ", senderStart + 2 ) ;
+
+        if ( ( senderStart < 0 ) || ( arrow < 0 ) )
+            {
+            return null ;
+            }
+
+        final int colon = line.indexOf( ": ", arrow + 4 ) ;
+
+        if ( colon < 0 )
+            {
+            return null ;
+            }
+
+        return new String[] { line.substring( senderStart + 2, arrow ),
+                              line.substring( arrow + 4, colon ) } ;
+
+        }
+
+
+    /**
+     * Called by the writer, in log order, once a record is on disk.
+     */
+    void indexRecord( final String senderID,
+                      final String recipientID,
+                      final String record,
+                      final String[] terms,
+                      final long position )
+        {
+
+        this.search.add( terms, position ) ;
+
+        if ( !this.indexed )
+            {
+            return ;
+            }
+
+        this.index.computeIfAbsent( pairKey( senderID, recipientID ),
+                                    key -> new OffsetList() )
+                  .add( position ) ;
+
+        if ( this.cache != null )
+            {
+            this.cache.add( senderID, recipientID, record, position ) ;
+            }
+
+        }
+
+
+    /**
+     * @return True if reads go through the index rather than scanning the log.
+     */
+    boolean isIndexed()
+        {
+
+        return this.indexed ;
+
+        }
+
+
+    /**
+     * Called by recovery with the positions of a recovered range, which is older than everything
+     * indexed so far.
+     */
+    void indexRecovered( final Map<String, OffsetList> recovered )
+        {
+
+        for ( final Map.Entry<String, OffsetList> pair : recovered.entrySet() )
+            {
+            this.index.computeIfAbsent( pair.getKey(), key -> new OffsetList() )
+                      .prepend( pair.getValue() ) ;
+            }
+
+        }
+
+
+    /**
+     * Forget every indexed record in segments older than {@code segmentID}, after retention has
+     * deleted them.
+     */
+    private void dropIndexBefore( final int segmentID )
+        {
+
+        this.search.dropBefore( segmentID ) ;
+
+        final long oldest = HistorySegment.position( segmentID, 0 ) ;
+
+        for ( final OffsetList offsets : this.index.values() )
+            {
+            offsets.trimBefore( oldest ) ;
+            }
+
+        if ( this.cache != null )
+            {
+            this.cache.dropBefore( oldest ) ;
+            }
+
+        }
+
+
+    /**
+     * Without an index: walk segments newest first, skipping any whose user filter rules the pair
+     * out, until {@code limit} records are found.
+     */
+    private long scanPage( final String user1,
+                           final String user2,
+                           final long before,
+                           final int limit,
+                           final RecordSink sink ) throws IOException
+        {
+
+        final List<String> newestFirst = new ArrayList<>() ;
+        final List<HistorySegment> segments = this.log.segments() ;
+        final int beforeSegment = before < 0
+            ? Integer.MAX_VALUE
+            : HistorySegment.segmentOf( before ) ;
+        long cursor = 0 ;
+
+        for ( int i = segments.size() - 1 ; ( i >= 0 ) && ( newestFirst.size() < limit ) ; i-- )
+            {
+            final HistorySegment segment = segments.get( i ) ;
+
+            if ( ( segment.getID() > beforeSegment ) ||
+                 !segment.mightContain( user1, user2 ) )
+                {
+                continue ;
+                }
+
+            final long end = segment.getID() == beforeSegment
+                ? Math.min( HistorySegment.offsetOf( before ), segment.getSize() )
+                : segment.getSize() ;
+            final int wanted = limit - newestFirst.size() ;
+            final long oldest ;
+
+            if ( segment.getState() == HistorySegment.State.COMPRESSED )
+                {
+
+                try ( InputStream in = segment.openStream() )
+                    {
+                    oldest = this.reverseReader.scanStream( in,
+                                                            user1,
+                                                            user2,
+                                                            end,
+                                                            wanted,
+                                                            newestFirst::add ) ;
+                    }
+
+                }
+            else
+                {
+                oldest = this.reverseReader.scan( segment.channel(),
+                                                  user1,
+                                                  user2,
+                                                  end,
+                                                  wanted,
+                                                  newestFirst::add ) ;
+                }
+
+            cursor = HistorySegment.position( segment.getID(), oldest ) ;
+            }
+
+        for ( int i = newestFirst.size() - 1 ; i >= 0 ; i-- )
+            {
+            sink.accept( newestFirst.get( i ) ) ;
+            }
+
+        return newestFirst.size() < limit ? 0 : cursor ;
+
+        }
+
+
+    /**
+     * Read the records at {@code positions[from..]}, which are in log order, a segment at a time.
+     */
+    private void readPositions( final long[] positions,
+                                final int from,
+                                final PositionedSink sink ) throws IOException
+        {
+
+        final ByteBuffer buffer = ByteBuffer.allocate( READ_CHUNK_SIZE ) ;
+        int i = from ;
+
+        while ( i < positions.length )
+            {
+            final int segmentID = HistorySegment.segmentOf( positions[ i ] ) ;
+            int end = i ;
+
+            while ( ( end < positions.length ) &&
+                    ( HistorySegment.segmentOf( positions[ end ] ) == segmentID ) )
+                {
+                end++ ;
+                }
+
+            // A null segment was deleted by retention after the positions were taken
+            final HistorySegment segment = this.log.segment( segmentID ) ;
+
+            if ( ( segment != null ) &&
+                 ( segment.getState() == HistorySegment.State.COMPRESSED ) )
+                {
+                readCompressed( segment, positions, i, end, sink ) ;
+                }
+            else if ( segment != null )
+                {
+                final FileChannel channel = segment.channel() ;
+
+                for ( int k = i ; k < end ; k++ )
+                    {
+                    sink.accept( readLine( channel,
+                                           HistorySegment.offsetOf( positions[ k ] ),
+                                           buffer ),
+                                 positions[ k ] ) ;
+                    }
+
+                }
+
+            i = end ;
+            }
+
+        }
+
+
+    private static String readLine( final FileChannel channel,
+                                    final long offset,
+                                    final ByteBuffer buffer ) throws IOException
+        {
+
+        final ByteArrayOutputStream line = new ByteArrayOutputStream() ;
+        long position = offset ;
+
+        while ( true )
+            {
+            buffer.clear() ;
+            final int read = channel.read( buffer, position ) ;
+
+            if ( read <= 0 )
+                {
+                break ;
+                }
+
+            buffer.flip() ;
+
+            for ( int i = 0 ; i < read ; i++ )
+                {
+
+                if ( buffer.get( i ) == '\n' )
+                    {
+                    line.write( buffer.array(), 0, i ) ;
+                    return line.toString( StandardCharsets.UTF_8 ) ;
+                    }
+
+                }
+
+            line.write( buffer.array(), 0, read ) ;
+            position += read ;
+            }
+
+        return line.toString( StandardCharsets.UTF_8 ) ;
+
+        }
+
+
+    /**
+     * Compressed segments cannot be read at an offset, so decompress once and skip forward to
+     * each wanted record in turn.
+     */
+    private static void readCompressed( final HistorySegment segment,
+                                        final long[] positions,
+                                        final int from,
+                                        final int to,
+                                        final PositionedSink sink ) throws IOException
+        {
+
+        try ( InputStream in = segment.openStream() )
+            {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream() ;
+            long offset = 0 ;
+
+            for ( int k = from ; k < to ; k++ )
+                {
+                final long target = HistorySegment.offsetOf( positions[ k ] ) ;
+                in.skipNBytes( target - offset ) ;
+                offset = target ;
+                line.reset() ;
+
+                int b ;
+
+                while ( ( b = in.read() ) != -1 )
+                    {
+                    offset++ ;
+
+                    if ( b == '\n' )
+                        {
+                        break ;
+                        }
+
+                    line.write( b ) ;
+                    }
+
+                sink.accept( line.toString( StandardCharsets.UTF_8 ), positions[ k ] ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Receives records as a page is read.
+     */
+    @FunctionalInterface
+    interface RecordSink
+        {
+
+        void accept( String record ) throws IOException ;
+
+        }
+
+
+    /**
+     * Receives records with their positions as they are read.
+     */
+    @FunctionalInterface
+    interface PositionedSink
+        {
+
+        void accept( String record,
+                     long position ) throws IOException ;
+
+        }
+
+
+    /**
+     * Growable, append-only list of record positions for one conversation, in log order.
+     */
+    static final class OffsetList
+        {
+
+        private long[] offsets = new long[ 4 ] ;
+        private int count ;
+
+
+        synchronized void add( final long offset )
+            {
+
+            if ( this.count == this.offsets.length )
+                {
+                this.offsets = Arrays.copyOf( this.offsets, this.count * 2 ) ;
+                }
+
+            this.offsets[ this.count++ ] = offset ;
+
+            }
+
+
+        /**
+         * Append every position in {@code later}, all of which come after these.
+         */
+        synchronized void addAll( final OffsetList later )
+            {
+
+            if ( this.count + later.count > this.offsets.length )
+                {
+                this.offsets = Arrays.copyOf( this.offsets,
+                                              Math.max( this.count * 2,
+                                                        this.count + later.count ) ) ;
+                }
+
+            System.arraycopy( later.offsets, 0, this.offsets, this.count, later.count ) ;
+            this.count += later.count ;
+
+            }
+
+
+        /**
+         * Insert every position in {@code earlier}, all of which come before these.
+         */
+        synchronized void prepend( final OffsetList earlier )
+            {
+
+            final long[] joined = new long[ Math.max( 4, earlier.count + this.count ) ] ;
+
+            System.arraycopy( earlier.offsets, 0, joined, 0, earlier.count ) ;
+            System.arraycopy( this.offsets, 0, joined, earlier.count, this.count ) ;
+            this.offsets = joined ;
+            this.count += earlier.count ;
+
+            }
+
+
+        /**
+         * @return Up to {@code limit} positions just before {@code before}, or the newest ones
+         *     if {@code before} is negative.
+         */
+        synchronized long[] pageBefore( final long before,
+                                        final int limit )
+            {
+
+            final int end = before < 0
+                ? this.count
+                : lowerBound( before ) ;
+
+            return Arrays.copyOfRange( this.offsets, Math.max( 0, end - limit ), end ) ;
+
+            }
+
+
+        synchronized long[] toArray()
+            {
+
+            return Arrays.copyOf( this.offsets, this.count ) ;
+
+            }
+
+
+        /**
+         * @return The newest position, or -1 if there is none.
+         */
+        synchronized long newest()
+            {
+
+            return this.count == 0 ? -1 : this.offsets[ this.count - 1 ] ;
+
+            }
+
+
+        synchronized void trimBefore( final long oldest )
+            {
+
+            final int drop = lowerBound( oldest ) ;
+
+            System.arraycopy( this.offsets, drop, this.offsets, 0, this.count - drop ) ;
+            this.count -= drop ;
+
+            }
+
+
+        /**
+         * @return The index of the first position at or after {@code position}.
+         */
+        private int lowerBound( final long position )
+            {
+
+            final int found = Arrays.binarySearch( this.offsets, 0, this.count, position ) ;
+
+            return found >= 0 ? found : -found - 1 ;
+
+            }
+
+        }
+
+    }
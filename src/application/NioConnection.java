@@ -0,0 +1,480 @@
+package application ;
+
+import java.io.IOException ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.SelectionKey ;
+import java.nio.channels.SocketChannel ;
+import java.util.Queue ;
+import java.util.concurrent.ConcurrentLinkedQueue ;
+import java.util.concurrent.Executor ;
+import java.util.concurrent.atomic.AtomicInteger ;
+
+/**
+ * One non-blocking client channel. Incoming bytes are decoded into frames as they arrive, by the
+ * same decoders the blocking handler uses. Outgoing frames are encoded into its
+ * {@link OutboundChannel} until the owning worker can write them.
+ * <p>
+ * Decoded frames are handled on the handler pool rather than the worker, one at a time and in
+ * the order they arrived. While more than {@code chat.nio.maxPendingFrames} wait, the worker
+ * stops reading from the channel until half of them are handled.
+ *
+ * @version 1.9 2026-10-18 Frames are handled in order on the handler pool.
+ *
+ * @since 1.3
+ */
+final class NioConnection implements ClientConnection, FrameDecoder.Listener
+    {
+
+    private static final int READ_BUFFER_SIZE = 8192 ;
+    private static final int MAX_PENDING_FRAMES = Integer.getInteger( "chat.nio.maxPendingFrames",
+                                                                      1024 ) ;
+    private static final int RESUME_PENDING_FRAMES = MAX_PENDING_FRAMES / 2 ;
+
+    private final TCPServer server ;
+    private final NioEventLoop.Worker worker ;
+    private final SocketChannel channel ;
+    private final SelectionKey key ;
+    private final ByteBuffer readBuffer ;
+    private final OutboundChannel outbound ;
+    private final ServerMetrics metrics ;
+    private final Executor handlers ;
+    private final Queue<Task> tasks ;
+    private final AtomicInteger pending ;
+    private final Task unregister ;
+    private FrameDecoder decoder ;
+    private volatile String clientID ;
+    private volatile boolean readPaused ;
+    private volatile boolean failed ;
+
+
+    NioConnection( final TCPServer serverInput,
+                   final NioEventLoop.Worker workerInput,
+                   final Executor handlersInput,
+                   final SocketChannel channelInput,
+                   final SelectionKey keyInput )
+        {
+
+        this.server = serverInput ;
+        this.worker = workerInput ;
+        this.channel = channelInput ;
+        this.key = keyInput ;
+        this.readBuffer = ByteBuffer.allocate( READ_BUFFER_SIZE ) ;
+        this.metrics = serverInput.getMetrics() ;
+        this.handlers = handlersInput ;
+        this.tasks = new ConcurrentLinkedQueue<>() ;
+        this.pending = new AtomicInteger() ;
+        this.unregister = () -> this.server.unregister( this ) ;
+
+        final Task caughtUp = () -> this.server.handleCaughtUp( this ) ;
+
+        this.outbound = new OutboundChannel( null,
+                                             null,
+                                             this.metrics,
+                                             () -> handle( caughtUp ) ) ;
+        this.metrics.connectionOpened() ;
+
+        }
+
+
+    String getClientID()
+        {
+
+        return this.clientID ;
+
+        }
+
+
+    /**
+     * Read whatever is available and queue every complete frame for the handler pool, pausing
+     * reads if too many are waiting. The first byte a client sends decides which protocol it
+     * speaks. Only called by the worker.
+     */
+    void read() throws IOException
+        {
+
+        this.readBuffer.clear() ;
+
+        final int read = this.channel.read( this.readBuffer ) ;
+
+        if ( read < 0 )
+            {
+            ServerLog.info( "Client disconnected." ) ;
+            close() ;
+            return ;
+            }
+
+        this.metrics.bytesIn( read ) ;
+
+        this.readBuffer.flip() ;
+
+        if ( this.decoder == null )
+            {
+
+            if ( !this.readBuffer.hasRemaining() )
+                {
+                return ;
+                }
+
+            final WireProtocol protocol = WireProtocol.detect( this.readBuffer.get( 0 ) ) ;
+            this.decoder = protocol.newDecoder() ;
+            this.outbound.setEncoder( protocol.newEncoder() ) ;
+
+            }
+
+        this.decoder.decode( this.readBuffer, this ) ;
+
+        if ( this.pending.get() > MAX_PENDING_FRAMES )
+            {
+            this.readPaused = true ;
+            this.key.interestOps( this.key.interestOps() & ~SelectionKey.OP_READ ) ;
+
+            // The handlers may have caught up before they could see the pause
+            if ( this.pending.get() <= RESUME_PENDING_FRAMES )
+                {
+                flush() ;
+                }
+
+            }
+
+        }
+
+
+    @Override
+    public void hello( final int version ) throws IOException
+        {
+
+        handle( () -> this.server.handleHello( this, version ) ) ;
+
+        }
+
+
+    @Override
+    public void message( final String senderID,
+                         final String recipientID,
+                         final long sequence,
+                         final String message ) throws IOException
+        {
+
+        this.clientID = senderID ;
+        handle( () -> this.server.handleMessage( this,
+                                                 senderID,
+                                                 recipientID,
+                                                 sequence,
+                                                 message ) ) ;
+
+        }
+
+
+    @Override
+    public void historyRequest( final String requesterID,
+                                final String peerID,
+                                final long request ) throws IOException
+        {
+
+        handle( () -> this.server.handleHistoryRequest( this, requesterID, peerID, request ) ) ;
+
+        }
+
+
+    @Override
+    public void pageRequest( final String requesterID,
+                             final String peerID,
+                             final int limit,
+                             final long before ) throws IOException
+        {
+
+        handle( () -> this.server.handlePageRequest( this, requesterID, peerID, limit, before ) ) ;
+
+        }
+
+
+    @Override
+    public void searchRequest( final String requesterID,
+                               final long request,
+                               final String query,
+                               final String userID,
+                               final long fromMillis,
+                               final long toMillis,
+                               final int limit ) throws IOException
+        {
+
+        handle( () -> this.server.handleSearchRequest( this,
+                                                       requesterID,
+                                                       request,
+                                                       query,
+                                                       userID,
+                                                       fromMillis,
+                                                       toMillis,
+                                                       limit ) ) ;
+
+        }
+
+
+    @Override
+    public void join( final String memberID,
+                      final String groupID ) throws IOException
+        {
+
+        this.clientID = memberID ;
+        handle( () -> this.server.handleJoin( this, memberID, groupID ) ) ;
+
+        }
+
+
+    @Override
+    public void leave( final String memberID,
+                       final String groupID ) throws IOException
+        {
+
+        this.clientID = memberID ;
+        handle( () -> this.server.handleLeave( this, memberID, groupID ) ) ;
+
+        }
+
+
+    /**
+     * Safe to call from any thread. The frame is encoded into this connection's outbound buffer
+     * and written by the worker.
+     */
+    @Override
+    public void send( final Frame frame ) throws IOException
+        {
+
+        try
+            {
+            this.outbound.send( frame ) ;
+            }
+        finally
+            {
+            // Also closes the connection if that send found the client too slow
+            this.worker.requestFlush( this ) ;
+            }
+
+        }
+
+
+    @Override
+    public boolean offer( final Frame frame ) throws IOException
+        {
+
+        try
+            {
+            return this.outbound.offer( frame ) ;
+            }
+        finally
+            {
+            this.worker.requestFlush( this ) ;
+            }
+
+        }
+
+
+    @Override
+    public boolean sendHeld( final Frame frame ) throws IOException
+        {
+
+        try
+            {
+            return this.outbound.sendHeld( frame ) ;
+            }
+        finally
+            {
+            this.worker.requestFlush( this ) ;
+            }
+
+        }
+
+
+    @Override
+    public boolean isSpilling()
+        {
+
+        return this.outbound.isSpilling() ;
+
+        }
+
+
+    @Override
+    public void resume()
+        {
+
+        this.outbound.resume() ;
+
+        }
+
+
+    @Override
+    public int queuedBytes()
+        {
+
+        return this.outbound.queuedBytes() ;
+
+        }
+
+
+    /**
+     * Refuse further frames and have the worker close the channel, which it does when it next
+     * flushes.
+     */
+    @Override
+    public void disconnect()
+        {
+
+        this.outbound.close() ;
+        this.worker.requestFlush( this ) ;
+
+        }
+
+
+    /**
+     * Write queued frames until the socket stops accepting bytes, or close the connection if its
+     * client was found too slow. Only called by the worker.
+     */
+    void flush() throws IOException
+        {
+
+        if ( this.outbound.isClosed() )
+            {
+            close() ;
+            return ;
+            }
+
+        if ( this.readPaused && this.pending.get() <= RESUME_PENDING_FRAMES )
+            {
+            this.readPaused = false ;
+            }
+
+        final int read = this.readPaused ? 0 : SelectionKey.OP_READ ;
+
+        this.key.interestOps( this.outbound.drain( this.channel )
+            ? read
+            : read | SelectionKey.OP_WRITE ) ;
+
+        }
+
+
+    void flushQuietly()
+        {
+
+        if ( !this.key.isValid() )
+            {
+            return ;
+            }
+
+        try
+            {
+            flush() ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Failed to write to client " + this.clientID +
+                             ": " + e.getMessage() ) ;
+            close() ;
+            }
+
+        }
+
+
+    void close()
+        {
+
+        this.key.cancel() ;
+
+        if ( this.channel.isOpen() )
+            {
+            this.metrics.connectionClosed() ;
+            }
+
+        try
+            {
+            this.channel.close() ;
+            }
+        catch ( final IOException ignored )
+            {}
+
+        this.outbound.close() ;
+
+        // After the frames read before the close, which may still be waiting to be handled
+        handle( this.unregister ) ;
+
+        }
+
+
+    /**
+     * Run {@code task} on the handler pool after those queued before it.
+     */
+    private void handle( final Task task )
+        {
+
+        this.tasks.add( task ) ;
+
+        if ( this.pending.getAndIncrement() == 0 )
+            {
+            this.handlers.execute( this::runTasks ) ;
+            }
+
+        }
+
+
+    /**
+     * Run queued tasks on a handler thread until none are left. Only one runs at a time, since a
+     * handler is only started for the first task queued while none were pending. Once a frame
+     * could not be handled, the frames after it are skipped.
+     */
+    private void runTasks()
+        {
+
+        int remaining ;
+
+        do
+            {
+
+            final Task task = this.tasks.poll() ;
+
+            try
+                {
+
+                if ( !this.failed || task == this.unregister )
+                    {
+                    task.run() ;
+                    }
+
+                }
+            catch ( final IOException | RuntimeException e )
+                {
+                // As the blocking handler does, a frame that cannot be handled ends the connection
+                if ( this.channel.isOpen() )
+                    {
+                    ServerLog.error( "Connection error with client " + this.clientID + ": " +
+                                     e.getMessage() ) ;
+                    }
+
+                this.failed = true ;
+                disconnect() ;
+                }
+
+            remaining = this.pending.decrementAndGet() ;
+
+            if ( remaining == RESUME_PENDING_FRAMES && this.readPaused )
+                {
+                this.worker.requestFlush( this ) ;
+                }
+
+            }
+        while ( remaining > 0 ) ;
+
+        }
+
+
+    /**
+     * Something to do with a frame on the handler pool.
+     */
+    @FunctionalInterface
+    private interface Task
+        {
+
+        void run() throws IOException ;
+
+        }
+
+    }
@@ -0,0 +1,255 @@
+package application ;
+
+import java.io.IOException ;
+import java.net.InetSocketAddress ;
+import java.net.StandardSocketOptions ;
+import java.nio.channels.ClosedChannelException ;
+import java.nio.channels.SelectionKey ;
+import java.nio.channels.Selector ;
+import java.nio.channels.ServerSocketChannel ;
+import java.nio.channels.SocketChannel ;
+import java.util.Iterator ;
+import java.util.Queue ;
+import java.util.concurrent.ConcurrentLinkedQueue ;
+import java.util.concurrent.Executor ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.atomic.AtomicInteger ;
+
+/**
+ * Non-blocking front end for {@link TCPServer}. The acceptor hands each accepted channel to one of
+ * a small fixed pool of selector threads, which then owns every read and write on that channel.
+ * The frames a selector thread decodes are handled on a separate pool of handler threads, since
+ * handling them may read or append to the history on disk.
+ *
+ * @version 1.2 2026-10-18 Frames are handled off the selector threads.
+ *
+ * @since 1.3
+ */
+final class NioEventLoop
+    {
+
+    private final TCPServer server ;
+    private final ServerSocketChannel serverChannel ;
+    private final Worker[] workers ;
+    private final Executor handlers ;
+    private int nextWorker ;
+
+
+    /**
+     * @param serverInput
+     *     The server that frames are dispatched to.
+     * @param port
+     *     The port to listen on.
+     * @param threads
+     *     The number of selector threads.
+     * @param handlerThreads
+     *     The number of threads handling decoded frames.
+     *
+     * @throws IOException
+     *     If the port cannot be bound or a selector cannot be opened.
+     *
+     * @since 1.3
+     */
+    NioEventLoop( final TCPServer serverInput,
+                  final int port,
+                  final int threads,
+                  final int handlerThreads ) throws IOException
+        {
+
+        final AtomicInteger handlerIndex = new AtomicInteger() ;
+
+        this.server = serverInput ;
+        this.handlers = Executors.newFixedThreadPool( handlerThreads,
+            task ->
+                {
+                final Thread thread = new Thread( task,
+                                                  "nio-handler-" +
+                                                      handlerIndex.getAndIncrement() ) ;
+                thread.setDaemon( true ) ;
+                return thread ;
+                } ) ;
+        this.serverChannel = ServerSocketChannel.open() ;
+        this.serverChannel.bind( new InetSocketAddress( port ) ) ;
+        this.workers = new Worker[ threads ] ;
+
+        for ( int i = 0 ; i < threads ; i++ )
+            {
+            this.workers[ i ] = new Worker( i ) ;
+            this.workers[ i ].start() ;
+            }
+
+        }
+
+
+    /**
+     * Accept connections on the calling thread until the server channel is closed.
+     *
+     * @throws IOException
+     *     If accepting fails.
+     *
+     * @since 1.3
+     */
+    void run() throws IOException
+        {
+
+        while ( this.serverChannel.isOpen() )
+            {
+            final SocketChannel channel = this.serverChannel.accept() ;
+            ServerLog.info( "New client connection from: " +
+                            channel.getRemoteAddress() ) ;
+
+            channel.configureBlocking( false ) ;
+            channel.setOption( StandardSocketOptions.TCP_NODELAY, true ) ;
+
+            this.workers[ this.nextWorker ].register( channel ) ;
+            this.nextWorker = ( this.nextWorker + 1 ) % this.workers.length ;
+            }
+
+        }
+
+
+    /**
+     * One selector thread. Other threads only touch it through its two hand-off queues.
+     */
+    final class Worker extends Thread
+        {
+
+        private final Selector selector ;
+        private final Queue<SocketChannel> pendingChannels ;
+        private final Queue<NioConnection> pendingFlushes ;
+
+
+        Worker( final int index ) throws IOException
+            {
+
+            super( "nio-worker-" + index ) ;
+            setDaemon( true ) ;
+            this.selector = Selector.open() ;
+            this.pendingChannels = new ConcurrentLinkedQueue<>() ;
+            this.pendingFlushes = new ConcurrentLinkedQueue<>() ;
+
+            }
+
+
+        void register( final SocketChannel channel )
+            {
+
+            this.pendingChannels.add( channel ) ;
+            this.selector.wakeup() ;
+
+            }
+
+
+        /**
+         * Ask this worker to flush a connection whose write buffer was filled from another thread.
+         */
+        void requestFlush( final NioConnection connection )
+            {
+
+            if ( Thread.currentThread() == this )
+                {
+                connection.flushQuietly() ;
+                return ;
+                }
+
+            this.pendingFlushes.add( connection ) ;
+            this.selector.wakeup() ;
+
+            }
+
+
+        @Override
+        public void run()
+            {
+
+            while ( true )
+                {
+
+                try
+                    {
+                    this.selector.select() ;
+                    }
+                catch ( final IOException e )
+                    {
+                    ServerLog.error( "Selector failed: " + e.getMessage() ) ;
+                    return ;
+                    }
+
+                registerPending() ;
+
+                NioConnection flush ;
+
+                while ( ( flush = this.pendingFlushes.poll() ) != null )
+                    {
+                    flush.flushQuietly() ;
+                    }
+
+                final Iterator<SelectionKey> keys = this.selector.selectedKeys()
+                                                                 .iterator() ;
+
+                while ( keys.hasNext() )
+                    {
+                    final SelectionKey key = keys.next() ;
+                    keys.remove() ;
+
+                    final NioConnection connection = (NioConnection) key.attachment() ;
+
+                    try
+                        {
+
+                        if ( key.isValid() && key.isReadable() )
+                            {
+                            connection.read() ;
+                            }
+
+                        if ( key.isValid() && key.isWritable() )
+                            {
+                            connection.flush() ;
+                            }
+
+                        }
+                    catch ( final IOException e )
+                        {
+                        ServerLog.error( "Connection error with client " +
+                                         connection.getClientID() + ": " +
+                                         e.getMessage() ) ;
+                        connection.close() ;
+                        }
+
+                    }
+
+                }
+
+            }
+
+
+        private void registerPending()
+            {
+
+            SocketChannel channel ;
+
+            while ( ( channel = this.pendingChannels.poll() ) != null )
+                {
+
+                try
+                    {
+                    final SelectionKey key = channel.register( this.selector,
+                                                               SelectionKey.OP_READ ) ;
+                    key.attach( new NioConnection( NioEventLoop.this.server,
+                                                   this,
+                                                   NioEventLoop.this.handlers,
+                                                   channel,
+                                                   key ) ) ;
+                    }
+                catch ( final ClosedChannelException e )
+                    {
+                    ServerLog.info( "Client disconnected." ) ;
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
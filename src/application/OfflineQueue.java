@@ -0,0 +1,396 @@
+package application ;
+
+import java.io.BufferedInputStream ;
+import java.io.ByteArrayOutputStream ;
+import java.io.DataInputStream ;
+import java.io.DataOutputStream ;
+import java.io.EOFException ;
+import java.io.File ;
+import java.io.FileInputStream ;
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.nio.charset.StandardCharsets ;
+import java.security.MessageDigest ;
+import java.security.NoSuchAlgorithmException ;
+import java.util.ArrayList ;
+import java.util.HexFormat ;
+import java.util.List ;
+import java.util.concurrent.ConcurrentHashMap ;
+import java.util.concurrent.atomic.AtomicInteger ;
+
+/**
+ * Messages waiting for users who are not connected, so a reconnecting user gets them in one burst
+ * instead of asking for its whole history. Each user's messages are held in memory up to
+ * {@code chat.offline.userMessages}, and everything is bounded by
+ * {@code chat.offline.memoryMessages}; past either limit a user's later messages are appended to
+ * a file of its own in the spill directory until it next connects. Spilled messages survive a
+ * restart, held ones do not, but every message is in the history either way.
+ * <p>
+ * A spill file holds the sender, recipient and message of each entry, each as a 4 byte length
+ * and UTF-8. It is named by the hex of the user ID, or by {@code sha256-} and the hex of the ID's
+ * digest if that would make too long a name. Each entry is appended with one write and the file closed again, so
+ * offline users hold no file descriptors however many of them there are.
+ *
+ * @version 1.3 2026-10-18 Spill files are closed between entries and named within limits.
+ *
+ * @since 1.3
+ */
+final class OfflineQueue
+    {
+
+    private static final int MAX_NAME_BYTES = 64 ;
+
+    private final File directory ;
+    private final int userMessages ;
+    private final int memoryMessages ;
+    private final ConcurrentHashMap<String, Pending> pending ;
+    private final AtomicInteger held ;
+
+
+    /**
+     * @param directoryInput
+     *     Where spill files go, created when first needed.
+     *
+     * @since 1.3
+     */
+    OfflineQueue( final File directoryInput )
+        {
+
+        this.directory = directoryInput ;
+        this.userMessages = Integer.getInteger( "chat.offline.userMessages", 256 ) ;
+        this.memoryMessages = Integer.getInteger( "chat.offline.memoryMessages", 1 << 16 ) ;
+        this.pending = new ConcurrentHashMap<>() ;
+        this.held = new AtomicInteger() ;
+
+        }
+
+
+    /**
+     * Keep a message for {@code userID} until it connects.
+     *
+     * @param recipientID
+     *     The user, or the group the message was sent to.
+     *
+     * @throws IOException
+     *     If the message had to be spilled and could not be written.
+     */
+    void add( final String userID,
+              final String senderID,
+              final String recipientID,
+              final String message ) throws IOException
+        {
+
+        while ( true )
+            {
+            final Pending queue = this.pending.computeIfAbsent( userID, id -> new Pending() ) ;
+
+            synchronized ( queue )
+                {
+
+                // Drained and forgotten since it was looked up, so start again with a new one
+                if ( this.pending.get( userID ) != queue )
+                    {
+                    continue ;
+                    }
+
+                // Once a user has spilled, the rest follow it to disk so delivery stays in order
+                if ( !queue.spilled && ( queue.messages.size() < this.userMessages ) )
+                    {
+
+                    if ( this.held.incrementAndGet() <= this.memoryMessages )
+                        {
+                        queue.messages.add( new Delivery( senderID, recipientID, message ) ) ;
+                        return ;
+                        }
+
+                    this.held.decrementAndGet() ;
+                    }
+
+                spill( userID, senderID, recipientID, message ) ;
+                queue.spilled = true ;
+                return ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Take everything waiting for {@code userID}, oldest first: held messages, then spilled ones.
+     *
+     * @throws IOException
+     *     If a spill file could not be read. Held messages are kept in that case.
+     */
+    List<Delivery> drain( final String userID ) throws IOException
+        {
+
+        final File file = spillFile( userID ) ;
+
+        while ( true )
+            {
+            Pending queue = this.pending.get( userID ) ;
+
+            if ( queue == null )
+                {
+
+                // Nothing held, but a spill file may have been left by an earlier run
+                if ( !file.exists() )
+                    {
+                    return List.of() ;
+                    }
+
+                queue = this.pending.computeIfAbsent( userID, id -> new Pending() ) ;
+                }
+
+            synchronized ( queue )
+                {
+
+                if ( this.pending.get( userID ) != queue )
+                    {
+                    continue ;
+                    }
+
+                final List<Delivery> deliveries = new ArrayList<>( queue.messages ) ;
+
+                if ( file.exists() )
+                    {
+                    readSpill( file, deliveries ) ;
+
+                    if ( !file.delete() )
+                        {
+                        throw new IOException( "Could not delete " + file ) ;
+                        }
+
+                    }
+
+                this.held.addAndGet( -queue.messages.size() ) ;
+                queue.messages.clear() ;
+                this.pending.remove( userID, queue ) ;
+
+                return deliveries ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Append a message to the user's spill file, creating it if this is the first. Called with the
+     * user's queue locked.
+     */
+    private void spill( final String userID,
+                        final String senderID,
+                        final String recipientID,
+                        final String message ) throws IOException
+        {
+
+        if ( !this.directory.isDirectory() && !this.directory.mkdirs() )
+            {
+            throw new IOException( "Could not create " + this.directory ) ;
+            }
+
+        final ByteArrayOutputStream entry = new ByteArrayOutputStream() ;
+        final DataOutputStream fields = new DataOutputStream( entry ) ;
+
+        writeField( fields, senderID ) ;
+        writeField( fields, recipientID ) ;
+        writeField( fields, message ) ;
+
+        // One write per entry, so a restart finds every entry but the last whole
+        try ( FileOutputStream out = new FileOutputStream( spillFile( userID ), true ) )
+            {
+            entry.writeTo( out ) ;
+            }
+
+        }
+
+
+    private static void writeField( final DataOutputStream out,
+                                    final String value ) throws IOException
+        {
+
+        final byte[] bytes = value.getBytes( StandardCharsets.UTF_8 ) ;
+
+        out.writeInt( bytes.length ) ;
+        out.write( bytes ) ;
+
+        }
+
+
+    private static void readSpill( final File file,
+                                   final List<Delivery> deliveries ) throws IOException
+        {
+
+        try ( DataInputStream in = new DataInputStream(
+            new BufferedInputStream( new FileInputStream( file ) ) ) )
+            {
+
+            while ( true )
+                {
+                final String senderID ;
+                final String recipientID ;
+                final String message ;
+
+                try
+                    {
+                    senderID = readField( in ) ;
+                    recipientID = readField( in ) ;
+                    message = readField( in ) ;
+                    }
+                catch ( final EOFException e )
+                    {
+                    // The end of the file, or a torn final entry from a crash mid-write
+                    break ;
+                    }
+
+                deliveries.add( new Delivery( senderID, recipientID, message ) ) ;
+                }
+
+            }
+
+        }
+
+
+    private static String readField( final DataInputStream in ) throws IOException
+        {
+
+        final int length = in.readInt() ;
+
+        if ( length < 0 )
+            {
+            throw new IOException( "Bad spill entry length " + length ) ;
+            }
+
+        final byte[] bytes = in.readNBytes( length ) ;
+
+        if ( bytes.length < length )
+            {
+            throw new EOFException() ;
+            }
+
+        return new String( bytes, StandardCharsets.UTF_8 ) ;
+
+        }
+
+
+    private File spillFile( final String userID )
+        {
+
+        final byte[] name = userID.getBytes( StandardCharsets.UTF_8 ) ;
+
+        if ( name.length <= MAX_NAME_BYTES )
+            {
+            return new File( this.directory, HexFormat.of().formatHex( name ) + ".queue" ) ;
+            }
+
+        try
+            {
+            // Not hex alone, so it can never be the name of a short ID
+            return new File( this.directory,
+                             "sha256-" +
+                                HexFormat.of()
+                                         .formatHex( MessageDigest.getInstance( "SHA-256" )
+                                                                  .digest( name ) ) +
+                                ".queue" ) ;
+            }
+        catch ( final NoSuchAlgorithmException e )
+            {
+            throw new IllegalStateException( "SHA-256 is not available", e ) ;
+            }
+
+        }
+
+
+    /**
+     * A message waiting to be delivered.
+     */
+    static final class Delivery
+        {
+
+        private final String senderID ;
+        private final String recipientID ;
+        private final String message ;
+
+
+        Delivery( final String senderIDInput,
+                  final String recipientIDInput,
+                  final String messageInput )
+            {
+
+            this.senderID = senderIDInput ;
+            this.recipientID = recipientIDInput ;
+            this.message = messageInput ;
+
+            }
+
+
+        String getSenderID()
+            {
+
+            return this.senderID ;
+
+            }
+
+
+        /**
+         * @return The user, or the group the message was sent to.
+         */
+        String getRecipientID()
+            {
+
+            return this.recipientID ;
+
+            }
+
+
+        String getMessage()
+            {
+
+            return this.message ;
+
+            }
+
+
+        /**
+         * Write the message as it would have been delivered live.
+         */
+        void encode( final FrameEncoder encoder,
+                     final ByteArrayOutputStream out )
+            {
+
+            if ( GroupRegistry.isGroup( this.recipientID ) )
+                {
+                encoder.groupMessage( out, this.senderID, this.recipientID, this.message ) ;
+                }
+            else
+                {
+                encoder.message( out, this.senderID, this.recipientID, 0, this.message ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * One user's held messages, and whether later ones go to its spill file.
+     */
+    private static final class Pending
+        {
+
+        private final List<Delivery> messages ;
+        private boolean spilled ;
+
+
+        Pending()
+            {
+
+            this.messages = new ArrayList<>() ;
+
+            }
+
+        }
+
+    }
@@ -0,0 +1,858 @@
+package application ;
+
+import java.io.IOException ;
+import java.io.OutputStream ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.WritableByteChannel ;
+import java.util.Arrays ;
+import java.util.concurrent.TimeUnit ;
+import java.util.concurrent.locks.Condition ;
+import java.util.concurrent.locks.ReentrantLock ;
+
+/**
+ * Everything written to one connection goes through its outbound channel, which owns the
+ * connection's encoder and a single reusable frame buffer for its lifetime. Any thread may send;
+ * frames are encoded and queued one at a time so they reach the socket whole and in order.
+ * <p>
+ * A channel over a stream writes each frame straight through on the sending thread. A channel
+ * without one holds frames in its buffer until the owner {@link #drain drains} it, as a selector
+ * worker does, or a writer thread of its own {@link #pump pumps} it to a blocking stream, so a
+ * sender never waits on a client that is slow to read.
+ * <p>
+ * What such a channel holds is bounded by {@code chat.outbound.maxQueuedBytes}, past which the
+ * {@link OverflowPolicy} decides, although a send into an empty queue is always taken however
+ * large it is. A channel that has had bytes queued for {@code chat.outbound.writeTimeoutMillis}
+ * without the client reading any disconnects on its next send, whatever the policy. While a
+ * channel holds more than half its bound, or is spilling, it counts as a slow client.
+ * <p>
+ * A frame that is encoded and then not sent has what it taught the encoder rolled back, and a
+ * queued frame that numbered user IDs for the client is never dropped, since later frames refer
+ * to them.
+ *
+ * @version 1.3 2026-10-18 Frames dropped or spilled leave the encoder as the client sees it.
+ *
+ * @since 1.3
+ */
+final class OutboundChannel
+    {
+
+    /**
+     * A drained buffer that has grown past this is swapped for a fresh one, so one large reply
+     * does not pin memory for the rest of the connection.
+     */
+    private static final int MAX_RETAINED_BYTES = 1 << 16 ;
+
+    private final OutputStream stream ;
+    private final ServerMetrics metrics ;
+    private final Runnable caughtUp ;
+    private final OverflowPolicy policy ;
+    private final int maxQueuedBytes ;
+    private final long writeTimeoutNanos ;
+    private final ReentrantLock lock ;
+    private final Condition queued ;
+    private FrameEncoder encoder ;
+    private FrameBuffer buffer ;
+    private FrameBuffer writing ;
+    private int[] sendEnds ;
+    private boolean[] sendNumbers ;
+    private int sends ;
+    private int drained ;
+    private long waitingSince ;
+    private boolean slow ;
+    private boolean spilling ;
+    private boolean behind ;
+    private boolean closed ;
+
+
+    /**
+     * @param streamInput
+     *     The socket stream frames are written to, or null to hold them until drained.
+     * @param encoderInput
+     *     The connection's encoder, or null until its protocol is known.
+     *
+     * @since 1.3
+     */
+    OutboundChannel( final OutputStream streamInput,
+                     final FrameEncoder encoderInput )
+        {
+
+        this( streamInput, encoderInput, null, null ) ;
+
+        }
+
+
+    /**
+     * @param streamInput
+     *     The socket stream frames are written to, or null to hold them until drained.
+     * @param encoderInput
+     *     The connection's encoder, or null until its protocol is known.
+     * @param metricsInput
+     *     Told the bytes written and queued, or null.
+     *
+     * @since 1.3
+     */
+    OutboundChannel( final OutputStream streamInput,
+                     final FrameEncoder encoderInput,
+                     final ServerMetrics metricsInput )
+        {
+
+        this( streamInput, encoderInput, metricsInput, null ) ;
+
+        }
+
+
+    /**
+     * @param streamInput
+     *     The socket stream frames are written to, or null to hold them until drained.
+     * @param encoderInput
+     *     The connection's encoder, or null until its protocol is known.
+     * @param metricsInput
+     *     Told the bytes written and queued, or null.
+     * @param caughtUpInput
+     *     Run, without the lock held, once a spilling channel has written half its queue and
+     *     has room for what was held, or null.
+     *
+     * @since 1.3
+     */
+    OutboundChannel( final OutputStream streamInput,
+                     final FrameEncoder encoderInput,
+                     final ServerMetrics metricsInput,
+                     final Runnable caughtUpInput )
+        {
+
+        this.stream = streamInput ;
+        this.encoder = encoderInput ;
+        this.metrics = metricsInput ;
+        this.caughtUp = caughtUpInput ;
+        this.policy = OverflowPolicy.fromSystemProperty() ;
+        this.maxQueuedBytes = Integer.getInteger( "chat.outbound.maxQueuedBytes", 1 << 20 ) ;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong( "chat.outbound.writeTimeoutMillis", 30_000 ) ) ;
+        this.lock = new ReentrantLock() ;
+        this.queued = this.lock.newCondition() ;
+        this.buffer = new FrameBuffer() ;
+        this.sendEnds = new int[ 16 ] ;
+        this.sendNumbers = new boolean[ 16 ] ;
+
+        }
+
+
+    /**
+     * Set the encoder once the connection's protocol is known, before anything is sent.
+     */
+    void setEncoder( final FrameEncoder encoderInput )
+        {
+
+        this.lock.lock() ;
+
+        try
+            {
+            this.encoder = encoderInput ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * Encode {@code frame} and write it, or queue it to be drained. Over the bound, a channel
+     * that spills disconnects instead.
+     *
+     * @throws IOException
+     *     If the channel is closed, the stream cannot be written to, or the client was
+     *     disconnected for being too slow.
+     */
+    void send( final ClientConnection.Frame frame ) throws IOException
+        {
+
+        this.lock.lock() ;
+
+        try
+            {
+
+            if ( this.closed )
+                {
+                throw new IOException( "Connection closed" ) ;
+                }
+
+            if ( this.stream == null )
+                {
+                enqueue( frame, false, false ) ;
+                return ;
+                }
+
+            this.buffer.reset() ;
+            frame.encode( this.encoder, this.buffer ) ;
+            this.buffer.writeTo( this.stream ) ;
+            this.stream.flush() ;
+
+            if ( this.metrics != null )
+                {
+                this.metrics.bytesOut( this.buffer.size() ) ;
+                }
+
+            release() ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * Send a message pushed to the client, unless the channel is spilling.
+     *
+     * @return False if the message was not queued and should be held offline until the channel
+     *     catches up.
+     *
+     * @throws IOException
+     *     If the channel is closed, the stream cannot be written to, or the client was
+     *     disconnected for being too slow.
+     */
+    boolean offer( final ClientConnection.Frame frame ) throws IOException
+        {
+
+        if ( this.stream != null )
+            {
+            send( frame ) ;
+            return true ;
+            }
+
+        this.lock.lock() ;
+
+        try
+            {
+
+            if ( this.closed )
+                {
+                throw new IOException( "Connection closed" ) ;
+                }
+
+            return enqueue( frame, true, false ) ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * Send a message that was held offline, even while the channel is spilling.
+     *
+     * @return False if the message was not queued because the channel is full again, in which
+     *     case it stays spilling.
+     *
+     * @throws IOException
+     *     If the channel is closed, the stream cannot be written to, or the client was
+     *     disconnected for being too slow.
+     */
+    boolean sendHeld( final ClientConnection.Frame frame ) throws IOException
+        {
+
+        if ( this.stream != null )
+            {
+            send( frame ) ;
+            return true ;
+            }
+
+        this.lock.lock() ;
+
+        try
+            {
+
+            if ( this.closed )
+                {
+                throw new IOException( "Connection closed" ) ;
+                }
+
+            return enqueue( frame, true, true ) ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * Stop spilling, once everything held has been sent, so offered messages are queued again.
+     */
+    void resume()
+        {
+
+        this.lock.lock() ;
+
+        try
+            {
+            this.spilling = false ;
+            this.behind = false ;
+            updateSlow() ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * @return True while messages offered are being held offline.
+     */
+    boolean isSpilling()
+        {
+
+        this.lock.lock() ;
+
+        try
+            {
+            return this.spilling ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * Write queued bytes until {@code channel} stops accepting them.
+     *
+     * @return True if nothing is left queued.
+     *
+     * @throws IOException
+     *     If the channel cannot be written to.
+     */
+    boolean drain( final WritableByteChannel channel ) throws IOException
+        {
+
+        boolean catchUp = false ;
+
+        this.lock.lock() ;
+
+        try
+            {
+            final ByteBuffer pending = this.buffer.view( this.drained ) ;
+            final int written = channel.write( pending ) ;
+            this.drained = pending.position() ;
+
+            if ( this.metrics != null )
+                {
+                this.metrics.bytesOut( written ) ;
+                this.metrics.outboundQueued( -written ) ;
+                }
+
+            if ( !pending.hasRemaining() )
+                {
+                this.buffer.reset() ;
+                this.drained = 0 ;
+                this.sends = 0 ;
+                release() ;
+                }
+            else
+                {
+                // Forget the sends that are now wholly written
+                int done = 0 ;
+
+                while ( ( done < this.sends ) && ( this.sendEnds[ done ] <= this.drained ) )
+                    {
+                    done++ ;
+                    }
+
+                removeSends( 0, done, 0 ) ;
+
+                if ( this.drained >= ( this.buffer.size() / 2 ) )
+                    {
+                    this.buffer.discard( this.drained ) ;
+                    removeSends( 0, 0, this.drained ) ;
+                    this.drained = 0 ;
+                    }
+
+                }
+
+            if ( ( written > 0 ) && !this.closed )
+                {
+                catchUp = progressed() ;
+                }
+
+            if ( !catchUp )
+                {
+                return !pending.hasRemaining() ;
+                }
+
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        // Catching up queues what was held, so whether anything is left is asked again after
+        this.caughtUp.run() ;
+
+        return queuedBytes() == 0 ;
+
+        }
+
+
+    /**
+     * Write queued frames to {@code out}, blocking, until the channel is closed. For the
+     * connection's own writer thread; senders only queue, so only this thread waits on the
+     * client.
+     *
+     * @throws IOException
+     *     If {@code out} cannot be written to.
+     */
+    void pump( final OutputStream out ) throws IOException
+        {
+
+        while ( true )
+            {
+            final FrameBuffer batch ;
+
+            this.lock.lock() ;
+
+            try
+                {
+
+                while ( ( this.buffer.size() == 0 ) && !this.closed )
+                    {
+                    this.queued.awaitUninterruptibly() ;
+                    }
+
+                if ( this.closed )
+                    {
+                    return ;
+                    }
+
+                // Senders carry on into the spare buffer while this one is written
+                batch = this.buffer ;
+                this.buffer = this.writing == null ? new FrameBuffer() : this.writing ;
+                this.writing = batch ;
+                this.sends = 0 ;
+                }
+            finally
+                {
+                this.lock.unlock() ;
+                }
+
+            boolean catchUp = false ;
+
+            try
+                {
+                batch.writeTo( out ) ;
+                }
+            finally
+                {
+                this.lock.lock() ;
+
+                try
+                    {
+
+                    if ( this.metrics != null )
+                        {
+                        this.metrics.bytesOut( batch.size() ) ;
+                        this.metrics.outboundQueued( -batch.size() ) ;
+                        }
+
+                    batch.reset() ;
+
+                    if ( batch.capacity() > MAX_RETAINED_BYTES )
+                        {
+                        this.writing = null ;
+                        }
+
+                    if ( !this.closed )
+                        {
+                        catchUp = progressed() ;
+                        }
+
+                    }
+                finally
+                    {
+                    this.lock.unlock() ;
+                    }
+
+                }
+
+            if ( catchUp )
+                {
+                this.caughtUp.run() ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * @return Bytes encoded but not yet written.
+     */
+    int queuedBytes()
+        {
+
+        this.lock.lock() ;
+
+        try
+            {
+            return this.stream == null ? queuedBytesLocked() : 0 ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * @return True once the channel refuses frames, because its connection closed or the
+     *     client was disconnected for being too slow.
+     */
+    boolean isClosed()
+        {
+
+        this.lock.lock() ;
+
+        try
+            {
+            return this.closed ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * Refuse further frames and drop anything still queued.
+     */
+    void close()
+        {
+
+        this.lock.lock() ;
+
+        try
+            {
+            closeLocked() ;
+            }
+        finally
+            {
+            this.lock.unlock() ;
+            }
+
+        }
+
+
+    /**
+     * Queue one send, applying the bound. Called with the lock held.
+     *
+     * @param message
+     *     True if the send is a message that may be spilled.
+     * @param held
+     *     True if the message was held offline already, and is queued even while spilling.
+     *
+     * @return False if the message was spilled, or held back again, instead.
+     */
+    private boolean enqueue( final ClientConnection.Frame frame,
+                             final boolean message,
+                             final boolean held ) throws IOException
+        {
+
+        final long now = System.nanoTime() ;
+
+        final boolean stalled = ( this.waitingSince != 0 ) &&
+                                ( ( now - this.waitingSince ) > this.writeTimeoutNanos ) ;
+
+        if ( stalled )
+            {
+            disconnect( "nothing read for " +
+                        TimeUnit.NANOSECONDS.toMillis( now - this.waitingSince ) + " ms" ) ;
+            }
+
+        if ( message && this.spilling && !held )
+            {
+            spilled() ;
+            return false ;
+            }
+
+        final int queuedBefore = queuedBytesLocked() ;
+        final int start = this.buffer.size() ;
+        final int mark = this.encoder.mark() ;
+        frame.encode( this.encoder, this.buffer ) ;
+        final int size = this.buffer.size() - start ;
+
+        if ( ( queuedBefore > 0 ) && ( ( queuedBefore + size ) > this.maxQueuedBytes ) )
+            {
+
+            if ( this.policy == OverflowPolicy.DROP_OLDEST )
+                {
+                dropOldest() ;
+                }
+            else if ( message && ( this.policy == OverflowPolicy.SPILL ) )
+                {
+                this.buffer.truncate( start ) ;
+                this.encoder.rollback( mark ) ;
+
+                if ( !held )
+                    {
+                    spilled() ;
+                    }
+
+                this.spilling = true ;
+                this.behind = true ;
+                updateSlow() ;
+                return false ;
+                }
+            else
+                {
+                this.buffer.truncate( start ) ;
+                this.encoder.rollback( mark ) ;
+                disconnect( queuedBefore + " bytes unread" ) ;
+                }
+
+            }
+
+        addSend( this.buffer.size(), this.encoder.mark() != mark ) ;
+
+        if ( this.metrics != null )
+            {
+            this.metrics.outboundQueued( size ) ;
+            }
+
+        if ( this.waitingSince == 0 )
+            {
+            this.waitingSince = now ;
+            }
+
+        updateSlow() ;
+        this.queued.signal() ;
+
+        return true ;
+
+        }
+
+
+    /**
+     * Drop whole sends, oldest first, until the newest send, already encoded but not yet
+     * counted as a send, fits or nothing else can go. A send the socket is part way through
+     * stays, as does one that numbered user IDs the sends after it refer to.
+     */
+    private void dropOldest()
+        {
+
+        int first = 0 ;
+
+        // The send the drained bytes end in, if any, has been partly written
+        while ( ( first < this.sends ) && ( sendStart( first ) < this.drained ) )
+            {
+            first++ ;
+            }
+
+        while ( ( first < this.sends ) && ( queuedBytesLocked() > this.maxQueuedBytes ) )
+            {
+
+            if ( this.sendNumbers[ first ] )
+                {
+                first++ ;
+                continue ;
+                }
+
+            final int start = sendStart( first ) ;
+            final int length = this.sendEnds[ first ] - start ;
+
+            this.buffer.remove( start, length ) ;
+            removeSends( first, 1, length ) ;
+
+            if ( this.metrics != null )
+                {
+                this.metrics.outboundQueued( -length ) ;
+                this.metrics.outboundDropped() ;
+                }
+
+            }
+
+        }
+
+
+    private int sendStart( final int index )
+        {
+
+        return index == 0 ? 0 : this.sendEnds[ index - 1 ] ;
+
+        }
+
+
+    /**
+     * @param numbers
+     *     True if the send numbered user IDs for the client.
+     */
+    private void addSend( final int end,
+                          final boolean numbers )
+        {
+
+        if ( this.sends == this.sendEnds.length )
+            {
+            this.sendEnds = Arrays.copyOf( this.sendEnds, this.sends * 2 ) ;
+            this.sendNumbers = Arrays.copyOf( this.sendNumbers, this.sends * 2 ) ;
+            }
+
+        this.sendEnds[ this.sends ] = end ;
+        this.sendNumbers[ this.sends++ ] = numbers ;
+
+        }
+
+
+    /**
+     * Forget {@code count} sends from {@code from}, then move the ends of every later send back
+     * by {@code shift} bytes.
+     */
+    private void removeSends( final int from,
+                              final int count,
+                              final int shift )
+        {
+
+        System.arraycopy( this.sendEnds,
+                          from + count,
+                          this.sendEnds,
+                          from,
+                          this.sends - from - count ) ;
+        System.arraycopy( this.sendNumbers,
+                          from + count,
+                          this.sendNumbers,
+                          from,
+                          this.sends - from - count ) ;
+        this.sends -= count ;
+
+        for ( int i = from ; i < this.sends ; i++ )
+            {
+            this.sendEnds[ i ] -= shift ;
+            }
+
+        }
+
+
+    /**
+     * Note that the client read something.
+     *
+     * @return True if a spilling channel has room for what was held and the owner must be told.
+     *     The channel keeps spilling until the owner {@link #resume resumes} it, so nothing
+     *     offered meanwhile overtakes what was held.
+     */
+    private boolean progressed()
+        {
+
+        final int left = queuedBytesLocked() ;
+
+        this.waitingSince = left == 0 ? 0 : System.nanoTime() ;
+
+        final boolean caughtUpNow = this.behind && ( left <= ( this.maxQueuedBytes / 2 ) ) ;
+
+        if ( caughtUpNow )
+            {
+            this.behind = false ;
+            }
+
+        updateSlow() ;
+
+        return caughtUpNow && ( this.caughtUp != null ) ;
+
+        }
+
+
+    private int queuedBytesLocked()
+        {
+
+        return ( this.buffer.size() - this.drained ) +
+               ( this.writing == null ? 0 : this.writing.size() ) ;
+
+        }
+
+
+    private void updateSlow()
+        {
+
+        final boolean now = !this.closed &&
+                            ( this.spilling ||
+                              ( queuedBytesLocked() > ( this.maxQueuedBytes / 2 ) ) ) ;
+
+        if ( now != this.slow )
+            {
+            this.slow = now ;
+
+            if ( this.metrics != null )
+                {
+                this.metrics.slowConnection( now ? 1 : -1 ) ;
+                }
+
+            }
+
+        }
+
+
+    private void spilled()
+        {
+
+        if ( this.metrics != null )
+            {
+            this.metrics.outboundSpilled() ;
+            }
+
+        }
+
+
+    private void disconnect( final String reason ) throws IOException
+        {
+
+        if ( this.metrics != null )
+            {
+            this.metrics.slowDisconnected() ;
+            }
+
+        closeLocked() ;
+
+        throw new IOException( "Disconnected slow client, " + reason ) ;
+
+        }
+
+
+    private void closeLocked()
+        {
+
+        // Bytes a writer thread is part way through are counted off when it returns
+        if ( ( this.metrics != null ) && ( this.stream == null ) && !this.closed )
+            {
+            this.metrics.outboundQueued( this.drained - this.buffer.size() ) ;
+            }
+
+        this.closed = true ;
+        this.buffer.reset() ;
+        this.drained = 0 ;
+        this.sends = 0 ;
+        updateSlow() ;
+        this.queued.signalAll() ;
+
+        }
+
+
+    private void release()
+        {
+
+        if ( this.buffer.capacity() > MAX_RETAINED_BYTES )
+            {
+            this.buffer = new FrameBuffer() ;
+            }
+
+        }
+
+    }
@@ -0,0 +1,55 @@
+package application ;
+
+/**
+ * What a client connection does with a message once its outbound queue holds
+ * {@code chat.outbound.maxQueuedBytes} that the client has not read yet.
+ *
+ * @version 1.0 2026-10-18 Slow client overflow policies.
+ *
+ * @since 1.3
+ */
+enum OverflowPolicy
+    {
+
+    /**
+     * Discard the oldest queued frames, other than any the socket is part way through, until the
+     * new one fits.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Close the connection.
+     */
+    DISCONNECT,
+
+    /**
+     * Hold the message, and every later one, in the offline queue until the client has read half
+     * its queue, then deliver them in order. Replies to the client's own requests cannot be held,
+     * so overflowing with one of those disconnects.
+     */
+    SPILL ;
+
+
+    /**
+     * Reads the policy from the {@code chat.outbound.overflow} system property, defaulting to
+     * {@link #SPILL}.
+     *
+     * @return The configured policy.
+     *
+     * @since 1.3
+     */
+    static OverflowPolicy fromSystemProperty()
+        {
+
+        final String value = System.getProperty( "chat.outbound.overflow" ) ;
+
+        if ( value == null )
+            {
+            return SPILL ;
+            }
+
+        return valueOf( value.trim().toUpperCase() ) ;
+
+        }
+
+    }
@@ -0,0 +1,111 @@
+package application ;
+
+import java.nio.ByteBuffer ;
+import java.nio.CharBuffer ;
+import java.nio.charset.CharsetEncoder ;
+import java.nio.charset.CodingErrorAction ;
+import java.nio.charset.StandardCharsets ;
+
+/**
+ * A reusable direct buffer that history records are encoded into, as UTF-8 lines, so a batch is
+ * written without a byte array per record or a copy into a temporary direct buffer. Not thread
+ * safe; the history writer owns one.
+ *
+ * @version 1.0 2026-10-18 Reusable record encoding buffer.
+ *
+ * @since 1.3
+ */
+final class RecordBuffer
+    {
+
+    private final CharsetEncoder encoder ;
+    private ByteBuffer buffer ;
+
+
+    /**
+     * @param capacityInput
+     *     The initial size, which grows to fit the largest batch.
+     */
+    RecordBuffer( final int capacityInput )
+        {
+
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+                                             .onMalformedInput( CodingErrorAction.REPLACE )
+                                             .onUnmappableCharacter( CodingErrorAction.REPLACE ) ;
+        this.buffer = ByteBuffer.allocateDirect( Math.max( 1024, capacityInput ) ) ;
+
+        }
+
+
+    /**
+     * Encode {@code record} and a newline after everything appended since the last
+     * {@link #clear}.
+     *
+     * @return Where the record starts in the buffer.
+     */
+    int append( final String record )
+        {
+
+        // No character takes more than three bytes, so the encoder never runs out of room
+        ensure( ( record.length() * 3 ) + 1 ) ;
+
+        final int start = this.buffer.position() ;
+
+        this.encoder.reset() ;
+        this.encoder.encode( CharBuffer.wrap( record ), this.buffer, true ) ;
+        this.encoder.flush( this.buffer ) ;
+        this.buffer.put( (byte) '\n' ) ;
+
+        return start ;
+
+        }
+
+
+    /**
+     * @return The bytes appended so far.
+     */
+    int size()
+        {
+
+        return this.buffer.position() ;
+
+        }
+
+
+    /**
+     * @return The appended bytes, ready to write. Call {@link #clear} before appending again.
+     */
+    ByteBuffer flip()
+        {
+
+        return this.buffer.flip() ;
+
+        }
+
+
+    void clear()
+        {
+
+        this.buffer.clear() ;
+
+        }
+
+
+    private void ensure( final int bytes )
+        {
+
+        if ( this.buffer.remaining() >= bytes )
+            {
+            return ;
+            }
+
+        final ByteBuffer larger = ByteBuffer.allocateDirect( Math.max( this.buffer.capacity() * 2,
+                                                                       this.buffer.position() +
+                                                                          bytes ) ) ;
+        this.buffer.flip() ;
+        larger.put( this.buffer ) ;
+        this.buffer = larger ;
+
+        }
+
+    }
@@ -0,0 +1,141 @@
+package application ;
+
+import java.time.Instant ;
+import java.time.ZoneId ;
+import java.time.format.DateTimeFormatter ;
+import java.time.format.DateTimeParseException ;
+import java.time.format.FormatStyle ;
+import java.util.Locale ;
+
+/**
+ * Builds and reads the {@code [timestamp] sender -> recipient: message} history records. The
+ * timestamp is the default locale's medium date and time, as {@link java.text.DateFormat} has
+ * always written it, but from one shared thread-safe formatter, and the formatted
+ * {@code "[timestamp] "} prefix is reused for every record stamped in the same second.
+ *
+ * @version 1.0 2026-10-18 Cached record timestamps.
+ *
+ * @since 1.3
+ */
+final class RecordFormat
+    {
+
+    private static final DateTimeFormatter TIMESTAMP =
+        DateTimeFormatter.ofLocalizedDateTime( FormatStyle.MEDIUM )
+                         .withLocale( Locale.getDefault( Locale.Category.FORMAT ) )
+                         .withZone( ZoneId.systemDefault() ) ;
+
+    private static volatile Prefix prefix = new Prefix( Long.MIN_VALUE, "" ) ;
+
+
+    private RecordFormat()
+        {}
+
+
+    /**
+     * @return The record for a message stamped at {@code millis}, without a trailing newline.
+     */
+    static String record( final long millis,
+                          final String senderID,
+                          final String recipientID,
+                          final String message )
+        {
+
+        // One concatenation, sized up front, is the only copy of the parts
+        return prefix( millis ) + senderID + " -> " + recipientID + ": " + message ;
+
+        }
+
+
+    /**
+     * @return {@code "[timestamp] "} for the second holding {@code millis}.
+     */
+    static String prefix( final long millis )
+        {
+
+        final long second = Math.floorDiv( millis, 1000 ) ;
+        Prefix current = prefix ;
+
+        if ( current.second != second )
+            {
+            // Threads racing over a new second may each format it; any of them is right
+            current = new Prefix( second,
+                                  "[" + TIMESTAMP.format( Instant.ofEpochSecond( second ) ) +
+                                     "] " ) ;
+            prefix = current ;
+            }
+
+        return current.text ;
+
+        }
+
+
+    /**
+     * @return The time a record was stamped with, to the second, or -1 if it cannot be read.
+     */
+    static long millis( final String record )
+        {
+
+        final int close = record.indexOf( "] " ) ;
+
+        if ( !record.startsWith( "[" ) || ( close < 0 ) )
+            {
+            return -1 ;
+            }
+
+        final String stamp = record.substring( 1, close ) ;
+
+        try
+            {
+            return TIMESTAMP.parse( stamp, Instant::from ).toEpochMilli() ;
+            }
+        catch ( final DateTimeParseException e )
+            {
+            // Older JDKs put a plain space before AM or PM where newer ones put a narrow
+            // no-break space
+            final int space = stamp.lastIndexOf( ' ' ) ;
+
+            if ( space < 0 )
+                {
+                return -1 ;
+                }
+
+            try
+                {
+                return TIMESTAMP.parse( stamp.substring( 0, space ) + '\u202F' +
+                                           stamp.substring( space + 1 ),
+                                        Instant::from )
+                                .toEpochMilli() ;
+                }
+            catch ( final DateTimeParseException again )
+                {
+                return -1 ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * A formatted prefix and the second it is for.
+     */
+    private static final class Prefix
+        {
+
+        private final long second ;
+        private final String text ;
+
+
+        Prefix( final long secondInput,
+                final String textInput )
+            {
+
+            this.second = secondInput ;
+            this.text = textInput ;
+
+            }
+
+        }
+
+    }
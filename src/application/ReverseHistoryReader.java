@@ -0,0 +1,251 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.IOException ;
+import java.io.InputStream ;
+import java.nio.ByteBuffer ;
+import java.nio.MappedByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.nio.charset.StandardCharsets ;
+import java.util.ArrayDeque ;
+
+/**
+ * Finds the most recent records of a conversation by memory-mapping the history log and walking
+ * it backwards from the tail. Lines are matched on their raw bytes, so only matching records are
+ * ever decoded into strings. The log is mapped one window at a time, which keeps each mapping
+ * under the 2 GB limit of a single {@link MappedByteBuffer} however large the log grows.
+ * Compressed segments cannot be mapped, so they are streamed forwards instead, keeping only the
+ * newest matches.
+ *
+ * @version 1.1 2026-10-18 Scans one history segment at a time.
+ *
+ * @since 1.3
+ */
+final class ReverseHistoryReader
+    {
+
+    private final int windowSize ;
+
+
+    /**
+     * @param windowSizeInput
+     *     The most bytes mapped at once.
+     *
+     * @since 1.3
+     */
+    ReverseHistoryReader( final int windowSizeInput )
+        {
+
+        this.windowSize = windowSizeInput ;
+
+        }
+
+
+    /**
+     * Visit, newest first, up to {@code limit} records between two users that start before
+     * {@code end}.
+     *
+     * @param channel
+     *     An uncompressed history segment.
+     * @param end
+     *     A record boundary to scan back from, usually the committed length of the segment.
+     * @param sink
+     *     Receives each matching record.
+     *
+     * @return The offset of the oldest record visited, or 0 if the scan reached the start of the
+     *     segment.
+     *
+     * @since 1.3
+     */
+    long scan( final FileChannel channel,
+               final String user1,
+               final String user2,
+               final long end,
+               final int limit,
+               final MessageHistory.RecordSink sink ) throws IOException
+        {
+
+        final byte[] forward = pattern( user1, user2 ) ;
+        final byte[] backward = pattern( user2, user1 ) ;
+
+        int window = this.windowSize ;
+        int found = 0 ;
+        long lineEnd = end ;
+
+        while ( ( lineEnd > 0 ) && ( found < limit ) )
+            {
+            final long windowStart = Math.max( 0, lineEnd - window ) ;
+            final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY,
+                                                         windowStart,
+                                                         lineEnd - windowStart ) ;
+
+            // Relative index of the newline that ends the current line
+            int terminator = (int) ( lineEnd - windowStart ) - 1 ;
+            boolean progressed = false ;
+
+            while ( ( terminator >= 0 ) && ( found < limit ) )
+                {
+                int start = terminator - 1 ;
+
+                while ( ( start >= 0 ) && ( buffer.get( start ) != '\n' ) )
+                    {
+                    start-- ;
+                    }
+
+                if ( ( start < 0 ) && ( windowStart > 0 ) )
+                    {
+                    // The line continues before this window; remap from its end
+                    break ;
+                    }
+
+                start++ ;
+
+                if ( matches( buffer, start, terminator, forward ) ||
+                     matches( buffer, start, terminator, backward ) )
+                    {
+                    final byte[] line = new byte[ terminator - start ] ;
+                    buffer.get( start, line ) ;
+                    sink.accept( new String( line, StandardCharsets.UTF_8 ) ) ;
+                    found++ ;
+                    }
+
+                lineEnd = windowStart + start ;
+                terminator = start - 1 ;
+                progressed = true ;
+                }
+
+            if ( !progressed )
+                {
+                // A single line longer than the window; widen it and try again
+                window = (int) Math.min( Integer.MAX_VALUE - 8L, window * 2L ) ;
+                }
+
+            }
+
+        return lineEnd ;
+
+        }
+
+
+    /**
+     * The same search over a stream read from the start of a segment, such as a decompressed
+     * one. Matches are kept in a window of the newest {@code limit} so memory stays bounded.
+     *
+     * @return The offset of the oldest record visited, or 0 if there were no more than
+     *     {@code limit} matches before {@code end}.
+     *
+     * @since 1.3
+     */
+    long scanStream( final InputStream in,
+                     final String user1,
+                     final String user2,
+                     final long end,
+                     final int limit,
+                     final MessageHistory.RecordSink sink ) throws IOException
+        {
+
+        final byte[] forward = pattern( user1, user2 ) ;
+        final byte[] backward = pattern( user2, user1 ) ;
+        final ArrayDeque<String> newest = new ArrayDeque<>() ;
+        final ArrayDeque<Long> newestOffsets = new ArrayDeque<>() ;
+        final ByteArrayOutputStream line = new ByteArrayOutputStream() ;
+        boolean dropped = false ;
+        long offset = 0 ;
+        long lineStart = 0 ;
+        int b ;
+
+        while ( ( offset < end ) && ( ( b = in.read() ) != -1 ) )
+            {
+            offset++ ;
+
+            if ( b != '\n' )
+                {
+                line.write( b ) ;
+                continue ;
+                }
+
+            final ByteBuffer bytes = ByteBuffer.wrap( line.toByteArray() ) ;
+
+            if ( matches( bytes, 0, bytes.limit(), forward ) ||
+                 matches( bytes, 0, bytes.limit(), backward ) )
+                {
+                newest.addLast( new String( bytes.array(), StandardCharsets.UTF_8 ) ) ;
+                newestOffsets.addLast( lineStart ) ;
+
+                if ( newest.size() > limit )
+                    {
+                    newest.removeFirst() ;
+                    newestOffsets.removeFirst() ;
+                    dropped = true ;
+                    }
+
+                }
+
+            line.reset() ;
+            lineStart = offset ;
+            }
+
+        final long oldest = dropped ? newestOffsets.peekFirst() : 0 ;
+
+        while ( !newest.isEmpty() )
+            {
+            sink.accept( newest.removeLast() ) ;
+            }
+
+        return oldest ;
+
+        }
+
+
+    private static byte[] pattern( final String sender,
+                                   final String recipient )
+        {
+
+        return ( sender + " -> " + recipient + ": " ).getBytes( StandardCharsets.UTF_8 ) ;
+
+        }
+
+
+    /**
+     * True if the record in {@code [start, end)} has {@code pattern} right after its
+     * {@code "[timestamp] "} prefix.
+     */
+    private static boolean matches( final ByteBuffer buffer,
+                                    final int start,
+                                    final int end,
+                                    final byte[] pattern )
+        {
+
+        int position = -1 ;
+
+        for ( int i = start ; i < ( end - 1 ) ; i++ )
+            {
+
+            if ( ( buffer.get( i ) == ']' ) && ( buffer.get( i + 1 ) == ' ' ) )
+                {
+                position = i + 2 ;
+                break ;
+                }
+
+            }
+
+        if ( ( position < 0 ) || ( ( end - position ) < pattern.length ) )
+            {
+            return false ;
+            }
+
+        for ( int i = 0 ; i < pattern.length ; i++ )
+            {
+
+            if ( buffer.get( position + i ) != pattern[ i ] )
+                {
+                return false ;
+                }
+
+            }
+
+        return true ;
+
+        }
+
+    }
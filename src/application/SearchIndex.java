@@ -0,0 +1,537 @@
+package application ;
+
+import java.io.BufferedOutputStream ;
+import java.io.File ;
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.io.OutputStream ;
+import java.nio.file.Files ;
+import java.nio.file.StandardCopyOption ;
+import java.util.ArrayList ;
+import java.util.Arrays ;
+import java.util.HashMap ;
+import java.util.LinkedHashSet ;
+import java.util.List ;
+import java.util.Locale ;
+import java.util.Map ;
+import java.util.Set ;
+import java.util.concurrent.ConcurrentHashMap ;
+import java.util.concurrent.ExecutorService ;
+import java.util.concurrent.Executors ;
+
+/**
+ * Inverted index from search terms to the history records that contain them. A record's terms are
+ * the lower-cased words of its message, plus its sender and recipient as
+ * {@code "@<user>"}.
+ * <p>
+ * The active segment's terms are held in memory and added to as records are committed. Once a
+ * segment is sealed its terms are written beside it as a {@link TermFile} and dropped from
+ * memory, so only the active segment has to be rebuilt from the log after a restart.
+ * {@code chat.history.search=false} turns the index off.
+ *
+ * @version 1.0 2026-10-18 Incremental inverted index over the history.
+ *
+ * @since 1.3
+ */
+final class SearchIndex
+    {
+
+    /**
+     * Starts the term for a user, which no word can contain.
+     */
+    static final String USER_PREFIX = "@" ;
+
+    private static final int MAX_WORD_LENGTH = 64 ;
+
+    private final SegmentedLog log ;
+    private final boolean enabled ;
+    private final ConcurrentHashMap<Integer, LiveTerms> live ;
+    private final ConcurrentHashMap<Integer, TermFile> files ;
+    private final Map<Integer, File> building ;
+    private final ExecutorService persister ;
+    private int writingID ;
+
+
+    /**
+     * @param activeID
+     *     The segment being appended to, whose terms recovery will rebuild.
+     */
+    SearchIndex( final SegmentedLog logInput,
+                 final int activeID )
+        {
+
+        this.log = logInput ;
+        this.enabled = Boolean.parseBoolean( System.getProperty( "chat.history.search", "true" ) ) ;
+        this.live = new ConcurrentHashMap<>() ;
+        this.files = new ConcurrentHashMap<>() ;
+        this.building = new HashMap<>() ;
+        this.persister = Executors.newSingleThreadExecutor( task ->
+            {
+            final Thread thread = new Thread( task, "search-index" ) ;
+            thread.setDaemon( true ) ;
+            return thread ;
+            } ) ;
+        this.writingID = activeID ;
+
+        if ( this.enabled )
+            {
+            this.live.put( activeID, new LiveTerms( true ) ) ;
+            }
+
+        }
+
+
+    boolean isEnabled()
+        {
+
+        return this.enabled ;
+
+        }
+
+
+    /**
+     * @return True if {@code segment} has no term file yet and recovery has to build one.
+     */
+    boolean needsTerms( final HistorySegment segment )
+        {
+
+        return this.enabled && !segment.termsFile().exists() ;
+
+        }
+
+
+    /**
+     * @return The distinct terms of a {@code [timestamp] sender -> recipient: message} record,
+     *     or null if the index is off or the line is not a record.
+     */
+    String[] recordTerms( final String record )
+        {
+
+        if ( !this.enabled )
+            {
+            return null ;
+            }
+
+        final String[] participants = MessageHistory.parseParticipants( record ) ;
+
+        if ( participants == null )
+            {
+            return null ;
+            }
+
+        final Set<String> terms = new LinkedHashSet<>() ;
+        terms.add( USER_PREFIX + participants[ 0 ] ) ;
+        terms.add( USER_PREFIX + participants[ 1 ] ) ;
+
+        final int arrow = record.indexOf( " -> ", record.indexOf( "] " ) + 2 ) ;
+        words( record.substring( record.indexOf( ": ", arrow + 4 ) + 2 ), terms ) ;
+
+        return terms.toArray( new String[ 0 ] ) ;
+
+        }
+
+
+    /**
+     * @return The distinct words of a query, as they are indexed.
+     */
+    static List<String> queryTerms( final String query )
+        {
+
+        final Set<String> terms = new LinkedHashSet<>() ;
+        words( query, terms ) ;
+
+        return new ArrayList<>( terms ) ;
+
+        }
+
+
+    /**
+     * Index a committed record. Only called by the history writer.
+     */
+    void add( final String[] terms,
+              final long position )
+        {
+
+        if ( terms == null )
+            {
+            return ;
+            }
+
+        final int segmentID = HistorySegment.segmentOf( position ) ;
+
+        if ( segmentID != this.writingID )
+            {
+            // The writer has rolled to a new segment, so the old one is complete
+            sealed( this.writingID ) ;
+            this.writingID = segmentID ;
+            }
+
+        final LiveTerms segment = this.live.computeIfAbsent( segmentID,
+                                                             id -> new LiveTerms( false ) ) ;
+
+        for ( final String term : terms )
+            {
+            segment.terms.computeIfAbsent( term, key -> new MessageHistory.OffsetList() )
+                         .add( position ) ;
+            }
+
+        }
+
+
+    /**
+     * Called by recovery with the terms of a recovered range of {@code segment}, which is older
+     * than every range of it recovered before.
+     */
+    void recovered( final HistorySegment segment,
+                    final boolean active,
+                    final Map<String, MessageHistory.OffsetList> terms ) throws IOException
+        {
+
+        if ( active )
+            {
+            final LiveTerms current = this.live.get( segment.getID() ) ;
+
+            for ( final Map.Entry<String, MessageHistory.OffsetList> term : terms.entrySet() )
+                {
+                current.terms.computeIfAbsent( term.getKey(),
+                                               key -> new MessageHistory.OffsetList() )
+                             .prepend( term.getValue() ) ;
+                }
+
+            return ;
+            }
+
+        // A sealed segment's ranges go straight to disk, one block each
+        File partial = this.building.get( segment.getID() ) ;
+
+        if ( partial == null )
+            {
+            // Whatever an interrupted earlier start left behind
+            partial = partialFile( segment ) ;
+            Files.deleteIfExists( partial.toPath() ) ;
+            this.building.put( segment.getID(), partial ) ;
+            }
+
+        try ( OutputStream out = new BufferedOutputStream( new FileOutputStream( partial, true ),
+                                                           1 << 16 ) )
+            {
+            TermFile.writeBlock( out, terms ) ;
+            }
+
+        }
+
+
+    /**
+     * Called by recovery once it is done with {@code segment}.
+     *
+     * @param complete
+     *     False if recovery failed part way. A sealed segment is then unsearchable, and the
+     *     active one only partly searchable, until the next start rebuilds them.
+     */
+    void recoveryDone( final HistorySegment segment,
+                       final boolean active,
+                       final boolean complete )
+        {
+
+        if ( active )
+            {
+            final LiveTerms current = this.live.get( segment.getID() ) ;
+
+            synchronized ( current )
+                {
+                // Left recovering if incomplete, so its terms are never saved
+                current.recovering = !complete ;
+
+                if ( complete && current.sealed )
+                    {
+                    this.persister.execute( () -> persist( segment.getID() ) ) ;
+                    }
+
+                }
+
+            return ;
+            }
+
+        final File partial = this.building.remove( segment.getID() ) ;
+
+        try
+            {
+
+            if ( complete )
+                {
+                // A segment without records still gets a file, so it is not rebuilt each start
+                if ( partial == null )
+                    {
+                    try ( OutputStream out = new FileOutputStream( partialFile( segment ) ) )
+                        {
+                        TermFile.writeBlock( out, Map.of() ) ;
+                        }
+
+                    }
+
+                Files.move( partialFile( segment ).toPath(),
+                            segment.termsFile().toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE ) ;
+                }
+            else if ( partial != null )
+                {
+                partial.delete() ;
+                }
+
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Failed to save search terms for history segment " +
+                             segment.getID() + ": " + e.getMessage() ) ;
+            }
+
+        }
+
+
+    /**
+     * @return The positions of the records in {@code segment} that have every one of
+     *     {@code terms}, in log order, or an empty array if the segment cannot be searched yet.
+     */
+    long[] matches( final HistorySegment segment,
+                    final List<String> terms ) throws IOException
+        {
+
+        final long[][] postings = new long[ terms.size() ][] ;
+
+        for ( int i = 0 ; i < postings.length ; i++ )
+            {
+            postings[ i ] = positions( segment, terms.get( i ) ) ;
+
+            if ( postings[ i ].length == 0 )
+                {
+                return postings[ i ] ;
+                }
+
+            }
+
+        // Intersect starting with the rarest term, so every later step is as small as it can be
+        Arrays.sort( postings, ( a, b ) -> Integer.compare( a.length, b.length ) ) ;
+
+        long[] matched = postings[ 0 ] ;
+
+        for ( int i = 1 ; ( i < postings.length ) && ( matched.length > 0 ) ; i++ )
+            {
+            matched = intersect( matched, postings[ i ] ) ;
+            }
+
+        return matched ;
+
+        }
+
+
+    private long[] positions( final HistorySegment segment,
+                              final String term ) throws IOException
+        {
+
+        final LiveTerms current = this.live.get( segment.getID() ) ;
+
+        if ( current != null )
+            {
+            final MessageHistory.OffsetList found = current.terms.get( term ) ;
+
+            return found == null ? new long[ 0 ] : found.toArray() ;
+            }
+
+        TermFile file = this.files.get( segment.getID() ) ;
+
+        if ( file == null )
+            {
+            final File saved = segment.termsFile() ;
+
+            // Recovery has not reached this segment yet
+            if ( !saved.exists() )
+                {
+                return new long[ 0 ] ;
+                }
+
+            file = TermFile.open( segment.getID(), saved ) ;
+            this.files.putIfAbsent( segment.getID(), file ) ;
+            }
+
+        return file.positions( term ) ;
+
+        }
+
+
+    /**
+     * Forget the term files of segments retention has deleted.
+     */
+    void dropBefore( final int segmentID )
+        {
+
+        this.files.keySet().removeIf( id -> id < segmentID ) ;
+        this.live.keySet().removeIf( id -> id < segmentID ) ;
+
+        }
+
+
+    private void sealed( final int segmentID )
+        {
+
+        final LiveTerms old = this.live.get( segmentID ) ;
+
+        if ( old == null )
+            {
+            return ;
+            }
+
+        synchronized ( old )
+            {
+            old.sealed = true ;
+
+            if ( !old.recovering )
+                {
+                this.persister.execute( () -> persist( segmentID ) ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Write a sealed segment's terms to its term file, then serve it from there.
+     */
+    private void persist( final int segmentID )
+        {
+
+        final HistorySegment segment = this.log.segment( segmentID ) ;
+        final LiveTerms old = this.live.get( segmentID ) ;
+
+        if ( ( segment == null ) || ( old == null ) )
+            {
+            this.live.remove( segmentID ) ;
+            return ;
+            }
+
+        final File partial = partialFile( segment ) ;
+
+        try
+            {
+
+            try ( OutputStream out = new BufferedOutputStream( new FileOutputStream( partial ),
+                                                               1 << 16 ) )
+                {
+                TermFile.writeBlock( out, old.terms ) ;
+                }
+
+            Files.move( partial.toPath(),
+                        segment.termsFile().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE ) ;
+            this.files.put( segmentID, TermFile.open( segmentID, segment.termsFile() ) ) ;
+            this.live.remove( segmentID ) ;
+            }
+        catch ( final IOException e )
+            {
+            // The terms stay in memory, so searches still work until the next start
+            ServerLog.error( "Failed to save search terms for history segment " + segmentID +
+                             ": " + e.getMessage() ) ;
+            }
+
+        }
+
+
+    private static File partialFile( final HistorySegment segment )
+        {
+
+        return new File( segment.termsFile().getPath() + ".tmp" ) ;
+
+        }
+
+
+    /**
+     * Add the lower-cased runs of letters and digits in {@code text} to {@code terms}.
+     */
+    private static void words( final String text,
+                               final Set<String> terms )
+        {
+
+        int start = -1 ;
+
+        for ( int i = 0 ; i <= text.length() ; i++ )
+            {
+            final boolean inWord = ( i < text.length() ) &&
+                                   Character.isLetterOrDigit( text.charAt( i ) ) ;
+
+            if ( inWord && ( start < 0 ) )
+                {
+                start = i ;
+                }
+            else if ( !inWord && ( start >= 0 ) )
+                {
+
+                if ( ( i - start ) <= MAX_WORD_LENGTH )
+                    {
+                    terms.add( text.substring( start, i ).toLowerCase( Locale.ROOT ) ) ;
+                    }
+
+                start = -1 ;
+                }
+
+            }
+
+        }
+
+
+    private static long[] intersect( final long[] a,
+                                     final long[] b )
+        {
+
+        final long[] both = new long[ Math.min( a.length, b.length ) ] ;
+        int count = 0 ;
+        int j = 0 ;
+
+        for ( final long position : a )
+            {
+
+            while ( ( j < b.length ) && ( b[ j ] < position ) )
+                {
+                j++ ;
+                }
+
+            if ( j == b.length )
+                {
+                break ;
+                }
+
+            if ( b[ j ] == position )
+                {
+                both[ count++ ] = position ;
+                }
+
+            }
+
+        return Arrays.copyOf( both, count ) ;
+
+        }
+
+
+    /**
+     * The in-memory terms of a segment that has no term file yet.
+     */
+    private static final class LiveTerms
+        {
+
+        private final ConcurrentHashMap<String, MessageHistory.OffsetList> terms ;
+        private boolean recovering ;
+        private boolean sealed ;
+
+
+        LiveTerms( final boolean recoveringInput )
+            {
+
+            this.terms = new ConcurrentHashMap<>() ;
+            this.recovering = recoveringInput ;
+
+            }
+
+        }
+
+    }
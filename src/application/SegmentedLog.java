@@ -0,0 +1,370 @@
+package application ;
+
+import java.io.BufferedReader ;
+import java.io.File ;
+import java.io.FileReader ;
+import java.io.IOException ;
+import java.io.PrintWriter ;
+import java.nio.charset.StandardCharsets ;
+import java.nio.file.Files ;
+import java.nio.file.StandardCopyOption ;
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.ScheduledExecutorService ;
+import java.util.concurrent.TimeUnit ;
+import java.util.concurrent.locks.ReentrantLock ;
+import java.util.function.IntConsumer ;
+
+/**
+ * The set of {@link HistorySegment}s making up the history log, and the manifest that records
+ * them. The original history file is segment 0, so an existing log is adopted in place and
+ * nothing changes on disk until the first rotation. Later segments sit beside it as
+ * {@code <name>.000001.txt} and so on, and {@code <name>.manifest} lists them all.
+ * <p>
+ * Configured with system properties: {@code chat.history.segmentBytes} and
+ * {@code chat.history.segmentMillis} bound the active segment, {@code chat.history.compress}
+ * gzips sealed segments, and {@code chat.history.retentionMillis} deletes sealed segments whose
+ * newest record is older than that.
+ *
+ * @version 1.1 2026-10-18 Logs through the asynchronous logger.
+ *
+ * @since 1.3
+ */
+final class SegmentedLog
+    {
+
+    private final File baseFile ;
+    private final File manifestFile ;
+    private final long segmentBytes ;
+    private final long segmentMillis ;
+    private final boolean compressSealed ;
+    private final long retentionMillis ;
+    private final IntConsumer onRetention ;
+    private final ReentrantLock manifestLock ;
+    private final ScheduledExecutorService maintenance ;
+    private volatile List<HistorySegment> segments ;
+
+
+    /**
+     * @param baseFileInput
+     *     The original history file, which becomes segment 0.
+     * @param onRetentionInput
+     *     Told the ID of the oldest remaining segment whenever retention deletes segments.
+     *
+     * @throws IOException
+     *     If the manifest exists but cannot be read.
+     *
+     * @since 1.3
+     */
+    SegmentedLog( final File baseFileInput,
+                  final IntConsumer onRetentionInput ) throws IOException
+        {
+
+        this.baseFile = baseFileInput.getAbsoluteFile() ;
+        this.manifestFile = new File( this.baseFile.getParentFile(),
+                                      baseName() + ".manifest" ) ;
+        this.segmentBytes = Long.getLong( "chat.history.segmentBytes", 64L << 20 ) ;
+        this.segmentMillis = Long.getLong( "chat.history.segmentMillis", 0 ) ;
+        this.compressSealed = Boolean.getBoolean( "chat.history.compress" ) ;
+        this.retentionMillis = Long.getLong( "chat.history.retentionMillis", 0 ) ;
+        this.onRetention = onRetentionInput ;
+        this.manifestLock = new ReentrantLock() ;
+        this.maintenance = Executors.newSingleThreadScheduledExecutor( task ->
+            {
+            final Thread thread = new Thread( task, "history-maintenance" ) ;
+            thread.setDaemon( true ) ;
+            return thread ;
+            } ) ;
+
+        this.segments = loadManifest() ;
+
+        if ( this.retentionMillis > 0 )
+            {
+            this.maintenance.scheduleWithFixedDelay( this::applyRetention,
+                                                     0,
+                                                     Math.max( 1000,
+                                                               Math.min( this.retentionMillis / 10,
+                                                                         TimeUnit.HOURS.toMillis( 1 ) ) ),
+                                                     TimeUnit.MILLISECONDS ) ;
+            }
+
+        }
+
+
+    /**
+     * @return Every live segment, oldest first. The list is a snapshot and never changes.
+     */
+    List<HistorySegment> segments()
+        {
+
+        return this.segments ;
+
+        }
+
+
+    HistorySegment active()
+        {
+
+        final List<HistorySegment> current = this.segments ;
+
+        return current.get( current.size() - 1 ) ;
+
+        }
+
+
+    /**
+     * @return The segment with this ID, or null if retention has deleted it.
+     */
+    HistorySegment segment( final int id )
+        {
+
+        for ( final HistorySegment segment : this.segments )
+            {
+
+            if ( segment.getID() == id )
+                {
+                return segment ;
+                }
+
+            }
+
+        return null ;
+
+        }
+
+
+    /**
+     * Seal the active segment and start a new one if it has outgrown its size or age bound.
+     * Only called by the history writer, between batches.
+     */
+    void rollIfNeeded( final long now ) throws IOException
+        {
+
+        final HistorySegment current = active() ;
+        final long first = current.getFirstMillis() ;
+        final boolean full = current.getSize() >= this.segmentBytes ;
+        final boolean old = ( this.segmentMillis > 0 ) && ( first >= 0 ) &&
+                            ( ( now - first ) >= this.segmentMillis ) ;
+
+        if ( ( current.getSize() == 0 ) || ( !full && !old ) )
+            {
+            return ;
+            }
+
+        final HistorySegment next = new HistorySegment( current.getID() + 1,
+                                                        segmentFile( current.getID() + 1 ),
+                                                        HistorySegment.State.ACTIVE,
+                                                        0,
+                                                        -1,
+                                                        -1 ) ;
+        next.resetUsers() ;
+        next.channel().truncate( 0 ) ;
+
+        this.manifestLock.lock() ;
+
+        try
+            {
+            current.seal() ;
+
+            final List<HistorySegment> rolled = new ArrayList<>( this.segments ) ;
+            rolled.add( next ) ;
+            this.segments = List.copyOf( rolled ) ;
+            saveManifest() ;
+            }
+        finally
+            {
+            this.manifestLock.unlock() ;
+            }
+
+        ServerLog.info( "Sealed history segment " + current.getID() +
+                        ", now writing " + next.getFile().getName() ) ;
+
+        if ( this.compressSealed )
+            {
+            this.maintenance.execute( () -> compress( current ) ) ;
+            }
+
+        if ( this.retentionMillis > 0 )
+            {
+            this.maintenance.execute( this::applyRetention ) ;
+            }
+
+        }
+
+
+    private void compress( final HistorySegment segment )
+        {
+
+        try
+            {
+            segment.compress() ;
+
+            this.manifestLock.lock() ;
+
+            try
+                {
+                saveManifest() ;
+                }
+            finally
+                {
+                this.manifestLock.unlock() ;
+                }
+
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Failed to compress history segment " + segment.getID() +
+                             ": " + e.getMessage() ) ;
+            }
+
+        }
+
+
+    private void applyRetention()
+        {
+
+        final long cutoff = System.currentTimeMillis() - this.retentionMillis ;
+        final List<HistorySegment> expired = new ArrayList<>() ;
+        final List<HistorySegment> kept ;
+
+        this.manifestLock.lock() ;
+
+        try
+            {
+            final List<HistorySegment> current = this.segments ;
+            int drop = 0 ;
+
+            while ( ( drop < ( current.size() - 1 ) ) &&
+                    ( current.get( drop ).getLastMillis() < cutoff ) )
+                {
+                expired.add( current.get( drop ) ) ;
+                drop++ ;
+                }
+
+            if ( expired.isEmpty() )
+                {
+                return ;
+                }
+
+            kept = List.copyOf( current.subList( drop, current.size() ) ) ;
+            this.segments = kept ;
+            saveManifest() ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Failed to save history manifest: " + e.getMessage() ) ;
+            return ;
+            }
+        finally
+            {
+            this.manifestLock.unlock() ;
+            }
+
+        this.onRetention.accept( kept.get( 0 ).getID() ) ;
+
+        for ( final HistorySegment segment : expired )
+            {
+            ServerLog.info( "Retention removed history segment " + segment.getID() ) ;
+            segment.delete() ;
+            }
+
+        }
+
+
+    private List<HistorySegment> loadManifest() throws IOException
+        {
+
+        final List<HistorySegment> loaded = new ArrayList<>() ;
+
+        if ( this.manifestFile.exists() )
+            {
+
+            try ( BufferedReader reader = new BufferedReader( new FileReader( this.manifestFile,
+                                                                              StandardCharsets.UTF_8 ) ) )
+                {
+                String line ;
+
+                while ( ( line = reader.readLine() ) != null )
+                    {
+
+                    if ( !line.isBlank() )
+                        {
+                        loaded.add( HistorySegment.fromManifestLine( line,
+                                                                     this.baseFile.getParentFile() ) ) ;
+                        }
+
+                    }
+
+                }
+
+            }
+
+        if ( loaded.isEmpty() )
+            {
+            // Adopt the original history file as it stands
+            final boolean empty = this.baseFile.length() == 0 ;
+            loaded.add( new HistorySegment( 0,
+                                            this.baseFile,
+                                            HistorySegment.State.ACTIVE,
+                                            this.baseFile.length(),
+                                            empty ? -1 : 0,
+                                            empty ? -1 : this.baseFile.lastModified() ) ) ;
+            }
+
+        return List.copyOf( loaded ) ;
+
+        }
+
+
+    /**
+     * Rewrite the manifest through a temporary file so a crash never leaves half of one. Callers
+     * hold {@code manifestLock}.
+     */
+    private void saveManifest() throws IOException
+        {
+
+        final File partial = new File( this.manifestFile.getPath() + ".tmp" ) ;
+
+        try ( PrintWriter out = new PrintWriter( partial, StandardCharsets.UTF_8 ) )
+            {
+
+            for ( final HistorySegment segment : this.segments )
+                {
+                out.println( segment.toManifestLine() ) ;
+                }
+
+            }
+
+        Files.move( partial.toPath(),
+                    this.manifestFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE ) ;
+
+        }
+
+
+    private File segmentFile( final int id )
+        {
+
+        final String name = this.baseFile.getName() ;
+        final int dot = name.lastIndexOf( '.' ) ;
+        final String extension = dot < 0 ? "" : name.substring( dot ) ;
+
+        return new File( this.baseFile.getParentFile(),
+                         baseName() + String.format( ".%06d", id ) + extension ) ;
+
+        }
+
+
+    private String baseName()
+        {
+
+        final String name = this.baseFile.getName() ;
+        final int dot = name.lastIndexOf( '.' ) ;
+
+        return dot < 0 ? name : name.substring( 0, dot ) ;
+
+        }
+
+    }
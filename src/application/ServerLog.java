@@ -0,0 +1,219 @@
+package application ;
+
+import java.io.PrintStream ;
+import java.io.PrintWriter ;
+import java.io.StringWriter ;
+import java.util.Locale ;
+import java.util.concurrent.ArrayBlockingQueue ;
+import java.util.concurrent.BlockingQueue ;
+import java.util.concurrent.atomic.LongAdder ;
+import java.util.function.Supplier ;
+
+/**
+ * The server's console output. Lines are handed to a background thread instead of being printed
+ * by the thread that produced them, so busy threads never queue on the console lock. If the
+ * queue of {@code chat.log.queueCapacity} lines is full, new lines are dropped and counted
+ * rather than waited for.
+ * <p>
+ * {@code chat.log.level} picks what is printed: {@code OFF}, {@code ERROR}, {@code INFO} (the
+ * default, connections and other events) or {@code DEBUG} (adds a line for every message), in
+ * any case. Anything else is reported on the error stream and read as {@code INFO}.
+ *
+ * @version 1.1 2026-10-18 Unknown levels fall back to INFO.
+ *
+ * @since 1.3
+ */
+final class ServerLog
+    {
+
+    /**
+     * How much is printed, each level including those before it.
+     *
+     * @since 1.3
+     */
+    enum Level
+        {
+        OFF,
+        ERROR,
+        INFO,
+        DEBUG
+        }
+
+    private static final Level LEVEL = configuredLevel() ;
+    private static final BlockingQueue<Line> LINES =
+        new ArrayBlockingQueue<>( Integer.getInteger( "chat.log.queueCapacity", 8192 ) ) ;
+    private static final LongAdder DROPPED = new LongAdder() ;
+
+    static
+        {
+        final Thread printer = new Thread( ServerLog::print, "server-log" ) ;
+        printer.setDaemon( true ) ;
+        printer.start() ;
+
+        // Lines still queued at exit, such as a failure to start, are printed before the JVM goes
+        Runtime.getRuntime().addShutdownHook( new Thread( ServerLog::flush, "server-log-flush" ) ) ;
+        }
+
+
+    private ServerLog()
+        {}
+
+
+    private static Level configuredLevel()
+        {
+
+        final String name = System.getProperty( "chat.log.level", "INFO" ) ;
+
+        try
+            {
+            return Level.valueOf( name.trim().toUpperCase( Locale.ROOT ) ) ;
+            }
+        catch ( final IllegalArgumentException e )
+            {
+            System.err.println( "Unknown chat.log.level " + name + ", logging at INFO" ) ;
+            return Level.INFO ;
+            }
+
+        }
+
+
+    static boolean isEnabled( final Level level )
+        {
+
+        return ( level != Level.OFF ) && ( level.compareTo( LEVEL ) <= 0 ) ;
+
+        }
+
+
+    /**
+     * A per-message line. {@code text} is only built if it will be printed.
+     */
+    static void debug( final Supplier<String> text )
+        {
+
+        if ( isEnabled( Level.DEBUG ) )
+            {
+            enqueue( System.out, text.get() ) ;
+            }
+
+        }
+
+
+    static void info( final String text )
+        {
+
+        if ( isEnabled( Level.INFO ) )
+            {
+            enqueue( System.out, text ) ;
+            }
+
+        }
+
+
+    static void error( final String text )
+        {
+
+        if ( isEnabled( Level.ERROR ) )
+            {
+            enqueue( System.err, text ) ;
+            }
+
+        }
+
+
+    /**
+     * An error line followed by the stack trace of {@code cause}.
+     */
+    static void error( final String text,
+                       final Throwable cause )
+        {
+
+        if ( isEnabled( Level.ERROR ) )
+            {
+            final StringWriter trace = new StringWriter() ;
+            cause.printStackTrace( new PrintWriter( trace ) ) ;
+            enqueue( System.err, text + System.lineSeparator() + trace.toString().stripTrailing() ) ;
+            }
+
+        }
+
+
+    /**
+     * @return Lines dropped so far because the printer could not keep up.
+     */
+    static long dropped()
+        {
+
+        return DROPPED.sum() ;
+
+        }
+
+
+    private static void enqueue( final PrintStream stream,
+                                 final String text )
+        {
+
+        if ( !LINES.offer( new Line( stream, text ) ) )
+            {
+            DROPPED.increment() ;
+            }
+
+        }
+
+
+    private static void flush()
+        {
+
+        Line line ;
+
+        while ( ( line = LINES.poll() ) != null )
+            {
+            line.stream.println( line.text ) ;
+            }
+
+        }
+
+
+    private static void print()
+        {
+
+        while ( true )
+            {
+
+            try
+                {
+                final Line line = LINES.take() ;
+                line.stream.println( line.text ) ;
+                }
+            catch ( final InterruptedException e )
+                {
+                return ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * A line waiting to be printed, and where to.
+     */
+    private static final class Line
+        {
+
+        private final PrintStream stream ;
+        private final String text ;
+
+
+        Line( final PrintStream streamInput,
+              final String textInput )
+            {
+
+            this.stream = streamInput ;
+            this.text = textInput ;
+
+            }
+
+        }
+
+    }
@@ -0,0 +1,711 @@
+package application ;
+
+import java.io.File ;
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.io.OutputStreamWriter ;
+import java.io.PrintWriter ;
+import java.lang.management.ManagementFactory ;
+import java.nio.charset.StandardCharsets ;
+import java.util.Locale ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.ScheduledExecutorService ;
+import java.util.concurrent.TimeUnit ;
+import java.util.concurrent.atomic.LongAdder ;
+import javax.management.JMException ;
+import javax.management.ObjectName ;
+
+/**
+ * Counters and latency histograms for one server. Recording is a {@link LongAdder} increment or a
+ * histogram bucket increment, so it is cheap from any number of threads at once.
+ * <p>
+ * The metrics are registered as a JMX MBean, and every {@code chat.metrics.intervalMillis}
+ * (60 seconds by default, 0 for never) a summary is logged, or appended as a row to the CSV file
+ * named by {@code chat.metrics.csv} if it is set.
+ *
+ * @version 1.5 2026-10-18 Counts replaced and idle sessions.
+ *
+ * @since 1.3
+ */
+final class ServerMetrics implements ServerMetricsMBean
+    {
+
+    private static final String CSV_HEADER = "timeMillis,connections,messagesReceived," +
+                                             "messagesPerSecond,messagesDelivered," +
+                                             "messagesQueuedOffline,bytesIn,bytesOut," +
+                                             "outboundQueuedBytes,slowConnections," +
+                                             "slowDisconnects,outboundDropped,outboundSpilled," +
+                                             "sessionsReplaced,idleSessionsReaped," +
+                                             "historyAppendP50Micros," +
+                                             "historyAppendP99Micros,historyReadP50Micros," +
+                                             "historyReadP99Micros,pageReadP99Micros," +
+                                             "historyCacheHits,historyCacheMisses," +
+                                             "historyCacheBytes,searches,searchP99Micros," +
+                                             "clusterMessagesForwarded,clusterBatches," +
+                                             "clusterBytesSent,clusterMessagesReceived," +
+                                             "logLinesDropped" ;
+
+    private final long startNanos ;
+    private final LongAdder connectionsOpened ;
+    private final LongAdder connectionsClosed ;
+    private final LongAdder messagesReceived ;
+    private final LongAdder messagesDelivered ;
+    private final LongAdder messagesQueuedOffline ;
+    private final LongAdder bytesIn ;
+    private final LongAdder bytesOut ;
+    private final LongAdder outboundQueuedBytes ;
+    private final LongAdder slowConnections ;
+    private final LongAdder slowDisconnects ;
+    private final LongAdder outboundDropped ;
+    private final LongAdder outboundSpilled ;
+    private final LongAdder sessionsReplaced ;
+    private final LongAdder idleSessionsReaped ;
+    private final LongAdder historyRequests ;
+    private final LatencyHistogram historyAppend ;
+    private final LatencyHistogram historyRead ;
+    private final LatencyHistogram pageRead ;
+    private final LongAdder searches ;
+    private final LatencyHistogram search ;
+    private final LongAdder clusterMessagesForwarded ;
+    private final LongAdder clusterBatches ;
+    private final LongAdder clusterBytesSent ;
+    private final LongAdder clusterMessagesReceived ;
+    private final HistoryCache historyCache ;
+    private volatile double messagesPerSecond = -1 ;
+    private long lastMessages ;
+    private long lastDumpNanos ;
+
+
+    /**
+     * @param historyCacheInput
+     *     The server's history cache, whose own counters are reported alongside these.
+     */
+    ServerMetrics( final HistoryCache historyCacheInput )
+        {
+
+        this.startNanos = System.nanoTime() ;
+        this.connectionsOpened = new LongAdder() ;
+        this.connectionsClosed = new LongAdder() ;
+        this.messagesReceived = new LongAdder() ;
+        this.messagesDelivered = new LongAdder() ;
+        this.messagesQueuedOffline = new LongAdder() ;
+        this.bytesIn = new LongAdder() ;
+        this.bytesOut = new LongAdder() ;
+        this.outboundQueuedBytes = new LongAdder() ;
+        this.slowConnections = new LongAdder() ;
+        this.slowDisconnects = new LongAdder() ;
+        this.outboundDropped = new LongAdder() ;
+        this.outboundSpilled = new LongAdder() ;
+        this.sessionsReplaced = new LongAdder() ;
+        this.idleSessionsReaped = new LongAdder() ;
+        this.historyRequests = new LongAdder() ;
+        this.historyAppend = new LatencyHistogram() ;
+        this.historyRead = new LatencyHistogram() ;
+        this.pageRead = new LatencyHistogram() ;
+        this.searches = new LongAdder() ;
+        this.search = new LatencyHistogram() ;
+        this.clusterMessagesForwarded = new LongAdder() ;
+        this.clusterBatches = new LongAdder() ;
+        this.clusterBytesSent = new LongAdder() ;
+        this.clusterMessagesReceived = new LongAdder() ;
+        this.historyCache = historyCacheInput ;
+        this.lastDumpNanos = this.startNanos ;
+
+        }
+
+
+    /**
+     * Register with JMX and start the periodic dump.
+     *
+     * @param port
+     *     The server's port, which tells servers in one JVM apart.
+     */
+    void start( final int port )
+        {
+
+        try
+            {
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean( this,
+                                             new ObjectName( "application:type=ServerMetrics,port=" +
+                                                             port ) ) ;
+            }
+        catch ( final JMException e )
+            {
+            ServerLog.error( "Could not register server metrics with JMX: " + e.getMessage() ) ;
+            }
+
+        final long interval = Long.getLong( "chat.metrics.intervalMillis", 60_000 ) ;
+
+        if ( interval <= 0 )
+            {
+            return ;
+            }
+
+        final String csv = System.getProperty( "chat.metrics.csv" ) ;
+        final ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor( task ->
+            {
+            final Thread thread = new Thread( task, "metrics-dump" ) ;
+            thread.setDaemon( true ) ;
+            return thread ;
+            } ) ;
+
+        dumper.scheduleAtFixedRate( () -> dump( csv == null ? null : new File( csv ) ),
+                                    interval,
+                                    interval,
+                                    TimeUnit.MILLISECONDS ) ;
+
+        }
+
+
+    void connectionOpened()
+        {
+
+        this.connectionsOpened.increment() ;
+
+        }
+
+
+    void connectionClosed()
+        {
+
+        this.connectionsClosed.increment() ;
+
+        }
+
+
+    void messageReceived()
+        {
+
+        this.messagesReceived.increment() ;
+
+        }
+
+
+    void messagesDelivered( final int count )
+        {
+
+        this.messagesDelivered.add( count ) ;
+
+        }
+
+
+    void messageQueuedOffline()
+        {
+
+        this.messagesQueuedOffline.increment() ;
+
+        }
+
+
+    void bytesIn( final int count )
+        {
+
+        this.bytesIn.add( count ) ;
+
+        }
+
+
+    void bytesOut( final int count )
+        {
+
+        this.bytesOut.add( count ) ;
+
+        }
+
+
+    /**
+     * @param delta
+     *     Bytes newly queued on an outbound channel, or negative for bytes written or dropped.
+     */
+    void outboundQueued( final int delta )
+        {
+
+        this.outboundQueuedBytes.add( delta ) ;
+
+        }
+
+
+    /**
+     * @param delta
+     *     1 as a connection becomes slow, -1 as it recovers or closes.
+     */
+    void slowConnection( final int delta )
+        {
+
+        this.slowConnections.add( delta ) ;
+
+        }
+
+
+    void slowDisconnected()
+        {
+
+        this.slowDisconnects.increment() ;
+
+        }
+
+
+    void outboundDropped()
+        {
+
+        this.outboundDropped.increment() ;
+
+        }
+
+
+    void outboundSpilled()
+        {
+
+        this.outboundSpilled.increment() ;
+
+        }
+
+
+    void sessionReplaced()
+        {
+
+        this.sessionsReplaced.increment() ;
+
+        }
+
+
+    void sessionReaped()
+        {
+
+        this.idleSessionsReaped.increment() ;
+
+        }
+
+
+    void historyAppended( final long nanos )
+        {
+
+        this.historyAppend.record( nanos ) ;
+
+        }
+
+
+    void historyRead( final long nanos )
+        {
+
+        this.historyRequests.increment() ;
+        this.historyRead.record( nanos ) ;
+
+        }
+
+
+    void pageRead( final long nanos )
+        {
+
+        this.pageRead.record( nanos ) ;
+
+        }
+
+
+    void searched( final long nanos )
+        {
+
+        this.searches.increment() ;
+        this.search.record( nanos ) ;
+
+        }
+
+
+    /**
+     * @param messages
+     *     Messages in a batch written to another node.
+     * @param bytes
+     *     The size of the batch.
+     */
+    void clusterBatchSent( final int messages,
+                           final int bytes )
+        {
+
+        this.clusterMessagesForwarded.add( messages ) ;
+        this.clusterBatches.increment() ;
+        this.clusterBytesSent.add( bytes ) ;
+
+        }
+
+
+    void clusterMessageReceived()
+        {
+
+        this.clusterMessagesReceived.increment() ;
+
+        }
+
+
+    @Override
+    public long getConnectionsActive()
+        {
+
+        return this.connectionsOpened.sum() - this.connectionsClosed.sum() ;
+
+        }
+
+
+    @Override
+    public long getConnectionsOpened()
+        {
+
+        return this.connectionsOpened.sum() ;
+
+        }
+
+
+    @Override
+    public long getMessagesReceived()
+        {
+
+        return this.messagesReceived.sum() ;
+
+        }
+
+
+    @Override
+    public double getMessagesPerSecond()
+        {
+
+        final double rate = this.messagesPerSecond ;
+
+        return rate >= 0
+            ? rate
+            : ( getMessagesReceived() * 1e9 ) /
+                 Math.max( 1, System.nanoTime() - this.startNanos ) ;
+
+        }
+
+
+    @Override
+    public long getMessagesDelivered()
+        {
+
+        return this.messagesDelivered.sum() ;
+
+        }
+
+
+    @Override
+    public long getMessagesQueuedOffline()
+        {
+
+        return this.messagesQueuedOffline.sum() ;
+
+        }
+
+
+    @Override
+    public long getBytesIn()
+        {
+
+        return this.bytesIn.sum() ;
+
+        }
+
+
+    @Override
+    public long getBytesOut()
+        {
+
+        return this.bytesOut.sum() ;
+
+        }
+
+
+    @Override
+    public long getOutboundQueuedBytes()
+        {
+
+        return this.outboundQueuedBytes.sum() ;
+
+        }
+
+
+    @Override
+    public long getSlowConnections()
+        {
+
+        return this.slowConnections.sum() ;
+
+        }
+
+
+    @Override
+    public long getSlowDisconnects()
+        {
+
+        return this.slowDisconnects.sum() ;
+
+        }
+
+
+    @Override
+    public long getOutboundDropped()
+        {
+
+        return this.outboundDropped.sum() ;
+
+        }
+
+
+    @Override
+    public long getOutboundSpilled()
+        {
+
+        return this.outboundSpilled.sum() ;
+
+        }
+
+
+    @Override
+    public long getSessionsReplaced()
+        {
+
+        return this.sessionsReplaced.sum() ;
+
+        }
+
+
+    @Override
+    public long getIdleSessionsReaped()
+        {
+
+        return this.idleSessionsReaped.sum() ;
+
+        }
+
+
+    @Override
+    public long getHistoryRequests()
+        {
+
+        return this.historyRequests.sum() ;
+
+        }
+
+
+    @Override
+    public double getHistoryAppendP50Micros()
+        {
+
+        return this.historyAppend.percentiles( 0.50 )[ 0 ] / 1e3 ;
+
+        }
+
+
+    @Override
+    public double getHistoryAppendP99Micros()
+        {
+
+        return this.historyAppend.percentiles( 0.99 )[ 0 ] / 1e3 ;
+
+        }
+
+
+    @Override
+    public double getHistoryReadP50Micros()
+        {
+
+        return this.historyRead.percentiles( 0.50 )[ 0 ] / 1e3 ;
+
+        }
+
+
+    @Override
+    public double getHistoryReadP99Micros()
+        {
+
+        return this.historyRead.percentiles( 0.99 )[ 0 ] / 1e3 ;
+
+        }
+
+
+    @Override
+    public double getPageReadP99Micros()
+        {
+
+        return this.pageRead.percentiles( 0.99 )[ 0 ] / 1e3 ;
+
+        }
+
+
+    @Override
+    public long getHistoryCacheHits()
+        {
+
+        return this.historyCache.getHits() ;
+
+        }
+
+
+    @Override
+    public long getHistoryCacheMisses()
+        {
+
+        return this.historyCache.getMisses() ;
+
+        }
+
+
+    @Override
+    public long getHistoryCacheEvictions()
+        {
+
+        return this.historyCache.getEvictions() ;
+
+        }
+
+
+    @Override
+    public long getHistoryCacheBytes()
+        {
+
+        return this.historyCache.getBytes() ;
+
+        }
+
+
+    @Override
+    public long getSearches()
+        {
+
+        return this.searches.sum() ;
+
+        }
+
+
+    @Override
+    public double getSearchP99Micros()
+        {
+
+        return this.search.percentiles( 0.99 )[ 0 ] / 1e3 ;
+
+        }
+
+
+    @Override
+    public long getClusterMessagesForwarded()
+        {
+
+        return this.clusterMessagesForwarded.sum() ;
+
+        }
+
+
+    @Override
+    public long getClusterBatches()
+        {
+
+        return this.clusterBatches.sum() ;
+
+        }
+
+
+    @Override
+    public long getClusterBytesSent()
+        {
+
+        return this.clusterBytesSent.sum() ;
+
+        }
+
+
+    @Override
+    public long getClusterMessagesReceived()
+        {
+
+        return this.clusterMessagesReceived.sum() ;
+
+        }
+
+
+    @Override
+    public long getLogLinesDropped()
+        {
+
+        return ServerLog.dropped() ;
+
+        }
+
+
+    /**
+     * Work out the message rate since the last dump, then log the metrics or append them to
+     * {@code csv}. Only called by the dump thread.
+     */
+    private void dump( final File csv )
+        {
+
+        final long now = System.nanoTime() ;
+        final long messages = getMessagesReceived() ;
+
+        this.messagesPerSecond = ( ( messages - this.lastMessages ) * 1e9 ) /
+                                 Math.max( 1, now - this.lastDumpNanos ) ;
+        this.lastMessages = messages ;
+        this.lastDumpNanos = now ;
+
+        final long[] append = this.historyAppend.percentiles( 0.50, 0.99 ) ;
+        final long[] read = this.historyRead.percentiles( 0.50, 0.99 ) ;
+        final String row = String.format( Locale.ROOT,
+                                          "%d,%d,%d,%.1f,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d," +
+                                             "%.1f,%.1f,%.1f,%.1f,%.1f," +
+                                             "%d,%d,%d,%d,%.1f,%d,%d,%d,%d,%d",
+                                          System.currentTimeMillis(),
+                                          getConnectionsActive(),
+                                          messages,
+                                          this.messagesPerSecond,
+                                          getMessagesDelivered(),
+                                          getMessagesQueuedOffline(),
+                                          getBytesIn(),
+                                          getBytesOut(),
+                                          getOutboundQueuedBytes(),
+                                          getSlowConnections(),
+                                          getSlowDisconnects(),
+                                          getOutboundDropped(),
+                                          getOutboundSpilled(),
+                                          getSessionsReplaced(),
+                                          getIdleSessionsReaped(),
+                                          append[ 0 ] / 1e3,
+                                          append[ 1 ] / 1e3,
+                                          read[ 0 ] / 1e3,
+                                          read[ 1 ] / 1e3,
+                                          getPageReadP99Micros(),
+                                          getHistoryCacheHits(),
+                                          getHistoryCacheMisses(),
+                                          getHistoryCacheBytes(),
+                                          getSearches(),
+                                          getSearchP99Micros(),
+                                          getClusterMessagesForwarded(),
+                                          getClusterBatches(),
+                                          getClusterBytesSent(),
+                                          getClusterMessagesReceived(),
+                                          ServerLog.dropped() ) ;
+
+        if ( csv == null )
+            {
+            ServerLog.info( "Metrics " + CSV_HEADER + System.lineSeparator() + "Metrics " + row ) ;
+            return ;
+            }
+
+        final boolean created = !csv.exists() ;
+
+        try ( PrintWriter out = new PrintWriter(
+            new OutputStreamWriter( new FileOutputStream( csv, true ), StandardCharsets.UTF_8 ) ) )
+            {
+
+            if ( created )
+                {
+                out.println( CSV_HEADER ) ;
+                }
+
+            out.println( row ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Could not write metrics to " + csv + ": " + e.getMessage() ) ;
+            }
+
+        }
+
+    }
@@ -0,0 +1,146 @@
+package application ;
+
+/**
+ * The server metrics as seen through JMX, under {@code application:type=ServerMetrics,port=<port>}.
+ * Counts are totals since the server started; latencies are in microseconds.
+ *
+ * @version 1.5 2026-10-18 Counts replaced and idle sessions.
+ *
+ * @since 1.3
+ */
+public interface ServerMetricsMBean
+    {
+
+    long getConnectionsActive() ;
+
+
+    long getConnectionsOpened() ;
+
+
+    long getMessagesReceived() ;
+
+
+    /**
+     * @return Messages received per second over the last dump interval, or since the start if
+     *     periodic dumps are off.
+     */
+    double getMessagesPerSecond() ;
+
+
+    long getMessagesDelivered() ;
+
+
+    long getMessagesQueuedOffline() ;
+
+
+    long getBytesIn() ;
+
+
+    long getBytesOut() ;
+
+
+    /**
+     * @return Bytes encoded for connections but not yet written to their sockets.
+     */
+    long getOutboundQueuedBytes() ;
+
+
+    /**
+     * @return Connections holding more than half their outbound bound, or spilling, right now.
+     */
+    long getSlowConnections() ;
+
+
+    /**
+     * @return Connections closed for overflowing their outbound queue or not reading in time.
+     */
+    long getSlowDisconnects() ;
+
+
+    /**
+     * @return Queued sends discarded to make room under the drop oldest policy.
+     */
+    long getOutboundDropped() ;
+
+
+    /**
+     * @return Messages held offline because their recipient's outbound queue was full.
+     */
+    long getOutboundSpilled() ;
+
+
+    /**
+     * @return Sessions closed because their user connected again.
+     */
+    long getSessionsReplaced() ;
+
+
+    /**
+     * @return Sessions closed for sending nothing for {@code chat.session.idleTimeoutMillis}.
+     */
+    long getIdleSessionsReaped() ;
+
+
+    long getHistoryRequests() ;
+
+
+    double getHistoryAppendP50Micros() ;
+
+
+    double getHistoryAppendP99Micros() ;
+
+
+    double getHistoryReadP50Micros() ;
+
+
+    double getHistoryReadP99Micros() ;
+
+
+    double getPageReadP99Micros() ;
+
+
+    /**
+     * @return REQs answered from the history cache without reading the log.
+     */
+    long getHistoryCacheHits() ;
+
+
+    long getHistoryCacheMisses() ;
+
+
+    long getHistoryCacheEvictions() ;
+
+
+    /**
+     * @return The estimated heap held by the history cache.
+     */
+    long getHistoryCacheBytes() ;
+
+
+    long getSearches() ;
+
+
+    double getSearchP99Micros() ;
+
+
+    /**
+     * @return Messages this node forwarded to the nodes their recipients are connected to.
+     */
+    long getClusterMessagesForwarded() ;
+
+
+    /**
+     * @return Writes to other nodes; forwarded messages per batch is the measure of batching.
+     */
+    long getClusterBatches() ;
+
+
+    long getClusterBytesSent() ;
+
+
+    long getClusterMessagesReceived() ;
+
+
+    long getLogLinesDropped() ;
+
+    }
@@ -0,0 +1,51 @@
+package application ;
+
+/**
+ * How {@link TCPServer} drives its client sockets.
+ *
+ * @version 1.1 2026-10-18 Added the virtual thread mode.
+ *
+ * @since 1.3
+ */
+public enum ServerMode
+    {
+
+    /**
+     * One blocking {@code ClientHandler} thread per connected client.
+     */
+    BLOCKING,
+
+    /**
+     * One blocking {@code ClientHandler} per client, each run on its own virtual thread.
+     */
+    VIRTUAL,
+
+    /**
+     * A small fixed pool of selector threads multiplexing non-blocking channels.
+     */
+    NIO ;
+
+
+    /**
+     * Reads the mode from the {@code chat.server.mode} system property, defaulting to
+     * {@link #BLOCKING}.
+     *
+     * @return The configured mode.
+     *
+     * @since 1.3
+     */
+    public static ServerMode fromSystemProperty()
+        {
+
+        final String value = System.getProperty( "chat.server.mode" ) ;
+
+        if ( value == null )
+            {
+            return BLOCKING ;
+            }
+
+        return valueOf( value.trim().toUpperCase() ) ;
+
+        }
+
+    }
@@ -0,0 +1,297 @@
+package application ;
+
+import java.util.List ;
+import java.util.concurrent.ConcurrentHashMap ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.ScheduledExecutorService ;
+import java.util.concurrent.TimeUnit ;
+import java.util.concurrent.atomic.AtomicLong ;
+import java.util.function.Consumer ;
+
+/**
+ * The users connected to this server, one {@link Session} each. Lookups by user or by connection
+ * are single map reads without locks. A user that connects again replaces its old session in one
+ * step, so routing never reaches the old connection, and a connection is forgotten by the
+ * connection itself, whatever IDs it used.
+ * <p>
+ * If {@code chat.session.idleTimeoutMillis} is set, sessions that sent nothing for that long are
+ * handed to the server to close.
+ *
+ * @version 1.0 2026-10-18 Session registry.
+ *
+ * @since 1.3
+ */
+final class SessionRegistry
+    {
+
+    private final ConcurrentHashMap<String, Session> sessions ;
+    private final ConcurrentHashMap<ClientConnection, Session> byConnection ;
+    private final AtomicLong version ;
+    private final long idleTimeoutMillis ;
+    private volatile Snapshot snapshot ;
+
+
+    /**
+     * @param idleInput
+     *     Told every session found idle, which it should close.
+     *
+     * @since 1.3
+     */
+    SessionRegistry( final Consumer<Session> idleInput )
+        {
+
+        this.sessions = new ConcurrentHashMap<>() ;
+        this.byConnection = new ConcurrentHashMap<>() ;
+        this.version = new AtomicLong() ;
+        this.idleTimeoutMillis = Long.getLong( "chat.session.idleTimeoutMillis", 0 ) ;
+        this.snapshot = new Snapshot( 0, List.of() ) ;
+
+        if ( this.idleTimeoutMillis > 0 )
+            {
+            final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+                task ->
+                    {
+                    final Thread thread = new Thread( task, "session-reaper" ) ;
+                    thread.setDaemon( true ) ;
+                    return thread ;
+                    } ) ;
+            final long period = Math.max( 1000, this.idleTimeoutMillis / 4 ) ;
+
+            reaper.scheduleWithFixedDelay( () -> reap( idleInput ),
+                                           period,
+                                           period,
+                                           TimeUnit.MILLISECONDS ) ;
+            }
+
+        }
+
+
+    /**
+     * @return The session of {@code userID}, or null if it is not connected here.
+     */
+    Session get( final String userID )
+        {
+
+        return this.sessions.get( userID ) ;
+
+        }
+
+
+    /**
+     * @return The connection of {@code userID}, or null if it is not connected here.
+     */
+    ClientConnection connection( final String userID )
+        {
+
+        final Session session = this.sessions.get( userID ) ;
+
+        return session == null ? null : session.connection ;
+
+        }
+
+
+    /**
+     * @return The session {@code connection} registered last, or null if it has none.
+     */
+    Session sessionOf( final ClientConnection connection )
+        {
+
+        return this.byConnection.get( connection ) ;
+
+        }
+
+
+    /**
+     * Start a session for {@code userID} on {@code connection}, replacing any it already had.
+     *
+     * @return The session replaced, whose connection is now stale, or null.
+     */
+    Session add( final String userID,
+                 final ClientConnection connection )
+        {
+
+        final Session session = new Session( userID, connection ) ;
+        final Session replaced = this.sessions.put( userID, session ) ;
+
+        if ( replaced != null )
+            {
+            this.byConnection.remove( replaced.connection, replaced ) ;
+            }
+
+        this.byConnection.put( connection, session ) ;
+        this.version.incrementAndGet() ;
+
+        return replaced ;
+
+        }
+
+
+    /**
+     * Forget {@code session}, unless it has already been replaced.
+     *
+     * @return False if the session's user has since connected again, or was already removed.
+     */
+    boolean remove( final Session session )
+        {
+
+        this.byConnection.remove( session.connection, session ) ;
+
+        if ( !this.sessions.remove( session.userID, session ) )
+            {
+            return false ;
+            }
+
+        this.version.incrementAndGet() ;
+
+        return true ;
+
+        }
+
+
+    /**
+     * @return Every session, in no particular order. The list is shared by every caller until the
+     *     sessions change, and never changes itself.
+     */
+    List<Session> snapshot()
+        {
+
+        final Snapshot current = this.snapshot ;
+        final long now = this.version.get() ;
+
+        if ( current.version == now )
+            {
+            return current.sessions ;
+            }
+
+        // Built from a version read first, so a change made meanwhile makes it stale, not lost
+        final Snapshot rebuilt = new Snapshot( now, List.copyOf( this.sessions.values() ) ) ;
+        this.snapshot = rebuilt ;
+
+        return rebuilt.sessions ;
+
+        }
+
+
+    private void reap( final Consumer<Session> idle )
+        {
+
+        final long cutoff = System.currentTimeMillis() - this.idleTimeoutMillis ;
+
+        for ( final Session session : snapshot() )
+            {
+
+            if ( session.lastActivity < cutoff )
+                {
+                idle.accept( session ) ;
+                }
+
+            }
+
+        }
+
+
+    private static final class Snapshot
+        {
+
+        private final long version ;
+        private final List<Session> sessions ;
+
+
+        Snapshot( final long versionInput,
+                  final List<Session> sessionsInput )
+            {
+
+            this.version = versionInput ;
+            this.sessions = sessionsInput ;
+
+            }
+
+        }
+
+
+    /**
+     * One user's connection to this server, and what it has been doing.
+     */
+    static final class Session
+        {
+
+        private final String userID ;
+        private final ClientConnection connection ;
+        private final long connectedAt ;
+        private volatile long lastActivity ;
+
+
+        private Session( final String userIDInput,
+                         final ClientConnection connectionInput )
+            {
+
+            this.userID = userIDInput ;
+            this.connection = connectionInput ;
+            this.connectedAt = System.currentTimeMillis() ;
+            this.lastActivity = this.connectedAt ;
+
+            }
+
+
+        String getUserID()
+            {
+
+            return this.userID ;
+
+            }
+
+
+        ClientConnection getConnection()
+            {
+
+            return this.connection ;
+
+            }
+
+
+        /**
+         * @return When the session started, in epoch milliseconds.
+         */
+        long getConnectedAt()
+            {
+
+            return this.connectedAt ;
+
+            }
+
+
+        /**
+         * @return When the user last sent a frame, in epoch milliseconds.
+         */
+        long getLastActivity()
+            {
+
+            return this.lastActivity ;
+
+            }
+
+
+        /**
+         * @return Bytes waiting to be written to the user.
+         */
+        int getQueuedBytes()
+            {
+
+            return this.connection.queuedBytes() ;
+
+            }
+
+
+        /**
+         * Note that the user sent a frame.
+         */
+        void touch()
+            {
+
+            this.lastActivity = System.currentTimeMillis() ;
+
+            }
+
+        }
+
+    }
@@ -0,0 +1,51 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.util.concurrent.ConcurrentHashMap ;
+
+/**
+ * A frame written to many connections. It is encoded once for each kind of encoder it meets and
+ * the same bytes are copied to every other connection of that kind, so it may only wrap frames
+ * whose encoding does not depend on what a connection has already been sent.
+ *
+ * @version 1.0 2026-10-18 Encode-once fan-out frames.
+ *
+ * @since 1.3
+ */
+final class SharedFrame implements ClientConnection.Frame
+    {
+
+    private final ClientConnection.Frame frame ;
+    private final ConcurrentHashMap<Class<?>, byte[]> encoded ;
+
+
+    /**
+     * @param frameInput
+     *     Writes the frame through whichever encoder it is given first.
+     *
+     * @since 1.3
+     */
+    SharedFrame( final ClientConnection.Frame frameInput )
+        {
+
+        this.frame = frameInput ;
+        this.encoded = new ConcurrentHashMap<>( 2 ) ;
+
+        }
+
+
+    @Override
+    public void encode( final FrameEncoder encoder,
+                        final ByteArrayOutputStream out )
+        {
+
+        out.writeBytes( this.encoded.computeIfAbsent( encoder.getClass(), type ->
+            {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream() ;
+            this.frame.encode( encoder, bytes ) ;
+            return bytes.toByteArray() ;
+            } ) ) ;
+
+        }
+
+    }
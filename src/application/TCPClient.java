@@ -2,35 +2,63 @@
 package application ;
 
 import java.io.BufferedReader ;
-import java.io.BufferedWriter ;
 import java.io.IOException ;
+import java.io.InputStream ;
 import java.io.InputStreamReader ;
-import java.io.OutputStreamWriter ;
+import java.io.InterruptedIOException ;
 import java.net.Socket ;
+import java.nio.ByteBuffer ;
+import java.nio.charset.StandardCharsets ;
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.ArrayBlockingQueue ;
+import java.util.concurrent.BlockingQueue ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.ConcurrentHashMap ;
 import java.util.concurrent.ConcurrentLinkedQueue ;
+import java.util.concurrent.ExecutionException ;
+import java.util.concurrent.TimeUnit ;
+import java.util.concurrent.TimeoutException ;
+import java.util.concurrent.atomic.AtomicLong ;
 
 /**
  * @author Benjamin, Zach
  *
- * @version 1.3 2025-11-06 Removed some bugs relating to history requests.
+ * @version 1.15 2026-10-18 Documents that a search covers only this user's records.
  *
  * @since 1.0
  */
 public class TCPClient implements Runnable
     {
+
+    /**
+     * The most queued frames encoded into one write.
+     */
+    private static final int MAX_FRAMES_PER_WRITE = 256 ;
+
     private final String clientID ;
     private final Socket clientSocket ;
-    private final BufferedReader in ;
-    private final BufferedWriter out ;
+    private final WireProtocol protocol ;
+    private final InputStream in ;
+    private final OutboundChannel out ;
     private final Thread thread ;
+    private final BlockingQueue<ClientConnection.Frame> outgoing ;
+    private final Thread writer ;
     private volatile boolean running = true ; // to ensure out of order execution does not
                                               // contaminate this value, it is marked as volatile
-    private volatile boolean req = false ;
     private final ConcurrentLinkedQueue<String> messageQueue ;
-    private final ConcurrentLinkedQueue<String> messageConfirmation ;
+    private final AtomicLong nextSequence ;
+    private final ConcurrentHashMap<Long, UnconfirmedMessage> unconfirmed ;
+    private final ConcurrentHashMap<String, Integer> unconfirmedBodies ;
+    private final AtomicLong nextRequest ;
+    private final ConcurrentHashMap<Long, PendingHistory> pendingHistory ;
+    private final long requestTimeoutMillis ;
+    private final ConcurrentHashMap<String, Long> pageCursors ;
 
 
     /**
+     * Connects with the protocol named by the {@code chat.protocol} system property.
+     *
      * @since 1.0
      */
     public TCPClient( final String id,
@@ -38,12 +66,43 @@ public class TCPClient implements Runnable
                       final int port ) throws IOException
         {
 
+        this( id, hostIP, port, WireProtocol.fromSystemProperty() ) ;
+
+        }
+
+
+    /**
+     * @param protocol
+     *     The framing to use. A binary session starts with a hello that the server echoes.
+     *
+     * @since 1.5
+     */
+    public TCPClient( final String id,
+                      final String hostIP,
+                      final int port,
+                      final WireProtocol protocol ) throws IOException
+        {
+
         this.clientID = id ;
         this.clientSocket = new Socket( hostIP, port ) ;
-        this.in = new BufferedReader( new InputStreamReader( this.clientSocket.getInputStream() ) ) ;
-        this.out = new BufferedWriter( new OutputStreamWriter( this.clientSocket.getOutputStream() ) ) ;
+        this.protocol = protocol ;
+        this.in = this.clientSocket.getInputStream() ;
+        this.out = new OutboundChannel( this.clientSocket.getOutputStream(),
+                                        protocol.newEncoder() ) ;
         this.messageQueue = new ConcurrentLinkedQueue<>() ;
-        this.messageConfirmation = new ConcurrentLinkedQueue<>() ;
+        this.nextSequence = new AtomicLong() ;
+        this.unconfirmed = new ConcurrentHashMap<>() ;
+        this.unconfirmedBodies = new ConcurrentHashMap<>() ;
+        this.nextRequest = new AtomicLong() ;
+        this.pendingHistory = new ConcurrentHashMap<>() ;
+        this.requestTimeoutMillis = Long.getLong( "chat.client.requestTimeoutMillis", 30_000 ) ;
+        this.pageCursors = new ConcurrentHashMap<>() ;
+        this.outgoing = new ArrayBlockingQueue<>(
+            Integer.getInteger( "chat.client.sendQueueCapacity", 1024 ) ) ;
+        this.out.send( ( encoder, bytes ) -> encoder.hello( bytes ) ) ;
+        this.writer = new Thread( this::writeQueued, "TCPClient writer " + id ) ;
+        this.writer.setDaemon( true ) ;
+        this.writer.start() ;
         this.thread = new Thread( this ) ;
         this.thread.start() ;
 
@@ -59,33 +118,61 @@ public class TCPClient implements Runnable
         try
             {
 
+            if ( this.protocol == WireProtocol.BINARY )
+                {
+                readBinary() ;
+                stop() ;
+                return ;
+                }
+
+            final BufferedReader reader = new BufferedReader( new InputStreamReader( this.in,
+                                                                                     StandardCharsets.UTF_8 ) ) ;
+
             while ( this.running )
                 {
-                final String sender = this.in.readLine() ;
-                final String reciever = this.in.readLine() ;
-                final String message = this.in.readLine() ;
+                final String sender = reader.readLine() ;
 
-                if ( sender.equals( this.clientID ) )
+                if ( sender == null )
                     {
-                    this.messageConfirmation.remove( message ) ;
+                    break ;
                     }
-                else if ( sender.endsWith( "REQ" ) )
+
+                // A REQ answer is a two line header, the records, then a lone REQ line
+                if ( isHistoryReply( sender ) )
                     {
-                    String line = "" ;
+                    reader.readLine() ;
+
+                    final List<String> records = new ArrayList<>() ;
+                    String line ;
 
-                    while ( true )
+                    while ( ( ( line = reader.readLine() ) != null ) && !"REQ".equals( line ) )
                         {
-                        line = this.in.readLine() ;
+                        records.add( line ) ;
+                        }
 
-                        if ( "REQ".equals( line ) )
-                            {
-                            break ;
-                            }
+                    completeHistory( sequenceAfter( sender,
+                                                    this.clientID + TextFrameEncoder.REQUEST_MARK +
+                                                       TextFrameEncoder.SEQUENCE_MARK ),
+                                     records ) ;
+                    continue ;
+                    }
 
-                        this.messageQueue.add( line ) ;
-                        }
+                final String reciever = reader.readLine() ;
+                final String message = reader.readLine() ;
+                final long confirmed = sequenceAfter( sender,
+                                                      this.clientID + TextFrameEncoder.SEQUENCE_MARK ) ;
 
-                    this.req = false ;
+                if ( TextFrameEncoder.PAGE_LINE.equals( sender ) )
+                    {
+                    this.messageQueue.add( message ) ;
+                    }
+                else if ( TextFrameEncoder.PAGE_END_LINE.equals( sender ) )
+                    {
+                    pageEnd( reciever, message ) ;
+                    }
+                else if ( confirmed > 0 )
+                    {
+                    confirm( confirmed ) ;
                     }
                 else
                     {
@@ -94,6 +181,8 @@ public class TCPClient implements Runnable
 
                 }
 
+            stop() ;
+
             }
         catch ( final IOException e )
             {
@@ -104,6 +193,109 @@ public class TCPClient implements Runnable
         }
 
 
+    /**
+     * Reads binary frames until the connection closes.
+     */
+    private void readBinary() throws IOException
+        {
+
+        final FrameDecoder decoder = this.protocol.newDecoder() ;
+        final FrameDecoder.Listener listener = new BinaryListener() ;
+        final byte[] bytes = new byte[ 8192 ] ;
+        int read ;
+
+        while ( this.running && ( ( read = this.in.read( bytes ) ) >= 0 ) )
+            {
+            decoder.decode( ByteBuffer.wrap( bytes, 0, read ), listener ) ;
+            }
+
+        }
+
+
+    /**
+     * Queue a frame for the writer thread, waiting for room if
+     * {@code chat.client.sendQueueCapacity} frames are already queued. Only the writer encodes,
+     * so binary frames arrive in the order their user IDs were numbered.
+     *
+     * @throws IOException
+     *     If the client has stopped or the caller is interrupted while waiting.
+     */
+    private void send( final ClientConnection.Frame frame ) throws IOException
+        {
+
+        if ( !this.running )
+            {
+            throw new IOException( "Connection closed" ) ;
+            }
+
+        try
+            {
+            this.outgoing.put( frame ) ;
+            }
+        catch ( final InterruptedException e )
+            {
+            Thread.currentThread().interrupt() ;
+            throw new InterruptedIOException( "Interrupted waiting to send" ) ;
+            }
+
+        // stop() may have emptied the queue after the check above
+        if ( !this.running )
+            {
+            throw new IOException( "Connection closed" ) ;
+            }
+
+        }
+
+
+    /**
+     * Writes queued frames until the client stops. Everything that queued up while the last write
+     * was in progress is encoded together and goes out in one write and one flush.
+     */
+    private void writeQueued()
+        {
+
+        final List<ClientConnection.Frame> batch = new ArrayList<>() ;
+        final ClientConnection.Frame frames = ( encoder, bytes ) ->
+            {
+
+            for ( final ClientConnection.Frame frame : batch )
+                {
+                frame.encode( encoder, bytes ) ;
+                }
+
+            } ;
+
+        try
+            {
+
+            while ( this.running )
+                {
+                batch.add( this.outgoing.take() ) ;
+                this.outgoing.drainTo( batch, MAX_FRAMES_PER_WRITE - 1 ) ;
+                this.out.send( frames ) ;
+                batch.clear() ;
+                }
+
+            }
+        catch ( final InterruptedException e )
+            {
+            // stop() interrupts the writer
+            }
+        catch ( final IOException e )
+            {
+
+            if ( this.running )
+                {
+                System.out.println( "Error Sending Message." ) ;
+                e.printStackTrace() ;
+                stop() ;
+                }
+
+            }
+
+        }
+
+
     /**
      * @param recieverID
      * @param message
@@ -114,43 +306,548 @@ public class TCPClient implements Runnable
                              final String message )
         {
 
+        sendMessageAsync( recieverID, message ) ;
+
+        }
+
+
+    /**
+     * Queues a message numbered with this client's next sequence number, which the server echoes
+     * when it confirms the message.
+     *
+     * @param recipientID
+     *     The user to send to.
+     * @param message
+     *     The message text.
+     *
+     * @return Completes when the server confirms the message, or exceptionally if it could not be
+     *     sent or the connection closes first.
+     *
+     * @since 1.6
+     */
+    public CompletableFuture<Void> sendMessageAsync( final String recipientID,
+                                                     final String message )
+        {
+
+        final long sequence = this.nextSequence.incrementAndGet() ;
+        final UnconfirmedMessage pending = track( sequence, message ) ;
+
+        try
+            {
+            send( ( encoder, bytes ) -> encoder.message( bytes,
+                                                         this.clientID,
+                                                         recipientID,
+                                                         sequence,
+                                                         message ) ) ;
+            }
+        catch ( final IOException e )
+            {
+            System.out.println( "Error Sending Message." ) ;
+            e.printStackTrace() ;
+            fail( sequence, e ) ;
+            }
+
+        return pending.confirmation ;
+
+        }
+
+
+    /**
+     * Queues several messages to one user as a single burst of frames, so they share a write and
+     * a flush however busy the writer is. Each message gets its own sequence number.
+     *
+     * @param recipientID
+     *     The user to send to.
+     * @param messages
+     *     The message texts, in the order they should be delivered.
+     *
+     * @return Completes when the server has confirmed every message, or exceptionally if any of
+     *     them could not be sent or the connection closes first.
+     *
+     * @since 1.9
+     */
+    public CompletableFuture<Void> sendBatch( final String recipientID,
+                                              final List<String> messages )
+        {
+
+        final List<String> batch = List.copyOf( messages ) ;
+        final long first = this.nextSequence.getAndAdd( batch.size() ) + 1 ;
+        final CompletableFuture<?>[] confirmations = new CompletableFuture<?>[ batch.size() ] ;
+
+        for ( int i = 0 ; i < batch.size() ; i++ )
+            {
+            confirmations[ i ] = track( first + i, batch.get( i ) ).confirmation ;
+            }
+
         try
             {
-            this.out.write( this.clientID + '\n' ) ;
-            this.out.write( recieverID + '\n' ) ;
-            this.out.write( message + '\n' ) ;
-            this.out.flush() ;
-            this.messageConfirmation.add( message ) ;
+            send( ( encoder, bytes ) ->
+                {
+
+                for ( int i = 0 ; i < batch.size() ; i++ )
+                    {
+                    encoder.message( bytes,
+                                     this.clientID,
+                                     recipientID,
+                                     first + i,
+                                     batch.get( i ) ) ;
+                    }
+
+                } ) ;
             }
         catch ( final IOException e )
             {
             System.out.println( "Error Sending Message." ) ;
             e.printStackTrace() ;
+
+            for ( int i = 0 ; i < batch.size() ; i++ )
+                {
+                fail( first + i, e ) ;
+                }
+
+            }
+
+        return CompletableFuture.allOf( confirmations ) ;
+
+        }
+
+
+    private UnconfirmedMessage track( final long sequence,
+                                      final String message )
+        {
+
+        final UnconfirmedMessage pending = new UnconfirmedMessage( message ) ;
+
+        this.unconfirmed.put( sequence, pending ) ;
+        this.unconfirmedBodies.merge( message, 1, Integer::sum ) ;
+
+        return pending ;
+
+        }
+
+
+    private void fail( final long sequence,
+                       final IOException cause )
+        {
+
+        final UnconfirmedMessage pending = forget( sequence ) ;
+
+        if ( pending != null )
+            {
+            pending.confirmation.completeExceptionally( cause ) ;
             }
 
         }
 
 
     /**
+     * @return True if {@code sender} is the first line of an answer to this client's REQ, rather
+     *     than a sender whose ID only starts the same way.
+     */
+    private boolean isHistoryReply( final String sender )
+        {
+
+        final String requestLine = this.clientID + TextFrameEncoder.REQUEST_MARK ;
+
+        return sender.equals( requestLine ) ||
+               ( sequenceAfter( sender, requestLine + TextFrameEncoder.SEQUENCE_MARK ) > 0 ) ;
+
+        }
+
+
+    /**
+     * @param line
+     *     The first line of a text frame.
+     * @param prefix
+     *     What comes before the number.
+     *
+     * @return The number after {@code prefix}, or 0 if the line is not {@code prefix} followed by
+     *     nothing but digits.
+     */
+    private static long sequenceAfter( final String line,
+                                       final String prefix )
+        {
+
+        if ( !line.startsWith( prefix ) || ( line.length() == prefix.length() ) )
+            {
+            return 0 ;
+            }
+
+        for ( int i = prefix.length() ; i < line.length() ; i++ )
+            {
+
+            if ( ( line.charAt( i ) < '0' ) || ( line.charAt( i ) > '9' ) )
+                {
+                return 0 ;
+                }
+
+            }
+
+        try
+            {
+            return Long.parseLong( line.substring( prefix.length() ) ) ;
+            }
+        catch ( final NumberFormatException e )
+            {
+            return 0 ;
+            }
+
+        }
+
+
+    /**
+     * Note the cursor a text page ended with. A server that lets a user take the page end line as
+     * an ID may send that user's message in its place, which is kept as a message instead.
+     */
+    private void pageEnd( final String peerID,
+                          final String cursor )
+        {
+
+        try
+            {
+            this.pageCursors.put( peerID, Long.valueOf( cursor ) ) ;
+            }
+        catch ( final NumberFormatException e )
+            {
+            this.messageQueue.add( cursor ) ;
+            }
+
+        }
+
+
+    private void confirm( final long sequence )
+        {
+
+        final UnconfirmedMessage pending = forget( sequence ) ;
+
+        if ( pending != null )
+            {
+            pending.confirmation.complete( null ) ;
+            }
+
+        }
+
+
+    private UnconfirmedMessage forget( final long sequence )
+        {
+
+        final UnconfirmedMessage pending = this.unconfirmed.remove( sequence ) ;
+
+        if ( pending != null )
+            {
+            this.unconfirmedBodies.computeIfPresent( pending.message,
+                                                     ( body, count ) -> count == 1 ? null : count - 1 ) ;
+            }
+
+        return pending ;
+
+        }
+
+
+    /**
+     * Waits for the history with another user and adds it to the message queue, oldest first.
+     *
      * @param recipientID
      *     The second id the server uses to search for messages in the message history file. The
      *     first being this clients id.
      *
      * @throws IOException
-     *     If the bufferedWriter throws an IOException.
+     *     If the request cannot be sent, the connection closes or the answer takes longer than
+     *     {@code chat.client.requestTimeoutMillis}.
      *
      * @since 1.0
      */
     public void messageRequest( final String recipientID ) throws IOException
         {
 
-        this.req = true ;
-        this.out.write( this.clientID + " REQ" + '\n' ) ;
-        this.out.write( recipientID + '\n' ) ;
-        this.out.flush() ;
+        try
+            {
+            this.messageQueue.addAll( requestHistory( recipientID ).get() ) ;
+            }
+        catch ( final InterruptedException e )
+            {
+            Thread.currentThread().interrupt() ;
+            throw new InterruptedIOException( "Interrupted waiting for history with " + recipientID ) ;
+            }
+        catch ( final ExecutionException e )
+            {
+
+            if ( e.getCause() instanceof final IOException cause )
+                {
+                throw cause ;
+                }
 
-        while ( this.req )
-            {}
+            if ( e.getCause() instanceof TimeoutException )
+                {
+                throw new IOException( "Timed out waiting for history with " + recipientID ) ;
+                }
+
+            throw new IOException( "History request failed", e.getCause() ) ;
+            }
+
+        }
+
+
+    /**
+     * Asks for the whole history with another user without waiting for it. Any number of requests
+     * may be outstanding at once; each answer is matched to its request by number.
+     *
+     * @param recipientID
+     *     The other user in the conversation.
+     *
+     * @return Completes with the records, oldest first, or exceptionally if the request cannot be
+     *     sent, the connection closes or {@code chat.client.requestTimeoutMillis} passes first.
+     *
+     * @since 1.8
+     */
+    public CompletableFuture<List<String>> requestHistory( final String recipientID )
+        {
+
+        final long request = this.nextRequest.incrementAndGet() ;
+        final PendingHistory pending = new PendingHistory() ;
+
+        this.pendingHistory.put( request, pending ) ;
+        pending.result.orTimeout( this.requestTimeoutMillis, TimeUnit.MILLISECONDS )
+                      .whenComplete( ( records, failure ) -> this.pendingHistory.remove( request ) ) ;
+
+        try
+            {
+            send( ( encoder, bytes ) -> encoder.historyRequest( bytes,
+                                                                this.clientID,
+                                                                recipientID,
+                                                                request ) ) ;
+            }
+        catch ( final IOException e )
+            {
+            pending.result.completeExceptionally( e ) ;
+            }
+
+        return pending.result ;
+
+        }
+
+
+    /**
+     * Searches this user's history for up to 50 of the newest records containing every word of
+     * {@code query}.
+     *
+     * @see #search(String, String, long, long, int)
+     *
+     * @since 1.11
+     */
+    public CompletableFuture<List<String>> search( final String query )
+        {
+
+        return search( query, "", 0, 0, 50 ) ;
+
+        }
+
+
+    /**
+     * Searches the history for the newest records containing every word of {@code query},
+     * ignoring case and punctuation, without waiting for the answer. Only records this user sent
+     * or received are searched.
+     *
+     * @param userID
+     *     Only records between this user and that one, or empty for any of this user's.
+     * @param fromMillis
+     *     Only records from this time on, or 0 for no bound.
+     * @param toMillis
+     *     Only records up to this time, or 0 for no bound.
+     * @param limit
+     *     The most records to return.
+     *
+     * @return Completes with the records, oldest first, or exceptionally if the request cannot be
+     *     sent, the connection closes or {@code chat.client.requestTimeoutMillis} passes first.
+     *
+     * @since 1.11
+     */
+    public CompletableFuture<List<String>> search( final String query,
+                                                   final String userID,
+                                                   final long fromMillis,
+                                                   final long toMillis,
+                                                   final int limit )
+        {
+
+        final long request = this.nextRequest.incrementAndGet() ;
+        final PendingHistory pending = new PendingHistory() ;
+
+        this.pendingHistory.put( request, pending ) ;
+        pending.result.orTimeout( this.requestTimeoutMillis, TimeUnit.MILLISECONDS )
+                      .whenComplete( ( records, failure ) -> this.pendingHistory.remove( request ) ) ;
+
+        try
+            {
+            send( ( encoder, bytes ) -> encoder.searchRequest( bytes,
+                                                               this.clientID,
+                                                               request,
+                                                               query,
+                                                               userID,
+                                                               fromMillis,
+                                                               toMillis,
+                                                               limit ) ) ;
+            }
+        catch ( final IOException e )
+            {
+            pending.result.completeExceptionally( e ) ;
+            }
+
+        return pending.result ;
+
+        }
+
+
+    private void completeHistory( final long request,
+                                  final List<String> records )
+        {
+
+        final PendingHistory pending = this.pendingHistory.remove( request ) ;
+
+        if ( pending != null )
+            {
+            pending.result.complete( records ) ;
+            }
+
+        }
+
+
+    /**
+     * Asks for the newest page of history with another user. The records are added to the
+     * message queue, oldest first, as the server streams them.
+     *
+     * @param recipientID
+     *     The other user in the conversation.
+     * @param limit
+     *     The most records to return.
+     *
+     * @throws IOException
+     *     If the client has stopped.
+     *
+     * @since 1.4
+     */
+    public void historyPage( final String recipientID,
+                             final int limit ) throws IOException
+        {
+
+        historyPage( recipientID, limit, -1 ) ;
+
+        }
+
+
+    /**
+     * Asks for the page of history that ends just before the cursor {@code before}.
+     *
+     * @param recipientID
+     *     The other user in the conversation.
+     * @param limit
+     *     The most records to return.
+     * @param before
+     *     A cursor from an earlier page, or a negative number for the newest page.
+     *
+     * @throws IOException
+     *     If the client has stopped.
+     *
+     * @since 1.4
+     */
+    public void historyPage( final String recipientID,
+                             final int limit,
+                             final long before ) throws IOException
+        {
+
+        this.pageCursors.remove( recipientID ) ;
+        send( ( encoder, bytes ) -> encoder.pageRequest( bytes,
+                                                         this.clientID,
+                                                         recipientID,
+                                                         limit,
+                                                         before ) ) ;
+
+        }
+
+
+    /**
+     * Asks for the page before the last one received for {@code recipientID}.
+     *
+     * @param recipientID
+     *     The other user in the conversation.
+     * @param limit
+     *     The most records to return.
+     *
+     * @return false if the last page has not finished arriving or there is no older history.
+     *
+     * @throws IOException
+     *     If the client has stopped.
+     *
+     * @since 1.4
+     */
+    public boolean historyPageNext( final String recipientID,
+                                    final int limit ) throws IOException
+        {
+
+        final Long cursor = this.pageCursors.get( recipientID ) ;
+
+        if ( ( cursor == null ) || ( cursor <= 0 ) )
+            {
+            return false ;
+            }
+
+        historyPage( recipientID, limit, cursor ) ;
+        return true ;
+
+        }
+
+
+    /**
+     * @param recipientID
+     *     The other user in the conversation.
+     *
+     * @return true once the last requested page has arrived and older records remain.
+     *
+     * @since 1.4
+     */
+    public boolean hasOlderHistory( final String recipientID )
+        {
+
+        final Long cursor = this.pageCursors.get( recipientID ) ;
+
+        return ( cursor != null ) && ( cursor > 0 ) ;
+
+        }
+
+
+    /**
+     * Joins a group. Messages sent to the group ID with {@link #sendMessageAsync} then go to every
+     * member, and messages from other members arrive in the message queue.
+     *
+     * @param groupID
+     *     The group, which starts with {@value GroupRegistry#PREFIX} and is created on first
+     *     join.
+     *
+     * @throws IOException
+     *     If the client has stopped.
+     *
+     * @since 1.10
+     */
+    public void joinGroup( final String groupID ) throws IOException
+        {
+
+        send( ( encoder, bytes ) -> encoder.join( bytes, this.clientID, groupID ) ) ;
+
+        }
+
+
+    /**
+     * @param groupID
+     *     A group this client joined.
+     *
+     * @throws IOException
+     *     If the client has stopped.
+     *
+     * @since 1.10
+     */
+    public void leaveGroup( final String groupID ) throws IOException
+        {
+
+        send( ( encoder, bytes ) -> encoder.leave( bytes, this.clientID, groupID ) ) ;
 
         }
 
@@ -196,7 +893,20 @@ public class TCPClient implements Runnable
     public boolean confirmed( final String message )
         {
 
-        return !this.messageConfirmation.contains( message ) ;
+        return !this.unconfirmedBodies.containsKey( message ) ;
+
+        }
+
+
+    /**
+     * @return The number of sent messages the server has not confirmed yet.
+     *
+     * @since 1.6
+     */
+    public int unconfirmedCount()
+        {
+
+        return this.unconfirmed.size() ;
 
         }
 
@@ -208,6 +918,8 @@ public class TCPClient implements Runnable
         {
 
         this.running = false ;
+        this.writer.interrupt() ;
+        this.outgoing.clear() ;
 
         try
             {
@@ -218,6 +930,172 @@ public class TCPClient implements Runnable
             e.printStackTrace() ;
             }
 
+        // Messages still waiting stay unconfirmed, but nobody should wait on them any longer
+        final IOException closed = new IOException( "Connection closed" ) ;
+
+        for ( final UnconfirmedMessage pending : this.unconfirmed.values() )
+            {
+            pending.confirmation.completeExceptionally( closed ) ;
+            }
+
+        for ( final PendingHistory pending : this.pendingHistory.values() )
+            {
+            pending.result.completeExceptionally( closed ) ;
+            }
+
+        }
+
+
+    /**
+     * A sent message waiting for the server's confirmation.
+     */
+    private static final class UnconfirmedMessage
+        {
+
+        private final String message ;
+        private final CompletableFuture<Void> confirmation ;
+
+
+        UnconfirmedMessage( final String messageInput )
+            {
+
+            this.message = messageInput ;
+            this.confirmation = new CompletableFuture<>() ;
+
+            }
+
+        }
+
+
+    /**
+     * A history request waiting for its answer, which may arrive in several frames.
+     */
+    private static final class PendingHistory
+        {
+
+        private final List<String> records ;
+        private final CompletableFuture<List<String>> result ;
+
+
+        PendingHistory()
+            {
+
+            this.records = new ArrayList<>() ;
+            this.result = new CompletableFuture<>() ;
+
+            }
+
+        }
+
+
+    /**
+     * Applies binary frames from the server the same way {@link #run()} applies text ones.
+     */
+    private class BinaryListener implements FrameDecoder.Listener
+        {
+
+        @Override
+        public void hello( final int version ) throws IOException
+            {
+
+            if ( version != BinaryFrames.VERSION )
+                {
+                throw new IOException( "Server speaks protocol version " + version ) ;
+                }
+
+            }
+
+
+        @Override
+        public void message( final String senderID,
+                             final String recipientID,
+                             final long sequence,
+                             final String message )
+            {
+
+            if ( ( sequence > 0 ) && senderID.equals( TCPClient.this.clientID ) )
+                {
+                confirm( sequence ) ;
+                }
+            else
+                {
+                TCPClient.this.messageQueue.add( message ) ;
+                }
+
+            }
+
+
+        @Override
+        public void confirmation( final String recipientID,
+                                  final long sequence )
+            {
+
+            confirm( sequence ) ;
+
+            }
+
+
+        @Override
+        public void historyRecords( final String peerID,
+                                    final long request,
+                                    final List<String> records )
+            {
+
+            final PendingHistory pending = TCPClient.this.pendingHistory.get( request ) ;
+
+            if ( pending != null )
+                {
+                pending.records.addAll( records ) ;
+                }
+
+            }
+
+
+        @Override
+        public void historyEnd( final String peerID,
+                                final long request )
+            {
+
+            final PendingHistory pending = TCPClient.this.pendingHistory.get( request ) ;
+
+            if ( pending != null )
+                {
+                completeHistory( request, pending.records ) ;
+                }
+
+            }
+
+
+        @Override
+        public void pageRecords( final String peerID,
+                                 final List<String> records )
+            {
+
+            TCPClient.this.messageQueue.addAll( records ) ;
+
+            }
+
+
+        @Override
+        public void pageEnd( final String peerID,
+                             final long cursor )
+            {
+
+            TCPClient.this.pageCursors.put( peerID, cursor ) ;
+
+            }
+
+
+        @Override
+        public void groupMessage( final String senderID,
+                                  final String groupID,
+                                  final String message )
+            {
+
+            TCPClient.this.messageQueue.add( message ) ;
+
+            }
+
         }
 // end class TCPClient
 
@@ -1,193 +1,1428 @@
 package application;
 
-import java.io.BufferedReader ;
-import java.io.BufferedWriter ;
 import java.io.File ;
-import java.io.FileReader ;
-import java.io.FileWriter ;
 import java.io.IOException ;
-import java.io.InputStreamReader ;
-import java.io.OutputStreamWriter ;
+import java.io.InputStream ;
+import java.io.OutputStream ;
 import java.net.ServerSocket ;
 import java.net.Socket ;
-import java.text.DateFormat ;
+import java.nio.ByteBuffer ;
 import java.util.ArrayList ;
-import java.util.Date ;
+import java.util.HashMap ;
 import java.util.List ;
-import java.util.concurrent.ConcurrentHashMap ;
+import java.util.Map ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.Executor ;
+import java.util.concurrent.Executors ;
 
 /**
  * 
  *
  * @author Benjamin
  *
- * @version 1.2 2025-11-12 Updated the REQ and message protocol slightly
+ * @version 1.30 2026-10-18 A search covers only the requester's own records.
  *
  * @since 1.0
  */
 public class TCPServer
     {
 
+    private static final int PAGE_FRAMES_PER_WRITE = 32 ;
+    private static final int DEFAULT_SEARCH_LIMIT = 50 ;
+    private static final int MAX_SEARCH_LIMIT = 1000 ;
+    private static final int OFFLINE_BURST = 64 ;
+
+    private final int port ;
+    private final ServerMode mode ;
+    private final ClusterConfig clusterConfig ;
     private ServerSocket serverSocket ;
-    private ConcurrentHashMap<String, Socket> clientMap ;
-    private File messageHistoryFile ;
-    private BufferedWriter historyWriter ;
+    private SessionRegistry sessions ;
+    private GroupRegistry groups ;
+    private OfflineQueue offline ;
+    private ServerMetrics metrics ;
+    private MessageHistory history ;
+    private HistoryCache recent ;
+    private ClusterNode cluster ;
+
+
+    /**
+     * A server in the mode named by the {@code chat.server.mode} system property, in the cluster
+     * the {@code chat.cluster.*} properties describe, if any.
+     *
+     * @param port
+     *     The port the server listens on.
+     */
+    public TCPServer( final int port )
+        {
+
+        this( port, ServerMode.fromSystemProperty() ) ;
+
+        }
+
+
+    /**
+     * @param port
+     *     The port the server listens on.
+     * @param mode
+     *     How client sockets are driven.
+     *
+     * @since 1.3
+     */
+    public TCPServer( final int port,
+                      final ServerMode mode )
+        {
+
+        this( port, mode, ClusterConfig.fromSystemProperties() ) ;
+
+        }
+
+
+    /**
+     * One node of a cluster. Several nodes may run in one JVM, each on its own ports and data
+     * directory.
+     *
+     * @param portInput
+     *     The port the server listens on.
+     * @param modeInput
+     *     How client sockets are driven.
+     * @param clusterConfigInput
+     *     This node and its peers, or null to run alone.
+     *
+     * @since 1.3
+     */
+    public TCPServer( final int portInput,
+                      final ServerMode modeInput,
+                      final ClusterConfig clusterConfigInput )
+        {
+
+        this.port = portInput ;
+        this.mode = modeInput ;
+        this.clusterConfig = clusterConfigInput ;
+
+        }
+
+
+    /**
+     * Open the history, join the cluster, if any, and serve clients until the process ends. This
+     * only returns if the server could not start.
+     *
+     * @since 1.3
+     */
+    public void start()
+        {
+
+        try
+            {
+            this.sessions = new SessionRegistry( this::reap ) ;
+            final File dataDirectory = this.clusterConfig == null
+                ? new File( "" ).getAbsoluteFile()
+                : this.clusterConfig.getDataDirectory() ;
+
+            if ( !dataDirectory.isDirectory() && !dataDirectory.mkdirs() )
+                {
+                throw new IOException( "Could not create " + dataDirectory ) ;
+                }
+
+            final File historyFile = new File( dataDirectory, "message_history_test.txt" ) ;
+
+            this.recent = new HistoryCache() ;
+            this.metrics = new ServerMetrics( this.recent ) ;
+            this.metrics.start( this.port ) ;
+            this.groups = new GroupRegistry() ;
+            this.offline = new OfflineQueue( new File( historyFile.getParentFile(), "offline" ) ) ;
+            this.history = new MessageHistory( historyFile,
+                                               HistoryDurability.fromSystemProperty(),
+                                               this.recent ) ;
+
+            if ( this.clusterConfig != null )
+                {
+                this.cluster = new ClusterNode( this, this.clusterConfig, this.metrics ) ;
+                this.cluster.start() ;
+                }
+
+            if ( this.mode == ServerMode.NIO )
+                {
+                final int threads = Integer.getInteger( "chat.nio.threads",
+                                                        Math.max( 1,
+                                                                  Runtime.getRuntime()
+                                                                         .availableProcessors() /
+                                                                     2 ) ) ;
+                // Handlers block on the disk, so there are more of them than selector threads
+                final int handlerThreads = Integer.getInteger( "chat.nio.handlerThreads",
+                                                               Math.max( 2, threads * 4 ) ) ;
+                final NioEventLoop eventLoop = new NioEventLoop( this,
+                                                                 this.port,
+                                                                 threads,
+                                                                 handlerThreads ) ;
+
+                ServerLog.info( "TCP chat server started successfully on port: " +
+                                this.port + " (NIO, " + threads + " I/O threads, " +
+                                handlerThreads + " handler threads)" ) ;
+                ServerLog.info( "Waiting for incoming client connections..." ) ;
+
+                eventLoop.run() ;
+                return ;
+                }
+
+            // Virtual threads park instead of holding a carrier while blocked in readLine()
+            final Executor handlerExecutor = this.mode == ServerMode.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : handler -> new Thread( handler ).start() ;
+
+            this.serverSocket = new ServerSocket( this.port ) ;
+
+            ServerLog.info( "TCP chat server started successfully on port: " +
+                            this.port + " (" + this.mode + ")" ) ;
+            ServerLog.info( "Waiting for incoming client connections..." ) ;
+
+            while ( true )
+                {
+                final Socket clientSocket = this.serverSocket.accept() ;
+                ServerLog.info( "New client connection from: " +
+                                clientSocket.getRemoteSocketAddress() ) ;
+                handlerExecutor.execute( new ClientHandler( clientSocket, handlerExecutor ) ) ;
+                }
+
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Server failed to start: " + e.getMessage(), e ) ;
+            }
+
+        }
+
+
+    /**
+     * Send a message to the intended recipient, or every member of a group, and confirmation to
+     * the sender. Only the history append itself is serialized; each write to a client is ordered
+     * by that client's own connection, so senders to different recipients never wait on each
+     * other. A group message is recorded once, under the group ID.
+     *
+     * @param sequence
+     *     The sender's number for the message, echoed in its confirmation, or 0.
+     */
+    private void sendMessage( final String senderID,
+                              final String recipientID,
+                              final long sequence,
+                              final String message )
+        {
+
+        final CompletableFuture<Void> committed = record( senderID, recipientID, message ) ;
+        final ClientConnection.Frame confirmation =
+            ( encoder, out ) -> encoder.confirmation( out, senderID, recipientID, sequence, message ) ;
+
+        if ( GroupRegistry.isGroup( recipientID ) )
+            {
+            deliverToGroup( senderID, recipientID, message ) ;
+            }
+        else
+            {
+            deliver( senderID, recipientID, message ) ;
+            }
+
+        if ( this.history.confirmsAfterCommit() )
+            {
+            // Strict durability: the sender only hears back once its record is on disk
+            committed.whenComplete( ( result, failure ) ->
+                {
+
+                if ( failure == null )
+                    {
+                    confirmToSender( senderID, confirmation ) ;
+                    }
+                else
+                    {
+                    refuseSender( senderID, failure ) ;
+                    }
+
+                } ) ;
+            }
+        else
+            {
+            confirmToSender( senderID, confirmation ) ;
+            }
+
+        }
+
+
+    /**
+     * Add a message to the history, which passes it on to the history cache once committed, and
+     * send the record to the other nodes.
+     *
+     * @return Completes once the record is committed.
+     */
+    private CompletableFuture<Void> record( final String senderID,
+                                            final String recipientID,
+                                            final String message )
+        {
+
+        final String logFormat = RecordFormat.record( System.currentTimeMillis(),
+                                                      senderID,
+                                                      recipientID,
+                                                      message ) ;
+        ServerLog.debug( () -> "Processing message: " + logFormat ) ;
+
+        if ( this.cluster != null )
+            {
+            this.cluster.replicate( senderID, recipientID, logFormat ) ;
+            }
+
+        final long appendStart = System.nanoTime() ;
+        final CompletableFuture<Void> committed = this.history.append( senderID,
+                                                                       recipientID,
+                                                                       logFormat ) ;
+
+        committed.whenComplete( ( result, failure ) ->
+            this.metrics.historyAppended( System.nanoTime() - appendStart ) ) ;
+
+        return committed ;
+
+        }
+
+
+    /**
+     * Send a message to a recipient connected here, forward it to the node the recipient is
+     * connected to, or hold it until the recipient connects.
+     */
+    private void deliver( final String senderID,
+                          final String recipientID,
+                          final String message )
+        {
+
+        final String nodeID ;
+
+        final ClientConnection recipient = this.sessions.connection( recipientID ) ;
+
+        if ( recipient != null )
+            {
+
+            try
+                {
+
+                if ( recipient.offer( ( encoder, out ) -> encoder.message( out,
+                                                                           senderID,
+                                                                           recipientID,
+                                                                           0,
+                                                                           message ) ) )
+                    {
+                    this.metrics.messagesDelivered( 1 ) ;
+                    ServerLog.debug( () -> "Delivered message to recipient " + recipientID ) ;
+                    }
+                else
+                    {
+                    spill( recipientID, recipient, senderID, recipientID, message ) ;
+                    }
+
+                }
+            catch ( final IOException e )
+                {
+                // The connection is closed, so the message waits for the user to reconnect
+                ServerLog.error( "Failed to send message to " + recipientID +
+                                 ", holding it: " + e.getMessage() ) ;
+                holdOffline( recipientID, senderID, recipientID, message ) ;
+                }
+
+            }
+        else if ( ( ( nodeID = remoteNode( recipientID ) ) != null ) &&
+                  this.cluster.forward( nodeID, recipientID, senderID, recipientID, message ) )
+            {
+            ServerLog.debug( () -> "Forwarded message for " + recipientID + " to node " +
+                                   nodeID ) ;
+            }
+        else
+            {
+            ServerLog.debug( () -> "Recipient " + recipientID +
+                                   " is offline. Message queued for delivery." ) ;
+            holdOffline( recipientID, senderID, recipientID, message ) ;
+            }
+
+        }
+
+
+    /**
+     * Write one encoding of the message to every online member except the sender, and send one
+     * copy to each other node with members connected to it.
+     */
+    private void deliverToGroup( final String senderID,
+                                 final String groupID,
+                                 final String message )
+        {
+
+        final ClientConnection.Frame frame =
+            new SharedFrame( ( encoder, out ) -> encoder.groupMessage( out,
+                                                                      senderID,
+                                                                      groupID,
+                                                                      message ) ) ;
+        Map<String, List<String>> remote = null ;
+        int delivered = 0 ;
+        int offline = 0 ;
+
+        for ( final String memberID : this.groups.members( groupID ) )
+            {
+
+            if ( memberID.equals( senderID ) )
+                {
+                continue ;
+                }
+
+            final ClientConnection member = this.sessions.connection( memberID ) ;
+
+            if ( member == null )
+                {
+                final String nodeID = remoteNode( memberID ) ;
+
+                if ( nodeID != null )
+                    {
+
+                    if ( remote == null )
+                        {
+                        remote = new HashMap<>() ;
+                        }
+
+                    remote.computeIfAbsent( nodeID, id -> new ArrayList<>() ).add( memberID ) ;
+                    continue ;
+                    }
+
+                offline++ ;
+                holdOffline( memberID, senderID, groupID, message ) ;
+                continue ;
+                }
+
+            try
+                {
+
+                if ( member.offer( frame ) )
+                    {
+                    delivered++ ;
+                    }
+                else
+                    {
+                    offline++ ;
+                    spill( memberID, member, senderID, groupID, message ) ;
+                    }
+
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Failed to send message to " + memberID +
+                                 ", holding it: " + e.getMessage() ) ;
+                offline++ ;
+                holdOffline( memberID, senderID, groupID, message ) ;
+                }
+
+            }
+
+        if ( remote != null )
+            {
+
+            for ( final Map.Entry<String, List<String>> node : remote.entrySet() )
+                {
+
+                if ( !this.cluster.forwardGroup( node.getKey(),
+                                                 senderID,
+                                                 groupID,
+                                                 message,
+                                                 node.getValue() ) )
+                    {
+
+                    for ( final String memberID : node.getValue() )
+                        {
+                        offline++ ;
+                        holdOffline( memberID, senderID, groupID, message ) ;
+                        }
+
+                    }
+
+                }
+
+            }
+
+        final int online = delivered ;
+        final int queued = offline ;
+
+        this.metrics.messagesDelivered( delivered ) ;
+        ServerLog.debug( () -> "Delivered message to " + online + " members of " + groupID +
+                               ", " + queued + " offline" ) ;
+
+        }
+
+
+    /**
+     * @return The other node {@code userID} is connected to, or null if it is not connected to
+     *     one or this server runs alone.
+     */
+    private String remoteNode( final String userID )
+        {
+
+        return this.cluster == null ? null : this.cluster.ownerOf( userID ) ;
+
+        }
+
+
+    /**
+     * Keep a message for a user who is not connected.
+     *
+     * @param recipientID
+     *     The user, or the group the message was sent to.
+     *
+     * @since 1.3
+     */
+    void holdOffline( final String userID,
+                      final String senderID,
+                      final String recipientID,
+                      final String message )
+        {
+
+        try
+            {
+            this.offline.add( userID, senderID, recipientID, message ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Could not queue message for " + userID + ": " +
+                             e.getMessage() ) ;
+            return ;
+            }
+
+        this.metrics.messageQueuedOffline() ;
+
+        // The user may have registered between the map lookup and the add
+        final ClientConnection connection = this.sessions.connection( userID ) ;
+
+        if ( connection != null )
+            {
+            deliverOffline( userID, connection ) ;
+            }
+
+        }
+
+
+    /**
+     * Hold a message for a connected user whose connection is too far behind to take it. It is
+     * delivered, after anything held before it, once the connection catches up.
+     */
+    private void spill( final String userID,
+                        final ClientConnection connection,
+                        final String senderID,
+                        final String recipientID,
+                        final String message )
+        {
+
+        // Held messages are added and sent back under the connection's monitor, so nothing is
+        // added between delivering the last of them and the connection resuming
+        synchronized ( connection )
+            {
+
+            try
+                {
+                this.offline.add( userID, senderID, recipientID, message ) ;
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Could not hold message for " + userID + ": " +
+                                 e.getMessage() ) ;
+                return ;
+                }
+
+            }
+
+        this.metrics.messageQueuedOffline() ;
+
+        // The connection may have resumed between refusing the message and the add
+        if ( !connection.isSpilling() )
+            {
+            deliverOffline( userID, connection ) ;
+            }
+
+        }
+
+
+    /**
+     * Send a user everything that waited while it was offline or behind, in bursts of frames,
+     * then let its connection take messages again. If the connection falls behind again part
+     * way, the rest stays held until it catches up.
+     */
+    private void deliverOffline( final String userID,
+                                 final ClientConnection connection )
+        {
+
+        synchronized ( connection )
+            {
+            deliverOfflineLocked( userID, connection ) ;
+            }
+
+        }
+
+
+    private void deliverOfflineLocked( final String userID,
+                                       final ClientConnection connection )
+        {
+
+        final List<OfflineQueue.Delivery> backlog ;
+
+        try
+            {
+            backlog = this.offline.drain( userID ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Could not read queued messages for " + userID + ": " +
+                             e.getMessage() ) ;
+            return ;
+            }
+
+        if ( backlog.isEmpty() )
+            {
+            connection.resume() ;
+            return ;
+            }
+
+        int sent = 0 ;
+
+        try
+            {
+
+            while ( sent < backlog.size() )
+                {
+                final List<OfflineQueue.Delivery> burst =
+                    backlog.subList( sent, Math.min( backlog.size(), sent + OFFLINE_BURST ) ) ;
+
+                if ( !connection.sendHeld( ( encoder, out ) ->
+                    {
+
+                    for ( final OfflineQueue.Delivery delivery : burst )
+                        {
+                        delivery.encode( encoder, out ) ;
+                        }
+
+                    } ) )
+                    {
+                    break ;
+                    }
+
+                sent += burst.size() ;
+                }
+
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Failed to deliver queued messages to " + userID + ": " +
+                             e.getMessage() ) ;
+            }
+
+        this.metrics.messagesDelivered( sent ) ;
+        ServerLog.info( "Delivered " + sent + " queued messages to " + userID ) ;
+
+        if ( sent == backlog.size() )
+            {
+            connection.resume() ;
+            return ;
+            }
+
+        // Whatever was not sent goes back, still ahead of anything held since
+        for ( final OfflineQueue.Delivery delivery : backlog.subList( sent, backlog.size() ) )
+            {
+
+            try
+                {
+                this.offline.add( userID,
+                                  delivery.getSenderID(),
+                                  delivery.getRecipientID(),
+                                  delivery.getMessage() ) ;
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Could not hold message for " + userID + ": " +
+                                 e.getMessage() ) ;
+                }
+
+            }
+
+        }
+
+
+    private void confirmToSender( final String senderID,
+                                  final ClientConnection.Frame frame )
+        {
+
+        final ClientConnection sender = this.sessions.connection( senderID ) ;
+
+        if ( sender != null )
+            {
+
+            try
+                {
+                sender.send( frame ) ;
+
+                ServerLog.debug( () -> "Sent confirmation back to sender " + senderID ) ;
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Failed to send confirmation to sender " +
+                                 senderID + ": " + e.getMessage() ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Disconnect a sender whose message could not be committed, so it learns the message was not
+     * accepted instead of waiting for a confirmation that will never come.
+     */
+    private void refuseSender( final String senderID,
+                               final Throwable failure )
+        {
+
+        ServerLog.error( "Could not commit a message from " + senderID +
+                         ", disconnecting it: " + failure.getMessage() ) ;
+
+        final ClientConnection sender = this.sessions.connection( senderID ) ;
+
+        if ( sender != null )
+            {
+            sender.disconnect() ;
+            }
+
+        }
+
+
+    /**
+     * Retrieve chat history between two users.
+     */
+    private List<String> getMessageHistoryBetween( final String user1,
+                                                   final String user2 )
+        {
+
+        final List<String> cached = this.recent.get( user1, user2 ) ;
+
+        if ( cached != null )
+            {
+            return cached ;
+            }
+
+        try
+            {
+            return this.history.isIndexed()
+                ? readRecent( user1, user2, Integer.MAX_VALUE )
+                : this.history.read( user1, user2 ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Error reading message history: " +
+                             e.getMessage() ) ;
+            return new ArrayList<>() ;
+            }
+
+        }
+
+
+    /**
+     * @return The newest page of up to {@code limit} records between two users, or null if the
+     *     history cache cannot answer it even once the conversation is loaded.
+     */
+    private HistoryCache.Page getNewestPage( final String user1,
+                                             final String user2,
+                                             final int limit )
+        {
+
+        final HistoryCache.Page cached = this.recent.page( user1, user2, limit ) ;
+
+        if ( ( cached != null ) ||
+             !this.recent.isEnabled() ||
+             !this.history.isIndexed() ||
+             this.recent.contains( user1, user2 ) )
+            {
+            return cached ;
+            }
+
+        try
+            {
+            readRecent( user1, user2, this.recent.getMaxRecords() ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Error reading message history: " +
+                             e.getMessage() ) ;
+            return null ;
+            }
+
+        return this.recent.page( user1, user2, limit ) ;
+
+        }
+
+
+    /**
+     * Read the newest {@code limit} records between two users from the log and cache them.
+     *
+     * @return The records, oldest first.
+     */
+    private List<String> readRecent( final String user1,
+                                     final String user2,
+                                     final int limit ) throws IOException
+        {
+
+        // Until recovery finishes a read may be missing older records, so is not cached
+        final boolean recovered = this.history.isRecovered() ;
+        final List<String> records = new ArrayList<>() ;
+        final MessageHistory.OffsetList positions = new MessageHistory.OffsetList() ;
+        final boolean complete = this.history.readNewest( user1,
+                                                          user2,
+                                                          limit,
+                                                          ( record, position ) ->
+            {
+            records.add( record ) ;
+            positions.add( position ) ;
+            } ) ;
+
+        if ( recovered )
+            {
+            this.recent.fill( user1,
+                              user2,
+                              records,
+                              positions.toArray(),
+                              complete,
+                              () -> this.history.newestPosition( user1, user2 ) ) ;
+            }
+
+        return records ;
+
+        }
+
+
+    /**
+     * Note a frame from {@code clientID} on {@code connection}. The first one starts the user's
+     * session, replacing and closing any older connection the user still had, and delivers
+     * whatever was queued while it was offline.
+     *
+     * @throws IOException
+     *     If {@code clientID} is reserved by the text protocol.
+     */
+    private void register( final String clientID,
+                           final ClientConnection connection ) throws IOException
+        {
+
+        final SessionRegistry.Session current = this.sessions.get( clientID ) ;
+
+        if ( ( current != null ) && ( current.getConnection() == connection ) )
+            {
+            current.touch() ;
+            return ;
+            }
+
+        if ( TextFrameEncoder.isReserved( clientID ) )
+            {
+            throw new IOException( "Reserved user ID: " + clientID ) ;
+            }
+
+        // A connection that speaks for someone else now gives up its old ID
+        final SessionRegistry.Session former = this.sessions.sessionOf( connection ) ;
+
+        if ( former != null )
+            {
+            endSession( former ) ;
+            }
+
+        final SessionRegistry.Session replaced = this.sessions.add( clientID, connection ) ;
+
+        if ( replaced != null )
+            {
+            ServerLog.info( "Replaced the earlier connection of " + clientID ) ;
+            this.metrics.sessionReplaced() ;
+            replaced.getConnection().disconnect() ;
+            }
+        else if ( this.cluster != null )
+            {
+            this.cluster.online( clientID ) ;
+            }
+
+        deliverOffline( clientID, connection ) ;
+
+        }
+
+
+    /**
+     * Forget a session, unless its user has since connected again.
+     */
+    private void endSession( final SessionRegistry.Session session )
+        {
+
+        if ( this.sessions.remove( session ) )
+            {
+            ServerLog.info( "Removed " + session.getUserID() + " from client map." ) ;
+
+            if ( this.cluster != null )
+                {
+                this.cluster.offline( session.getUserID() ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Close a session that has sent nothing for {@code chat.session.idleTimeoutMillis}.
+     */
+    private void reap( final SessionRegistry.Session session )
+        {
+
+        final long now = System.currentTimeMillis() ;
+
+        ServerLog.info( "Closing idle session of " + session.getUserID() + ", idle " +
+                        ( now - session.getLastActivity() ) + " ms of " +
+                        ( now - session.getConnectedAt() ) + " ms, " +
+                        session.getQueuedBytes() + " bytes queued" ) ;
+        this.metrics.sessionReaped() ;
+        endSession( session ) ;
+        session.getConnection().disconnect() ;
+
+        }
+
+
+    /**
+     * Acknowledge a binary protocol hello.
+     *
+     * @throws IOException
+     *     If the client asked for a version this server does not speak.
+     *
+     * @since 1.3
+     */
+    void handleHello( final ClientConnection connection,
+                      final int version ) throws IOException
+        {
+
+        if ( version < BinaryFrames.VERSION )
+            {
+            throw new IOException( "Unsupported protocol version " + version ) ;
+            }
+
+        connection.send( ( encoder, out ) -> encoder.hello( out ) ) ;
+
+        }
+
+
+    /**
+     * Answer a history request with the whole history between the requester and
+     * {@code peerID}, tagged with the requester's number for the request.
+     *
+     * @since 1.3
+     */
+    void handleHistoryRequest( final ClientConnection connection,
+                               final String requesterID,
+                               final String peerID,
+                               final long request ) throws IOException
+        {
+
+        register( requesterID, connection ) ;
+        ServerLog.debug( () -> requesterID + " REQ requested history with " + peerID ) ;
+
+        final long readStart = System.nanoTime() ;
+        final List<String> history = getMessageHistoryBetween( requesterID,
+                                                               peerID ) ;
+
+        this.metrics.historyRead( System.nanoTime() - readStart ) ;
+
+        connection.send( ( encoder, out ) -> encoder.history( out,
+                                                              requesterID,
+                                                              peerID,
+                                                              request,
+                                                              history ) ) ;
+
+        }
+
+
+    /**
+     * Answer a page request for up to {@code limit} records older than the cursor
+     * {@code before}. Records are streamed a few at a time so the client sees the first of them
+     * without waiting for the whole page, and the page ends with the cursor for the page before
+     * it. A cursor of 0 means there is no older history. The newest page of a conversation is
+     * answered from the history cache when it can be.
+     *
+     * @since 1.3
+     */
+    void handlePageRequest( final ClientConnection connection,
+                            final String requesterID,
+                            final String peerID,
+                            final int limit,
+                            final long before ) throws IOException
+        {
+
+        register( requesterID, connection ) ;
+        ServerLog.debug( () -> requesterID + " requested " + limit +
+                               " history records with " + peerID ) ;
+
+        final long readStart = System.nanoTime() ;
+        final HistoryCache.Page newest = before < 0
+            ? getNewestPage( requesterID, peerID, limit )
+            : null ;
+
+        if ( newest != null )
+            {
+            this.metrics.pageRead( System.nanoTime() - readStart ) ;
+            connection.send( ( encoder, out ) ->
+                {
+                encoder.pageRecords( out, peerID, newest.getRecords() ) ;
+                encoder.pageEnd( out, peerID, newest.getCursor() ) ;
+                } ) ;
+            return ;
+            }
+
+        final List<String> records = new ArrayList<>( PAGE_FRAMES_PER_WRITE ) ;
+        long cursor = 0 ;
+
+        try
+            {
+            cursor = this.history.readPage( requesterID, peerID, before, limit, record ->
+                {
+                records.add( record ) ;
+
+                if ( records.size() == PAGE_FRAMES_PER_WRITE )
+                    {
+                    final List<String> chunk = List.copyOf( records ) ;
+                    connection.send( ( encoder, out ) -> encoder.pageRecords( out,
+                                                                              peerID,
+                                                                              chunk ) ) ;
+                    records.clear() ;
+                    }
+
+                } ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Error reading message history: " +
+                             e.getMessage() ) ;
+            }
+
+        this.metrics.pageRead( System.nanoTime() - readStart ) ;
+
+        final List<String> rest = List.copyOf( records ) ;
+        final long end = cursor ;
+
+        connection.send( ( encoder, out ) ->
+            {
+            encoder.pageRecords( out, peerID, rest ) ;
+            encoder.pageEnd( out, peerID, end ) ;
+            } ) ;
+
+        }
+
+
+    /**
+     * Answer a search request with up to {@code limit} of the newest matching records, oldest
+     * first, as a history answer with an empty peer tagged with the requester's number for the
+     * request. Only records the requester sent or received are searched, and {@code userID}, if
+     * not empty, narrows them to its conversation with that user.
+     *
+     * @since 1.3
+     */
+    void handleSearchRequest( final ClientConnection connection,
+                              final String requesterID,
+                              final long request,
+                              final String query,
+                              final String userID,
+                              final long fromMillis,
+                              final long toMillis,
+                              final int limit ) throws IOException
+        {
+
+        register( requesterID, connection ) ;
+        ServerLog.debug( () -> requesterID + " searched history for " + query ) ;
+
+        final long searchStart = System.nanoTime() ;
+        List<String> found ;
+
+        try
+            {
+            found = this.history.search( query,
+                                         requesterID,
+                                         userID,
+                                         fromMillis,
+                                         toMillis,
+                                         limit <= 0
+                                             ? DEFAULT_SEARCH_LIMIT
+                                             : Math.min( limit, MAX_SEARCH_LIMIT ) ) ;
+            }
+        catch ( final IOException e )
+            {
+            ServerLog.error( "Error searching message history: " +
+                             e.getMessage() ) ;
+            found = new ArrayList<>() ;
+            }
+
+        this.metrics.searched( System.nanoTime() - searchStart ) ;
+
+        final List<String> records = found ;
+
+        connection.send( ( encoder, out ) -> encoder.history( out,
+                                                              requesterID,
+                                                              "",
+                                                              request,
+                                                              records ) ) ;
+
+        }
+
+
+    /**
+     * Register the sender of a normal message frame and deliver it.
+     *
+     * @since 1.3
+     */
+    void handleMessage( final ClientConnection connection,
+                        final String senderID,
+                        final String recipientID,
+                        final long sequence,
+                        final String message ) throws IOException
+        {
+
+        this.metrics.messageReceived() ;
+        register( senderID, connection ) ;
+        sendMessage( senderID, recipientID, sequence, message ) ;
+
+        }
+
+
+    /**
+     * Add a user to a group.
+     *
+     * @since 1.3
+     */
+    void handleJoin( final ClientConnection connection,
+                     final String memberID,
+                     final String groupID ) throws IOException
+        {
+
+        if ( !GroupRegistry.isGroup( groupID ) )
+            {
+            throw new IOException( "Group IDs start with " + GroupRegistry.PREFIX + ": " +
+                                   groupID ) ;
+            }
+
+        register( memberID, connection ) ;
+
+        if ( this.groups.join( groupID, memberID ) )
+            {
+            ServerLog.info( memberID + " joined " + groupID ) ;
+
+            if ( this.cluster != null )
+                {
+                this.cluster.joined( memberID, groupID ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Remove a user from a group.
+     *
+     * @since 1.3
+     */
+    void handleLeave( final ClientConnection connection,
+                      final String memberID,
+                      final String groupID ) throws IOException
+        {
+
+        register( memberID, connection ) ;
+
+        if ( this.groups.leave( groupID, memberID ) )
+            {
+            ServerLog.info( memberID + " left " + groupID ) ;
+
+            if ( this.cluster != null )
+                {
+                this.cluster.left( memberID, groupID ) ;
+                }
+
+            }
+
+        }
 
 
     /**
-     * @param port
-     *     The port the server listens on.
+     * @return This server's counters, shared with its connections.
+     *
+     * @since 1.3
      */
-    public TCPServer( final int port )
+    ServerMetrics getMetrics()
         {
 
-        try
-            {
-            this.serverSocket = new ServerSocket( port ) ;
-            this.clientMap = new ConcurrentHashMap<>() ;
-            this.messageHistoryFile = new File( "message_history_test.txt" ) ;
-            this.historyWriter = new BufferedWriter( new FileWriter( this.messageHistoryFile,
-                                                                     true ) ) ;
+        return this.metrics ;
 
-            System.out.println( "TCP chat server started successfully on port: " +
-                                port ) ;
-            System.out.println( "Waiting for incoming client connections..." ) ;
+        }
 
-            while ( true )
-                {
-                final Socket clientSocket = this.serverSocket.accept() ;
-                System.out.println( "New client connection from: " +
-                                    clientSocket.getRemoteSocketAddress() ) ;
-                new ClientHandler( clientSocket ).start() ;
-                }
 
+    /**
+     * Forget a closed connection's session, whichever kind of frame started it, unless its user
+     * has since connected again.
+     *
+     * @since 1.3
+     */
+    void unregister( final ClientConnection connection )
+        {
+
+        final SessionRegistry.Session session = this.sessions.sessionOf( connection ) ;
+
+        if ( session != null )
+            {
+            endSession( session ) ;
             }
-        catch ( final IOException e )
+
+        }
+
+
+    /**
+     * A connection that fell too far behind has caught up: deliver what was held for it
+     * meanwhile.
+     *
+     * @since 1.3
+     */
+    void handleCaughtUp( final ClientConnection connection )
+        {
+
+        final SessionRegistry.Session session = this.sessions.sessionOf( connection ) ;
+
+        if ( session != null )
             {
-            System.err.println( "Server failed to start: " + e.getMessage() ) ;
-            e.printStackTrace() ;
+            deliverOffline( session.getUserID(), connection ) ;
             }
 
         }
 
 
     /**
-     * Send a message to the intended recipient and confirmation to the sender.
+     * @return The users connected to this server.
+     *
+     * @since 1.3
+     */
+    SessionRegistry getSessions()
+        {
+
+        return this.sessions ;
+
+        }
+
+
+    /**
+     * @return The group memberships, which in a cluster cover every node.
+     *
+     * @since 1.3
+     */
+    GroupRegistry getGroups()
+        {
+
+        return this.groups ;
+
+        }
+
+
+    /**
+     * A user connected to another node: send that node everything held here for the user.
+     *
+     * @since 1.3
      */
-    private synchronized void sendMessage( final String senderID,
-                                           final String recipientID,
-                                           final String message )
+    void handlePeerOnline( final String userID,
+                           final String nodeID )
         {
 
-        final String timestamp = DateFormat.getDateTimeInstance()
-                                           .format( new Date( System.currentTimeMillis() ) ) ;
+        // A user connected here as well takes its messages here
+        if ( this.sessions.get( userID ) != null )
+            {
+            return ;
+            }
 
-        final String logFormat = "[" + timestamp + "] " + senderID + " -> " +
-                                 recipientID + ": " + message ;
-        System.out.println( "Processing message: " + logFormat ) ;
+        final List<OfflineQueue.Delivery> backlog ;
 
         try
             {
-            this.historyWriter.write( logFormat + '\n' ) ;
-            this.historyWriter.flush() ;
+            backlog = this.offline.drain( userID ) ;
             }
         catch ( final IOException e )
             {
-            System.err.println( "Failed to write message to history: " +
-                                e.getMessage() ) ;
+            ServerLog.error( "Could not read queued messages for " + userID + ": " +
+                             e.getMessage() ) ;
+            return ;
             }
 
-        final Socket recipientSocket = this.clientMap.get( recipientID ) ;
+        boolean linked = true ;
 
-        if ( recipientSocket != null )
+        for ( final OfflineQueue.Delivery delivery : backlog )
             {
-
-            try
-                {
-                final BufferedWriter out = new BufferedWriter( new OutputStreamWriter( recipientSocket.getOutputStream() ) ) ;
-
-                out.write( senderID + "\n" ) ;
-                out.write( recipientID + "\n" ) ;
-                out.write( message + "\n" ) ;
-                out.flush() ;
-
-                System.out.println( "Delivered message to recipient " +
-                                    recipientID ) ;
-                }
-            catch ( final IOException e )
+            // Once one cannot be sent the rest stay held too, so they are delivered in order
+            linked = linked && this.cluster.forward( nodeID,
+                                                     userID,
+                                                     delivery.getSenderID(),
+                                                     delivery.getRecipientID(),
+                                                     delivery.getMessage() ) ;
+
+            if ( !linked )
                 {
-                System.err.println( "Failed to send message to " + recipientID +
-                                    ": " + e.getMessage() ) ;
+                holdOffline( userID,
+                             delivery.getSenderID(),
+                             delivery.getRecipientID(),
+                             delivery.getMessage() ) ;
                 }
 
             }
-        else
+
+        if ( !backlog.isEmpty() )
             {
-            System.out.println( "Recipient " + recipientID +
-                                " is offline. Message stored in history only." ) ;
+            ServerLog.info( "Forwarded " + backlog.size() + " queued messages for " + userID +
+                            " to node " + nodeID ) ;
             }
 
-        final Socket senderSocket = this.clientMap.get( senderID ) ;
+        }
+
+
+    /**
+     * A history record another node made of a message sent to it, appended here as is.
+     *
+     * @since 1.3
+     */
+    void handlePeerRecord( final String senderID,
+                           final String recipientID,
+                           final String record )
+        {
+
+        this.history.append( senderID, recipientID, record ) ;
 
-        if ( senderSocket != null )
+        }
+
+
+    /**
+     * A message another node forwarded for {@code targetID}, who is, or was, connected here. The
+     * node it was sent to has recorded it already, and sent the record here separately, so it is
+     * only delivered or held, and never forwarded again.
+     *
+     * @param recipientID
+     *     The target, or the group the message was sent to.
+     *
+     * @since 1.3
+     */
+    void handlePeerMessage( final String targetID,
+                            final String senderID,
+                            final String recipientID,
+                            final String message )
+        {
+
+        final ClientConnection target = this.sessions.connection( targetID ) ;
+
+        if ( target == null )
             {
+            holdOffline( targetID, senderID, recipientID, message ) ;
+            return ;
+            }
 
-            try
-                {
-                final BufferedWriter out = new BufferedWriter( new OutputStreamWriter( senderSocket.getOutputStream() ) ) ;
+        try
+            {
 
-                out.write( senderID + "\n" ) ;
-                out.write( recipientID + "\n" ) ;
-                out.write( message + "\n" ) ;
-                out.flush() ;
+            final OfflineQueue.Delivery delivery = new OfflineQueue.Delivery( senderID,
+                                                                              recipientID,
+                                                                              message ) ;
 
-                System.out.println( "Sent confirmation back to sender " +
-                                    senderID ) ;
+            if ( target.offer( delivery::encode ) )
+                {
+                this.metrics.messagesDelivered( 1 ) ;
                 }
-            catch ( final IOException e )
+            else
                 {
-                System.err.println( "Failed to send confirmation to sender " +
-                                    senderID + ": " + e.getMessage() ) ;
+                spill( targetID, target, senderID, recipientID, message ) ;
                 }
 
             }
+        catch ( final IOException e )
+            {
+            // The connection is closed, so the message waits for the user to reconnect
+            ServerLog.error( "Failed to send message to " + targetID +
+                             ", holding it: " + e.getMessage() ) ;
+            holdOffline( targetID, senderID, recipientID, message ) ;
+            }
 
         }
 
 
     /**
-     * Retrieve chat history between two users.
+     * A group message another node sent once for the members connected here, whose record
+     * arrives separately.
+     *
+     * @since 1.3
      */
-    private synchronized List<String> getMessageHistoryBetween(
-                                                                final String user1,
-                                                                final String user2 )
+    void handlePeerGroupMessage( final String senderID,
+                                 final String groupID,
+                                 final String message,
+                                 final List<String> members )
         {
 
-        final List<String> history = new ArrayList<>() ;
+        final ClientConnection.Frame frame =
+            new SharedFrame( ( encoder, out ) -> encoder.groupMessage( out,
+                                                                      senderID,
+                                                                      groupID,
+                                                                      message ) ) ;
+        int delivered = 0 ;
 
-        try ( BufferedReader reader = new BufferedReader( new FileReader( this.messageHistoryFile ) ) )
+        for ( final String memberID : members )
             {
-            String line ;
+            final ClientConnection member = this.sessions.connection( memberID ) ;
+
+            if ( member == null )
+                {
+                holdOffline( memberID, senderID, groupID, message ) ;
+                continue ;
+                }
 
-            while ( ( line = reader.readLine() ) != null )
+            try
                 {
 
-                if ( line.contains( user1 + " -> " + user2 ) ||
-                     line.contains( user2 + " -> " + user1 ) )
+                if ( member.offer( frame ) )
+                    {
+                    delivered++ ;
+                    }
+                else
                     {
-                    history.add( line ) ;
+                    spill( memberID, member, senderID, groupID, message ) ;
                     }
 
                 }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Failed to send message to " + memberID +
+                                 ", holding it: " + e.getMessage() ) ;
+                holdOffline( memberID, senderID, groupID, message ) ;
+                }
 
             }
-        catch ( final IOException e )
-            {
-            System.err.println( "Error reading message history: " +
-                                e.getMessage() ) ;
-            }
 
-        return history ;
+        this.metrics.messagesDelivered( delivered ) ;
+
+        }
+
+
+    /**
+     * A membership change made on another node.
+     *
+     * @since 1.3
+     */
+    void handlePeerJoin( final String memberID,
+                         final String groupID )
+        {
+
+        this.groups.join( groupID, memberID ) ;
+
+        }
+
+
+    /**
+     * A membership change made on another node.
+     *
+     * @since 1.3
+     */
+    void handlePeerLeave( final String memberID,
+                          final String groupID )
+        {
+
+        this.groups.leave( groupID, memberID ) ;
 
         }
 
@@ -195,19 +1430,28 @@ public class TCPServer
     /**
      * Handles communication for a single client.
      */
-    private class ClientHandler extends Thread
+    private class ClientHandler implements Runnable, ClientConnection, FrameDecoder.Listener
         {
 
+        private static final int READ_BUFFER_SIZE = 8192 ;
+
         private final Socket socket ;
-        private BufferedReader in ;
-        private BufferedWriter out ;
+        private final Executor writerExecutor ;
+        private InputStream in ;
+        private OutboundChannel outbound ;
         private String clientID ;
 
 
-        public ClientHandler( final Socket socketInput )
+        /**
+         * @param writerExecutorInput
+         *     Runs the connection's writer, on the same kind of thread as the handler.
+         */
+        public ClientHandler( final Socket socketInput,
+                              final Executor writerExecutorInput )
             {
 
             this.socket = socketInput ;
+            this.writerExecutor = writerExecutorInput ;
 
             }
 
@@ -216,84 +1460,266 @@ public class TCPServer
         public void run()
             {
 
+            TCPServer.this.metrics.connectionOpened() ;
+
             try
                 {
-                this.in = new BufferedReader( new InputStreamReader( this.socket.getInputStream() ) ) ;
-                this.out = new BufferedWriter( new OutputStreamWriter( this.socket.getOutputStream() ) ) ;
+                this.in = this.socket.getInputStream() ;
 
-                while ( true )
-                    {
-                    final String senderID = this.in.readLine() ;
+                final byte[] bytes = new byte[ READ_BUFFER_SIZE ] ;
+                int read = this.in.read( bytes ) ;
 
-                    if ( senderID == null )
+                if ( read > 0 )
+                    {
+                    // The first byte a client sends decides which protocol it speaks
+                    final WireProtocol protocol = WireProtocol.detect( bytes[ 0 ] ) ;
+                    final FrameDecoder decoder = protocol.newDecoder() ;
+                    final OutputStream stream = this.socket.getOutputStream() ;
+                    this.outbound = new OutboundChannel( null,
+                                                         protocol.newEncoder(),
+                                                         TCPServer.this.metrics,
+                                                         () -> handleCaughtUp( this ) ) ;
+
+                    // Replies and deliveries are written by a thread of the connection's own,
+                    // so nobody sending to a client that is slow to read waits on it
+                    this.writerExecutor.execute( () -> write( stream ) ) ;
+
+                    while ( read >= 0 )
                         {
-                        System.out.println( "Client disconnected." ) ;
-                        break ;
+                        TCPServer.this.metrics.bytesIn( read ) ;
+                        decoder.decode( ByteBuffer.wrap( bytes, 0, read ), this ) ;
+                        read = this.in.read( bytes ) ;
                         }
 
-                    // REQ handler
-                    if ( senderID.endsWith( "REQ" ) )
-                        {
-                        final String recipientID = this.in.readLine() ;
+                    }
+
+                ServerLog.info( "Client disconnected." ) ;
+                }
+            catch ( final IOException e )
+                {
+                ServerLog.error( "Connection error with client " +
+                                 this.clientID + ": " + e.getMessage() ) ;
+                }
+            finally
+                {
+                cleanup() ;
+                }
+
+            }
 
-                        if ( recipientID == null )
-                            {
-                            break ;
-                            }
 
-                        TCPServer.this.clientMap.putIfAbsent( senderID.replace( " REQ",
-                                                                                "" ),
-                                                              this.socket ) ;
-                        System.out.println( senderID +
-                                            " requested history with " +
-                                            recipientID ) ;
+        @Override
+        public void hello( final int version ) throws IOException
+            {
 
-                        final List<String> history = getMessageHistoryBetween( senderID.replace( " REQ",
-                                                                                                 "" ),
-                                                                               recipientID ) ;
+            handleHello( this, version ) ;
 
-                        // Send REQ header
-                        this.out.write( senderID + "\n" ) ;
-                        this.out.write( recipientID + "\n" ) ;
+            }
 
-                        for ( final String msg : history )
-                            {
-                            this.out.write( msg + "\n" ) ;
-                            }
 
-                        this.out.write( "REQ\n" ) ;
-                        this.out.flush() ;
+        @Override
+        public void message( final String senderID,
+                             final String recipientID,
+                             final long sequence,
+                             final String message ) throws IOException
+            {
 
-                        continue ;
-                        }
+            this.clientID = senderID ;
+            handleMessage( this, senderID, recipientID, sequence, message ) ;
 
-                    // Normal message
-                    final String recipientID = this.in.readLine() ;
-                    final String message = this.in.readLine() ;
+            }
 
-                    if ( ( recipientID == null ) || ( message == null ) )
-                        {
-                        System.out.println( "Client disconnected mid-message." ) ;
-                        break ;
-                        }
 
-                    this.clientID = senderID ;
-                    TCPServer.this.clientMap.putIfAbsent( senderID,
-                                                          this.socket ) ;
+        @Override
+        public void historyRequest( final String requesterID,
+                                    final String peerID,
+                                    final long request ) throws IOException
+            {
+
+            handleHistoryRequest( this, requesterID, peerID, request ) ;
+
+            }
+
+
+        @Override
+        public void pageRequest( final String requesterID,
+                                 final String peerID,
+                                 final int limit,
+                                 final long before ) throws IOException
+            {
+
+            handlePageRequest( this, requesterID, peerID, limit, before ) ;
+
+            }
+
+
+        @Override
+        public void searchRequest( final String requesterID,
+                                   final long request,
+                                   final String query,
+                                   final String userID,
+                                   final long fromMillis,
+                                   final long toMillis,
+                                   final int limit ) throws IOException
+            {
+
+            handleSearchRequest( this,
+                                 requesterID,
+                                 request,
+                                 query,
+                                 userID,
+                                 fromMillis,
+                                 toMillis,
+                                 limit ) ;
+
+            }
+
+
+        @Override
+        public void join( final String memberID,
+                          final String groupID ) throws IOException
+            {
+
+            this.clientID = memberID ;
+            handleJoin( this, memberID, groupID ) ;
+
+            }
+
+
+        @Override
+        public void leave( final String memberID,
+                           final String groupID ) throws IOException
+            {
+
+            this.clientID = memberID ;
+            handleLeave( this, memberID, groupID ) ;
+
+            }
+
+
+        /**
+         * Writes go through this handler's own outbound channel so deliveries from other
+         * handlers cannot interleave with its replies.
+         */
+        @Override
+        public void send( final Frame frame ) throws IOException
+            {
+
+            try
+                {
+                this.outbound.send( frame ) ;
+                }
+            catch ( final IOException e )
+                {
+                // The client may have been found too slow, with the writer stuck on it
+                closeSocket() ;
+                throw e ;
+                }
+
+            }
+
+
+        @Override
+        public boolean offer( final Frame frame ) throws IOException
+            {
+
+            try
+                {
+                return this.outbound.offer( frame ) ;
+                }
+            catch ( final IOException e )
+                {
+                closeSocket() ;
+                throw e ;
+                }
+
+            }
+
+
+        @Override
+        public boolean sendHeld( final Frame frame ) throws IOException
+            {
+
+            try
+                {
+                return this.outbound.sendHeld( frame ) ;
+                }
+            catch ( final IOException e )
+                {
+                closeSocket() ;
+                throw e ;
+                }
+
+            }
+
+
+        @Override
+        public boolean isSpilling()
+            {
+
+            return this.outbound.isSpilling() ;
+
+            }
+
+
+        @Override
+        public int queuedBytes()
+            {
+
+            return this.outbound == null ? 0 : this.outbound.queuedBytes() ;
+
+            }
 
-                    sendMessage( senderID, recipientID, message ) ;
-                    }
 
+        @Override
+        public void disconnect()
+            {
+
+            // The reader fails, and cleans up
+            closeSocket() ;
+
+            }
+
+
+        @Override
+        public void resume()
+            {
+
+            this.outbound.resume() ;
+
+            }
+
+
+        private void write( final OutputStream stream )
+            {
+
+            try
+                {
+                this.outbound.pump( stream ) ;
                 }
             catch ( final IOException e )
                 {
-                System.err.println( "Connection error with client " +
-                                    this.clientID + ": " + e.getMessage() ) ;
+                ServerLog.error( "Failed to write to client " + this.clientID + ": " +
+                                 e.getMessage() ) ;
                 }
             finally
                 {
-                cleanup() ;
+                // Stops the reader too, which cleans up
+                closeSocket() ;
+                }
+
+            }
+
+
+        private void closeSocket()
+            {
+
+            try
+                {
+                this.socket.close() ;
                 }
+            catch ( final IOException ignored )
+                {}
 
             }
 
@@ -309,9 +1735,9 @@ public class TCPServer
                     this.in.close() ;
                     }
 
-                if ( this.out != null )
+                if ( this.outbound != null )
                     {
-                    this.out.close() ;
+                    this.outbound.close() ;
                     }
 
                 if ( ( this.socket != null ) && !this.socket.isClosed() )
@@ -323,12 +1749,8 @@ public class TCPServer
             catch ( final IOException ignored )
                 {}
 
-            if ( this.clientID != null )
-                {
-                TCPServer.this.clientMap.remove( this.clientID ) ;
-                System.out.println( "Removed " + this.clientID +
-                                    " from client map." ) ;
-                }
+            unregister( this ) ;
+            TCPServer.this.metrics.connectionClosed() ;
 
             }
 
@@ -341,7 +1763,7 @@ public class TCPServer
     public static void main( final String[] args )
         {
 
-        new TCPServer( 9000 ) ;
+        new TCPServer( 9000 ).start() ;
 
         }
 
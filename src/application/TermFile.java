@@ -0,0 +1,265 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.DataOutputStream ;
+import java.io.File ;
+import java.io.IOException ;
+import java.io.OutputStream ;
+import java.nio.ByteBuffer ;
+import java.nio.MappedByteBuffer ;
+import java.nio.channels.FileChannel ;
+import java.nio.charset.StandardCharsets ;
+import java.nio.file.StandardOpenOption ;
+import java.util.ArrayList ;
+import java.util.Arrays ;
+import java.util.List ;
+import java.util.Map ;
+
+/**
+ * The persisted search terms of one sealed history segment, memory mapped for lookups.
+ * <p>
+ * The file is one or more blocks, each covering some of the segment's records:
+ *
+ * <pre>
+ * int     term count
+ * int     entry bytes
+ * int[]   offset of each entry, in term order
+ * entries term (varint length, UTF-8), record count (varint), record offsets in the segment
+ *         (varint, each after the first as the gap from the one before)
+ * </pre>
+ *
+ * A term's records are found by a binary search of each block's offsets.
+ *
+ * @version 1.0 2026-10-18 Persisted per segment search terms.
+ *
+ * @since 1.3
+ */
+final class TermFile
+    {
+
+    private final int segmentID ;
+    private final MappedByteBuffer map ;
+    private final int[] blocks ;
+
+
+    private TermFile( final int segmentIDInput,
+                      final MappedByteBuffer mapInput,
+                      final int[] blocksInput )
+        {
+
+        this.segmentID = segmentIDInput ;
+        this.map = mapInput ;
+        this.blocks = blocksInput ;
+
+        }
+
+
+    /**
+     * Map a term file and find its blocks.
+     *
+     * @throws IOException
+     *     If the file cannot be read or is not a well formed term file.
+     */
+    static TermFile open( final int segmentID,
+                          final File file ) throws IOException
+        {
+
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+            {
+            final MappedByteBuffer map = channel.map( FileChannel.MapMode.READ_ONLY,
+                                                      0,
+                                                      channel.size() ) ;
+            final List<Integer> blocks = new ArrayList<>() ;
+            int block = 0 ;
+
+            while ( block < map.limit() )
+                {
+
+                if ( ( map.limit() - block ) < ( 2 * Integer.BYTES ) )
+                    {
+                    throw new IOException( "Truncated term file " + file ) ;
+                    }
+
+                blocks.add( block ) ;
+                block += ( 2 * Integer.BYTES ) + ( map.getInt( block ) * Integer.BYTES ) +
+                         map.getInt( block + Integer.BYTES ) ;
+                }
+
+            if ( block != map.limit() )
+                {
+                throw new IOException( "Truncated term file " + file ) ;
+                }
+
+            return new TermFile( segmentID,
+                                 map,
+                                 blocks.stream().mapToInt( Integer::intValue ).toArray() ) ;
+            }
+
+        }
+
+
+    /**
+     * Write one block holding {@code terms}, whose positions must all be in the same segment.
+     */
+    static void writeBlock( final OutputStream out,
+                            final Map<String, MessageHistory.OffsetList> terms ) throws IOException
+        {
+
+        final String[] sorted = terms.keySet().toArray( new String[ 0 ] ) ;
+        Arrays.sort( sorted ) ;
+
+        final int[] offsets = new int[ sorted.length ] ;
+        final ByteArrayOutputStream entries = new ByteArrayOutputStream() ;
+
+        for ( int i = 0 ; i < sorted.length ; i++ )
+            {
+            final long[] positions = terms.get( sorted[ i ] ).toArray() ;
+            long previous = 0 ;
+
+            offsets[ i ] = entries.size() ;
+            BinaryFrames.writeString( entries, sorted[ i ] ) ;
+            BinaryFrames.writeVarint( entries, positions.length ) ;
+
+            for ( final long position : positions )
+                {
+                final long offset = HistorySegment.offsetOf( position ) ;
+                BinaryFrames.writeVarint( entries, offset - previous ) ;
+                previous = offset ;
+                }
+
+            }
+
+        final DataOutputStream data = new DataOutputStream( out ) ;
+        data.writeInt( sorted.length ) ;
+        data.writeInt( entries.size() ) ;
+
+        for ( final int offset : offsets )
+            {
+            data.writeInt( offset ) ;
+            }
+
+        entries.writeTo( data ) ;
+        data.flush() ;
+
+        }
+
+
+    /**
+     * @return The positions of every record with {@code term}, in log order.
+     */
+    long[] positions( final String term )
+        {
+
+        final ByteBuffer view = this.map.duplicate() ;
+        long[] found = new long[ 0 ] ;
+
+        for ( final int block : this.blocks )
+            {
+            final long[] more = lookup( view, block, term ) ;
+
+            if ( more.length > 0 )
+                {
+                final int had = found.length ;
+                found = Arrays.copyOf( found, had + more.length ) ;
+                System.arraycopy( more, 0, found, had, more.length ) ;
+                }
+
+            }
+
+        // Blocks written by recovery are not in log order
+        if ( this.blocks.length > 1 )
+            {
+            Arrays.sort( found ) ;
+            }
+
+        return found ;
+
+        }
+
+
+    private long[] lookup( final ByteBuffer view,
+                           final int block,
+                           final String term )
+        {
+
+        final int count = view.getInt( block ) ;
+        final int table = block + ( 2 * Integer.BYTES ) ;
+        final int entries = table + ( count * Integer.BYTES ) ;
+        int low = 0 ;
+        int high = count - 1 ;
+
+        while ( low <= high )
+            {
+            final int middle = ( low + high ) >>> 1 ;
+            view.position( entries + view.getInt( table + ( middle * Integer.BYTES ) ) ) ;
+
+            final int order = readTerm( view ).compareTo( term ) ;
+
+            if ( order < 0 )
+                {
+                low = middle + 1 ;
+                }
+            else if ( order > 0 )
+                {
+                high = middle - 1 ;
+                }
+            else
+                {
+                return readPositions( view ) ;
+                }
+
+            }
+
+        return new long[ 0 ] ;
+
+        }
+
+
+    private static String readTerm( final ByteBuffer view )
+        {
+
+        final byte[] bytes = new byte[ (int) readVarint( view ) ] ;
+        view.get( bytes ) ;
+
+        return new String( bytes, StandardCharsets.UTF_8 ) ;
+
+        }
+
+
+    private long[] readPositions( final ByteBuffer view )
+        {
+
+        final long[] positions = new long[ (int) readVarint( view ) ] ;
+        long offset = 0 ;
+
+        for ( int i = 0 ; i < positions.length ; i++ )
+            {
+            offset += readVarint( view ) ;
+            positions[ i ] = HistorySegment.position( this.segmentID, offset ) ;
+            }
+
+        return positions ;
+
+        }
+
+
+    private static long readVarint( final ByteBuffer view )
+        {
+
+        long value = 0 ;
+
+        for ( int shift = 0 ; ; shift += 7 )
+            {
+            final byte b = view.get() ;
+            value |= (long) ( b & 0x7F ) << shift ;
+
+            if ( b >= 0 )
+                {
+                return value ;
+                }
+
+            }
+
+        }
+
+    }
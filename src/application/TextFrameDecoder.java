@@ -0,0 +1,263 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.io.IOException ;
+import java.nio.ByteBuffer ;
+import java.nio.charset.StandardCharsets ;
+
+/**
+ * Reads the original newline terminated protocol sent by a client: sender / recipient / message
+ * frames, {@code "<id> REQ"} / peer history requests, {@code "<id> PAGE"} / peer /
+ * {@code "<limit> [<before>]"} page requests, {@code "<id> SEARCH"} / query /
+ * {@code "<limit> <from> <to> [<user>]"} search requests and {@code "<id> JOIN"} or
+ * {@code "<id> LEAVE"} / group membership changes. A first line ending in
+ * {@code " #<number>"} numbers a message for confirmation or a history or search request for its
+ * reply. Lines are UTF-8 and may end in {@code \r\n}, but a {@code \r} anywhere else would split
+ * the line for readers that also break on it, so it disconnects the client.
+ *
+ * @version 1.6 2026-10-18 Refuses carriage returns inside a line.
+ *
+ * @since 1.3
+ */
+final class TextFrameDecoder implements FrameDecoder
+    {
+
+    private static final int MAX_LINE_BYTES = 1 << 20 ;
+    private static final int DEFAULT_PAGE_SIZE = 50 ;
+
+    private final ByteArrayOutputStream partialLine ;
+    private String firstLine ;
+    private String secondLine ;
+
+
+    TextFrameDecoder()
+        {
+
+        this.partialLine = new ByteArrayOutputStream() ;
+
+        }
+
+
+    @Override
+    public void decode( final ByteBuffer in,
+                        final Listener listener ) throws IOException
+        {
+
+        while ( in.hasRemaining() )
+            {
+            final byte b = in.get() ;
+
+            if ( b != '\n' )
+                {
+                this.partialLine.write( b ) ;
+
+                if ( this.partialLine.size() > MAX_LINE_BYTES )
+                    {
+                    throw new IOException( "Line exceeds " + MAX_LINE_BYTES + " bytes" ) ;
+                    }
+
+                continue ;
+                }
+
+            String line = this.partialLine.toString( StandardCharsets.UTF_8 ) ;
+            this.partialLine.reset() ;
+
+            if ( line.endsWith( "\r" ) )
+                {
+                line = line.substring( 0, line.length() - 1 ) ;
+                }
+
+            if ( line.indexOf( '\r' ) >= 0 )
+                {
+                throw new IOException( "Carriage return inside a line" ) ;
+                }
+
+            onLine( line, listener ) ;
+            }
+
+        }
+
+
+    private void onLine( final String line,
+                         final Listener listener ) throws IOException
+        {
+
+        if ( this.firstLine == null )
+            {
+            this.firstLine = line ;
+            return ;
+            }
+
+        final int mark = sequenceMark( this.firstLine ) ;
+        final String first = mark < 0 ? this.firstLine : this.firstLine.substring( 0, mark ) ;
+        final long sequence = mark < 0
+            ? 0
+            : Long.parseLong( this.firstLine,
+                              mark + TextFrameEncoder.SEQUENCE_MARK.length(),
+                              this.firstLine.length(),
+                              10 ) ;
+
+        // REQ handler
+        if ( first.endsWith( "REQ" ) )
+            {
+            this.firstLine = null ;
+            listener.historyRequest( first.replace( " REQ", "" ), line, sequence ) ;
+            return ;
+            }
+
+        if ( first.endsWith( " JOIN" ) )
+            {
+            this.firstLine = null ;
+            listener.join( first.substring( 0, first.length() - " JOIN".length() ), line ) ;
+            return ;
+            }
+
+        if ( first.endsWith( " LEAVE" ) )
+            {
+            this.firstLine = null ;
+            listener.leave( first.substring( 0, first.length() - " LEAVE".length() ), line ) ;
+            return ;
+            }
+
+        if ( this.secondLine == null )
+            {
+            this.secondLine = line ;
+            return ;
+            }
+
+        final String recipientID = this.secondLine ;
+        this.firstLine = null ;
+        this.secondLine = null ;
+
+        if ( isPageRequest( first ) )
+            {
+            pageRequest( first.substring( 0, first.length() - " PAGE".length() ),
+                         recipientID,
+                         line,
+                         listener ) ;
+            return ;
+            }
+
+        if ( first.endsWith( " SEARCH" ) )
+            {
+            searchRequest( first.substring( 0, first.length() - " SEARCH".length() ),
+                           sequence,
+                           recipientID,
+                           line,
+                           listener ) ;
+            return ;
+            }
+
+        // Normal message
+        listener.message( first, recipientID, sequence, line ) ;
+
+        }
+
+
+    /**
+     * @return Where a trailing {@code " #<sequence>"} starts in {@code line}, or -1 if it has none.
+     */
+    private static int sequenceMark( final String line )
+        {
+
+        final int mark = line.lastIndexOf( TextFrameEncoder.SEQUENCE_MARK ) ;
+        final int digits = mark + TextFrameEncoder.SEQUENCE_MARK.length() ;
+
+        if ( ( mark <= 0 ) || ( digits == line.length() ) || ( ( line.length() - digits ) > 18 ) )
+            {
+            return -1 ;
+            }
+
+        for ( int i = digits ; i < line.length() ; i++ )
+            {
+
+            if ( !Character.isDigit( line.charAt( i ) ) )
+                {
+                return -1 ;
+                }
+
+            }
+
+        return mark ;
+
+        }
+
+
+    /**
+     * @return True if the first line of a three line frame asks for a history page rather than
+     *     sending a message.
+     */
+    private static boolean isPageRequest( final String firstLine )
+        {
+
+        return firstLine.endsWith( " PAGE" ) ;
+
+        }
+
+
+    private static void pageRequest( final String requesterID,
+                                     final String peerID,
+                                     final String rangeLine,
+                                     final Listener listener ) throws IOException
+        {
+
+        int limit = DEFAULT_PAGE_SIZE ;
+        long before = -1 ;
+
+        try
+            {
+            final String[] range = rangeLine.trim().split( "\\s+" ) ;
+            limit = Integer.parseInt( range[ 0 ] ) ;
+
+            if ( range.length > 1 )
+                {
+                before = Long.parseLong( range[ 1 ] ) ;
+                }
+
+            }
+        catch ( final NumberFormatException e )
+            {
+            ServerLog.error( "Bad page range from " + requesterID + ": " +
+                             rangeLine ) ;
+            }
+
+        listener.pageRequest( requesterID, peerID, limit, before ) ;
+
+        }
+
+
+    private static void searchRequest( final String requesterID,
+                                       final long request,
+                                       final String query,
+                                       final String boundsLine,
+                                       final Listener listener ) throws IOException
+        {
+
+        final String[] bounds = boundsLine.trim().split( "\\s+", 4 ) ;
+        int limit = DEFAULT_PAGE_SIZE ;
+        long fromMillis = 0 ;
+        long toMillis = 0 ;
+
+        try
+            {
+            limit = Integer.parseInt( bounds[ 0 ] ) ;
+            fromMillis = bounds.length > 1 ? Long.parseLong( bounds[ 1 ] ) : 0 ;
+            toMillis = bounds.length > 2 ? Long.parseLong( bounds[ 2 ] ) : 0 ;
+            }
+        catch ( final NumberFormatException e )
+            {
+            ServerLog.error( "Bad search bounds from " + requesterID + ": " +
+                             boundsLine ) ;
+            }
+
+        listener.searchRequest( requesterID,
+                                request,
+                                query,
+                                bounds.length > 3 ? bounds[ 3 ] : "",
+                                fromMillis,
+                                toMillis,
+                                limit ) ;
+
+        }
+
+    }
@@ -0,0 +1,248 @@
+package application ;
+
+import java.io.ByteArrayOutputStream ;
+import java.nio.charset.StandardCharsets ;
+import java.util.List ;
+
+/**
+ * Writes the original newline terminated protocol, in UTF-8.
+ *
+ * @version 1.6 2026-10-18 IDs that read as confirmations or REQ replies are reserved.
+ *
+ * @since 1.3
+ */
+final class TextFrameEncoder implements FrameEncoder
+    {
+
+    /**
+     * Separates a user ID from a sequence number on a sender line.
+     */
+    static final String SEQUENCE_MARK = " #" ;
+
+    /**
+     * Follows the requester's ID on the first line of a history request and its reply.
+     */
+    static final String REQUEST_MARK = " REQ" ;
+
+    /**
+     * The sender line of a page record. No user may take it as an ID.
+     */
+    static final String PAGE_LINE = "PAGE" ;
+
+    /**
+     * The sender line of the end of a page. No user may take it as an ID.
+     */
+    static final String PAGE_END_LINE = "PAGE END" ;
+
+
+    /**
+     * @return True if {@code userID} would be read as the sender line of a page frame, or a
+     *     message from it as another user's confirmation or REQ reply. A text client is told its
+     *     confirmations and replies apart from messages by its own ID followed by one of the marks.
+     */
+    static boolean isReserved( final String userID )
+        {
+
+        return PAGE_LINE.equals( userID ) ||
+               PAGE_END_LINE.equals( userID ) ||
+               userID.contains( SEQUENCE_MARK ) ||
+               userID.endsWith( REQUEST_MARK ) ;
+
+        }
+
+
+    @Override
+    public void hello( final ByteArrayOutputStream out )
+        {}
+
+
+    /**
+     * A tracked message's sender line carries its sequence number as {@code "<id> #<sequence>"}.
+     */
+    @Override
+    public void message( final ByteArrayOutputStream out,
+                         final String senderID,
+                         final String recipientID,
+                         final long sequence,
+                         final String message )
+        {
+
+        line( out, sequence > 0 ? senderID + SEQUENCE_MARK + sequence : senderID ) ;
+        line( out, recipientID ) ;
+        line( out, message ) ;
+
+        }
+
+
+    /**
+     * The message echoed back as it was sent, so clients that match confirmations by body keep
+     * working.
+     */
+    @Override
+    public void confirmation( final ByteArrayOutputStream out,
+                              final String senderID,
+                              final String recipientID,
+                              final long sequence,
+                              final String message )
+        {
+
+        message( out, senderID, recipientID, sequence, message ) ;
+
+        }
+
+
+    @Override
+    public void historyRequest( final ByteArrayOutputStream out,
+                                final String requesterID,
+                                final String peerID,
+                                final long request )
+        {
+
+        final String requestLine = requesterID + REQUEST_MARK ;
+
+        line( out, request > 0 ? requestLine + SEQUENCE_MARK + request : requestLine ) ;
+        line( out, peerID ) ;
+
+        }
+
+
+    @Override
+    public void pageRequest( final ByteArrayOutputStream out,
+                             final String requesterID,
+                             final String peerID,
+                             final int limit,
+                             final long before )
+        {
+
+        line( out, requesterID + " PAGE" ) ;
+        line( out, peerID ) ;
+        line( out, limit + " " + before ) ;
+
+        }
+
+
+    /**
+     * {@code "<id> SEARCH #<request>"} / query / {@code "<limit> <from> <to> [<user>]"}.
+     */
+    @Override
+    public void searchRequest( final ByteArrayOutputStream out,
+                               final String requesterID,
+                               final long request,
+                               final String query,
+                               final String userID,
+                               final long fromMillis,
+                               final long toMillis,
+                               final int limit )
+        {
+
+        line( out, requesterID + " SEARCH" + SEQUENCE_MARK + request ) ;
+        line( out, query ) ;
+        line( out, ( limit + " " + fromMillis + " " + toMillis + " " + userID ).trim() ) ;
+
+        }
+
+
+    /**
+     * The request echoed back, one line per record, then a lone {@code REQ} line.
+     */
+    @Override
+    public void history( final ByteArrayOutputStream out,
+                         final String requesterID,
+                         final String peerID,
+                         final long request,
+                         final List<String> records )
+        {
+
+        historyRequest( out, requesterID, peerID, request ) ;
+
+        for ( final String record : records )
+            {
+            line( out, record ) ;
+            }
+
+        line( out, "REQ" ) ;
+
+        }
+
+
+    /**
+     * One {@code PAGE} / peer / record frame per record.
+     */
+    @Override
+    public void pageRecords( final ByteArrayOutputStream out,
+                             final String peerID,
+                             final List<String> records )
+        {
+
+        for ( final String record : records )
+            {
+            line( out, PAGE_LINE ) ;
+            line( out, peerID ) ;
+            line( out, record ) ;
+            }
+
+        }
+
+
+    @Override
+    public void pageEnd( final ByteArrayOutputStream out,
+                         final String peerID,
+                         final long cursor )
+        {
+
+        line( out, PAGE_END_LINE ) ;
+        line( out, peerID ) ;
+        line( out, Long.toString( cursor ) ) ;
+
+        }
+
+
+    @Override
+    public void join( final ByteArrayOutputStream out,
+                      final String memberID,
+                      final String groupID )
+        {
+
+        line( out, memberID + " JOIN" ) ;
+        line( out, groupID ) ;
+
+        }
+
+
+    @Override
+    public void leave( final ByteArrayOutputStream out,
+                       final String memberID,
+                       final String groupID )
+        {
+
+        line( out, memberID + " LEAVE" ) ;
+        line( out, groupID ) ;
+
+        }
+
+
+    /**
+     * An ordinary sender / group / message frame.
+     */
+    @Override
+    public void groupMessage( final ByteArrayOutputStream out,
+                              final String senderID,
+                              final String groupID,
+                              final String message )
+        {
+
+        message( out, senderID, groupID, 0, message ) ;
+
+        }
+
+
+    private static void line( final ByteArrayOutputStream out,
+                              final String text )
+        {
+
+        out.writeBytes( text.getBytes( StandardCharsets.UTF_8 ) ) ;
+        out.write( '\n' ) ;
+
+        }
+
+    }
@@ -0,0 +1,140 @@
+package application ;
+
+import java.io.DataInputStream ;
+import java.io.DataOutputStream ;
+import java.io.IOException ;
+
+/**
+ * Bloom filter over the user IDs that appear in one history segment, so lookups for a
+ * conversation can skip segments neither user ever wrote to or received in.
+ *
+ * @version 1.1 2026-10-18 Filters can be merged.
+ *
+ * @since 1.3
+ */
+final class UserBloomFilter
+    {
+
+    private static final int HASHES = 4 ;
+
+    private final long[] bits ;
+
+
+    /**
+     * @param bitCount
+     *     The size of the filter in bits, rounded up to a whole number of longs.
+     *
+     * @since 1.3
+     */
+    UserBloomFilter( final int bitCount )
+        {
+
+        this.bits = new long[ Math.max( 1, ( bitCount + 63 ) / 64 ) ] ;
+
+        }
+
+
+    private UserBloomFilter( final long[] bitsInput )
+        {
+
+        this.bits = bitsInput ;
+
+        }
+
+
+    /**
+     * Only called by the history writer or during recovery; readers see the result through the
+     * segment's volatile committed size.
+     */
+    synchronized void add( final String userID )
+        {
+
+        final long bitCount = this.bits.length * 64L ;
+        final int h1 = userID.hashCode() ;
+        final int h2 = mix( h1 ) ;
+
+        for ( int i = 0 ; i < HASHES ; i++ )
+            {
+            final long bit = Math.floorMod( h1 + ( (long) i * h2 ), bitCount ) ;
+            this.bits[ (int) ( bit >>> 6 ) ] |= 1L << bit ;
+            }
+
+        }
+
+
+    /**
+     * Add every user in {@code other}, which must be the same size.
+     */
+    synchronized void addAll( final UserBloomFilter other )
+        {
+
+        for ( int i = 0 ; i < this.bits.length ; i++ )
+            {
+            this.bits[ i ] |= other.bits[ i ] ;
+            }
+
+        }
+
+
+    boolean mightContain( final String userID )
+        {
+
+        final long bitCount = this.bits.length * 64L ;
+        final int h1 = userID.hashCode() ;
+        final int h2 = mix( h1 ) ;
+
+        for ( int i = 0 ; i < HASHES ; i++ )
+            {
+            final long bit = Math.floorMod( h1 + ( (long) i * h2 ), bitCount ) ;
+
+            if ( ( this.bits[ (int) ( bit >>> 6 ) ] & ( 1L << bit ) ) == 0 )
+                {
+                return false ;
+                }
+
+            }
+
+        return true ;
+
+        }
+
+
+    void writeTo( final DataOutputStream out ) throws IOException
+        {
+
+        out.writeInt( this.bits.length ) ;
+
+        for ( final long word : this.bits )
+            {
+            out.writeLong( word ) ;
+            }
+
+        }
+
+
+    static UserBloomFilter readFrom( final DataInputStream in ) throws IOException
+        {
+
+        final long[] bits = new long[ in.readInt() ] ;
+
+        for ( int i = 0 ; i < bits.length ; i++ )
+            {
+            bits[ i ] = in.readLong() ;
+            }
+
+        return new UserBloomFilter( bits ) ;
+
+        }
+
+
+    private static int mix( final int hash )
+        {
+
+        int h = hash * 0x9E3779B9 ;
+        h ^= h >>> 16 ;
+
+        return h | 1 ;
+
+        }
+
+    }
@@ -0,0 +1,89 @@
+package application ;
+
+/**
+ * How frames are laid out on a client connection. The server accepts both on the same port: a
+ * binary client opens with a {@link BinaryFrames#HELLO} byte, which can never start a text frame.
+ *
+ * @version 1.0 2026-10-18 Added the binary protocol.
+ *
+ * @since 1.3
+ */
+public enum WireProtocol
+    {
+
+    /**
+     * Newline terminated sender / recipient / message lines.
+     */
+    TEXT,
+
+    /**
+     * Length prefixed, typed frames with UTF-8 strings and per connection numeric user IDs.
+     */
+    BINARY ;
+
+
+    /**
+     * Reads the protocol from the {@code chat.protocol} system property, defaulting to
+     * {@link #TEXT}.
+     *
+     * @return The configured protocol.
+     *
+     * @since 1.3
+     */
+    public static WireProtocol fromSystemProperty()
+        {
+
+        final String value = System.getProperty( "chat.protocol" ) ;
+
+        if ( value == null )
+            {
+            return TEXT ;
+            }
+
+        return valueOf( value.trim().toUpperCase() ) ;
+
+        }
+
+
+    /**
+     * @param firstByte
+     *     The first byte a client sent.
+     *
+     * @return The protocol that client speaks.
+     *
+     * @since 1.3
+     */
+    static WireProtocol detect( final byte firstByte )
+        {
+
+        return firstByte == BinaryFrames.HELLO ? BINARY : TEXT ;
+
+        }
+
+
+    /**
+     * @return A new encoder; each connection needs its own.
+     *
+     * @since 1.3
+     */
+    FrameEncoder newEncoder()
+        {
+
+        return this == BINARY ? new BinaryFrameEncoder() : new TextFrameEncoder() ;
+
+        }
+
+
+    /**
+     * @return A new decoder for frames sent by a client; each connection needs its own.
+     *
+     * @since 1.3
+     */
+    FrameDecoder newDecoder()
+        {
+
+        return this == BINARY ? new BinaryFrameDecoder() : new TextFrameDecoder() ;
+
+        }
+
+    }
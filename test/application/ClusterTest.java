@@ -0,0 +1,283 @@
+package application ;
+
+import java.io.File ;
+import java.io.IOException ;
+import java.lang.management.ManagementFactory ;
+import java.net.InetSocketAddress ;
+import java.nio.file.Files ;
+import java.util.ArrayList ;
+import java.util.LinkedHashMap ;
+import java.util.List ;
+import java.util.Map ;
+import java.util.concurrent.TimeUnit ;
+import javax.management.ObjectName ;
+
+/**
+ * Starts a cluster of three {@link TCPServer} nodes on localhost and checks that users on
+ * different nodes reach each other: direct messages, group fan-out, presence when a user
+ * disconnects, messages held for a user until the node it turns up on joins, and history read
+ * back from any node. Each check prints one line, and the run exits with status 1 if any failed.
+ * <p>
+ * Run with the compiled {@code src} and {@code test} folders on the class path:
+ *
+ * <pre>
+ * java -cp bin application.ClusterTest [BLOCKING|NIO|VIRTUAL]
+ * </pre>
+ *
+ * The nodes take client ports from {@code test.clientPort} and link ports from
+ * {@code test.linkPort}, three of each, and keep their data in a temporary directory.
+ *
+ * @version 1.2 2026-10-18 Starts each node with TCPServer.start().
+ *
+ * @since 1.3
+ */
+public final class ClusterTest
+    {
+
+    private static final int CLIENT_PORT = Integer.getInteger( "test.clientPort", 19101 ) ;
+    private static final int LINK_PORT = Integer.getInteger( "test.linkPort", 19201 ) ;
+    private static final long TIMEOUT_MILLIS = 5000 ;
+    private static final long SETTLE_MILLIS = 1000 ;
+
+    private final ServerMode mode ;
+    private final Map<String, InetSocketAddress> nodes ;
+    private final File dataDirectory ;
+    private final List<TCPClient> clients ;
+    private int failures ;
+
+
+    private ClusterTest( final ServerMode modeInput ) throws IOException
+        {
+
+        this.mode = modeInput ;
+        this.nodes = new LinkedHashMap<>() ;
+        this.dataDirectory = Files.createTempDirectory( "cluster-test" ).toFile() ;
+        this.clients = new ArrayList<>() ;
+
+        for ( int node = 0 ; node < 3 ; node++ )
+            {
+            this.nodes.put( nodeID( node ),
+                            new InetSocketAddress( "localhost", LINK_PORT + node ) ) ;
+            }
+
+        }
+
+
+    public static void main( final String[] args ) throws Exception
+        {
+
+        final ServerMode mode = args.length > 0 ? ServerMode.valueOf( args[ 0 ] )
+                                                : ServerMode.BLOCKING ;
+        final ClusterTest test = new ClusterTest( mode ) ;
+
+        try
+            {
+            test.run() ;
+            }
+        finally
+            {
+            test.clients.forEach( TCPClient::stop ) ;
+            }
+
+        System.out.println( test.failures == 0 ? "All checks passed"
+                                               : test.failures + " checks failed" ) ;
+        System.exit( test.failures == 0 ? 0 : 1 ) ;
+
+        }
+
+
+    private void run() throws Exception
+        {
+
+        // The third node starts late, so its links come up while the others are running
+        startNode( 0 ) ;
+        startNode( 1 ) ;
+        Thread.sleep( SETTLE_MILLIS ) ;
+
+        final TCPClient alice = connect( "alice", 0, WireProtocol.TEXT ) ;
+        final TCPClient bob = connect( "bob", 1, WireProtocol.BINARY ) ;
+
+        send( alice, "bob", "hello bob" ) ;
+        check( "direct message crosses nodes",
+               receive( bob, 1 ).equals( List.of( "hello bob" ) ) ) ;
+
+        send( alice, "carol", "early 1" ) ;
+        send( alice, "carol", "early 2" ) ;
+        startNode( 2 ) ;
+        Thread.sleep( SETTLE_MILLIS ) ;
+
+        final TCPClient carol = connect( "carol", 2, WireProtocol.TEXT ) ;
+        check( "held messages reach a node that joins later",
+               receive( carol, 2 ).equals( List.of( "early 1", "early 2" ) ) ) ;
+
+        alice.joinGroup( "#team" ) ;
+        bob.joinGroup( "#team" ) ;
+        carol.joinGroup( "#team" ) ;
+        Thread.sleep( SETTLE_MILLIS ) ;
+
+        send( alice, "#team", "to the team" ) ;
+        check( "group message reaches members on other nodes",
+               receive( bob, 1 ).equals( List.of( "to the team" ) ) &&
+               receive( carol, 1 ).equals( List.of( "to the team" ) ) ) ;
+        check( "group message is not echoed to its sender", receive( alice, 1 ).isEmpty() ) ;
+
+        bob.stop() ;
+        Thread.sleep( SETTLE_MILLIS ) ;
+
+        final long held = metric( 0, "MessagesQueuedOffline" ) ;
+        final long forwarded = metric( 0, "ClusterMessagesForwarded" ) ;
+
+        send( alice, "bob", "while away" ) ;
+        check( "a disconnected user is held on the sender's node",
+               metric( 0, "MessagesQueuedOffline" ) == held + 1 &&
+               metric( 0, "ClusterMessagesForwarded" ) == forwarded ) ;
+
+        final TCPClient bobAgain = connect( "bob", 2, WireProtocol.BINARY ) ;
+        check( "held message follows the user to another node",
+               receive( bobAgain, 1 ).equals( List.of( "while away" ) ) ) ;
+
+        final List<String> sent = alice.requestHistory( "bob" )
+                                       .get( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ;
+        final List<String> received = bobAgain.requestHistory( "alice" )
+                                              .get( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ;
+        check( "history has each message once on the sender's node",
+               count( sent, "hello bob" ) == 1 && count( sent, "while away" ) == 1 ) ;
+        check( "history has each message once on the recipient's node",
+               count( received, "hello bob" ) == 1 && count( received, "while away" ) == 1 ) ;
+
+        }
+
+
+    private void startNode( final int node )
+        {
+
+        final ClusterConfig config = new ClusterConfig( nodeID( node ),
+                                                        this.nodes,
+                                                        new File( this.dataDirectory,
+                                                                  nodeID( node ) ) ) ;
+        final Thread server = new Thread( () -> new TCPServer( CLIENT_PORT + node,
+                                                               this.mode,
+                                                               config ).start(),
+                                          "node-" + node ) ;
+
+        server.setDaemon( true ) ;
+        server.start() ;
+
+        }
+
+
+    /**
+     * Connect {@code userID} to {@code node} and have it join a group, since a user is only known
+     * to its node, and so to the cluster, from its first frame.
+     */
+    private TCPClient connect( final String userID,
+                               final int node,
+                               final WireProtocol protocol ) throws IOException,
+                                                                    InterruptedException
+        {
+
+        final TCPClient client = new TCPClient( userID,
+                                                "localhost",
+                                                CLIENT_PORT + node,
+                                                protocol ) ;
+        this.clients.add( client ) ;
+        client.joinGroup( "#lobby" ) ;
+        Thread.sleep( SETTLE_MILLIS ) ;
+
+        return client ;
+
+        }
+
+
+    private static void send( final TCPClient from,
+                              final String to,
+                              final String message ) throws Exception
+        {
+
+        from.sendMessageAsync( to, message ).get( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ;
+
+        }
+
+
+    /**
+     * Wait until {@code client} has received {@code expected} messages or the timeout passes, then
+     * take whatever arrived, waiting a little longer for any that should not have.
+     */
+    private static List<String> receive( final TCPClient client,
+                                         final int expected ) throws InterruptedException
+        {
+
+        final List<String> received = new ArrayList<>() ;
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS ;
+
+        while ( received.size() < expected && System.currentTimeMillis() < deadline )
+            {
+            final String message = client.msgQueuePoll() ;
+
+            if ( message == null )
+                {
+                Thread.sleep( 20 ) ;
+                }
+            else
+                {
+                received.add( message ) ;
+                }
+            }
+
+        Thread.sleep( 200 ) ;
+
+        for ( String message = client.msgQueuePoll() ;
+              message != null ;
+              message = client.msgQueuePoll() )
+            {
+            received.add( message ) ;
+            }
+
+        return received ;
+
+        }
+
+
+    private static long count( final List<String> records,
+                               final String message )
+        {
+
+        return records.stream().filter( record -> record.contains( message ) ).count() ;
+
+        }
+
+
+    private static long metric( final int node,
+                                final String name ) throws Exception
+        {
+
+        final ObjectName metrics = new ObjectName( "application:type=ServerMetrics,port=" +
+                                                   ( CLIENT_PORT + node ) ) ;
+
+        return ( Long ) ManagementFactory.getPlatformMBeanServer().getAttribute( metrics, name ) ;
+
+        }
+
+
+    private static String nodeID( final int node )
+        {
+
+        return "n" + ( node + 1 ) ;
+
+        }
+
+
+    private void check( final String name,
+                        final boolean passed )
+        {
+
+        System.out.println( ( passed ? "PASS " : "FAIL " ) + name ) ;
+
+        if ( !passed )
+            {
+            this.failures++ ;
+            }
+
+        }
+
+    }
@@ -0,0 +1,161 @@
+package application ;
+
+import java.io.File ;
+import java.nio.file.Files ;
+import java.util.List ;
+import java.util.concurrent.CompletableFuture ;
+import java.util.concurrent.CopyOnWriteArrayList ;
+import java.util.concurrent.ExecutionException ;
+import java.util.concurrent.TimeUnit ;
+
+/**
+ * Runs a {@link HistoryWriter} over a log in a temporary directory, with an index that throws for
+ * some records, and checks that a failed batch fails only its own records while the writer keeps
+ * taking more. Each check prints one line, and the run exits with status 1 if any failed.
+ * <p>
+ * Run with the compiled {@code src} and {@code test} folders on the class path:
+ *
+ * <pre>
+ * java -cp bin application.HistoryWriterTest
+ * </pre>
+ *
+ * @version 1.0 2026-10-18 A throwing index fails its batch and not the writer.
+ *
+ * @since 1.3
+ */
+public final class HistoryWriterTest
+    {
+
+    private static final int QUEUE_CAPACITY = 4 ;
+    private static final long TIMEOUT_MILLIS = 5000 ;
+
+    private final List<String> indexed ;
+    private int failures ;
+
+
+    private HistoryWriterTest()
+        {
+
+        this.indexed = new CopyOnWriteArrayList<>() ;
+
+        }
+
+
+    public static void main( final String[] args ) throws Exception
+        {
+
+        System.setProperty( "chat.history.queueCapacity", String.valueOf( QUEUE_CAPACITY ) ) ;
+
+        final HistoryWriterTest test = new HistoryWriterTest() ;
+        test.run() ;
+
+        System.out.println( test.failures == 0 ? "All checks passed"
+                                               : test.failures + " checks failed" ) ;
+        System.exit( test.failures == 0 ? 0 : 1 ) ;
+
+        }
+
+
+    private void run() throws Exception
+        {
+
+        final File directory = Files.createTempDirectory( "history-writer-test" ).toFile() ;
+        final SegmentedLog log = new SegmentedLog( new File( directory, "history.txt" ),
+                                                   oldest -> {} ) ;
+
+        // A new log has only an empty active segment, so its users are known without reading
+        log.active().recoverUsers() ;
+
+        final HistoryWriter writer = new HistoryWriter( this::indexRecord,
+                                                        log,
+                                                        HistoryDurability.FLUSH ) ;
+        writer.start() ;
+
+        check( "a record the index throws for fails its future",
+               failed( writer.submit( "alice", "bob", "boom", null ) ) ) ;
+        check( "the next record still commits",
+               committed( writer.submit( "alice", "bob", "after", null ) ) &&
+               this.indexed.contains( "after" ) ) ;
+
+        // More failures than the queue holds, which would block the submitter if the writer died
+        final List<CompletableFuture<Void>> refused = new CopyOnWriteArrayList<>() ;
+        final Thread submitter = new Thread( () ->
+            {
+
+            for ( int i = 0 ; i < QUEUE_CAPACITY * 4 ; i++ )
+                {
+                refused.add( writer.submit( "alice", "bob", "boom " + i, null ) ) ;
+                }
+
+            }, "submitter" ) ;
+
+        submitter.setDaemon( true ) ;
+        submitter.start() ;
+        submitter.join( TIMEOUT_MILLIS ) ;
+
+        // Futures complete in log order, so once the last has failed the queue is empty
+        check( "repeated failures never block a submitter",
+               !submitter.isAlive() && failed( refused.get( refused.size() - 1 ) ) ) ;
+        check( "the writer still commits after them",
+               committed( writer.submit( "alice", "bob", "last", null ) ) &&
+               writer.isAlive() ) ;
+
+        }
+
+
+    private void indexRecord( final String senderID,
+                              final String recipientID,
+                              final String record,
+                              final String[] terms,
+                              final long position )
+        {
+
+        if ( record.startsWith( "boom" ) )
+            {
+            throw new IllegalStateException( "The index refused " + record ) ;
+            }
+
+        this.indexed.add( record ) ;
+
+        }
+
+
+    private static boolean committed( final CompletableFuture<Void> future ) throws Exception
+        {
+
+        future.get( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ;
+        return true ;
+
+        }
+
+
+    private static boolean failed( final CompletableFuture<Void> future ) throws Exception
+        {
+
+        try
+            {
+            future.get( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ;
+            return false ;
+            }
+        catch ( final ExecutionException e )
+            {
+            return e.getCause() instanceof IllegalStateException ;
+            }
+
+        }
+
+
+    private void check( final String name,
+                        final boolean passed )
+        {
+
+        System.out.println( ( passed ? "PASS " : "FAIL " ) + name ) ;
+
+        if ( !passed )
+            {
+            this.failures++ ;
+            }
+
+        }
+
+    }
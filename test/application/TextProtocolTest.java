@@ -0,0 +1,236 @@
+package application ;
+
+import java.io.IOException ;
+import java.net.Socket ;
+import java.util.ArrayList ;
+import java.util.List ;
+import java.util.concurrent.TimeUnit ;
+
+/**
+ * Starts a {@link TCPServer} on localhost and checks that a text client is not misled by user IDs
+ * that look like the lines the server frames its answers with. Each check prints one line, and
+ * the run exits with status 1 if any failed.
+ * <p>
+ * Run with the compiled {@code src} and {@code test} folders on the class path, from a scratch
+ * directory, since the server writes its history there:
+ *
+ * <pre>
+ * java -cp bin application.TextProtocolTest [BLOCKING|NIO|VIRTUAL]
+ * </pre>
+ *
+ * The server takes its port from {@code test.port}.
+ *
+ * @version 1.2 2026-10-18 Starts the server with TCPServer.start().
+ *
+ * @since 1.3
+ */
+public final class TextProtocolTest
+    {
+
+    private static final int PORT = Integer.getInteger( "test.port", 19301 ) ;
+    private static final long TIMEOUT_MILLIS = 5000 ;
+    private static final long SETTLE_MILLIS = 500 ;
+
+    private final List<TCPClient> clients ;
+    private int failures ;
+
+
+    private TextProtocolTest()
+        {
+
+        this.clients = new ArrayList<>() ;
+
+        }
+
+
+    public static void main( final String[] args ) throws Exception
+        {
+
+        final ServerMode mode = args.length > 0 ? ServerMode.valueOf( args[ 0 ] )
+                                                : ServerMode.BLOCKING ;
+        final TextProtocolTest test = new TextProtocolTest() ;
+        final Thread server = new Thread( () -> new TCPServer( PORT, mode, null ).start(),
+                                          "server" ) ;
+
+        server.setDaemon( true ) ;
+        server.start() ;
+        awaitServer() ;
+
+        try
+            {
+            test.run() ;
+            }
+        finally
+            {
+            test.clients.forEach( TCPClient::stop ) ;
+            }
+
+        System.out.println( test.failures == 0 ? "All checks passed"
+                                               : test.failures + " checks failed" ) ;
+        System.exit( test.failures == 0 ? 0 : 1 ) ;
+
+        }
+
+
+    private void run() throws Exception
+        {
+
+        final TCPClient alice = connect( "alice", WireProtocol.TEXT ) ;
+        final TCPClient lookalike = connect( "alice REQUESTS", WireProtocol.BINARY ) ;
+
+        send( lookalike, "alice", "first" ) ;
+        check( "a sender starting with the REQ line is read as a message",
+               receive( alice, 1 ).equals( List.of( "first" ) ) ) ;
+
+        final List<String> history = alice.requestHistory( "alice REQUESTS" )
+                                          .get( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ;
+        send( lookalike, "alice", "second" ) ;
+        check( "the text reader stays in step after it",
+               ( history.size() == 1 ) && receive( alice, 1 ).equals( List.of( "second" ) ) ) ;
+
+        final TCPClient bob = connect( "bob", WireProtocol.TEXT ) ;
+        final TCPClient confirmer = connect( "bob #1", WireProtocol.BINARY ) ;
+        check( "an ID that reads as a confirmation is refused",
+               !delivered( confirmer, "bob", "spoofed" ) && receive( bob, 1 ).isEmpty() ) ;
+
+        final TCPClient replier = connect( "alice REQ", WireProtocol.BINARY ) ;
+        check( "an ID that reads as a REQ reply is refused",
+               !delivered( replier, "alice", "spoofed" ) && receive( alice, 1 ).isEmpty() ) ;
+
+        }
+
+
+    /**
+     * Wait until the server accepts connections, however long it takes to start.
+     */
+    private static void awaitServer() throws InterruptedException
+        {
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS ;
+
+        while ( true )
+            {
+
+            try
+                {
+                new Socket( "localhost", PORT ).close() ;
+                return ;
+                }
+            catch ( final IOException e )
+                {
+
+                if ( System.currentTimeMillis() > deadline )
+                    {
+                    throw new IllegalStateException( "The server did not start", e ) ;
+                    }
+
+                Thread.sleep( 100 ) ;
+                }
+
+            }
+
+        }
+
+
+    /**
+     * Connect {@code userID} and have it join a group, since a user is only known to the server
+     * from its first frame.
+     */
+    private TCPClient connect( final String userID,
+                               final WireProtocol protocol ) throws Exception
+        {
+
+        final TCPClient client = new TCPClient( userID, "localhost", PORT, protocol ) ;
+        this.clients.add( client ) ;
+        client.joinGroup( "#lobby" ) ;
+        Thread.sleep( SETTLE_MILLIS ) ;
+
+        return client ;
+
+        }
+
+
+    private static void send( final TCPClient from,
+                              final String to,
+                              final String message ) throws Exception
+        {
+
+        from.sendMessageAsync( to, message ).get( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ;
+
+        }
+
+
+    /**
+     * @return False if the message could not be sent, or was never confirmed.
+     */
+    private static boolean delivered( final TCPClient from,
+                                      final String to,
+                                      final String message )
+        {
+
+        try
+            {
+            send( from, to, message ) ;
+            return true ;
+            }
+        catch ( final Exception e )
+            {
+            return false ;
+            }
+
+        }
+
+
+    /**
+     * Wait until {@code client} has received {@code expected} messages or the timeout passes, then
+     * take whatever arrived, waiting a little longer for any that should not have.
+     */
+    private static List<String> receive( final TCPClient client,
+                                         final int expected ) throws InterruptedException
+        {
+
+        final List<String> received = new ArrayList<>() ;
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS ;
+
+        while ( received.size() < expected && System.currentTimeMillis() < deadline )
+            {
+            final String message = client.msgQueuePoll() ;
+
+            if ( message == null )
+                {
+                Thread.sleep( 20 ) ;
+                }
+            else
+                {
+                received.add( message ) ;
+                }
+            }
+
+        Thread.sleep( 200 ) ;
+
+        for ( String message = client.msgQueuePoll() ;
+              message != null ;
+              message = client.msgQueuePoll() )
+            {
+            received.add( message ) ;
+            }
+
+        return received ;
+
+        }
+
+
+    private void check( final String name,
+                        final boolean passed )
+        {
+
+        System.out.println( ( passed ? "PASS " : "FAIL " ) + name ) ;
+
+        if ( !passed )
+            {
+            this.failures++ ;
+            }
+
+        }
+
+    }